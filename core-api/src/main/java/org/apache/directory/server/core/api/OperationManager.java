@@ -24,6 +24,7 @@ import java.util.concurrent.locks.ReadWriteLock;
 
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
@@ -161,4 +162,14 @@ public interface OperationManager
      * @return the OperationManager R/W lock
      */
     ReadWriteLock getRWLock();
+
+
+    /**
+     * Gets the R/W lock protecting the partition which contains the given Dn. Unless the
+     * OperationManager locks partitions individually, this is the global R/W lock.
+     *
+     * @param dn The Dn of an entry, or the suffix of a partition
+     * @return the R/W lock used to protect the partition the Dn belongs to
+     */
+    ReadWriteLock getRWLock( Dn dn );
 }
@@ -0,0 +1,45 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.api;
+
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+
+
+/**
+ * A write done on behalf of a change operation outside of the partitions, like the
+ * replication journal, and which must be stored before the operation is acknowledged.
+ * The writes are registered in the operation context by the components doing them
+ * (see {@link org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext#addPendingWrite(PendingWrite)}),
+ * and the {@link OperationManager} waits for them once it has released the operation
+ * locks, so that the writes of several concurrent operations can be synced at once.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface PendingWrite
+{
+    /**
+     * Waits until the write has been stored.
+     *
+     * @throws LdapException If the write failed, or if the thread has been interrupted
+     * before knowing it
+     */
+    void await() throws LdapException;
+}
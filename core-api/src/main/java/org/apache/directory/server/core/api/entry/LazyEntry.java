@@ -0,0 +1,915 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.api.entry;
+
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * An Entry read from a partition, which attributes are decoded the first time
+ * they are accessed. An attribute which is removed before being accessed, like
+ * the attributes which are not requested by a search, is never decoded.
+ * <br>
+ * The decoded attributes are stored in a {@link DefaultEntry}. This entry is
+ * replaced, not modified, when an attribute is decoded, so that an entry shared
+ * by many threads, like the ones stored in the partition cache, can be read
+ * concurrently. As for a DefaultEntry, the modifications are not thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LazyEntry implements Entry
+{
+    /**
+     * Decodes an attribute from the serialized entry.
+     */
+    public interface AttributeDecoder
+    {
+        /**
+         * Decodes an attribute.
+         *
+         * @param attributeType The attribute's type
+         * @param position The position of the serialized attribute
+         * @param length The length of the serialized attribute
+         * @return The decoded attribute
+         * @throws IOException If the attribute can't be decoded
+         */
+        Attribute decode( AttributeType attributeType, int position, int length ) throws IOException;
+    }
+
+    /**
+     * An attribute which has not been decoded yet.
+     */
+    private static final class PendingAttribute
+    {
+        private final AttributeType attributeType;
+        private final int position;
+        private final int length;
+
+
+        private PendingAttribute( AttributeType attributeType, int position, int length )
+        {
+            this.attributeType = attributeType;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /** The schemaManager */
+    private final SchemaManager schemaManager;
+
+    /** The decoder, shared by the clones of this entry */
+    private final AttributeDecoder decoder;
+
+    /** The decoded attributes */
+    private volatile Entry entry;
+
+    /** The attributes not decoded yet, by OID. This map is never modified once published */
+    private volatile Map<String, PendingAttribute> pending;
+
+
+    /**
+     * Creates a new instance of LazyEntry, with no attribute.
+     *
+     * @param schemaManager The SchemaManager
+     * @param decoder The decoder used to read the attributes
+     */
+    public LazyEntry( SchemaManager schemaManager, AttributeDecoder decoder )
+    {
+        this( schemaManager, decoder, new DefaultEntry( schemaManager ), null );
+    }
+
+
+    private LazyEntry( SchemaManager schemaManager, AttributeDecoder decoder, Entry entry,
+        Map<String, PendingAttribute> pending )
+    {
+        this.schemaManager = schemaManager;
+        this.decoder = decoder;
+        this.entry = entry;
+        this.pending = pending;
+    }
+
+
+    /**
+     * Adds an attribute which will be decoded when accessed. This method must only be
+     * called while the entry is being read.
+     *
+     * @param attributeType The attribute's type
+     * @param position The position of the serialized attribute
+     * @param length The length of the serialized attribute
+     */
+    public void addPending( AttributeType attributeType, int position, int length )
+    {
+        Map<String, PendingAttribute> newPending = pending == null ? new HashMap<String, PendingAttribute>()
+            : new HashMap<String, PendingAttribute>( pending );
+        newPending.put( attributeType.getOid(), new PendingAttribute( attributeType, position, length ) );
+        pending = newPending;
+    }
+
+
+    /**
+     * @return The number of attributes which have not been decoded yet
+     */
+    public int getPendingCount()
+    {
+        Map<String, PendingAttribute> current = pending;
+
+        return current == null ? 0 : current.size();
+    }
+
+
+    /**
+     * @return The decoder used to read the attributes
+     */
+    public AttributeDecoder getDecoder()
+    {
+        return decoder;
+    }
+
+
+    /**
+     * @return The size of the serialized attributes which have not been decoded yet, in bytes
+     */
+    public long getPendingLength()
+    {
+        Map<String, PendingAttribute> current = pending;
+        long length = 0L;
+
+        if ( current != null )
+        {
+            for ( PendingAttribute pendingAttribute : current.values() )
+            {
+                length += pendingAttribute.length;
+            }
+        }
+
+        return length;
+    }
+
+
+    /**
+     * @return The attributes which have already been decoded
+     */
+    public Collection<Attribute> getDecodedAttributes()
+    {
+        return entry.getAttributes();
+    }
+
+
+    /**
+     * Gets the types of the attributes of this entry, without decoding them.
+     *
+     * @return The attribute types
+     */
+    public List<AttributeType> getAttributeTypes()
+    {
+        List<AttributeType> attributeTypes = new ArrayList<AttributeType>();
+
+        synchronized ( this )
+        {
+            for ( Attribute attribute : entry )
+            {
+                attributeTypes.add( attribute.getAttributeType() );
+            }
+
+            if ( pending != null )
+            {
+                for ( PendingAttribute pendingAttribute : pending.values() )
+                {
+                    attributeTypes.add( pendingAttribute.attributeType );
+                }
+            }
+        }
+
+        return attributeTypes;
+    }
+
+
+    /**
+     * Decodes an attribute, if it has not been decoded yet
+     */
+    private void load( AttributeType attributeType )
+    {
+        if ( attributeType == null )
+        {
+            return;
+        }
+
+        Map<String, PendingAttribute> current = pending;
+
+        if ( ( current != null ) && current.containsKey( attributeType.getOid() ) )
+        {
+            load( Collections.singletonList( attributeType.getOid() ) );
+        }
+    }
+
+
+    /**
+     * Decodes an attribute, if it has not been decoded yet
+     */
+    private void load( String upId )
+    {
+        if ( pending == null )
+        {
+            return;
+        }
+
+        AttributeType attributeType = schemaManager.getAttributeType( upId );
+
+        if ( attributeType == null )
+        {
+            // Can't tell which attribute it is
+            loadAll();
+        }
+        else
+        {
+            load( attributeType );
+        }
+    }
+
+
+    /**
+     * Decodes the attributes which have not been decoded yet
+     */
+    private void loadAll()
+    {
+        Map<String, PendingAttribute> current = pending;
+
+        if ( current != null )
+        {
+            load( new ArrayList<String>( current.keySet() ) );
+        }
+    }
+
+
+    /**
+     * Decodes some attributes, and publishes a new entry containing them. The
+     * entry has to be published before the pending attributes are updated.
+     */
+    private synchronized void load( List<String> oids )
+    {
+        Map<String, PendingAttribute> current = pending;
+
+        if ( current == null )
+        {
+            return;
+        }
+
+        Map<String, PendingAttribute> remaining = new HashMap<String, PendingAttribute>( current );
+        Entry newEntry = entry.shallowClone();
+
+        for ( String oid : oids )
+        {
+            PendingAttribute pendingAttribute = remaining.remove( oid );
+
+            if ( pendingAttribute == null )
+            {
+                continue;
+            }
+
+            try
+            {
+                newEntry.add( decoder.decode( pendingAttribute.attributeType, pendingAttribute.position,
+                    pendingAttribute.length ) );
+            }
+            catch ( Exception e )
+            {
+                throw new IllegalStateException( I18n.err( I18n.ERR_753_CANNOT_DECODE_ATTRIBUTE,
+                    pendingAttribute.attributeType.getName(), newEntry.getDn(), e.getMessage() ), e );
+            }
+        }
+
+        entry = newEntry;
+        pending = remaining.isEmpty() ? null : remaining;
+    }
+
+
+    /**
+     * Forgets some attributes which have not been decoded yet
+     */
+    private synchronized void drop( AttributeType... attributeTypes )
+    {
+        if ( ( pending == null ) || ( attributeTypes == null ) )
+        {
+            return;
+        }
+
+        Map<String, PendingAttribute> remaining = new HashMap<String, PendingAttribute>( pending );
+
+        for ( AttributeType attributeType : attributeTypes )
+        {
+            if ( attributeType != null )
+            {
+                remaining.remove( attributeType.getOid() );
+            }
+        }
+
+        pending = remaining.isEmpty() ? null : remaining;
+    }
+
+
+    /**
+     * Decodes the attributes of some Attribute instances
+     */
+    private void load( Attribute... attributes )
+    {
+        if ( ( pending == null ) || ( attributes == null ) )
+        {
+            return;
+        }
+
+        for ( Attribute attribute : attributes )
+        {
+            if ( attribute.getAttributeType() != null )
+            {
+                load( attribute.getAttributeType() );
+            }
+            else
+            {
+                load( attribute.getUpId() );
+            }
+        }
+    }
+
+
+    public Entry add( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.add( attributeType, values );
+    }
+
+
+    public Entry add( AttributeType attributeType, String... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.add( attributeType, values );
+    }
+
+
+    public Entry add( AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.add( attributeType, values );
+    }
+
+
+    public Entry add( String upId, AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.add( upId, attributeType, values );
+    }
+
+
+    public Entry add( String upId, AttributeType attributeType, String... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.add( upId, attributeType, values );
+    }
+
+
+    public Entry add( String upId, AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.add( upId, attributeType, values );
+    }
+
+
+    public Entry add( Attribute... attributes ) throws LdapException
+    {
+        load( attributes );
+
+        return entry.add( attributes );
+    }
+
+
+    public Entry add( String upId, String... values ) throws LdapException
+    {
+        load( upId );
+
+        return entry.add( upId, values );
+    }
+
+
+    public Entry add( String upId, byte[]... values ) throws LdapException
+    {
+        load( upId );
+
+        return entry.add( upId, values );
+    }
+
+
+    public Entry add( String upId, Value<?>... values ) throws LdapException
+    {
+        load( upId );
+
+        return entry.add( upId, values );
+    }
+
+
+    public boolean contains( AttributeType attributeType, byte[]... values )
+    {
+        load( attributeType );
+
+        return entry.contains( attributeType, values );
+    }
+
+
+    public boolean contains( AttributeType attributeType, String... values )
+    {
+        load( attributeType );
+
+        return entry.contains( attributeType, values );
+    }
+
+
+    public boolean contains( AttributeType attributeType, Value<?>... values )
+    {
+        load( attributeType );
+
+        return entry.contains( attributeType, values );
+    }
+
+
+    public boolean contains( Attribute... attributes )
+    {
+        load( attributes );
+
+        return entry.contains( attributes );
+    }
+
+
+    public boolean contains( String upId, byte[]... values )
+    {
+        load( upId );
+
+        return entry.contains( upId, values );
+    }
+
+
+    public boolean contains( String upId, String... values )
+    {
+        load( upId );
+
+        return entry.contains( upId, values );
+    }
+
+
+    public boolean contains( String upId, Value<?>... values )
+    {
+        load( upId );
+
+        return entry.contains( upId, values );
+    }
+
+
+    public boolean containsAttribute( AttributeType attributeType )
+    {
+        Map<String, PendingAttribute> current = pending;
+
+        if ( ( current != null ) && ( attributeType != null ) && current.containsKey( attributeType.getOid() ) )
+        {
+            return true;
+        }
+
+        return entry.containsAttribute( attributeType );
+    }
+
+
+    public boolean containsAttribute( String... attributes )
+    {
+        if ( attributes != null )
+        {
+            for ( String attribute : attributes )
+            {
+                load( attribute );
+            }
+        }
+
+        return entry.containsAttribute( attributes );
+    }
+
+
+    public Attribute get( AttributeType attributeType )
+    {
+        load( attributeType );
+
+        return entry.get( attributeType );
+    }
+
+
+    public Attribute get( String alias )
+    {
+        load( alias );
+
+        return entry.get( alias );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection<Attribute> getAttributes()
+    {
+        loadAll();
+
+        return entry.getAttributes();
+    }
+
+
+    public boolean hasObjectClass( String... objectClasses )
+    {
+        load( schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT_OID ) );
+
+        return entry.hasObjectClass( objectClasses );
+    }
+
+
+    public boolean hasObjectClass( Attribute... objectClasses )
+    {
+        load( schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT_OID ) );
+
+        return entry.hasObjectClass( objectClasses );
+    }
+
+
+    public List<Attribute> put( Attribute... attributes ) throws LdapException
+    {
+        load( attributes );
+
+        return entry.put( attributes );
+    }
+
+
+    public Attribute put( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.put( attributeType, values );
+    }
+
+
+    public Attribute put( AttributeType attributeType, String... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.put( attributeType, values );
+    }
+
+
+    public Attribute put( AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.put( attributeType, values );
+    }
+
+
+    public Attribute put( String upId, AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.put( upId, attributeType, values );
+    }
+
+
+    public Attribute put( String upId, AttributeType attributeType, String... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.put( upId, attributeType, values );
+    }
+
+
+    public Attribute put( String upId, AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.put( upId, attributeType, values );
+    }
+
+
+    public Attribute put( String upId, byte[]... values )
+    {
+        load( upId );
+
+        return entry.put( upId, values );
+    }
+
+
+    public Attribute put( String upId, String... values )
+    {
+        load( upId );
+
+        return entry.put( upId, values );
+    }
+
+
+    public Attribute put( String upId, Value<?>... values )
+    {
+        load( upId );
+
+        return entry.put( upId, values );
+    }
+
+
+    public boolean remove( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.remove( attributeType, values );
+    }
+
+
+    public boolean remove( AttributeType attributeType, String... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.remove( attributeType, values );
+    }
+
+
+    public boolean remove( AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        load( attributeType );
+
+        return entry.remove( attributeType, values );
+    }
+
+
+    public List<Attribute> remove( Attribute... attributes ) throws LdapException
+    {
+        load( attributes );
+
+        return entry.remove( attributes );
+    }
+
+
+    public boolean remove( String upId, byte[]... values ) throws LdapException
+    {
+        load( upId );
+
+        return entry.remove( upId, values );
+    }
+
+
+    public boolean remove( String upId, String... values ) throws LdapException
+    {
+        load( upId );
+
+        return entry.remove( upId, values );
+    }
+
+
+    public boolean remove( String upId, Value<?>... values ) throws LdapException
+    {
+        load( upId );
+
+        return entry.remove( upId, values );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The attributes which have not been decoded yet are simply forgotten.
+     */
+    public void removeAttributes( AttributeType... attributes )
+    {
+        drop( attributes );
+        entry.removeAttributes( attributes );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The attributes which have not been decoded yet are simply forgotten.
+     */
+    public void removeAttributes( String... attributes )
+    {
+        if ( ( pending != null ) && ( attributes != null ) )
+        {
+            for ( String attribute : attributes )
+            {
+                AttributeType attributeType = schemaManager.getAttributeType( attribute );
+
+                if ( attributeType == null )
+                {
+                    load( attribute );
+                }
+                else
+                {
+                    drop( attributeType );
+                }
+            }
+        }
+
+        entry.removeAttributes( attributes );
+    }
+
+
+    public void clear()
+    {
+        synchronized ( this )
+        {
+            pending = null;
+        }
+
+        entry.clear();
+    }
+
+
+    public Dn getDn()
+    {
+        return entry.getDn();
+    }
+
+
+    public void setDn( Dn dn )
+    {
+        entry.setDn( dn );
+    }
+
+
+    public void setDn( String dn ) throws LdapInvalidDnException
+    {
+        entry.setDn( dn );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSchemaAware()
+    {
+        return entry.isSchemaAware();
+    }
+
+
+    public Iterator<Attribute> iterator()
+    {
+        loadAll();
+
+        return entry.iterator();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The attributes are not decoded.
+     */
+    public int size()
+    {
+        if ( pending == null )
+        {
+            return entry.size();
+        }
+
+        synchronized ( this )
+        {
+            return entry.size() + getPendingCount();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The clone shares the attributes which have not been decoded yet.
+     */
+    public synchronized Entry clone()
+    {
+        return new LazyEntry( schemaManager, decoder, entry.clone(), pending );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The clone shares the attributes which have not been decoded yet.
+     */
+    public synchronized Entry shallowClone()
+    {
+        return new LazyEntry( schemaManager, decoder, entry.shallowClone(), pending );
+    }
+
+
+    /**
+     * @see java.io.Externalizable#readExternal(ObjectInput)
+     */
+    public void readExternal( ObjectInput in ) throws IOException, ClassNotFoundException
+    {
+        clear();
+        entry.readExternal( in );
+    }
+
+
+    /**
+     * @see java.io.Externalizable#writeExternal(ObjectOutput)
+     */
+    public void writeExternal( ObjectOutput out ) throws IOException
+    {
+        loadAll();
+        entry.writeExternal( out );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        loadAll();
+
+        return entry.hashCode();
+    }
+
+
+    /**
+     * @see Object#equals(Object);
+     */
+    @Override
+    public boolean equals( Object obj )
+    {
+        // Short circuit
+        if ( this == obj )
+        {
+            return true;
+        }
+
+        if ( !( obj instanceof Entry ) )
+        {
+            return false;
+        }
+
+        loadAll();
+
+        return entry.equals( obj );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return toString( "" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString( String tabs )
+    {
+        loadAll();
+
+        return entry.toString( tabs );
+    }
+}
@@ -734,6 +734,28 @@ public final class ServerEntryUtils
     }
 
 
+    /**
+     * Gets the types of the attributes of an entry. The attributes of a LazyEntry
+     * are not decoded.
+     */
+    private static List<AttributeType> getAttributeTypes( Entry entry )
+    {
+        if ( entry instanceof LazyEntry )
+        {
+            return ( ( LazyEntry ) entry ).getAttributeTypes();
+        }
+
+        List<AttributeType> attributeTypes = new ArrayList<AttributeType>( entry.size() );
+
+        for ( Attribute attribute : entry )
+        {
+            attributeTypes.add( attribute.getAttributeType() );
+        }
+
+        return attributeTypes;
+    }
+
+
     /**
      * Filters an entry accordingly to the requested Attribute list.
      * 
@@ -763,17 +785,15 @@ public final class ServerEntryUtils
         // First, remove all the attributes if we have the NoAttribute flag set to true
         if ( operationContext.isNoAttributes() )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
-
                 // Bypass the ref attribute, unless the ManageDSAIT control is present
                 if ( operationContext.isReferralThrown() && attributeType.equals( refType ) )
                 {
                     continue;
                 }
 
-                entry.remove( entry.get( attributeType ) );
+                entry.removeAttributes( attributeType );
             }
 
             entry.removeAttributes( entryDnType );
@@ -785,10 +805,8 @@ public final class ServerEntryUtils
         // the USER attributes, plus the Operational attributes in the returning list 
         if ( operationContext.isAllUserAttributes() )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
-
                 // Bypass the ref attribute, unless the ManageDSAIT control is present
                 if ( operationContext.isReferralThrown() && attributeType.equals( refType ) )
                 {
@@ -825,10 +843,8 @@ public final class ServerEntryUtils
         // the OPERATIONAL attributes, plus the User attributes in the returning list 
         if ( operationContext.isAllOperationalAttributes() )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
-
                 if ( attributeType.isUser() )
                 {
                     if ( !operationContext.contains( schemaManager, attributeType ) )
@@ -861,10 +877,8 @@ public final class ServerEntryUtils
         // Last, not least, check if the attributes are in the returning list
         if ( operationContext.getReturningAttributes() != null )
         {
-            for ( Attribute attribute : originalEntry )
+            for ( AttributeType attributeType : getAttributeTypes( originalEntry ) )
             {
-                AttributeType attributeType = attribute.getAttributeType();
-
                 // Bypass the ref attribute, unless the ManageDSAIT control is present
                 if ( operationContext.isReferralThrown() && attributeType.equals( refType ) )
                 {
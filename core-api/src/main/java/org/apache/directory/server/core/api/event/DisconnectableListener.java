@@ -0,0 +1,39 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.event;
+
+
+/**
+ * An asynchronous {@link DirectoryListener} which wants to know when the event service
+ * stops notifying it, because it could not keep up with the changes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface DisconnectableListener extends DirectoryListener
+{
+    /**
+     * Called once the listener has been removed from the event service, after its
+     * queue of pending notifications has overflowed. The pending notifications have
+     * been dropped.
+     *
+     * @param droppedEvents the number of notifications which have not been delivered
+     */
+    void disconnected( long droppedEvents );
+}
@@ -0,0 +1,44 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.event;
+
+
+/**
+ * The policy applied when the queue of notifications waiting to be delivered to an
+ * asynchronous {@link DirectoryListener} is full. The thread which performed the change
+ * holds the operation locks when it queues the notification, so it never waits for a slow
+ * listener : the notification is dropped instead.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum EventOverflowPolicy
+{
+    /**
+     * The notification is dropped and counted, but the listener stays registered. Only
+     * suitable for the listeners which can live with some missed changes.
+     */
+    DROP,
+
+    /**
+     * The pending notifications are dropped, and the listener is removed from the
+     * event service. A {@link DisconnectableListener} is told about it.
+     */
+    DROP_AND_DISCONNECT
+}
@@ -53,6 +53,15 @@ public class NotificationCriteria
     /** The event mask to use (default to everything) */
     private int eventMask = EventType.ALL_EVENT_TYPES_MASK;
 
+    /** The default number of notifications an asynchronous listener can have pending */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /** The number of notifications an asynchronous listener can have pending (default to 1000) */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /** The policy applied when the pending notifications queue is full (default to DROP_AND_DISCONNECT) */
+    private EventOverflowPolicy overflowPolicy = EventOverflowPolicy.DROP_AND_DISCONNECT;
+
 
     /**
      * Create a new instance of a NotiticationCriteria
@@ -182,6 +191,47 @@ public class NotificationCriteria
     }
 
 
+    /**
+     * @param queueCapacity the number of notifications an asynchronous listener can have pending
+     */
+    public void setQueueCapacity( int queueCapacity )
+    {
+        if ( queueCapacity <= 0 )
+        {
+            queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        }
+
+        this.queueCapacity = queueCapacity;
+    }
+
+
+    /**
+     * @return the number of notifications an asynchronous listener can have pending
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+
+    /**
+     * @param overflowPolicy the policy applied when the pending notifications queue is full
+     */
+    public void setOverflowPolicy( EventOverflowPolicy overflowPolicy )
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+
+    /**
+     * @return the policy applied when the pending notifications queue is full
+     */
+    public EventOverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -31,6 +31,7 @@ import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.OperationEnum;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
@@ -70,6 +71,9 @@ public abstract class BaseInterceptor implements Interceptor
     /** The DN factory */
     protected DnFactory dnFactory;
 
+    /** The start time returned when the calls to the next interceptor are not timed */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
     /** set of operational attribute types used for representing the password policy state of a user entry */
     protected static final Set<AttributeType> PWD_POLICY_STATE_ATTRIBUTE_TYPES = new HashSet<AttributeType>();
 
@@ -316,6 +320,39 @@ public abstract class BaseInterceptor implements Interceptor
     }
 
 
+    /**
+     * Starts timing the call to the next interceptor, if the metrics are gathered.
+     *
+     * @return The start time, or NOT_TIMED if the metrics are not gathered
+     */
+    private long startTimer()
+    {
+        if ( ( directoryService != null ) && directoryService.getMetricsRegistry().isEnabled() )
+        {
+            return System.nanoTime();
+        }
+
+        return NOT_TIMED;
+    }
+
+
+    /**
+     * Records the time spent in the next interceptor, and in the ones it called.
+     *
+     * @param interceptor The interceptor which has been called
+     * @param operation The processed operation
+     * @param start The value returned by {@link #startTimer()}
+     */
+    private void stopTimer( Interceptor interceptor, OperationEnum operation, long start )
+    {
+        if ( start != NOT_TIMED )
+        {
+            directoryService.getMetricsRegistry().getInterceptorHistogram( interceptor.getName(), operation )
+                .record( System.nanoTime() - start );
+        }
+    }
+
+
     // ------------------------------------------------------------------------
     // Interceptor's Invoke Method
     // ------------------------------------------------------------------------
@@ -338,7 +375,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( addContext );
 
-        interceptor.add( addContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.add( addContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.ADD, start );
+        }
     }
 
 
@@ -361,7 +407,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( bindContext );
 
-        interceptor.bind( bindContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.bind( bindContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.BIND, start );
+        }
     }
 
 
@@ -383,7 +438,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( compareContext );
 
-        return interceptor.compare( compareContext );
+        long start = startTimer();
+
+        try
+        {
+            return interceptor.compare( compareContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.COMPARE, start );
+        }
     }
 
 
@@ -406,7 +470,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( deleteContext );
 
-        interceptor.delete( deleteContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.delete( deleteContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.DELETE, start );
+        }
     }
 
 
@@ -431,7 +504,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( getRootDseContext );
 
-        return interceptor.getRootDse( getRootDseContext );
+        long start = startTimer();
+
+        try
+        {
+            return interceptor.getRootDse( getRootDseContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.GET_ROOT_DSE, start );
+        }
     }
 
 
@@ -456,7 +538,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( hasEntryContext );
 
-        return interceptor.hasEntry( hasEntryContext );
+        long start = startTimer();
+
+        try
+        {
+            return interceptor.hasEntry( hasEntryContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.HAS_ENTRY, start );
+        }
     }
 
 
@@ -480,7 +571,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( lookupContext );
 
-        return interceptor.lookup( lookupContext );
+        long start = startTimer();
+
+        try
+        {
+            return interceptor.lookup( lookupContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.LOOKUP, start );
+        }
     }
 
 
@@ -503,7 +603,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( modifyContext );
 
-        interceptor.modify( modifyContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.modify( modifyContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.MODIFY, start );
+        }
     }
 
 
@@ -526,7 +635,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( moveContext );
 
-        interceptor.move( moveContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.move( moveContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.MOVE, start );
+        }
     }
 
 
@@ -546,7 +664,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( moveAndRenameContext );
 
-        interceptor.moveAndRename( moveAndRenameContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.moveAndRename( moveAndRenameContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.MOVE_AND_RENAME, start );
+        }
     }
 
 
@@ -569,7 +696,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( renameContext );
 
-        interceptor.rename( renameContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.rename( renameContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.RENAME, start );
+        }
     }
 
 
@@ -593,7 +729,16 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( searchContext );
 
-        return interceptor.search( searchContext );
+        long start = startTimer();
+
+        try
+        {
+            return interceptor.search( searchContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.SEARCH, start );
+        }
     }
 
 
@@ -616,6 +761,15 @@ public abstract class BaseInterceptor implements Interceptor
     {
         Interceptor interceptor = getNextInterceptor( unbindContext );
 
-        interceptor.unbind( unbindContext );
+        long start = startTimer();
+
+        try
+        {
+            interceptor.unbind( unbindContext );
+        }
+        finally
+        {
+            stopTimer( interceptor, OperationEnum.UNBIND, start );
+        }
     }
 }
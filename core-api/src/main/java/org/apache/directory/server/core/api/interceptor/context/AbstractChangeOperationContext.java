@@ -20,9 +20,14 @@
 package org.apache.directory.server.core.api.interceptor.context;
 
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.PendingWrite;
 import org.apache.directory.server.core.api.changelog.ChangeLogEvent;
 import org.apache.directory.server.core.api.changelog.LogChange;
 
@@ -51,6 +56,9 @@ public abstract class AbstractChangeOperationContext extends AbstractOperationCo
     
     /** a flag to indicate when we don't want a replication event to be generated after this operation */
     private boolean generateNoReplEvt;
+
+    /** a flag to indicate that the partition does not have to sync its disks after this operation */
+    private boolean syncDeferred;
     
     /** 
      * flag to tell if this context needs to be sent to the event interceptor manually
@@ -58,7 +66,10 @@ public abstract class AbstractChangeOperationContext extends AbstractOperationCo
      * interceptor.  
      */
     private boolean pushToEvtInterceptor;
-    
+
+    /** The writes which must be stored before the operation is acknowledged */
+    private List<PendingWrite> pendingWrites;
+
     /**
      * 
      * Creates a new instance of AbstractChangeOperationContext.
@@ -193,6 +204,30 @@ public abstract class AbstractChangeOperationContext extends AbstractOperationCo
     }
 
 
+    /**
+     * @return true if the partition does not have to sync its disks after the changes
+     *         done using this operation context, false otherwise
+     */
+    public boolean isSyncDeferred()
+    {
+        return syncDeferred;
+    }
+
+
+    /**
+     * sets whether or not the partition can skip the sync of its disks after an operation
+     * using this operation context completes. The caller is then responsible for syncing
+     * the partition before it relies on the change being stored, as the replication
+     * consumer does before it stores its cookie.
+     * 
+     * @param syncDeferred
+     */
+    public void setSyncDeferred( boolean syncDeferred )
+    {
+        this.syncDeferred = syncDeferred;
+    }
+
+
     /**
      * @return true if this context needs to be pushed to the event interceptor from nexus
      */
@@ -211,4 +246,64 @@ public abstract class AbstractChangeOperationContext extends AbstractOperationCo
     {
         this.pushToEvtInterceptor = pushToEvtIntrcptor;
     }
+
+
+    /**
+     * Registers a write which must be stored before the operation is acknowledged.
+     *
+     * @param pendingWrite The pending write
+     */
+    public synchronized void addPendingWrite( PendingWrite pendingWrite )
+    {
+        if ( pendingWrites == null )
+        {
+            pendingWrites = new ArrayList<PendingWrite>();
+        }
+
+        pendingWrites.add( pendingWrite );
+    }
+
+
+    /**
+     * Waits for all the registered writes to be stored.
+     *
+     * @throws LdapException If one of the writes failed
+     */
+    public void awaitPendingWrites() throws LdapException
+    {
+        List<PendingWrite> writes = null;
+
+        synchronized ( this )
+        {
+            if ( pendingWrites == null )
+            {
+                return;
+            }
+
+            writes = pendingWrites;
+            pendingWrites = null;
+        }
+
+        LdapException failure = null;
+
+        for ( PendingWrite pendingWrite : writes )
+        {
+            try
+            {
+                pendingWrite.await();
+            }
+            catch ( LdapException le )
+            {
+                if ( failure == null )
+                {
+                    failure = le;
+                }
+            }
+        }
+
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
 }
@@ -0,0 +1,290 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of latencies, recorded in nanoseconds. As in HdrHistogram, the
+ * values are stored in log-linear buckets : each power of two is split in
+ * 2^{@link #SUB_BUCKET_BITS} buckets, so the relative error on a reported value is
+ * at most 1/2^{@link #SUB_BUCKET_BITS} (6.25%), whatever its magnitude. Recording a
+ * value is a couple of shifts and an atomic increment, so the histogram can be fed on
+ * every operation.
+ * <br/>
+ * The values above 2^{@link #MAX_VALUE_BITS} ns (about 68 seconds) are recorded as
+ * 2^{@link #MAX_VALUE_BITS} - 1.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean
+{
+    /** The number of bits used to split each power of two */
+    public static final int SUB_BUCKET_BITS = 4;
+
+    /** The number of bits of the highest value we can record */
+    public static final int MAX_VALUE_BITS = 36;
+
+    /** The number of buckets per power of two */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** The highest value we can record */
+    private static final long MAX_VALUE = ( 1L << MAX_VALUE_BITS ) - 1;
+
+    /** The number of buckets */
+    private static final int BUCKET_COUNT = getBucketIndex( MAX_VALUE ) + 1;
+
+    /** The number of values recorded in each bucket */
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKET_COUNT );
+
+    /** The number of recorded values */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The sum of the recorded values */
+    private final AtomicLong total = new AtomicLong();
+
+    /** The highest recorded value */
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency, in nanoseconds
+     */
+    public void record( long nanos )
+    {
+        if ( nanos < 0 )
+        {
+            return;
+        }
+
+        long value = Math.min( nanos, MAX_VALUE );
+
+        buckets.incrementAndGet( getBucketIndex( value ) );
+        count.incrementAndGet();
+        total.addAndGet( value );
+
+        long currentMax = max.get();
+
+        while ( ( value > currentMax ) && !max.compareAndSet( currentMax, value ) )
+        {
+            currentMax = max.get();
+        }
+    }
+
+
+    /**
+     * Computes the bucket a value is stored in. The values below 2 * SUB_BUCKET_COUNT
+     * have their own bucket, the others are shifted so that only their SUB_BUCKET_BITS + 1
+     * highest bits are kept.
+     */
+    private static int getBucketIndex( long value )
+    {
+        int shift = Math.max( 0, 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS );
+
+        return ( shift << SUB_BUCKET_BITS ) + ( int ) ( value >>> shift );
+    }
+
+
+    /**
+     * @return The lowest value stored in a bucket
+     */
+    private static long getBucketLowerBound( int index )
+    {
+        if ( index < 2 * SUB_BUCKET_COUNT )
+        {
+            return index;
+        }
+
+        int shift = ( index >>> SUB_BUCKET_BITS ) - 1;
+
+        return ( long ) ( index - ( shift << SUB_BUCKET_BITS ) ) << shift;
+    }
+
+
+    /**
+     * @return The highest value stored in a bucket
+     */
+    private static long getBucketUpperBound( int index )
+    {
+        if ( index < 2 * SUB_BUCKET_COUNT )
+        {
+            return index;
+        }
+
+        int shift = ( index >>> SUB_BUCKET_BITS ) - 1;
+
+        return getBucketLowerBound( index ) + ( 1L << shift ) - 1;
+    }
+
+
+    /**
+     * Gets the value below which a given percentage of the recorded values fall. The
+     * returned value is the highest value of the bucket the percentile falls in, so it's
+     * never lower than the real percentile.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency, in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile( double percentile )
+    {
+        long recorded = 0L;
+
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            recorded += buckets.get( i );
+        }
+
+        if ( recorded == 0L )
+        {
+            return 0L;
+        }
+
+        long rank = Math.max( 1L, ( long ) Math.ceil( recorded * Math.min( percentile, 100d ) / 100d ) );
+        long seen = 0L;
+
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            seen += buckets.get( i );
+
+            if ( seen >= rank )
+            {
+                return Math.min( getBucketUpperBound( i ), max.get() );
+            }
+        }
+
+        return max.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+
+    /**
+     * @return The sum of the recorded latencies, in nanoseconds
+     */
+    public long getTotal()
+    {
+        return total.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMean()
+    {
+        long nbValues = count.get();
+
+        if ( nbValues == 0L )
+        {
+            return 0d;
+        }
+
+        return toMicros( ( double ) total.get() / nbValues );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMax()
+    {
+        return toMicros( max.get() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getPercentile50()
+    {
+        return toMicros( getValueAtPercentile( 50d ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getPercentile95()
+    {
+        return toMicros( getValueAtPercentile( 95d ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getPercentile99()
+    {
+        return toMicros( getValueAtPercentile( 99d ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getPercentile999()
+    {
+        return toMicros( getValueAtPercentile( 99.9d ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            buckets.set( i, 0L );
+        }
+
+        count.set( 0L );
+        total.set( 0L );
+        max.set( 0L );
+    }
+
+
+    private static double toMicros( double nanos )
+    {
+        return nanos / 1000d;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "LatencyHistogram[count=" + getCount() + ", mean=" + getMean() + "us, p50=" + getPercentile50()
+            + "us, p99=" + getPercentile99() + "us, max=" + getMax() + "us]";
+    }
+}
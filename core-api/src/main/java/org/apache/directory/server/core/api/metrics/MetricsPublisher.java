@@ -0,0 +1,40 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.metrics;
+
+
+/**
+ * A place where the content of the {@link MetricsRegistry} is published, like the
+ * <em>cn=monitor</em> partition. The publishers are registered in the MetricsRegistry, and
+ * refreshed each time {@link MetricsRegistry#publish()} is called.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface MetricsPublisher
+{
+    /**
+     * Publishes the current metrics. This method must not be called by a thread
+     * which holds an operation lock.
+     *
+     * @param metricsRegistry The registry to read the metrics from
+     * @throws Exception If the metrics can't be published
+     */
+    void publish( MetricsRegistry metricsRegistry ) throws Exception;
+}
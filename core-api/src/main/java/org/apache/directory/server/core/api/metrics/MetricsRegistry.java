@@ -0,0 +1,363 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.metrics;
+
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.directory.server.core.api.OperationEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The place where the server metrics are gathered : the latency of each operation, the
+ * time spent in each interceptor, the time spent waiting for the operation locks, and
+ * the partition counters.
+ * <br/>
+ * The registry is disabled by default, and the instrumented code checks
+ * {@link #isEnabled()} before taking any measure, so that it costs nothing when nobody
+ * is looking at the metrics. It is enabled by the MetricsInterceptor, which also
+ * periodically asks the registered {@link MetricsPublisher}s to publish its content.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MetricsRegistry
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( MetricsRegistry.class );
+
+    /** Tells if the metrics are gathered */
+    private volatile boolean enabled = false;
+
+    /** Tells if the metrics must be published under cn=monitor */
+    private volatile boolean monitorEnabled = false;
+
+    /** The places where the metrics are published */
+    private final List<MetricsPublisher> publishers = new CopyOnWriteArrayList<MetricsPublisher>();
+
+    /** The latency of each operation */
+    private final Map<OperationEnum, LatencyHistogram> operations =
+        new EnumMap<OperationEnum, LatencyHistogram>( OperationEnum.class );
+
+    /** The time spent in each interceptor, and the following ones, per operation */
+    private final ConcurrentMap<String, AtomicReferenceArray<LatencyHistogram>> interceptors =
+        new ConcurrentHashMap<String, AtomicReferenceArray<LatencyHistogram>>();
+
+    /** The counters of each partition, per partition ID */
+    private final ConcurrentMap<String, PartitionMetrics> partitions =
+        new ConcurrentHashMap<String, PartitionMetrics>();
+
+    /** The time spent waiting for each lock */
+    private final ConcurrentMap<String, LatencyHistogram> lockWaits =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+
+
+    /**
+     * Creates a new instance of MetricsRegistry
+     */
+    public MetricsRegistry()
+    {
+        for ( OperationEnum operation : OperationEnum.getOperations() )
+        {
+            operations.put( operation, new LatencyHistogram() );
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the metrics are gathered
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+
+    /**
+     * @param enabled Tells if the metrics must be gathered
+     */
+    public void setEnabled( boolean enabled )
+    {
+        this.enabled = enabled;
+    }
+
+
+    /**
+     * @return <code>true</code> if the metrics must be published under cn=monitor
+     */
+    public boolean isMonitorEnabled()
+    {
+        return monitorEnabled;
+    }
+
+
+    /**
+     * Tells the DirectoryService to create the cn=monitor partition. It is read when the
+     * service is started, and when an interceptor is added to a started service.
+     *
+     * @param monitorEnabled Tells if the metrics must be published under cn=monitor
+     */
+    public void setMonitorEnabled( boolean monitorEnabled )
+    {
+        this.monitorEnabled = monitorEnabled;
+    }
+
+
+    /**
+     * Registers a place where the metrics are published
+     *
+     * @param publisher The added publisher
+     */
+    public void addPublisher( MetricsPublisher publisher )
+    {
+        publishers.add( publisher );
+    }
+
+
+    /**
+     * Unregisters a place where the metrics are published
+     *
+     * @param publisher The removed publisher
+     */
+    public void removePublisher( MetricsPublisher publisher )
+    {
+        publishers.remove( publisher );
+    }
+
+
+    /**
+     * Publishes the current metrics in all the registered publishers. A publisher which
+     * fails is skipped. This method must not be called by a thread which holds an
+     * operation lock.
+     */
+    public void publish()
+    {
+        for ( MetricsPublisher publisher : publishers )
+        {
+            try
+            {
+                publisher.publish( this );
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Cannot publish the metrics : {}", e.getMessage() );
+            }
+        }
+    }
+
+
+    /**
+     * Gets the latency histogram of an operation
+     *
+     * @param operation The operation
+     * @return The operation histogram
+     */
+    public LatencyHistogram getOperationHistogram( OperationEnum operation )
+    {
+        return operations.get( operation );
+    }
+
+
+    /**
+     * Gets, or creates, the histogram of the time spent in an interceptor, and the
+     * interceptors called after it, for a given operation.
+     *
+     * @param interceptorName The interceptor name
+     * @param operation The operation
+     * @return The interceptor histogram
+     */
+    public LatencyHistogram getInterceptorHistogram( String interceptorName, OperationEnum operation )
+    {
+        AtomicReferenceArray<LatencyHistogram> histograms = interceptors.get( interceptorName );
+
+        if ( histograms == null )
+        {
+            histograms = new AtomicReferenceArray<LatencyHistogram>( OperationEnum.values().length );
+            AtomicReferenceArray<LatencyHistogram> existing = interceptors.putIfAbsent( interceptorName, histograms );
+
+            if ( existing != null )
+            {
+                histograms = existing;
+            }
+        }
+
+        LatencyHistogram histogram = histograms.get( operation.ordinal() );
+
+        if ( histogram == null )
+        {
+            histograms.compareAndSet( operation.ordinal(), null, new LatencyHistogram() );
+            histogram = histograms.get( operation.ordinal() );
+        }
+
+        return histogram;
+    }
+
+
+    /**
+     * Gets, or creates, the counters of a partition
+     *
+     * @param partitionId The partition ID
+     * @return The partition counters
+     */
+    public PartitionMetrics getPartitionMetrics( String partitionId )
+    {
+        PartitionMetrics metrics = partitions.get( partitionId );
+
+        if ( metrics == null )
+        {
+            metrics = new PartitionMetrics();
+            PartitionMetrics existing = partitions.putIfAbsent( partitionId, metrics );
+
+            if ( existing != null )
+            {
+                metrics = existing;
+            }
+        }
+
+        return metrics;
+    }
+
+
+    /**
+     * Gets, or creates, the histogram of the time spent waiting for a lock
+     *
+     * @param lockName The lock name
+     * @return The lock wait histogram
+     */
+    public LatencyHistogram getLockWaitHistogram( String lockName )
+    {
+        LatencyHistogram histogram = lockWaits.get( lockName );
+
+        if ( histogram == null )
+        {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = lockWaits.putIfAbsent( lockName, histogram );
+
+            if ( existing != null )
+            {
+                histogram = existing;
+            }
+        }
+
+        return histogram;
+    }
+
+
+    /**
+     * @return The latency histogram of each operation
+     */
+    public Map<OperationEnum, LatencyHistogram> getOperationHistograms()
+    {
+        return Collections.unmodifiableMap( operations );
+    }
+
+
+    /**
+     * @return The histograms of each interceptor, sorted by interceptor name, for the operations
+     * which went through it
+     */
+    public Map<String, Map<OperationEnum, LatencyHistogram>> getInterceptorHistograms()
+    {
+        Map<String, Map<OperationEnum, LatencyHistogram>> result =
+            new TreeMap<String, Map<OperationEnum, LatencyHistogram>>();
+
+        for ( Map.Entry<String, AtomicReferenceArray<LatencyHistogram>> entry : interceptors.entrySet() )
+        {
+            Map<OperationEnum, LatencyHistogram> histograms =
+                new EnumMap<OperationEnum, LatencyHistogram>( OperationEnum.class );
+
+            for ( OperationEnum operation : OperationEnum.values() )
+            {
+                LatencyHistogram histogram = entry.getValue().get( operation.ordinal() );
+
+                if ( histogram != null )
+                {
+                    histograms.put( operation, histogram );
+                }
+            }
+
+            result.put( entry.getKey(), histograms );
+        }
+
+        return result;
+    }
+
+
+    /**
+     * @return The counters of each partition, sorted by partition ID
+     */
+    public Map<String, PartitionMetrics> getPartitionMetrics()
+    {
+        return new TreeMap<String, PartitionMetrics>( partitions );
+    }
+
+
+    /**
+     * @return The lock wait histograms, sorted by lock name
+     */
+    public Map<String, LatencyHistogram> getLockWaitHistograms()
+    {
+        return new TreeMap<String, LatencyHistogram>( lockWaits );
+    }
+
+
+    /**
+     * Clears all the gathered metrics
+     */
+    public void reset()
+    {
+        for ( LatencyHistogram histogram : operations.values() )
+        {
+            histogram.reset();
+        }
+
+        for ( AtomicReferenceArray<LatencyHistogram> histograms : interceptors.values() )
+        {
+            for ( int i = 0; i < histograms.length(); i++ )
+            {
+                LatencyHistogram histogram = histograms.get( i );
+
+                if ( histogram != null )
+                {
+                    histogram.reset();
+                }
+            }
+        }
+
+        for ( PartitionMetrics metrics : partitions.values() )
+        {
+            metrics.reset();
+        }
+
+        for ( LatencyHistogram histogram : lockWaits.values() )
+        {
+            histogram.reset();
+        }
+    }
+}
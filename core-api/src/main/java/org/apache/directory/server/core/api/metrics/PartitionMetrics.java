@@ -0,0 +1,323 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The counters gathered by a partition : how efficient its entry cache is, and how
+ * many entries its searches have to examine compared to the number of entries
+ * they return.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionMetrics implements PartitionMetricsMXBean
+{
+    /** The number of entries found in the cache */
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    /** The number of entries not found in the cache */
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /** The number of entries evicted from the cache */
+    private final AtomicLong cacheEvictions = new AtomicLong();
+
+    /** The number of entries not admitted in the cache */
+    private final AtomicLong cacheRejections = new AtomicLong();
+
+    /** The estimated size of the cached entries, in bytes */
+    private volatile long cacheWeight;
+
+    /** The maximum size of the cached entries, in bytes */
+    private volatile long cacheMaxWeight;
+
+    /** The number of entries found in the off-heap cache */
+    private final AtomicLong offHeapCacheHits = new AtomicLong();
+
+    /** The size of the entries in the off-heap cache, in bytes */
+    private volatile long offHeapCacheWeight;
+
+    /** The maximum size of the off-heap cache, in bytes */
+    private volatile long offHeapCacheMaxWeight;
+
+    /** The number of searches */
+    private final AtomicLong searches = new AtomicLong();
+
+    /** The number of candidates selected by the searches */
+    private final AtomicLong candidates = new AtomicLong();
+
+    /** The number of entries evaluated by the searches */
+    private final AtomicLong entriesExamined = new AtomicLong();
+
+    /** The number of entries returned by the searches */
+    private final AtomicLong entriesReturned = new AtomicLong();
+
+
+    /**
+     * Records an entry found in the cache
+     */
+    public void cacheHit()
+    {
+        cacheHits.incrementAndGet();
+    }
+
+
+    /**
+     * Records an entry read from the master table
+     */
+    public void cacheMiss()
+    {
+        cacheMisses.incrementAndGet();
+    }
+
+
+    /**
+     * Records an entry evicted from the cache to make room for other entries
+     */
+    public void cacheEviction()
+    {
+        cacheEvictions.incrementAndGet();
+    }
+
+
+    /**
+     * Records an entry which has not been admitted in the cache
+     */
+    public void cacheRejection()
+    {
+        cacheRejections.incrementAndGet();
+    }
+
+
+    /**
+     * Updates the size of the cache
+     *
+     * @param weight The estimated size of the cached entries, in bytes
+     * @param maxWeight The maximum size of the cached entries, in bytes
+     */
+    public void setCacheWeight( long weight, long maxWeight )
+    {
+        cacheWeight = weight;
+        cacheMaxWeight = maxWeight;
+    }
+
+
+    /**
+     * Records an entry found in the off-heap cache, after a miss in the on-heap cache
+     */
+    public void offHeapCacheHit()
+    {
+        offHeapCacheHits.incrementAndGet();
+    }
+
+
+    /**
+     * Updates the size of the off-heap cache
+     *
+     * @param weight The size of the cached entries, in bytes
+     * @param maxWeight The maximum size of the off-heap cache, in bytes
+     */
+    public void setOffHeapCacheWeight( long weight, long maxWeight )
+    {
+        offHeapCacheWeight = weight;
+        offHeapCacheMaxWeight = maxWeight;
+    }
+
+
+    /**
+     * Records a search
+     *
+     * @param nbCandidates The number of candidates selected by the index cursors
+     */
+    public void search( long nbCandidates )
+    {
+        searches.incrementAndGet();
+
+        if ( nbCandidates > 0 )
+        {
+            candidates.addAndGet( nbCandidates );
+        }
+    }
+
+
+    /**
+     * Records a candidate evaluated against a search filter
+     *
+     * @param returned <code>true</code> if the entry has been returned
+     */
+    public void entryExamined( boolean returned )
+    {
+        entriesExamined.incrementAndGet();
+
+        if ( returned )
+        {
+            entriesReturned.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCacheHits()
+    {
+        return cacheHits.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCacheMisses()
+    {
+        return cacheMisses.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCacheEvictions()
+    {
+        return cacheEvictions.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCacheRejections()
+    {
+        return cacheRejections.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCacheWeight()
+    {
+        return cacheWeight;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCacheMaxWeight()
+    {
+        return cacheMaxWeight;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getOffHeapCacheHits()
+    {
+        return offHeapCacheHits.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getOffHeapCacheWeight()
+    {
+        return offHeapCacheWeight;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getOffHeapCacheMaxWeight()
+    {
+        return offHeapCacheMaxWeight;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSearches()
+    {
+        return searches.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCandidates()
+    {
+        return candidates.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getEntriesExamined()
+    {
+        return entriesExamined.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getEntriesReturned()
+    {
+        return entriesReturned.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        cacheHits.set( 0L );
+        cacheMisses.set( 0L );
+        cacheEvictions.set( 0L );
+        cacheRejections.set( 0L );
+        offHeapCacheHits.set( 0L );
+        searches.set( 0L );
+        candidates.set( 0L );
+        entriesExamined.set( 0L );
+        entriesReturned.set( 0L );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "PartitionMetrics[cacheHits=" + getCacheHits() + ", cacheMisses=" + getCacheMisses()
+            + ", cacheEvictions=" + getCacheEvictions() + ", cacheRejections=" + getCacheRejections()
+            + ", cacheWeight=" + getCacheWeight() + ", offHeapCacheHits=" + getOffHeapCacheHits()
+            + ", offHeapCacheWeight=" + getOffHeapCacheWeight() + ", searches=" + getSearches() + ", candidates="
+            + getCandidates() + ", examined=" + getEntriesExamined() + ", returned=" + getEntriesReturned() + "]";
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.metrics;
+
+
+/**
+ * The JMX view of a {@link PartitionMetrics}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface PartitionMetricsMXBean
+{
+    /**
+     * @return The number of entries found in the entry cache
+     */
+    long getCacheHits();
+
+
+    /**
+     * @return The number of entries which had to be read from the master table
+     */
+    long getCacheMisses();
+
+
+    /**
+     * @return The number of entries evicted from the entry cache to make room for other entries
+     */
+    long getCacheEvictions();
+
+
+    /**
+     * @return The number of entries read from the master table which have not been admitted
+     * in the entry cache, because they are used less often than the cached entries
+     */
+    long getCacheRejections();
+
+
+    /**
+     * @return The estimated size of the entries in the entry cache, in bytes
+     */
+    long getCacheWeight();
+
+
+    /**
+     * @return The maximum size of the entries in the entry cache, in bytes
+     */
+    long getCacheMaxWeight();
+
+
+    /**
+     * @return The number of entries found in the off-heap cache after a miss in the entry cache
+     */
+    long getOffHeapCacheHits();
+
+
+    /**
+     * @return The size of the entries in the off-heap cache, in bytes
+     */
+    long getOffHeapCacheWeight();
+
+
+    /**
+     * @return The maximum size of the off-heap cache, in bytes. 0 when it's disabled
+     */
+    long getOffHeapCacheMaxWeight();
+
+
+    /**
+     * @return The number of searches processed by the partition
+     */
+    long getSearches();
+
+
+    /**
+     * @return The number of candidates selected by the index cursors of the searches
+     */
+    long getCandidates();
+
+
+    /**
+     * @return The number of candidate entries evaluated against the search filters
+     */
+    long getEntriesExamined();
+
+
+    /**
+     * @return The number of entries returned by the searches
+     */
+    long getEntriesReturned();
+
+
+    /**
+     * Clears all the counters. The size of the cache is kept.
+     */
+    void reset();
+}
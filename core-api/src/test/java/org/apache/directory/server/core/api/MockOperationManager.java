@@ -25,6 +25,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursorImpl;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
@@ -154,4 +155,13 @@ public class MockOperationManager implements OperationManager
     {
         return new ReentrantReadWriteLock();
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Dn dn )
+    {
+        return new ReentrantReadWriteLock();
+    }
 }
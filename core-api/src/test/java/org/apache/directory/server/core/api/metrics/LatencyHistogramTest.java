@@ -0,0 +1,129 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.metrics;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.mycila.junit.concurrent.Concurrency;
+import com.mycila.junit.concurrent.ConcurrentJunitRunner;
+
+
+/**
+ * Unit tests class LatencyHistogram.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(ConcurrentJunitRunner.class)
+@Concurrency()
+public class LatencyHistogramTest
+{
+    @Test
+    public void testEmptyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals( 0L, histogram.getCount() );
+        assertEquals( 0L, histogram.getValueAtPercentile( 99d ) );
+        assertEquals( 0d, histogram.getMean(), 0d );
+    }
+
+
+    @Test
+    public void testSmallValuesAreExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for ( long value = 1; value <= 20; value++ )
+        {
+            histogram.record( value );
+        }
+
+        assertEquals( 20L, histogram.getCount() );
+        assertEquals( 10L, histogram.getValueAtPercentile( 50d ) );
+        assertEquals( 20L, histogram.getValueAtPercentile( 100d ) );
+        assertEquals( 1L, histogram.getValueAtPercentile( 0d ) );
+    }
+
+
+    @Test
+    public void testPercentilesPrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // 1 to 100 000 microseconds
+        for ( long value = 1; value <= 100000; value++ )
+        {
+            histogram.record( value * 1000L );
+        }
+
+        assertEquals( 100000L, histogram.getCount() );
+        assertEquals( 50000.5d, histogram.getMean(), 0.001d );
+        assertEquals( 100000d, histogram.getMax(), 0d );
+
+        double[][] expected =
+            {
+                { 50d, 50000d },
+                { 95d, 95000d },
+                { 99d, 99000d },
+                { 99.9d, 99900d } };
+
+        for ( double[] percentile : expected )
+        {
+            double value = histogram.getValueAtPercentile( percentile[0] ) / 1000d;
+
+            // The reported value is never lower than the real one, and at most 1/16th higher
+            assertTrue( value >= percentile[1] );
+            assertTrue( value <= percentile[1] * 1.0625d );
+        }
+    }
+
+
+    @Test
+    public void testHugeValuesAreCapped()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record( Long.MAX_VALUE );
+        histogram.record( -1L );
+
+        assertEquals( 1L, histogram.getCount() );
+        assertEquals( ( 1L << LatencyHistogram.MAX_VALUE_BITS ) - 1, histogram.getValueAtPercentile( 100d ) );
+        assertEquals( histogram.getValueAtPercentile( 100d ), histogram.getTotal() );
+    }
+
+
+    @Test
+    public void testReset()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record( 1000L );
+        histogram.reset();
+
+        assertEquals( 0L, histogram.getCount() );
+        assertEquals( 0d, histogram.getMax(), 0d );
+        assertEquals( 0L, histogram.getValueAtPercentile( 50d ) );
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.apache.directory.server.core.authz.AutzIntegUtils.addUserToGroup;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.createGroup;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.createUser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Tests the GroupCache, and its member to groups index.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "GroupCacheIT")
+public class GroupCacheIT extends AbstractLdapTestUnit
+{
+    private static final String ALICE = "uid=alice,ou=users,ou=system";
+    private static final String BOB = "uid=bob,ou=users,ou=system";
+
+
+    @Before
+    public void setService()
+    {
+        AutzIntegUtils.service = getService();
+    }
+
+
+    @After
+    public void closeConnections()
+    {
+        IntegrationUtils.closeConnections();
+    }
+
+
+    private Dn normalize( String dn ) throws Exception
+    {
+        return getService().getDnFactory().create( dn );
+    }
+
+
+    private Set<String> getGroups( GroupCache groupCache, String member ) throws Exception
+    {
+        Set<String> groups = new HashSet<String>();
+
+        for ( Dn group : groupCache.getGroups( member ) )
+        {
+            groups.add( group.getNormName() );
+        }
+
+        return groups;
+    }
+
+
+    private Set<String> normNames( String... dns ) throws Exception
+    {
+        Set<String> normNames = new HashSet<String>();
+
+        for ( String dn : dns )
+        {
+            normNames.add( normalize( dn ).getNormName() );
+        }
+
+        return normNames;
+    }
+
+
+    private Entry members( String... members ) throws Exception
+    {
+        Entry entry = new DefaultEntry( getService().getSchemaManager() );
+
+        for ( String member : members )
+        {
+            entry.add( "uniqueMember", member );
+        }
+
+        return entry;
+    }
+
+
+    @Test
+    public void testGroupMembershipIndex() throws Exception
+    {
+        createUser( "alice", "secret" );
+        createUser( "bob", "secret" );
+        createGroup( "group1" );
+        createGroup( "group2" );
+        addUserToGroup( "alice", "group1" );
+        addUserToGroup( "alice", "group2" );
+
+        String group1 = "cn=group1,ou=groups,ou=system";
+        String group2 = "cn=group2,ou=groups,ou=system";
+        String group3 = "cn=group3,ou=groups,ou=system";
+
+        // The cache is loaded from the existing groups
+        GroupCache groupCache = new GroupCache( getService() );
+
+        assertEquals( normNames( group1, group2 ), getGroups( groupCache, ALICE ) );
+        assertEquals( normNames( group1, group2 ), getGroups( groupCache, "UID=Alice, OU=users, OU=system" ) );
+        assertTrue( getGroups( groupCache, BOB ).isEmpty() );
+
+        // Adding an already known group replaces its members
+        groupCache.groupAdded( normalize( group2 ), members( BOB ) );
+        assertEquals( normNames( group1 ), getGroups( groupCache, ALICE ) );
+        assertEquals( normNames( group2 ), getGroups( groupCache, BOB ) );
+
+        groupCache.groupModified( normalize( group1 ), ModificationOperation.ADD_ATTRIBUTE, members( BOB ) );
+        assertEquals( normNames( group1, group2 ), getGroups( groupCache, BOB ) );
+
+        groupCache.groupModified( normalize( group2 ), ModificationOperation.REPLACE_ATTRIBUTE, members( ALICE ) );
+        assertEquals( normNames( group1, group2 ), getGroups( groupCache, ALICE ) );
+        assertEquals( normNames( group1 ), getGroups( groupCache, BOB ) );
+
+        groupCache.groupModified( normalize( group1 ), ModificationOperation.REMOVE_ATTRIBUTE, members( ALICE ) );
+        assertEquals( normNames( group2 ), getGroups( groupCache, ALICE ) );
+
+        // A renamed group keeps its members
+        assertTrue( groupCache.groupRenamed( normalize( group1 ), normalize( group3 ) ) );
+        assertEquals( normNames( group3 ), getGroups( groupCache, BOB ) );
+
+        groupCache.groupDeleted( normalize( group3 ), members( BOB ) );
+        assertTrue( getGroups( groupCache, BOB ).isEmpty() );
+        assertEquals( normNames( group2 ), getGroups( groupCache, ALICE ) );
+
+        // The deleted group ID is reused
+        groupCache.groupAdded( normalize( group1 ), members( ALICE, BOB ) );
+        assertEquals( normNames( group1, group2 ), getGroups( groupCache, ALICE ) );
+        assertEquals( normNames( group1 ), getGroups( groupCache, BOB ) );
+    }
+}
@@ -23,11 +23,18 @@ package org.apache.directory.server.core.event;
 import static org.apache.directory.server.core.integ.IntegrationUtils.getConnectionAs;
 import static org.apache.directory.server.core.integ.IntegrationUtils.getSystemContext;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.EventObject;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.ObjectName;
 import javax.naming.NamingException;
 import javax.naming.directory.SearchControls;
 import javax.naming.event.EventDirContext;
@@ -37,9 +44,23 @@ import javax.naming.event.NamingExceptionEvent;
 import javax.naming.event.ObjectChangeListener;
 
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.DisconnectableListener;
+import org.apache.directory.server.core.api.event.EventOverflowPolicy;
+import org.apache.directory.server.core.api.event.EventService;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
 import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
 import org.apache.directory.server.core.integ.FrameworkRunner;
 import org.junit.Test;
@@ -161,6 +182,318 @@ public class EventServiceIT extends AbstractLdapTestUnit
     }
     
 
+    /**
+     * Test that only the listeners which base, scope, event type and filter match
+     * a change are notified.
+     */
+    @Test
+    public void testListenerSelection() throws Exception
+    {
+        EventService eventService = getService().getEventService();
+
+        CountingListener subtree = register( eventService, "ou=system", SearchScope.SUBTREE, "(objectClass=*)",
+            EventType.ALL_EVENT_TYPES_MASK );
+        CountingListener oneLevel = register( eventService, "ou=system", SearchScope.ONELEVEL, "(objectClass=*)",
+            EventType.ALL_EVENT_TYPES_MASK );
+        CountingListener object = register( eventService, "ou=selection,ou=system", SearchScope.OBJECT,
+            "(objectClass=*)", EventType.ALL_EVENT_TYPES_MASK );
+        CountingListener otherBase = register( eventService, "ou=users,ou=system", SearchScope.SUBTREE,
+            "(objectClass=*)", EventType.ALL_EVENT_TYPES_MASK );
+        CountingListener matchingValue = register( eventService, "ou=system", SearchScope.SUBTREE,
+            "(&(ou=Selection)(objectClass=organizationalUnit))", EventType.ALL_EVENT_TYPES_MASK );
+        CountingListener otherValue = register( eventService, "ou=system", SearchScope.SUBTREE,
+            "(ou=other)", EventType.ALL_EVENT_TYPES_MASK );
+        CountingListener modifyOnly = register( eventService, "ou=system", SearchScope.SUBTREE, "(objectClass=*)",
+            EventType.MODIFY.getMask() );
+
+        try
+        {
+            getService().getAdminSession().add( new DefaultEntry( getService().getSchemaManager(),
+                "ou=selection,ou=system",
+                "objectClass: top",
+                "objectClass: organizationalUnit",
+                "ou: selection" ) );
+
+            assertEquals( 1, subtree.added );
+            assertEquals( 1, oneLevel.added );
+            assertEquals( 1, object.added );
+            assertEquals( 0, otherBase.added );
+            assertEquals( 1, matchingValue.added );
+            assertEquals( 0, otherValue.added );
+            assertEquals( 0, modifyOnly.added );
+
+            getService().getAdminSession().modify( new Dn( "ou=selection,ou=system" ),
+                new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, "description", "test" ) );
+
+            assertEquals( 1, subtree.modified );
+            assertEquals( 1, matchingValue.modified );
+            assertEquals( 0, otherValue.modified );
+            assertEquals( 1, modifyOnly.modified );
+
+            // Once removed, a listener is not notified anymore
+            eventService.removeListener( subtree );
+
+            getService().getAdminSession().modify( new Dn( "ou=selection,ou=system" ),
+                new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, "description", "test" ) );
+
+            assertEquals( 1, subtree.modified );
+            assertEquals( 2, modifyOnly.modified );
+        }
+        finally
+        {
+            for ( CountingListener listener : new CountingListener[]
+                { subtree, oneLevel, object, otherBase, matchingValue, otherValue, modifyOnly } )
+            {
+                eventService.removeListener( listener );
+            }
+
+            getService().getAdminSession().delete( new Dn( "ou=selection,ou=system" ) );
+        }
+    }
+
+
+    /**
+     * Test that a slow asynchronous listener does not block the writers, and gets
+     * disconnected once its queue is full.
+     */
+    @Test
+    public void testSlowListenerDisconnection() throws Exception
+    {
+        EventService eventService = getService().getEventService();
+        EventInterceptor eventInterceptor = ( EventInterceptor ) getService().getInterceptor(
+            InterceptorEnum.EVENT_INTERCEPTOR.getName() );
+        SlowListener listener = new SlowListener();
+
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( new Dn( "ou=system" ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setQueueCapacity( 2 );
+        criteria.setOverflowPolicy( EventOverflowPolicy.DROP_AND_DISCONNECT );
+        eventService.addListener( listener, criteria );
+
+        try
+        {
+            // The first notification is being delivered, and blocks
+            addOu( "slow0" );
+            assertTrue( listener.delivering.await( 10, TimeUnit.SECONDS ) );
+
+            // The next two ones fill the queue
+            addOu( "slow1" );
+            addOu( "slow2" );
+
+            EventDeliveryQueue queue = null;
+
+            for ( EventDeliveryQueue deliveryQueue : eventInterceptor.getDeliveryQueues() )
+            {
+                if ( deliveryQueue.getListener() == listener )
+                {
+                    queue = deliveryQueue;
+                }
+            }
+
+            assertEquals( 2, queue.getDepth() );
+            assertEquals( 3, queue.getQueuedCount() );
+
+            // The counters are published on the MBean server
+            ObjectName objectName = getMBeanName( listener );
+            assertEquals( 3L, ManagementFactory.getPlatformMBeanServer().getAttribute( objectName, "QueuedCount" ) );
+
+            // This one overflows : the listener is dropped, the writer is not blocked
+            addOu( "slow3" );
+
+            assertEquals( 3, queue.getDroppedCount() );
+            assertTrue( queue.isClosed() );
+            assertFalse( eventInterceptor.getDeliveryQueues().contains( queue ) );
+            assertFalse( ManagementFactory.getPlatformMBeanServer().isRegistered( objectName ) );
+
+            // The listener is told once the notification being delivered is done
+            assertFalse( listener.disconnected.await( 500, TimeUnit.MILLISECONDS ) );
+            listener.release.countDown();
+            assertTrue( listener.disconnected.await( 10, TimeUnit.SECONDS ) );
+            assertEquals( 3, listener.dropped );
+        }
+        finally
+        {
+            listener.release.countDown();
+            eventService.removeListener( listener );
+
+            for ( int i = 0; i < 4; i++ )
+            {
+                getService().getAdminSession().delete( new Dn( "ou=slow" + i + ",ou=system" ) );
+            }
+        }
+    }
+
+
+    /**
+     * Test that the notifications of a slow listener using the DROP policy are dropped,
+     * but that the listener stays registered.
+     */
+    @Test
+    public void testSlowListenerDrop() throws Exception
+    {
+        EventService eventService = getService().getEventService();
+        EventInterceptor eventInterceptor = ( EventInterceptor ) getService().getInterceptor(
+            InterceptorEnum.EVENT_INTERCEPTOR.getName() );
+        SlowListener listener = new SlowListener();
+
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( new Dn( "ou=system" ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setQueueCapacity( 1 );
+        criteria.setOverflowPolicy( EventOverflowPolicy.DROP );
+        eventService.addListener( listener, criteria );
+
+        try
+        {
+            addOu( "drop0" );
+            assertTrue( listener.delivering.await( 10, TimeUnit.SECONDS ) );
+
+            // The first one fills the queue, the next ones are dropped
+            addOu( "drop1" );
+            addOu( "drop2" );
+            addOu( "drop3" );
+
+            EventDeliveryQueue queue = null;
+
+            for ( EventDeliveryQueue deliveryQueue : eventInterceptor.getDeliveryQueues() )
+            {
+                if ( deliveryQueue.getListener() == listener )
+                {
+                    queue = deliveryQueue;
+                }
+            }
+
+            assertEquals( 1, queue.getDepth() );
+            assertEquals( 2, queue.getDroppedCount() );
+            assertFalse( queue.isClosed() );
+            assertEquals( 1, listener.disconnected.getCount() );
+        }
+        finally
+        {
+            listener.release.countDown();
+            eventService.removeListener( listener );
+
+            for ( int i = 0; i < 4; i++ )
+            {
+                getService().getAdminSession().delete( new Dn( "ou=drop" + i + ",ou=system" ) );
+            }
+        }
+    }
+
+
+    private ObjectName getMBeanName( DirectoryListener listener ) throws Exception
+    {
+        Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer().queryNames(
+            new ObjectName( "org.apache.directory.server:type=EventDeliveryQueue,*" ), null );
+
+        for ( ObjectName name : names )
+        {
+            if ( name.getKeyProperty( "name" ).contains( listener.getClass().getSimpleName() ) )
+            {
+                return name;
+            }
+        }
+
+        return null;
+    }
+
+
+    private void addOu( String ou ) throws Exception
+    {
+        getService().getAdminSession().add( new DefaultEntry( getService().getSchemaManager(),
+            "ou=" + ou + ",ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou", ou ) );
+    }
+
+
+    private CountingListener register( EventService eventService, String base, SearchScope scope, String filter,
+        int eventMask ) throws Exception
+    {
+        CountingListener listener = new CountingListener();
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( new Dn( base ) );
+        criteria.setScope( scope );
+        criteria.setFilter( filter );
+        criteria.setEventMask( eventMask );
+        eventService.addListener( listener, criteria );
+
+        return listener;
+    }
+
+
+    /**
+     * A synchronous listener counting the notifications it receives
+     */
+    private static class CountingListener extends DirectoryListenerAdapter
+    {
+        private int added;
+
+        private int modified;
+
+
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            added++;
+        }
+
+
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            modified++;
+        }
+
+
+        @Override
+        public boolean isSynchronous()
+        {
+            return true;
+        }
+    }
+
+
+    /**
+     * An asynchronous listener which blocks on its first notification
+     */
+    private static class SlowListener extends DirectoryListenerAdapter implements DisconnectableListener
+    {
+        private final CountDownLatch delivering = new CountDownLatch( 1 );
+
+        private final CountDownLatch release = new CountDownLatch( 1 );
+
+        private final CountDownLatch disconnected = new CountDownLatch( 1 );
+
+        private volatile long dropped;
+
+
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            delivering.countDown();
+
+            try
+            {
+                release.await( 30, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        public void disconnected( long droppedEvents )
+        {
+            dropped = droppedEvents;
+            disconnected.countDown();
+        }
+    }
+
+
     public class TestListener implements ObjectChangeListener, NamespaceChangeListener
     {
         List<EventRecord> events = new ArrayList<EventRecord>();
@@ -0,0 +1,199 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.logger;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.metrics.LatencyHistogram;
+import org.apache.directory.server.core.api.metrics.MetricsRegistry;
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.apache.directory.server.core.metrics.MonitorPartition;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Test the metrics gathered when the MetricsInterceptor is enabled, and their publication
+ * over JMX and under cn=monitor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "MetricsInterceptorIT",
+    additionalInterceptors = MetricsInterceptor.class,
+    partitions =
+        {
+            @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=example,dc=com\n" +
+                        "dc: example\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"))
+    })
+public class MetricsInterceptorIT extends AbstractLdapTestUnit
+{
+    private MetricsRegistry metricsRegistry;
+
+    private LdapConnection connection;
+
+
+    @Before
+    public void init() throws Exception
+    {
+        metricsRegistry = getService().getMetricsRegistry();
+        connection = IntegrationUtils.getAdminConnection( getService() );
+
+        connection.add( new DefaultEntry(
+            "ou=metrics,dc=example,dc=com",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: metrics" ) );
+
+        connection.lookup( "dc=example,dc=com" );
+        connection.lookup( "ou=metrics,dc=example,dc=com" );
+
+        EntryCursor cursor = connection.search( "dc=example,dc=com", "(ou=metrics)", SearchScope.SUBTREE, "*" );
+
+        while ( cursor.next() )
+        {
+            assertNotNull( cursor.get() );
+        }
+
+        cursor.close();
+    }
+
+
+    @Test
+    public void testMetricsAreGathered() throws Exception
+    {
+        assertTrue( metricsRegistry.isEnabled() );
+
+        LatencyHistogram lookups = metricsRegistry.getOperationHistogram( OperationEnum.LOOKUP );
+        assertTrue( lookups.getCount() >= 2 );
+        assertTrue( lookups.getPercentile99() > 0d );
+        assertTrue( lookups.getMax() >= lookups.getPercentile50() );
+        assertTrue( metricsRegistry.getOperationHistogram( OperationEnum.ADD ).getCount() >= 1 );
+
+        // The time spent in the interceptors is recorded when the previous one calls them
+        Map<String, Map<OperationEnum, LatencyHistogram>> interceptors = metricsRegistry.getInterceptorHistograms();
+        assertTrue( interceptors.containsKey( "MetricsInterceptor" ) );
+        assertTrue( interceptors.get( "FINAL" ).get( OperationEnum.SEARCH ).getCount() >= 1 );
+
+        PartitionMetrics example = metricsRegistry.getPartitionMetrics().get( "example" );
+        assertNotNull( example );
+        assertTrue( example.getSearches() >= 1 );
+        assertTrue( example.getEntriesReturned() >= 1 );
+        assertTrue( example.getEntriesExamined() >= example.getEntriesReturned() );
+        assertTrue( example.getCacheHits() + example.getCacheMisses() >= 1 );
+
+        assertTrue( metricsRegistry.getLockWaitHistograms().get( "server" ).getCount() >= 1 );
+    }
+
+
+    @Test
+    public void testMonitorEntries() throws Exception
+    {
+        ( ( MetricsInterceptor ) getService().getInterceptor( "MetricsInterceptor" ) ).refresh();
+
+        Entry search = connection.lookup( "cn=search,cn=operations,cn=monitor", "*" );
+        assertNotNull( search );
+        assertTrue( Long.parseLong( search.get( MonitorPartition.MONITOR_COUNT_AT ).getString() ) >= 1 );
+        assertNotNull( search.get( MonitorPartition.MONITOR_LATENCY_P99_AT ) );
+
+        Entry example = connection.lookup( "cn=example,cn=partitions,cn=monitor", "*" );
+        assertNotNull( example );
+        assertTrue( Long.parseLong( example.get( MonitorPartition.MONITOR_SEARCHES_AT ).getString() ) >= 1 );
+
+        assertNotNull( connection.lookup( "cn=search,cn=FINAL,cn=interceptors,cn=monitor" ) );
+        assertNotNull( connection.lookup( "cn=server,cn=locks,cn=monitor" ) );
+
+        // The monitor entries can be searched like any other entries
+        EntryCursor cursor = connection.search( "cn=operations,cn=monitor", "(monitorCount>=1)",
+            SearchScope.ONELEVEL, "*" );
+        int nbOperations = 0;
+
+        while ( cursor.next() )
+        {
+            nbOperations++;
+        }
+
+        cursor.close();
+        assertTrue( nbOperations >= 3 );
+    }
+
+
+    @Test
+    public void testMonitorPartitionIsReadOnly() throws Exception
+    {
+        try
+        {
+            getService().getAdminSession().modify( new Dn( getService().getSchemaManager(), "cn=monitor" ),
+                new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                    MonitorPartition.MONITOR_COUNT_AT, "0" ) );
+            fail();
+        }
+        catch ( LdapUnwillingToPerformException lutpe )
+        {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void testMBeans() throws Exception
+    {
+        ( ( MetricsInterceptor ) getService().getInterceptor( "MetricsInterceptor" ) ).refresh();
+
+        ObjectName objectName = new ObjectName( MetricsMBeans.DOMAIN + ":type=Metrics,instance="
+            + getService().getInstanceId() + ",category=Operations,name=lookup" );
+        Long count = ( Long ) ManagementFactory.getPlatformMBeanServer().getAttribute( objectName, "Count" );
+
+        assertEquals( metricsRegistry.getOperationHistogram( OperationEnum.LOOKUP ).getCount(), count.longValue() );
+    }
+}
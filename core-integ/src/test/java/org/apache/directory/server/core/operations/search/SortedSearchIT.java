@@ -52,6 +52,7 @@ import org.apache.directory.server.core.annotations.LoadSchema;
 import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
 import org.apache.directory.server.core.integ.FrameworkRunner;
 import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.apache.directory.server.core.shared.DefaultCoreSession;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
@@ -361,6 +362,81 @@ public class SortedSearchIT extends AbstractLdapTestUnit
     }
 
 
+    /**
+     * Sorts with a tiny memory budget, so that the entries and the sort keys are written
+     * on disk, and the runs merged
+     */
+    @Test
+    public void testSortBySnOnDisk() throws Exception
+    {
+        sk.setAttributeTypeDesc( "sn" );
+        List<String> inMemoryOrder = getSortedDns();
+
+        System.setProperty( DefaultCoreSession.SORT_MEMORY_BUDGET_PROPERTY, "1" );
+
+        try
+        {
+            assertEquals( inMemoryOrder, getSortedDns() );
+
+            sk.setReverseOrder( true );
+            List<String> reverseOrder = getSortedDns();
+
+            assertEquals( inMemoryOrder.size(), reverseOrder.size() );
+            assertEquals( inMemoryOrder.get( 0 ), reverseOrder.get( reverseOrder.size() - 1 ) );
+        }
+        finally
+        {
+            System.clearProperty( DefaultCoreSession.SORT_MEMORY_BUDGET_PROPERTY );
+        }
+    }
+
+
+    /**
+     * Sorts with a size limit : only the first entries are kept. The limit itself is
+     * enforced by the LDAP server, one more entry is returned here to detect it's been
+     * exceeded
+     */
+    @Test
+    public void testSortBySnWithSizeLimit() throws Exception
+    {
+        sk.setAttributeTypeDesc( "sn" );
+        List<String> allOrder = getSortedDns();
+
+        req.setSizeLimit( 3 );
+        List<String> limitedOrder = getSortedDns();
+
+        assertEquals( allOrder.subList( 0, 4 ), limitedOrder );
+
+        System.setProperty( DefaultCoreSession.SORT_MEMORY_BUDGET_PROPERTY, "1" );
+
+        try
+        {
+            assertEquals( allOrder.subList( 0, 4 ), getSortedDns() );
+        }
+        finally
+        {
+            System.clearProperty( DefaultCoreSession.SORT_MEMORY_BUDGET_PROPERTY );
+        }
+    }
+
+
+    private List<String> getSortedDns() throws Exception
+    {
+        SearchCursor cursor = connection.search( req );
+        List<String> dns = new ArrayList<String>();
+
+        while ( cursor.next() )
+        {
+            SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+            dns.add( se.getEntry().getDn().getName() );
+        }
+
+        cursor.close();
+
+        return dns;
+    }
+
+
     @Test
     public void testSortByDn() throws Exception
     {
@@ -0,0 +1,232 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition;
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.DefaultOperationManager;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Test the per-partition locking mode of the OperationManager.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "PartitionLockingIT-class",
+    factory = PartitionLockingIT.PartitionLockingDirectoryServiceFactory.class,
+    partitions =
+        {
+            @CreatePartition(
+                name = "foo",
+                suffix = "dc=foo,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=foo,dc=com\n" +
+                        "dc: foo\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n")),
+            @CreatePartition(
+                name = "bar",
+                suffix = "dc=bar,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=bar,dc=com\n" +
+                        "dc: bar\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"))
+    })
+public class PartitionLockingIT extends AbstractLdapTestUnit
+{
+    private DefaultOperationManager operationManager;
+
+    private ExecutorService executor;
+
+
+    /**
+     * Creates a DirectoryService using the per-partition locking mode, which has to be
+     * selected before the service is started.
+     */
+    public static class PartitionLockingDirectoryServiceFactory extends DefaultDirectoryServiceFactory
+    {
+        @Override
+        public DirectoryService getDirectoryService() throws Exception
+        {
+            DirectoryService directoryService = super.getDirectoryService();
+            ( ( DefaultOperationManager ) directoryService.getOperationManager() ).setPartitionLocking( true );
+
+            return directoryService;
+        }
+    }
+
+
+    @Before
+    public void init()
+    {
+        operationManager = ( DefaultOperationManager ) getService().getOperationManager();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+
+    @After
+    public void shutdownExecutor()
+    {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void testPartitionLocks() throws Exception
+    {
+        assertTrue( operationManager.isPartitionLocking() );
+
+        ReadWriteLock fooLock = operationManager.getRWLock( new Dn( getService().getSchemaManager(),
+            "dc=foo,dc=com" ) );
+        ReadWriteLock fooEntryLock = operationManager.getRWLock( new Dn( getService().getSchemaManager(),
+            "ou=people,dc=foo,dc=com" ) );
+        ReadWriteLock barLock = operationManager.getRWLock( new Dn( getService().getSchemaManager(),
+            "dc=bar,dc=com" ) );
+
+        assertSame( fooLock, fooEntryLock );
+        assertNotSame( fooLock, barLock );
+        assertNotSame( operationManager.getRWLock(), fooLock );
+    }
+
+
+    @Test
+    public void testWriteLockedPartitionDoesNotBlockOtherPartitions() throws Exception
+    {
+        final CoreSession session = getService().getAdminSession();
+        ReadWriteLock fooLock = operationManager.getRWLock( new Dn( getService().getSchemaManager(),
+            "dc=foo,dc=com" ) );
+
+        fooLock.writeLock().lock();
+
+        try
+        {
+            // A lookup in the bar partition should not be blocked
+            Future<Entry> barLookup = executor.submit( new Callable<Entry>()
+            {
+                public Entry call() throws Exception
+                {
+                    return session.lookup( new Dn( "dc=bar,dc=com" ) );
+                }
+            } );
+
+            assertNotNull( barLookup.get( 10, TimeUnit.SECONDS ) );
+
+            // but a lookup in the foo partition must wait
+            Future<Entry> fooLookup = executor.submit( new Callable<Entry>()
+            {
+                public Entry call() throws Exception
+                {
+                    return session.lookup( new Dn( "dc=foo,dc=com" ) );
+                }
+            } );
+
+            Thread.sleep( 200 );
+            assertFalse( fooLookup.isDone() );
+            fooLock.writeLock().unlock();
+
+            assertNotNull( fooLookup.get( 10, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            if ( ( ( ReentrantReadWriteLock ) fooLock ).isWriteLockedByCurrentThread() )
+            {
+                fooLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    @Test
+    public void testNestedWriteInReadFailsFast() throws Exception
+    {
+        final CoreSession session = getService().getAdminSession();
+        ReadWriteLock fooLock = operationManager.getRWLock( new Dn( getService().getSchemaManager(),
+            "dc=foo,dc=com" ) );
+
+        // The current thread reads the foo partition, as a search would
+        fooLock.readLock().lock();
+
+        try
+        {
+            long start = System.currentTimeMillis();
+
+            try
+            {
+                session.add( new DefaultEntry( getService().getSchemaManager(),
+                    "ou=nested,dc=foo,dc=com",
+                    "objectClass: top",
+                    "objectClass: organizationalUnit",
+                    "ou: nested" ) );
+                fail();
+            }
+            catch ( LdapOperationErrorException loee )
+            {
+                // The write lock can't be acquired while holding the read lock : don't wait for it
+                assertTrue( System.currentTimeMillis() - start < operationManager.getNestedLockTimeout() );
+            }
+
+            // The other partitions can still be written
+            session.add( new DefaultEntry( getService().getSchemaManager(),
+                "ou=nested,dc=bar,dc=com",
+                "objectClass: top",
+                "objectClass: organizationalUnit",
+                "ou: nested" ) );
+            assertTrue( session.exists( new Dn( "ou=nested,dc=bar,dc=com" ) ) );
+        }
+        finally
+        {
+            fooLock.readLock().unlock();
+        }
+    }
+}
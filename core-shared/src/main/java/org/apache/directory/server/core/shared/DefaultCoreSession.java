@@ -20,7 +20,6 @@
 package org.apache.directory.server.core.shared;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.text.ParseException;
@@ -29,8 +28,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
-import jdbm.recman.BaseRecordManager;
-
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncInfoValue.SyncRequestValue;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
@@ -105,6 +102,9 @@ import org.apache.mina.core.session.IoSession;
  */
 public class DefaultCoreSession implements CoreSession
 {
+    /** The system property used to set the memory (in bytes) a server side sort can use before writing on disk */
+    public static final String SORT_MEMORY_BUDGET_PROPERTY = "apacheds.sort.memoryBudget";
+
     /** The DirectoryService we are connected to */
     private final DirectoryService directoryService;
 
@@ -1123,7 +1123,8 @@ public class DefaultCoreSession implements CoreSession
 
             if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS ) )
             {
-                cursor = sortResults( cursor, sortControl, getDirectoryService().getSchemaManager() );
+                cursor = sortResults( cursor, sortControl, searchRequest.getSizeLimit(),
+                    getDirectoryService().getSchemaManager() );
             }
 
             // the below condition is to satisfy the scenario 6 in section 2 of rfc2891
@@ -1293,6 +1294,7 @@ public class DefaultCoreSession implements CoreSession
      * 
      * @param unsortedEntries the cursor containing un-sorted entries
      * @param control the sort control
+     * @param sizeLimit the size limit requested by the client, 0 if there is none
      * @param schemaManager schema manager
      * @return a cursor containing sorted entries
      * @throws CursorException
@@ -1300,8 +1302,8 @@ public class DefaultCoreSession implements CoreSession
      * @throws IOException
      * @throws KeyNotFoundException 
      */
-    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, SchemaManager schemaManager )
-        throws CursorException, LdapException, IOException
+    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, long sizeLimit,
+        SchemaManager schemaManager ) throws CursorException, LdapException, IOException
     {
         unsortedEntries.beforeFirst();
 
@@ -1326,29 +1328,36 @@ public class DefaultCoreSession implements CoreSession
         SortedEntryComparator comparator = new SortedEntryComparator( at, sk.getMatchingRuleId(), sk.isReverseOrder(),
             schemaManager );
 
-        SortedEntrySerializer keySerializer = new SortedEntrySerializer();
         SortedEntrySerializer.setSchemaManager( schemaManager );
-        
-        File file = File.createTempFile( "replica", ".sorted-data" );// see DIRSERVER-2007
-        BaseRecordManager recMan = new BaseRecordManager( file.getAbsolutePath() );
 
-        jdbm.btree.BTree<Entry, String> btree = new jdbm.btree.BTree<Entry, String>( recMan, comparator, keySerializer, NullStringSerializer.INSTANCE );
-        
+        // When the client sets a size limit, we only need the best sizeLimit entries, plus
+        // one to let the caller know the limit has been exceeded
+        long maxEntries = sizeLimit > 0 ? sizeLimit + 1 : 0L;
+        EntrySorter sorter = new EntrySorter( comparator, Long.getLong( SORT_MEMORY_BUDGET_PROPERTY,
+            EntrySorter.DEFAULT_MEMORY_BUDGET ), maxEntries );
 
-        btree.insert( first, "", false );
+        try
+        {
+            sorter.add( first );
 
-        // at this stage the cursor will be _on_ the next element, so read it
-        btree.insert( unsortedEntries.get(), "", false );
+            // at this stage the cursor will be _on_ the next element, so read it
+            sorter.add( unsortedEntries.get() );
 
-        while ( unsortedEntries.next() )
-        {
-            Entry entry = unsortedEntries.get();
-            btree.insert( entry, "", false );
-        }
+            while ( unsortedEntries.next() )
+            {
+                Entry entry = unsortedEntries.get();
+                sorter.add( entry );
+            }
 
-        unsortedEntries.close();
+            unsortedEntries.close();
 
-        return new SortedEntryCursor( btree, recMan, file );
+            return sorter.sort();
+        }
+        finally
+        {
+            // Deletes the temporary files, unless they have been handed to the cursor
+            sorter.close();
+        }
     }
 
 
@@ -0,0 +1,688 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sorts the entries returned by a search, for the server side sort control, using an
+ * external merge sort :
+ * <ul>
+ *   <li>the entries are kept in memory as long as they fit in the memory budget. If they
+ *   all do, they are sorted in memory and nothing is written on disk</li>
+ *   <li>otherwise, the entries are appended to a data file, and we only keep in memory
+ *   their sort key and their position in the file. When those keys don't fit in the
+ *   memory budget anymore, they are sorted and written in a run file</li>
+ *   <li>at the end, the runs are merged, producing the positions of the entries in the
+ *   data file in sorted order. The {@link SortedEntryCursor} reads the entries from there</li>
+ * </ul>
+ * When the search has a size limit, we only keep the best <em>limit</em> entries in a
+ * bounded heap, and no run is ever written.
+ * <br/>
+ * Entries with the same sort key are returned in the order they have been added.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EntrySorter implements Closeable
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( EntrySorter.class );
+
+    /** The default memory budget, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 32L * 1024L * 1024L;
+
+    /** The maximum number of runs merged at once */
+    private static final int MAX_MERGE_FAN_IN = 64;
+
+    /** The size of the buffers used to read and write the files */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The estimated size of a record in memory, without its key */
+    private static final long RECORD_OVERHEAD = 48L;
+
+    /** The estimated size of an entry in memory, without its Dn and attributes */
+    private static final long ENTRY_OVERHEAD = 128L;
+
+    /** The estimated size of an attribute in memory, without its values */
+    private static final long ATTRIBUTE_OVERHEAD = 64L;
+
+    /** The estimated size of a value in memory, without its content */
+    private static final long VALUE_OVERHEAD = 48L;
+
+    /** The key types, as written in the run files */
+    private static final byte NULL_KEY = 0;
+    private static final byte STRING_KEY = 1;
+    private static final byte BINARY_KEY = 2;
+
+    /** The comparator providing and comparing the sort keys */
+    private final SortedEntryComparator comparator;
+
+    /** Orders the records by sort key, then in the order they have been added */
+    private final Comparator<SortRecord> recordComparator;
+
+    /** The memory we can use, in bytes */
+    private final long memoryBudget;
+
+    /** The maximum number of entries to return, 0 if there is no limit */
+    private final long maxEntries;
+
+    /** The records not yet written in a run. A max-heap when there is a size limit */
+    private final Collection<SortRecord> records;
+
+    /** The estimated memory used by the records */
+    private long memoryUsed;
+
+    /** The number of entries added so far */
+    private long nbAdded;
+
+    /** The serializer for the entries written in the data file */
+    private final SortedEntrySerializer serializer = new SortedEntrySerializer();
+
+    /** The file the entries are written to when they don't fit in memory */
+    private File dataFile;
+
+    /** The stream writing the data file */
+    private DataOutputStream dataOut;
+
+    /** The position of the next entry in the data file */
+    private long dataPosition;
+
+    /** The run files, containing sorted keys and data file positions */
+    private final List<File> runFiles = new ArrayList<File>();
+
+    /** The number of records written in the runs */
+    private long nbRunRecords;
+
+    /** An entry to sort, and its sort key */
+    private static final class SortRecord
+    {
+        /** The sort key */
+        private final Object key;
+
+        /** The sequence number of the entry, to keep the sort stable */
+        private final long sequence;
+
+        /** The entry, as long as it's kept in memory */
+        private Entry entry;
+
+        /** The position of the entry in the data file, once it has been written there */
+        private long position;
+
+
+        private SortRecord( Object key, long sequence )
+        {
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    /** A run file being merged */
+    private static final class RunReader
+    {
+        /** The stream reading the run */
+        private final DataInputStream in;
+
+        /** The record at the current position */
+        private SortRecord current;
+
+
+        private RunReader( File runFile ) throws IOException
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( runFile ), BUFFER_SIZE ) );
+        }
+    }
+
+
+    /**
+     * Creates a new instance of EntrySorter.
+     *
+     * @param comparator The comparator providing and comparing the sort keys
+     * @param memoryBudget The memory we can use, in bytes
+     * @param maxEntries The maximum number of entries to return, 0 if there is no limit
+     */
+    EntrySorter( SortedEntryComparator comparator, long memoryBudget, long maxEntries )
+    {
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.maxEntries = maxEntries;
+
+        recordComparator = new Comparator<SortRecord>()
+        {
+            public int compare( SortRecord record1, SortRecord record2 )
+            {
+                int result = EntrySorter.this.comparator.compareKeys( record1.key, record2.key );
+
+                if ( result != 0 )
+                {
+                    return result;
+                }
+
+                return record1.sequence < record2.sequence ? -1 : ( record1.sequence == record2.sequence ? 0 : 1 );
+            }
+        };
+
+        if ( maxEntries > 0 )
+        {
+            // The worst kept record is on top, so that we can quickly drop it
+            records = new PriorityQueue<SortRecord>( ( int ) Math.min( maxEntries, 1024 ),
+                Collections.reverseOrder( recordComparator ) );
+        }
+        else
+        {
+            records = new ArrayList<SortRecord>();
+        }
+    }
+
+
+    /**
+     * Adds an entry to sort
+     *
+     * @param entry The entry
+     * @throws IOException If the entry can't be written on disk
+     */
+    void add( Entry entry ) throws IOException
+    {
+        SortRecord record = new SortRecord( comparator.getSortKey( entry ), nbAdded++ );
+
+        if ( maxEntries > 0 )
+        {
+            PriorityQueue<SortRecord> heap = ( PriorityQueue<SortRecord> ) records;
+
+            if ( heap.size() >= maxEntries )
+            {
+                if ( recordComparator.compare( record, heap.peek() ) >= 0 )
+                {
+                    // Worse than all the entries we keep
+                    return;
+                }
+
+                SortRecord dropped = heap.poll();
+                memoryUsed -= estimateSize( dropped );
+            }
+
+            heap.add( record );
+            store( record, entry );
+
+            return;
+        }
+
+        records.add( record );
+        store( record, entry );
+
+        if ( ( dataFile != null ) && ( memoryUsed > memoryBudget ) )
+        {
+            writeRun();
+        }
+    }
+
+
+    /**
+     * Sorts the added entries
+     *
+     * @return A cursor on the sorted entries
+     * @throws IOException If the entries can't be read from the disk
+     */
+    SortedEntryCursor sort() throws IOException
+    {
+        List<SortRecord> sorted = new ArrayList<SortRecord>( records );
+        Collections.sort( sorted, recordComparator );
+
+        if ( dataFile == null )
+        {
+            Entry[] entries = new Entry[sorted.size()];
+
+            for ( int i = 0; i < entries.length; i++ )
+            {
+                entries[i] = sorted.get( i ).entry;
+            }
+
+            return new SortedEntryCursor( entries );
+        }
+
+        dataOut.close();
+        dataOut = null;
+
+        long[] positions;
+
+        if ( runFiles.isEmpty() )
+        {
+            positions = new long[sorted.size()];
+
+            for ( int i = 0; i < positions.length; i++ )
+            {
+                positions[i] = sorted.get( i ).position;
+            }
+        }
+        else
+        {
+            if ( !records.isEmpty() )
+            {
+                writeRun();
+            }
+
+            positions = merge();
+        }
+
+        LOG.debug( "Sorted {} entries using the data file {}", positions.length, dataFile );
+
+        // The data file now belongs to the cursor
+        SortedEntryCursor cursor = new SortedEntryCursor( positions, dataFile );
+        dataFile = null;
+
+        return cursor;
+    }
+
+
+    /**
+     * Deletes the files which have been created, if they haven't been handed to a cursor.
+     */
+    public void close()
+    {
+        if ( dataOut != null )
+        {
+            try
+            {
+                dataOut.close();
+            }
+            catch ( IOException ioe )
+            {
+                LOG.warn( "Failed to close the sorted entry data file {}", dataFile, ioe );
+            }
+
+            dataOut = null;
+        }
+
+        if ( dataFile != null )
+        {
+            deleteFile( dataFile );
+            dataFile = null;
+        }
+
+        for ( File runFile : runFiles )
+        {
+            deleteFile( runFile );
+        }
+
+        runFiles.clear();
+    }
+
+
+    /**
+     * Keeps the entry of a record in memory if it fits in the budget, or writes it in the data file.
+     */
+    private void store( SortRecord record, Entry entry ) throws IOException
+    {
+        if ( dataFile != null )
+        {
+            record.position = writeEntry( entry );
+            memoryUsed += estimateSize( record );
+
+            return;
+        }
+
+        record.entry = entry;
+        memoryUsed += estimateSize( record );
+
+        if ( memoryUsed > memoryBudget )
+        {
+            spill();
+        }
+    }
+
+
+    /**
+     * Moves all the entries kept in memory to the data file
+     */
+    private void spill() throws IOException
+    {
+        dataFile = File.createTempFile( "sorted", ".sorted-data" );
+        dataOut = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( dataFile ), BUFFER_SIZE ) );
+        memoryUsed = 0L;
+
+        for ( SortRecord record : records )
+        {
+            record.position = writeEntry( record.entry );
+            record.entry = null;
+            memoryUsed += estimateSize( record );
+        }
+
+        LOG.debug( "The entries to sort exceed the memory budget, writing them in {}", dataFile );
+    }
+
+
+    /**
+     * Appends an entry to the data file
+     *
+     * @return The position of the entry in the file
+     */
+    private long writeEntry( Entry entry ) throws IOException
+    {
+        byte[] data = serializer.serialize( entry );
+        long position = dataPosition;
+
+        dataOut.writeInt( data.length );
+        dataOut.write( data );
+        dataPosition += 4 + data.length;
+
+        return position;
+    }
+
+
+    /**
+     * Sorts the records kept in memory, and writes them in a new run file
+     */
+    private void writeRun() throws IOException
+    {
+        List<SortRecord> sorted = ( List<SortRecord> ) records;
+        Collections.sort( sorted, recordComparator );
+
+        File runFile = File.createTempFile( "sorted", ".sorted-run" );
+        runFiles.add( runFile );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( runFile ),
+            BUFFER_SIZE ) );
+
+        try
+        {
+            for ( SortRecord record : sorted )
+            {
+                writeRecord( out, record );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        nbRunRecords += sorted.size();
+        sorted.clear();
+        memoryUsed = 0L;
+    }
+
+
+    /**
+     * Merges the run files, MAX_MERGE_FAN_IN at a time, until only one is left.
+     *
+     * @return The positions of the entries in the data file, in sorted order
+     */
+    private long[] merge() throws IOException
+    {
+        while ( runFiles.size() > MAX_MERGE_FAN_IN )
+        {
+            List<File> toMerge = new ArrayList<File>( runFiles.subList( 0, MAX_MERGE_FAN_IN ) );
+            File runFile = File.createTempFile( "sorted", ".sorted-run" );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( runFile ),
+                BUFFER_SIZE ) );
+
+            try
+            {
+                merge( toMerge, out, null );
+            }
+            finally
+            {
+                out.close();
+            }
+
+            runFiles.removeAll( toMerge );
+            runFiles.add( runFile );
+
+            for ( File merged : toMerge )
+            {
+                deleteFile( merged );
+            }
+        }
+
+        long[] positions = new long[( int ) nbRunRecords];
+        merge( runFiles, null, positions );
+
+        for ( File runFile : runFiles )
+        {
+            deleteFile( runFile );
+        }
+
+        runFiles.clear();
+
+        return positions;
+    }
+
+
+    /**
+     * Does a k-way merge of some run files, writing the result either in a new run, or
+     * as an array of data file positions.
+     */
+    private void merge( List<File> toMerge, DataOutputStream out, long[] positions ) throws IOException
+    {
+        PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>( toMerge.size(),
+            new Comparator<RunReader>()
+            {
+                public int compare( RunReader reader1, RunReader reader2 )
+                {
+                    return recordComparator.compare( reader1.current, reader2.current );
+                }
+            } );
+
+        List<RunReader> opened = new ArrayList<RunReader>( toMerge.size() );
+
+        try
+        {
+            for ( File runFile : toMerge )
+            {
+                RunReader reader = new RunReader( runFile );
+                opened.add( reader );
+                reader.current = readRecord( reader.in );
+
+                if ( reader.current != null )
+                {
+                    readers.add( reader );
+                }
+            }
+
+            int pos = 0;
+
+            while ( !readers.isEmpty() )
+            {
+                RunReader reader = readers.poll();
+
+                if ( out != null )
+                {
+                    writeRecord( out, reader.current );
+                }
+                else
+                {
+                    positions[pos++] = reader.current.position;
+                }
+
+                reader.current = readRecord( reader.in );
+
+                if ( reader.current != null )
+                {
+                    readers.add( reader );
+                }
+            }
+        }
+        finally
+        {
+            for ( RunReader reader : opened )
+            {
+                reader.in.close();
+            }
+        }
+    }
+
+
+    private void writeRecord( DataOutputStream out, SortRecord record ) throws IOException
+    {
+        if ( record.key == null )
+        {
+            out.writeByte( NULL_KEY );
+        }
+        else
+        {
+            byte[] bytes;
+
+            if ( record.key instanceof String )
+            {
+                out.writeByte( STRING_KEY );
+                bytes = Strings.getBytesUtf8( ( String ) record.key );
+            }
+            else
+            {
+                out.writeByte( BINARY_KEY );
+                bytes = ( byte[] ) record.key;
+            }
+
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+
+        out.writeLong( record.sequence );
+        out.writeLong( record.position );
+    }
+
+
+    /**
+     * Reads the next record of a run
+     *
+     * @return The record, or null at the end of the run
+     */
+    private SortRecord readRecord( DataInputStream in ) throws IOException
+    {
+        byte type;
+
+        try
+        {
+            type = in.readByte();
+        }
+        catch ( EOFException eofe )
+        {
+            return null;
+        }
+
+        Object key = null;
+
+        if ( type != NULL_KEY )
+        {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully( bytes );
+
+            if ( type == STRING_KEY )
+            {
+                key = Strings.utf8ToString( bytes );
+            }
+            else
+            {
+                key = bytes;
+            }
+        }
+
+        SortRecord record = new SortRecord( key, in.readLong() );
+        record.position = in.readLong();
+
+        return record;
+    }
+
+
+    /**
+     * Estimates the memory used by a record, and its entry if it's kept in memory
+     */
+    private static long estimateSize( SortRecord record )
+    {
+        long size = RECORD_OVERHEAD;
+
+        if ( record.key instanceof String )
+        {
+            size += 40L + 2L * ( ( String ) record.key ).length();
+        }
+        else if ( record.key != null )
+        {
+            size += 16L + ( ( byte[] ) record.key ).length;
+        }
+
+        if ( record.entry != null )
+        {
+            size += estimateSize( record.entry );
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Estimates the memory used by an entry
+     */
+    private static long estimateSize( Entry entry )
+    {
+        long size = ENTRY_OVERHEAD + 4L * entry.getDn().getName().length();
+
+        for ( Attribute attribute : entry )
+        {
+            size += ATTRIBUTE_OVERHEAD;
+
+            for ( Value<?> value : attribute )
+            {
+                size += VALUE_OVERHEAD;
+
+                if ( value.isHumanReadable() )
+                {
+                    // The user provided and the normalized values
+                    size += 4L * value.length();
+                }
+                else
+                {
+                    size += 2L * value.length();
+                }
+            }
+        }
+
+        return size;
+    }
+
+
+    private static void deleteFile( File file )
+    {
+        if ( !file.delete() )
+        {
+            LOG.warn( "Failed to delete the temporary sort file {}", file );
+        }
+    }
+}
@@ -100,66 +100,86 @@ class SortedEntryComparator implements Comparator<Entry>, Serializable
     @Override
     public int compare( Entry entry1, Entry entry2 )
     {
-        Attribute at1 = entry1.get( type );
+        return compareKeys( getSortKey( entry1 ), getSortKey( entry2 ) );
+    }
 
-        Attribute at2 = entry2.get( type );
 
-        // as per section 2.2 of the spec null values are considered larger
-        if ( at1 == null )
-        {
-            return ( reverse ? -1 : 1 );
-        }
-        else if ( at2 == null )
+    /**
+     * Extracts the value used to sort an entry : its value for the sorted attribute, or
+     * the least one if the attribute is multi-valued.
+     *
+     * @param entry The entry
+     * @return The sort key, a String or a byte[], or null if the entry has no value for the attribute
+     */
+    public Object getSortKey( Entry entry )
+    {
+        Attribute at = entry.get( type );
+
+        if ( ( at == null ) || ( at.size() == 0 ) )
         {
-            return ( reverse ? 1 : -1 );
+            return null;
         }
 
-        Object o1 = null;
-        Object o2 = null;
-
         if ( multivalued )
         {
-            TreeSet ts = new TreeSet( comparator );
+            return sortAndGetFirst( at, new TreeSet( comparator ) );
+        }
 
-            o1 = sortAndGetFirst( at1, ts );
+        Value<?> value = at.get();
 
-            ts.clear();
-            o2 = sortAndGetFirst( at2, ts );
+        if ( hr )
+        {
+            return value.getString();
         }
         else
         {
-            Value<?> v1 = at1.get();
-            Value<?> v2 = at2.get();
+            return value.getBytes();
+        }
+    }
 
-            if ( hr )
-            {
-                o1 = v1.getString();
-                o2 = v2.getString();
-            }
-            else
+
+    /**
+     * Compares two sort keys returned by {@link #getSortKey(Entry)}
+     *
+     * @param key1 The first key
+     * @param key2 The second key
+     * @return A negative value if the entry with the first key must be returned first,
+     * a positive value if it must be returned after, 0 if the order does not matter
+     */
+    public int compareKeys( Object key1, Object key2 )
+    {
+        // as per section 2.2 of the spec null values are considered larger
+        if ( key1 == null )
+        {
+            if ( key2 == null )
             {
-                o1 = v1.getBytes();
-                o2 = v2.getBytes();
+                return 0;
             }
-        }
 
-        int c = 1;
+            return ( reverse ? -1 : 1 );
+        }
+        else if ( key2 == null )
+        {
+            return ( reverse ? 1 : -1 );
+        }
 
         if ( reverse )
         {
-            c = comparator.compare( o2, o1 );
+            return comparator.compare( key2, key1 );
         }
         else
         {
-            c = comparator.compare( o1, o2 );
+            return comparator.compare( key1, key2 );
         }
+    }
 
-        if ( c == 0 )
-        {
-            return 1;
-        }
 
-        return c;
+    /**
+     * @return <code>true</code> if the sort keys are Strings, <code>false</code> if they are byte[]
+     */
+    public boolean isHumanReadable()
+    {
+        return hr;
     }
 
 
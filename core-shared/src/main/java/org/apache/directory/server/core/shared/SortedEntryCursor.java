@@ -22,13 +22,8 @@ package org.apache.directory.server.core.shared;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.List;
-import java.util.NoSuchElementException;
-
-import jdbm.RecordManager;
-import jdbm.btree.BTree;
-import jdbm.helper.Tuple;
-import jdbm.helper.TupleBrowser;
 
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
@@ -43,10 +38,9 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Cursor for sorted entries.
- * 
- * Note: This currently uses JDBM, but will be migrated to use Mavibot
- *       when ready.
+ * Cursor for sorted entries, produced by the {@link EntrySorter}. The entries are either
+ * held in memory, or read from the sorter data file, at the positions given by the merged
+ * sort runs.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -54,31 +48,65 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
 {
 
     private static final Logger LOG = LoggerFactory.getLogger( SortedEntryCursor.class );
-    
-    private TupleBrowser browser;
 
-    private final Tuple tuple = new Tuple();
+    /** The sorted entries, when they are held in memory */
+    private Entry[] entries;
 
-    private RecordManager recMan;
+    /** The positions of the sorted entries in the data file, when they have been written on disk */
+    private long[] positions;
 
+    /** The file containing the entries */
     private File dataFile;
-    
-    private BTree<Entry, String> btree;
-    
 
-    public SortedEntryCursor( BTree<Entry, String> btree, RecordManager recMan, File dataFile ) throws IOException
+    /** The data file, opened for reading */
+    private RandomAccessFile data;
+
+    /** The serializer used to read the entries from the data file */
+    private final SortedEntrySerializer serializer = new SortedEntrySerializer();
+
+    /** The number of entries */
+    private final int size;
+
+    /** The current position, -1 when before the first entry, size when after the last one */
+    private int position = -1;
+
+    /** The entry at the current position */
+    private Entry current;
+
+
+    /**
+     * Creates a cursor on sorted entries held in memory
+     *
+     * @param entries The sorted entries
+     */
+    public SortedEntryCursor( Entry[] entries )
     {
-        this.recMan = recMan;
+        this.entries = entries;
+        size = entries.length;
+    }
+
+
+    /**
+     * Creates a cursor on sorted entries stored in a data file. The file is deleted
+     * when the cursor is closed.
+     *
+     * @param positions The positions of the sorted entries in the file
+     * @param dataFile The data file
+     * @throws IOException If the data file can't be opened
+     */
+    public SortedEntryCursor( long[] positions, File dataFile ) throws IOException
+    {
+        this.positions = positions;
         this.dataFile = dataFile;
-        this.btree = btree;
-        browser = btree.browse();
+        size = positions.length;
+        data = new RandomAccessFile( dataFile, "r" );
     }
 
 
     @Override
     public boolean available()
     {
-        return ( tuple.getKey() != null );
+        return ( current != null );
     }
 
 
@@ -99,31 +127,16 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void beforeFirst() throws LdapException, CursorException
     {
-        try
-        {
-            clearValue();
-            browser = btree.browse();
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
+        position = -1;
+        current = null;
     }
 
 
     @Override
     public void afterLast() throws LdapException, CursorException
     {
-        try
-        {
-            clearValue();
-            browser = btree.browse( null );
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-
+        position = size;
+        current = null;
     }
 
 
@@ -146,73 +159,36 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public boolean previous() throws LdapException, CursorException
     {
-        try
+        if ( position >= 0 )
         {
-
-            if ( browser == null )
-            {
-                browser = btree.browse( null );
-            }
-            
-            if ( browser.getPrevious( tuple ) )
-            {
-                return true;
-            }
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
-        {
-            // ignore this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasPrev())
+            position--;
         }
 
-        clearValue();
-        return false;
+        return fetch();
     }
 
 
     @Override
     public boolean next() throws LdapException, CursorException
     {
-        try
+        if ( position < size )
         {
-            if ( browser == null )
-            {
-                browser = btree.browse();
-            }
-            
-            if ( browser.getNext( tuple ) )
-            {
-                return true;
-            }
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
-        {
-            // ignore, this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasNext())
+            position++;
         }
 
-        clearValue();
-        return false;
+        return fetch();
     }
 
 
     @Override
     public Entry get() throws CursorException
     {
-        if ( tuple.getKey() == null )
+        if ( current == null )
         {
             throw new InvalidCursorPositionException();
         }
 
-        return ( Entry ) tuple.getKey();
+        return current;
     }
 
 
@@ -252,25 +228,63 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
         return null;
     }
 
-    
-    private void clearValue()
+
+    /**
+     * Reads the entry at the current position
+     *
+     * @return <code>true</code> if the cursor is positioned on an entry
+     */
+    private boolean fetch() throws CursorException
     {
-        tuple.setKey( null );
-        tuple.setValue( null );
+        if ( ( position < 0 ) || ( position >= size ) )
+        {
+            current = null;
+
+            return false;
+        }
+
+        if ( entries != null )
+        {
+            current = entries[position];
+
+            return true;
+        }
+
+        try
+        {
+            data.seek( positions[position] );
+            byte[] serialized = new byte[data.readInt()];
+            data.readFully( serialized );
+            current = ( Entry ) serializer.deserialize( serialized );
+        }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe );
+        }
+
+        return true;
     }
 
-    
+
     private void deleteFile()
     {
-        if ( recMan == null )
+        entries = null;
+        current = null;
+
+        if ( data == null )
         {
             return;
         }
 
         try
         {
-            recMan.close();
-            dataFile.delete();
+            data.close();
+            data = null;
+
+            if ( !dataFile.delete() )
+            {
+                LOG.warn( "Failed to delete the sorted entry data file {}", dataFile );
+            }
         }
         catch ( IOException e )
         {
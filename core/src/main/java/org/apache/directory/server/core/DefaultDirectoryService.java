@@ -57,6 +57,7 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.ldif.ChangeType;
 import org.apache.directory.api.ldap.model.ldif.LdifEntry;
 import org.apache.directory.api.ldap.model.ldif.LdifReader;
@@ -100,6 +101,7 @@ import org.apache.directory.server.core.api.interceptor.context.HasEntryOperatio
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
 import org.apache.directory.server.core.api.journal.Journal;
+import org.apache.directory.server.core.api.metrics.MetricsRegistry;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.schema.SchemaPartition;
@@ -116,6 +118,7 @@ import org.apache.directory.server.core.event.EventInterceptor;
 import org.apache.directory.server.core.exception.ExceptionInterceptor;
 import org.apache.directory.server.core.journal.DefaultJournal;
 import org.apache.directory.server.core.journal.JournalInterceptor;
+import org.apache.directory.server.core.metrics.MonitorPartition;
 import org.apache.directory.server.core.normalization.NormalizationInterceptor;
 import org.apache.directory.server.core.operational.OperationalAttributeInterceptor;
 import org.apache.directory.server.core.referral.ReferralInterceptor;
@@ -170,6 +173,12 @@ public class DefaultDirectoryService implements DirectoryService
      */
     private OperationManager operationManager = new DefaultOperationManager( this );
 
+    /** the registry where the server metrics are gathered */
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+    /** the partition publishing the metrics under cn=monitor, if enabled */
+    private MonitorPartition monitorPartition;
+
     /** the distinguished name of the administrative user */
     private Dn adminDn;
 
@@ -569,6 +578,11 @@ public class DefaultDirectoryService implements DirectoryService
         // First, init the interceptor
         interceptor.init( this );
 
+        if ( started )
+        {
+            initMonitorPartition();
+        }
+
         writeLock.lock();
 
         try
@@ -694,6 +708,34 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * Creates the partition publishing the metrics under cn=monitor, if an interceptor
+     * asked for it through the MetricsRegistry, and if it does not exist yet.
+     */
+    private void initMonitorPartition() throws LdapException
+    {
+        if ( ( monitorPartition != null ) || !metricsRegistry.isEnabled() || !metricsRegistry.isMonitorEnabled() )
+        {
+            return;
+        }
+
+        MonitorPartition partition = new MonitorPartition( this );
+
+        try
+        {
+            addPartition( partition );
+            partition.publish( metricsRegistry );
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+
+        monitorPartition = partition;
+        metricsRegistry.addPublisher( monitorPartition );
+    }
+
+
     /**
      * Returns test directory entries({@link LdifEntry}) to be loaded while
      * bootstrapping.
@@ -1210,6 +1252,15 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public MetricsRegistry getMetricsRegistry()
+    {
+        return metricsRegistry;
+    }
+
+
     /**
      * @throws Exception if the LDAP server cannot be started
      */
@@ -1284,6 +1335,16 @@ public class DefaultDirectoryService implements DirectoryService
         // --------------------------------------------------------------------
         // Shutdown the sync thread
         // --------------------------------------------------------------------
+        // --------------------------------------------------------------------
+        // Stop publishing the metrics under cn=monitor
+        // --------------------------------------------------------------------
+        if ( monitorPartition != null )
+        {
+            metricsRegistry.removePublisher( monitorPartition );
+            partitions.remove( monitorPartition );
+            monitorPartition = null;
+        }
+
         LOG.debug( "--- Syncing the nexus " );
         LOG.debug( "--- Flushing everything before quitting" );
         getOperationManager().lockWrite();
@@ -1828,6 +1889,9 @@ public class DefaultDirectoryService implements DirectoryService
         // Initialize the interceptors
         initInterceptors();
 
+        // Publish the metrics under cn=monitor if the interceptors asked for it
+        initMonitorPartition();
+
         // --------------------------------------------------------------------
         // Initialize the changeLog if it's enabled
         // --------------------------------------------------------------------
@@ -22,6 +22,12 @@ package org.apache.directory.server.core;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -91,8 +97,40 @@ public class DefaultOperationManager implements OperationManager
     /** The directory service instance */
     private final DirectoryService directoryService;
 
+    /** The system property used to switch to the per-partition locking mode */
+    public static final String PARTITION_LOCKING_PROPERTY = "apacheds.operation.partitionLocking";
+
+    /** The default time we wait for a lock when we already hold another partition lock, in ms */
+    public static final long DEFAULT_NESTED_LOCK_TIMEOUT = 10000L;
+
+    /** The name under which the waits for the server wide lock are recorded */
+    public static final String SERVER_LOCK = "server";
+
+    /** The start time returned when a lock acquisition is not timed */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
     /** A lock used to protect against concurrent operations */
-    private ReadWriteLock rwLock = new ReentrantReadWriteLock( true );
+    private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock( true );
+
+    /** Tells if the operations only lock the partition they are applied on */
+    private boolean partitionLocking = Boolean.getBoolean( PARTITION_LOCKING_PROPERTY );
+
+    /** The maximum time we wait for a lock when we already hold another partition lock, in ms */
+    private long nestedLockTimeout = DEFAULT_NESTED_LOCK_TIMEOUT;
+
+    /** The per-partition locks, indexed by the partition's suffix normalized name */
+    private final ConcurrentMap<String, ReentrantReadWriteLock> partitionLocks =
+        new ConcurrentHashMap<String, ReentrantReadWriteLock>();
+
+    /** The number of partition mode locks held by the current thread */
+    private final ThreadLocal<int[]> heldLocks = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[1];
+        }
+    };
 
 
     public DefaultOperationManager( DirectoryService directoryService )
@@ -110,6 +148,25 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Dn dn )
+    {
+        if ( partitionLocking )
+        {
+            ReentrantReadWriteLock partitionLock = getPartitionLock( dn );
+
+            if ( partitionLock != null )
+            {
+                return partitionLock;
+            }
+        }
+
+        return rwLock;
+    }
+
+
     /**
      * Acquires a ReadLock
      */
@@ -146,6 +203,306 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * @return <code>true</code> if the operations only lock the partition they are applied on
+     */
+    public boolean isPartitionLocking()
+    {
+        return partitionLocking;
+    }
+
+
+    /**
+     * Selects the locking mode. By default, a write operation locks the whole server. When the
+     * partition locking is enabled, a write only locks the partition it is applied on, and a read
+     * operation only locks the partition it reads from, so that operations on different partitions
+     * can be processed in parallel. This must be set before the DirectoryService is started.
+     *
+     * @param partitionLocking <code>true</code> to lock partitions individually
+     */
+    public void setPartitionLocking( boolean partitionLocking )
+    {
+        this.partitionLocking = partitionLocking;
+    }
+
+
+    /**
+     * @return the maximum time we wait for a partition lock when we already hold another one, in ms
+     */
+    public long getNestedLockTimeout()
+    {
+        return nestedLockTimeout;
+    }
+
+
+    /**
+     * Sets the maximum time an operation waits for a partition lock when the current thread
+     * already holds a lock on another partition (nested operations). Reaching this timeout
+     * aborts the operation with a BUSY result, instead of risking a deadlock between two
+     * operations nested in reverse partition order.
+     *
+     * @param nestedLockTimeout the timeout, in ms
+     */
+    public void setNestedLockTimeout( long nestedLockTimeout )
+    {
+        this.nestedLockTimeout = nestedLockTimeout;
+    }
+
+
+    /**
+     * Gets the lock associated with the partition containing the given Dn.
+     *
+     * @param dn The Dn we are looking the partition lock for
+     * @return The partition lock, or null if the Dn is not contained in any partition
+     */
+    private ReentrantReadWriteLock getPartitionLock( Dn dn )
+    {
+        String suffix = getPartitionSuffix( dn );
+
+        if ( suffix == null )
+        {
+            return null;
+        }
+
+        return getPartitionLock( suffix );
+    }
+
+
+    /**
+     * Gets the normalized suffix of the partition containing the given Dn.
+     *
+     * @param dn The Dn we are looking the partition for
+     * @return The partition suffix, or null if the Dn is not contained in any partition
+     */
+    private String getPartitionSuffix( Dn dn )
+    {
+        if ( ( dn == null ) || dn.isEmpty() )
+        {
+            return null;
+        }
+
+        try
+        {
+            return directoryService.getPartitionNexus().getSuffixDn( dn ).getNormName();
+        }
+        catch ( LdapException le )
+        {
+            // No partition for this Dn
+            return null;
+        }
+    }
+
+
+    /**
+     * Gets, or creates, the lock associated with a partition suffix
+     */
+    private ReentrantReadWriteLock getPartitionLock( String suffix )
+    {
+        ReentrantReadWriteLock partitionLock = partitionLocks.get( suffix );
+
+        if ( partitionLock == null )
+        {
+            partitionLock = new ReentrantReadWriteLock( true );
+            ReentrantReadWriteLock existing = partitionLocks.putIfAbsent( suffix, partitionLock );
+
+            if ( existing != null )
+            {
+                partitionLock = existing;
+            }
+        }
+
+        return partitionLock;
+    }
+
+
+    /**
+     * Acquires the locks needed to process an operation on some Dns. In the default mode, this
+     * is the server wide lock. In partition locking mode, we take the server wide lock in read
+     * mode (so that lockWrite() still excludes every operation), and the locks of the partitions
+     * containing the Dns, sorted by suffix so that two operations always take them in the same
+     * order. A write on a Dn which is not in any partition locks the whole server, and a read of
+     * the RootDSE does not lock any partition, unless all of them have to be read.
+     *
+     * @param write If the locks must be taken in write mode
+     * @param allPartitions If we have to lock all the partitions (searches from the RootDSE)
+     * @param dns The Dns the operation is applied on
+     * @return The list of locks to release once the operation is done
+     * @throws LdapException If we can't get the locks in a nested operation
+     */
+    private List<Lock> acquireLocks( boolean write, boolean allPartitions, Dn... dns ) throws LdapException
+    {
+        List<Lock> locks = new ArrayList<Lock>( 2 );
+
+        if ( !partitionLocking )
+        {
+            checkLockUpgrade( rwLock, SERVER_LOCK, write, locks );
+
+            Lock lock = write ? rwLock.writeLock() : rwLock.readLock();
+            long start = startLockWait();
+            lock.lock();
+            stopLockWait( SERVER_LOCK, start );
+            locks.add( lock );
+
+            return locks;
+        }
+
+        Set<String> suffixes = new TreeSet<String>();
+        boolean outsidePartitions = false;
+
+        if ( allPartitions )
+        {
+            suffixes.addAll( directoryService.getPartitionNexus().listSuffixes() );
+        }
+
+        for ( Dn dn : dns )
+        {
+            String suffix = getPartitionSuffix( dn );
+
+            if ( suffix == null )
+            {
+                outsidePartitions = true;
+            }
+            else
+            {
+                suffixes.add( suffix );
+            }
+        }
+
+        if ( write && outsidePartitions )
+        {
+            acquireLock( rwLock, SERVER_LOCK, true, locks );
+
+            return locks;
+        }
+
+        acquireLock( rwLock, SERVER_LOCK, false, locks );
+
+        for ( String suffix : suffixes )
+        {
+            acquireLock( getPartitionLock( suffix ), suffix, write, locks );
+        }
+
+        return locks;
+    }
+
+
+    /**
+     * Acquires a lock, and stores it into the list of held locks. If the current thread already
+     * holds some other lock, we only wait for a limited time, as two nested operations locking
+     * partitions in a different order could otherwise deadlock.
+     */
+    private void acquireLock( ReentrantReadWriteLock lock, String lockName, boolean write, List<Lock> locks )
+        throws LdapException
+    {
+        checkLockUpgrade( lock, lockName, write, locks );
+
+        Lock toAcquire = write ? lock.writeLock() : lock.readLock();
+        int[] held = heldLocks.get();
+        boolean reentrant = lock.isWriteLockedByCurrentThread() || ( !write && ( lock.getReadHoldCount() > 0 ) );
+        long start = startLockWait();
+
+        if ( ( held[0] == 0 ) || reentrant )
+        {
+            toAcquire.lock();
+        }
+        else
+        {
+            boolean acquired = false;
+
+            try
+            {
+                acquired = toAcquire.tryLock( nestedLockTimeout, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            if ( !acquired )
+            {
+                releaseLocks( locks );
+
+                throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY,
+                    I18n.err( I18n.ERR_751, nestedLockTimeout ) );
+            }
+        }
+
+        stopLockWait( lockName, start );
+        held[0]++;
+        locks.add( toAcquire );
+    }
+
+
+    /**
+     * Fails if the current thread holds a lock in read mode, and asks for it in write mode : a
+     * ReentrantReadWriteLock can't be upgraded, so we would wait for ever, or until the nested
+     * lock timeout. This happens when an operation nests a write in a read on the same partition.
+     */
+    private void checkLockUpgrade( ReentrantReadWriteLock lock, String lockName, boolean write, List<Lock> locks )
+        throws LdapException
+    {
+        if ( write && !lock.isWriteLockedByCurrentThread() && ( lock.getReadHoldCount() > 0 ) )
+        {
+            releaseLocks( locks );
+
+            String message = I18n.err( I18n.ERR_756, lockName );
+            OPERATION_LOG.error( message );
+
+            throw new LdapOperationErrorException( message );
+        }
+    }
+
+
+    /**
+     * Starts timing a lock acquisition, if the metrics are gathered.
+     *
+     * @return The start time, or NOT_TIMED if the metrics are not gathered
+     */
+    private long startLockWait()
+    {
+        if ( directoryService.getMetricsRegistry().isEnabled() )
+        {
+            return System.nanoTime();
+        }
+
+        return NOT_TIMED;
+    }
+
+
+    /**
+     * Records the time spent waiting for a lock.
+     *
+     * @param lockName The lock name : {@link #SERVER_LOCK}, or the partition suffix
+     * @param start The value returned by {@link #startLockWait()}
+     */
+    private void stopLockWait( String lockName, long start )
+    {
+        if ( start != NOT_TIMED )
+        {
+            directoryService.getMetricsRegistry().getLockWaitHistogram( lockName ).record( System.nanoTime() - start );
+        }
+    }
+
+
+    /**
+     * Releases the locks acquired by {@link #acquireLocks(boolean, boolean, Dn...)}, in reverse order
+     */
+    private void releaseLocks( List<Lock> locks )
+    {
+        if ( partitionLocking )
+        {
+            heldLocks.get()[0] -= locks.size();
+        }
+
+        for ( int i = locks.size() - 1; i >= 0; i-- )
+        {
+            locks.get( i ).unlock();
+        }
+
+        locks.clear();
+    }
+
+
     /**
      * Eagerly populates fields of operation contexts so multiple Interceptors
      * in the processing pathway can reuse this value without performing a
@@ -390,7 +747,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the Add method
         Interceptor head = directoryService.getInterceptor( addContext.getNextInterceptor() );
 
-        lockWrite();
+        List<Lock> locks = acquireLocks( true, false, dn );
 
         try
         {
@@ -398,9 +755,13 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            releaseLocks( locks );
         }
 
+        // Wait for the writes done outside of the partitions, once the locks have been
+        // released so that the concurrent operations can share the same sync
+        addContext.awaitPendingWrites();
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< AddOperation successful" );
@@ -435,7 +796,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the Delete method
         Interceptor head = directoryService.getInterceptor( bindContext.getNextInterceptor() );
 
-        lockRead();
+        List<Lock> locks = acquireLocks( false, false, bindContext.getDn() );
 
         try
         {
@@ -443,7 +804,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            releaseLocks( locks );
         }
 
         if ( IS_DEBUG )
@@ -535,7 +896,7 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
+        List<Lock> locks = acquireLocks( false, false, dn );
 
         try
         {
@@ -543,7 +904,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            releaseLocks( locks );
         }
 
         if ( IS_DEBUG )
@@ -632,7 +993,7 @@ public class DefaultOperationManager implements OperationManager
         }
 
         // populate the context with the old entry
-        lockWrite();
+        List<Lock> locks = acquireLocks( true, false, dn );
 
         try
         {
@@ -645,9 +1006,13 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            releaseLocks( locks );
         }
 
+        // Wait for the writes done outside of the partitions, once the locks have been
+        // released so that the concurrent operations can share the same sync
+        deleteContext.awaitPendingWrites();
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< DeleteOperation successful" );
@@ -720,7 +1085,7 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
+        List<Lock> locks = acquireLocks( false, false, hasEntryContext.getDn() );
 
         try
         {
@@ -728,7 +1093,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            releaseLocks( locks );
         }
 
         if ( IS_DEBUG )
@@ -768,7 +1133,7 @@ public class DefaultOperationManager implements OperationManager
 
         Entry entry = null;
 
-        lockRead();
+        List<Lock> locks = acquireLocks( false, false, lookupContext.getDn() );
 
         try
         {
@@ -776,7 +1141,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            releaseLocks( locks );
         }
 
         if ( IS_DEBUG )
@@ -873,7 +1238,7 @@ public class DefaultOperationManager implements OperationManager
             referralManager.unlock();
         }
 
-        lockWrite();
+        List<Lock> locks = acquireLocks( true, false, dn );
 
         try
         {
@@ -887,9 +1252,13 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            releaseLocks( locks );
         }
 
+        // Wait for the writes done outside of the partitions, once the locks have been
+        // released so that the concurrent operations can share the same sync
+        modifyContext.awaitPendingWrites();
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< ModifyOperation successful" );
@@ -991,7 +1360,7 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
+        List<Lock> locks = acquireLocks( true, false, dn, newSuperiorDn );
 
         try
         {
@@ -1006,9 +1375,13 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            releaseLocks( locks );
         }
 
+        // Wait for the writes done outside of the partitions, once the locks have been
+        // released so that the concurrent operations can share the same sync
+        moveContext.awaitPendingWrites();
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< MoveOperation successful" );
@@ -1111,7 +1484,7 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
+        List<Lock> locks = acquireLocks( true, false, dn, moveAndRenameContext.getNewSuperiorDn() );
 
         try
         {
@@ -1125,9 +1498,13 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            releaseLocks( locks );
         }
 
+        // Wait for the writes done outside of the partitions, once the locks have been
+        // released so that the concurrent operations can share the same sync
+        moveAndRenameContext.awaitPendingWrites();
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< MoveAndRenameOperation successful" );
@@ -1224,7 +1601,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the rename method
         // populate the context with the old entry
 
-        lockWrite();
+        List<Lock> locks = acquireLocks( true, false, dn );
 
         try
         {
@@ -1240,9 +1617,13 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            releaseLocks( locks );
         }
 
+        // Wait for the writes done outside of the partitions, once the locks have been
+        // released so that the concurrent operations can share the same sync
+        renameContext.awaitPendingWrites();
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< RenameOperation successful" );
@@ -1335,7 +1716,9 @@ public class DefaultOperationManager implements OperationManager
 
         EntryFilteringCursor cursor = null;
 
-        lockRead();
+        // A search from the RootDSE may read all the partitions
+        boolean allPartitions = dn.isEmpty() && ( searchContext.getScope() != SearchScope.OBJECT );
+        List<Lock> locks = acquireLocks( false, allPartitions, dn );
 
         try
         {
@@ -1343,7 +1726,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            releaseLocks( locks );
         }
 
         if ( IS_DEBUG )
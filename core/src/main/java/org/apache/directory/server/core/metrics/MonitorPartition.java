@@ -0,0 +1,541 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.metrics;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.MutableAttributeType;
+import org.apache.directory.api.ldap.model.schema.MutableObjectClass;
+import org.apache.directory.api.ldap.model.schema.ObjectClassTypeEnum;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.SchemaObject;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.metrics.LatencyHistogram;
+import org.apache.directory.server.core.api.metrics.MetricsPublisher;
+import org.apache.directory.server.core.api.metrics.MetricsRegistry;
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * An in-memory, read-only partition exposing the content of the {@link MetricsRegistry}
+ * under <em>cn=monitor</em> :
+ * <pre>
+ * cn=monitor
+ *   cn=operations : one entry per operation, with its latencies
+ *   cn=interceptors : one entry per interceptor, and below it one entry per operation
+ *   cn=partitions : one entry per partition, with its counters
+ *   cn=locks : one entry per operation lock, with the time spent waiting for it
+ * </pre>
+ * The latencies are expressed in microseconds. The entries are not updated when the
+ * metrics change, but by the {@link #publish(MetricsRegistry)} method, which is called
+ * periodically by the MetricsInterceptor. The partition is created and registered by the
+ * DirectoryService when the interceptor asks for the metrics to be published under
+ * <em>cn=monitor</em>. The refresh writes directly into the partition, so the changes
+ * aren't logged nor replicated. It only takes the partition's
+ * own lock, not the OperationManager one, so it never delays the other operations.
+ * <br/>
+ * The attribute types and the object class used by the entries are added to the
+ * <em>apache</em> schema when the partition is created.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MonitorPartition extends AvlPartition implements MetricsPublisher
+{
+    /** The partition ID */
+    public static final String MONITOR_PARTITION_ID = "monitor";
+
+    /** The partition suffix */
+    public static final String MONITOR_SUFFIX = "cn=monitor";
+
+    /** The object class of the monitor entries */
+    public static final String MONITORED_OBJECT_OC = "monitoredObject";
+
+    /** The number of recorded latencies */
+    public static final String MONITOR_COUNT_AT = "monitorCount";
+
+    /** The mean latency */
+    public static final String MONITOR_LATENCY_MEAN_AT = "monitorLatencyMean";
+
+    /** The highest latency */
+    public static final String MONITOR_LATENCY_MAX_AT = "monitorLatencyMax";
+
+    /** The median latency */
+    public static final String MONITOR_LATENCY_P50_AT = "monitorLatencyP50";
+
+    /** The 95th percentile of the latencies */
+    public static final String MONITOR_LATENCY_P95_AT = "monitorLatencyP95";
+
+    /** The 99th percentile of the latencies */
+    public static final String MONITOR_LATENCY_P99_AT = "monitorLatencyP99";
+
+    /** The 99.9th percentile of the latencies */
+    public static final String MONITOR_LATENCY_P999_AT = "monitorLatencyP999";
+
+    /** The number of entries found in the entry cache */
+    public static final String MONITOR_CACHE_HITS_AT = "monitorCacheHits";
+
+    /** The number of entries read from the master table */
+    public static final String MONITOR_CACHE_MISSES_AT = "monitorCacheMisses";
+
+    /** The number of searches */
+    public static final String MONITOR_SEARCHES_AT = "monitorSearches";
+
+    /** The number of candidates selected by the index cursors */
+    public static final String MONITOR_CANDIDATES_AT = "monitorCandidates";
+
+    /** The number of entries evaluated against the search filters */
+    public static final String MONITOR_ENTRIES_EXAMINED_AT = "monitorEntriesExamined";
+
+    /** The number of entries returned by the searches */
+    public static final String MONITOR_ENTRIES_RETURNED_AT = "monitorEntriesReturned";
+
+    /** The number of entries evicted from the entry cache */
+    public static final String MONITOR_CACHE_EVICTIONS_AT = "monitorCacheEvictions";
+
+    /** The number of entries not admitted in the entry cache */
+    public static final String MONITOR_CACHE_REJECTIONS_AT = "monitorCacheRejections";
+
+    /** The estimated size of the entry cache, in bytes */
+    public static final String MONITOR_CACHE_WEIGHT_AT = "monitorCacheWeight";
+
+    /** The maximum size of the entry cache, in bytes */
+    public static final String MONITOR_CACHE_MAX_WEIGHT_AT = "monitorCacheMaxWeight";
+
+    /** The number of entries found in the off-heap entry cache */
+    public static final String MONITOR_OFF_HEAP_CACHE_HITS_AT = "monitorOffHeapCacheHits";
+
+    /** The size of the off-heap entry cache, in bytes */
+    public static final String MONITOR_OFF_HEAP_CACHE_WEIGHT_AT = "monitorOffHeapCacheWeight";
+
+    /** The maximum size of the off-heap entry cache, in bytes */
+    public static final String MONITOR_OFF_HEAP_CACHE_MAX_WEIGHT_AT = "monitorOffHeapCacheMaxWeight";
+
+    /** The monitor attribute types, in OID order */
+    private static final String[] MONITOR_ATTRIBUTE_TYPES =
+        {
+            MONITOR_COUNT_AT,
+            MONITOR_LATENCY_MEAN_AT,
+            MONITOR_LATENCY_MAX_AT,
+            MONITOR_LATENCY_P50_AT,
+            MONITOR_LATENCY_P95_AT,
+            MONITOR_LATENCY_P99_AT,
+            MONITOR_LATENCY_P999_AT,
+            MONITOR_CACHE_HITS_AT,
+            MONITOR_CACHE_MISSES_AT,
+            MONITOR_SEARCHES_AT,
+            MONITOR_CANDIDATES_AT,
+            MONITOR_ENTRIES_EXAMINED_AT,
+            MONITOR_ENTRIES_RETURNED_AT,
+            MONITOR_CACHE_EVICTIONS_AT,
+            MONITOR_CACHE_REJECTIONS_AT,
+            MONITOR_CACHE_WEIGHT_AT,
+            MONITOR_CACHE_MAX_WEIGHT_AT,
+            MONITOR_OFF_HEAP_CACHE_HITS_AT,
+            MONITOR_OFF_HEAP_CACHE_WEIGHT_AT,
+            MONITOR_OFF_HEAP_CACHE_MAX_WEIGHT_AT
+    };
+
+    /** The OID of the first monitor attribute type, the next ones are numbered sequentially */
+    private static final int FIRST_ATTRIBUTE_TYPE_NUMBER = 1000;
+
+    /** The OID arc of the Apache attribute types */
+    private static final String ATTRIBUTE_TYPE_OID_ARC = "1.3.6.1.4.1.18060.0.4.1.2.";
+
+    /** The OID of the monitoredObject object class */
+    private static final String MONITORED_OBJECT_OC_OID = "1.3.6.1.4.1.18060.0.4.1.3.1000";
+
+    /** The schema the monitor schema objects are added to */
+    private static final String APACHE_SCHEMA = "apache";
+
+    /** The directory service */
+    private final DirectoryService directoryService;
+
+    /** The container of the operation entries */
+    private Dn operationsDn;
+
+    /** The container of the interceptor entries */
+    private Dn interceptorsDn;
+
+    /** The container of the partition entries */
+    private Dn partitionsDn;
+
+    /** The container of the lock entries */
+    private Dn locksDn;
+
+    /** The lock protecting the entries against the refreshes, private to this partition */
+    private final ReadWriteLock monitorLock = new ReentrantReadWriteLock();
+
+
+    /**
+     * Creates a new instance of MonitorPartition. The monitor schema is registered, if it's not
+     * already present.
+     *
+     * @param directoryService The directory service
+     * @throws LdapException If the monitor schema can't be registered
+     */
+    public MonitorPartition( DirectoryService directoryService ) throws LdapException
+    {
+        super( directoryService.getSchemaManager(), directoryService.getDnFactory() );
+        this.directoryService = directoryService;
+
+        registerSchema( schemaManager );
+
+        setId( MONITOR_PARTITION_ID );
+        setSuffixDn( new Dn( schemaManager, MONITOR_SUFFIX ) );
+    }
+
+
+    /**
+     * Adds the monitor attribute types and object class to the schema
+     */
+    private static synchronized void registerSchema( SchemaManager schemaManager ) throws LdapException
+    {
+        if ( schemaManager.getObjectClassRegistry().contains( MONITORED_OBJECT_OC_OID ) )
+        {
+            return;
+        }
+
+        List<String> attributeTypeOids = new ArrayList<String>();
+
+        for ( int i = 0; i < MONITOR_ATTRIBUTE_TYPES.length; i++ )
+        {
+            String oid = ATTRIBUTE_TYPE_OID_ARC + ( FIRST_ATTRIBUTE_TYPE_NUMBER + i );
+            MutableAttributeType attributeType = new MutableAttributeType( oid );
+            attributeType.setNames( MONITOR_ATTRIBUTE_TYPES[i] );
+            attributeType.setSchemaName( APACHE_SCHEMA );
+            attributeType.setSyntaxOid( SchemaConstants.INTEGER_SYNTAX );
+            attributeType.setEqualityOid( SchemaConstants.INTEGER_MATCH_MR_OID );
+            attributeType.setOrderingOid( SchemaConstants.INTEGER_ORDERING_MATCH_MR_OID );
+            attributeType.setSingleValued( true );
+
+            addSchemaObject( schemaManager, attributeType );
+            attributeTypeOids.add( oid );
+        }
+
+        MutableObjectClass objectClass = new MutableObjectClass( MONITORED_OBJECT_OC_OID );
+        objectClass.setNames( MONITORED_OBJECT_OC );
+        objectClass.setSchemaName( APACHE_SCHEMA );
+        objectClass.setType( ObjectClassTypeEnum.STRUCTURAL );
+        objectClass.addSuperiorOids( SchemaConstants.TOP_OC_OID );
+        objectClass.addMustAttributeTypeOids( SchemaConstants.CN_AT_OID );
+        objectClass.setMayAttributeTypeOids( attributeTypeOids );
+
+        addSchemaObject( schemaManager, objectClass );
+    }
+
+
+    private static void addSchemaObject( SchemaManager schemaManager, SchemaObject schemaObject ) throws LdapException
+    {
+        if ( !schemaManager.add( schemaObject ) )
+        {
+            throw new LdapException( I18n.err( I18n.ERR_752_CANNOT_ADD_MONITOR_SCHEMA_OBJECT, schemaObject.getName(),
+                schemaManager.getErrors() ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doInit() throws Exception
+    {
+        if ( !initialized )
+        {
+            super.doInit();
+
+            operationsDn = getSuffixDn().add( new Rdn( schemaManager, SchemaConstants.CN_AT, "operations" ) );
+            interceptorsDn = getSuffixDn().add( new Rdn( schemaManager, SchemaConstants.CN_AT, "interceptors" ) );
+            partitionsDn = getSuffixDn().add( new Rdn( schemaManager, SchemaConstants.CN_AT, "partitions" ) );
+            locksDn = getSuffixDn().add( new Rdn( schemaManager, SchemaConstants.CN_AT, "locks" ) );
+
+            Lock lock = monitorLock.writeLock();
+            lock.lock();
+
+            try
+            {
+                createEntry( getSuffixDn(), null );
+                createEntry( operationsDn, null );
+                createEntry( interceptorsDn, null );
+                createEntry( partitionsDn, null );
+                createEntry( locksDn, null );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Updates the monitor entries with the current metrics.
+     *
+     * @param metricsRegistry The registry to read the metrics from
+     * @throws Exception If the entries can't be updated
+     */
+    public void publish( MetricsRegistry metricsRegistry ) throws Exception
+    {
+        Lock lock = monitorLock.writeLock();
+        lock.lock();
+
+        try
+        {
+            for ( Map.Entry<OperationEnum, LatencyHistogram> operation : metricsRegistry.getOperationHistograms()
+                .entrySet() )
+            {
+                updateEntry( getChildDn( operationsDn, operation.getKey().getMethodName() ),
+                    getAttributes( operation.getValue() ) );
+            }
+
+            for ( Map.Entry<String, Map<OperationEnum, LatencyHistogram>> interceptor : metricsRegistry
+                .getInterceptorHistograms().entrySet() )
+            {
+                Dn interceptorDn = getChildDn( interceptorsDn, interceptor.getKey() );
+
+                if ( getEntryId( interceptorDn ) == null )
+                {
+                    createEntry( interceptorDn, null );
+                }
+
+                for ( Map.Entry<OperationEnum, LatencyHistogram> operation : interceptor.getValue().entrySet() )
+                {
+                    updateEntry( getChildDn( interceptorDn, operation.getKey().getMethodName() ),
+                        getAttributes( operation.getValue() ) );
+                }
+            }
+
+            for ( Map.Entry<String, PartitionMetrics> partition : metricsRegistry.getPartitionMetrics().entrySet() )
+            {
+                updateEntry( getChildDn( partitionsDn, partition.getKey() ), getAttributes( partition.getValue() ) );
+            }
+
+            for ( Map.Entry<String, LatencyHistogram> lockWait : metricsRegistry.getLockWaitHistograms().entrySet() )
+            {
+                updateEntry( getChildDn( locksDn, lockWait.getKey() ), getAttributes( lockWait.getValue() ) );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * The monitor entries are only modified by the refreshes, so the readers only need to be
+     * protected against them, using a lock private to this partition.
+     */
+    @Override
+    protected ReadWriteLock getOperationLock( DirectoryService directoryService )
+    {
+        return monitorLock;
+    }
+
+
+    private Dn getChildDn( Dn parentDn, String cn ) throws LdapException
+    {
+        return parentDn.add( new Rdn( schemaManager, SchemaConstants.CN_AT, cn ) );
+    }
+
+
+    /**
+     * Replaces the monitor attributes of an entry, creating it if needed
+     */
+    private void updateEntry( Dn dn, List<Attribute> attributes ) throws Exception
+    {
+        if ( getEntryId( dn ) == null )
+        {
+            createEntry( dn, attributes );
+
+            return;
+        }
+
+        Modification[] mods = new Modification[attributes.size()];
+
+        for ( int i = 0; i < mods.length; i++ )
+        {
+            mods[i] = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attributes.get( i ) );
+        }
+
+        modify( dn, mods );
+    }
+
+
+    /**
+     * Adds a monitor entry, bypassing the read-only add operation
+     */
+    private void createEntry( Dn dn, List<Attribute> attributes ) throws LdapException
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass", MONITORED_OBJECT_OC,
+            "cn", dn.getRdn().getNormValue(),
+            "entryCSN", directoryService.getCSN().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        if ( attributes != null )
+        {
+            for ( Attribute attribute : attributes )
+            {
+                entry.put( attribute );
+            }
+        }
+
+        super.add( new AddOperationContext( directoryService.getAdminSession(), entry ) );
+    }
+
+
+    private List<Attribute> getAttributes( LatencyHistogram histogram ) throws LdapException
+    {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+
+        attributes.add( newAttribute( MONITOR_COUNT_AT, histogram.getCount() ) );
+        attributes.add( newAttribute( MONITOR_LATENCY_MEAN_AT, Math.round( histogram.getMean() ) ) );
+        attributes.add( newAttribute( MONITOR_LATENCY_MAX_AT, Math.round( histogram.getMax() ) ) );
+        attributes.add( newAttribute( MONITOR_LATENCY_P50_AT, Math.round( histogram.getPercentile50() ) ) );
+        attributes.add( newAttribute( MONITOR_LATENCY_P95_AT, Math.round( histogram.getPercentile95() ) ) );
+        attributes.add( newAttribute( MONITOR_LATENCY_P99_AT, Math.round( histogram.getPercentile99() ) ) );
+        attributes.add( newAttribute( MONITOR_LATENCY_P999_AT, Math.round( histogram.getPercentile999() ) ) );
+
+        return attributes;
+    }
+
+
+    private List<Attribute> getAttributes( PartitionMetrics metrics ) throws LdapException
+    {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+
+        attributes.add( newAttribute( MONITOR_CACHE_HITS_AT, metrics.getCacheHits() ) );
+        attributes.add( newAttribute( MONITOR_CACHE_MISSES_AT, metrics.getCacheMisses() ) );
+        attributes.add( newAttribute( MONITOR_CACHE_EVICTIONS_AT, metrics.getCacheEvictions() ) );
+        attributes.add( newAttribute( MONITOR_CACHE_REJECTIONS_AT, metrics.getCacheRejections() ) );
+        attributes.add( newAttribute( MONITOR_CACHE_WEIGHT_AT, metrics.getCacheWeight() ) );
+        attributes.add( newAttribute( MONITOR_CACHE_MAX_WEIGHT_AT, metrics.getCacheMaxWeight() ) );
+        attributes.add( newAttribute( MONITOR_OFF_HEAP_CACHE_HITS_AT, metrics.getOffHeapCacheHits() ) );
+        attributes.add( newAttribute( MONITOR_OFF_HEAP_CACHE_WEIGHT_AT, metrics.getOffHeapCacheWeight() ) );
+        attributes.add( newAttribute( MONITOR_OFF_HEAP_CACHE_MAX_WEIGHT_AT, metrics.getOffHeapCacheMaxWeight() ) );
+        attributes.add( newAttribute( MONITOR_SEARCHES_AT, metrics.getSearches() ) );
+        attributes.add( newAttribute( MONITOR_CANDIDATES_AT, metrics.getCandidates() ) );
+        attributes.add( newAttribute( MONITOR_ENTRIES_EXAMINED_AT, metrics.getEntriesExamined() ) );
+        attributes.add( newAttribute( MONITOR_ENTRIES_RETURNED_AT, metrics.getEntriesReturned() ) );
+
+        return attributes;
+    }
+
+
+    private Attribute newAttribute( String attributeType, long value ) throws LdapException
+    {
+        return new DefaultAttribute( schemaManager.lookupAttributeTypeRegistry( attributeType ),
+            Long.toString( value ) );
+    }
+
+
+    //---------------------------------------------------------------------------------------------
+    // Operations : the partition is read-only
+    //---------------------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add( AddOperationContext addContext ) throws LdapException
+    {
+        throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry delete( DeleteOperationContext deleteContext ) throws LdapException
+    {
+        throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modify( ModifyOperationContext modifyContext ) throws LdapException
+    {
+        throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void move( MoveOperationContext moveContext ) throws LdapException
+    {
+        throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+    {
+        throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rename( RenameOperationContext renameContext ) throws LdapException
+    {
+        throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM );
+    }
+}
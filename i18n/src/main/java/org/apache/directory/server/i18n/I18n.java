@@ -783,7 +783,13 @@ public enum I18n
     ERR_747("ERR_747"),
     ERR_748("ERR_748"),
     ERR_749("ERR_749"),
-    ERR_750("ERR_750");
+    ERR_750("ERR_750"),
+    ERR_751("ERR_751"),
+    ERR_752_CANNOT_ADD_MONITOR_SCHEMA_OBJECT("ERR_752_CANNOT_ADD_MONITOR_SCHEMA_OBJECT"),
+    ERR_753_CANNOT_DECODE_ATTRIBUTE("ERR_753_CANNOT_DECODE_ATTRIBUTE"),
+    ERR_754_UNKNOWN_ATTRIBUTE_TYPE_ID("ERR_754_UNKNOWN_ATTRIBUTE_TYPE_ID"),
+    ERR_755_FORWARD_ONLY_CURSOR("ERR_755_FORWARD_ONLY_CURSOR"),
+    ERR_756("ERR_756");
 
     private static final ResourceBundle ERR_BUNDLE = ResourceBundle
         .getBundle( "org.apache.directory.server.i18n.errors" );
@@ -0,0 +1,254 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A bounded cache, used by the authenticators, where the elements expire after a given
+ * time. It's based on a ConcurrentHashMap, so the reads and writes don't contend on
+ * a global lock.
+ * <br/>
+ * When the cache grows above its maximum size, the thread which added the last element
+ * removes the expired elements and, if it's not enough, the least recently used ones. The
+ * other threads don't wait for this cleanup, so the cache may briefly contain more
+ * elements than its maximum size.
+ *
+ * @param <V> The type of the cached elements
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCache<V>
+{
+    /** The cached elements, per normalized Dn */
+    private final ConcurrentMap<String, CachedElement<V>> elements;
+
+    /** The maximum number of elements */
+    private final int maxSize;
+
+    /** The time after which an element expires, in ms. 0 means never */
+    private final long timeToLive;
+
+    /** Set while a thread is evicting elements */
+    private final AtomicBoolean evicting = new AtomicBoolean( false );
+
+    /** Sorts the eviction candidates from the least recently used to the most recently used */
+    private static final Comparator<EvictionCandidate<?>> LRU_COMPARATOR = new Comparator<EvictionCandidate<?>>()
+    {
+        public int compare( EvictionCandidate<?> c1, EvictionCandidate<?> c2 )
+        {
+            return c1.lastAccess < c2.lastAccess ? -1 : ( c1.lastAccess == c2.lastAccess ? 0 : 1 );
+        }
+    };
+
+    /** An element stored in the cache, with its expiration time */
+    private static final class CachedElement<V>
+    {
+        /** The cached value */
+        private final V value;
+
+        /** The time after which the element is discarded */
+        private final long expirationTime;
+
+        /** The last time the element has been read, used to evict the least recently used elements */
+        private volatile long lastAccess;
+
+
+        private CachedElement( V value, long now, long timeToLive )
+        {
+            this.value = value;
+            expirationTime = timeToLive > 0 ? now + timeToLive : Long.MAX_VALUE;
+            lastAccess = now;
+        }
+    }
+
+
+    /**
+     * An element which may be evicted. The last access time is copied, as it may be modified
+     * by the other threads while the candidates are sorted.
+     */
+    private static final class EvictionCandidate<V>
+    {
+        private final String normName;
+        private final CachedElement<V> element;
+        private final long lastAccess;
+
+
+        private EvictionCandidate( String normName, CachedElement<V> element )
+        {
+            this.normName = normName;
+            this.element = element;
+            lastAccess = element.lastAccess;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of CredentialCache.
+     *
+     * @param maxSize The maximum number of elements
+     * @param timeToLive The time after which an element expires, in ms. 0 means never
+     */
+    public CredentialCache( int maxSize, long timeToLive )
+    {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+
+        // The map may contain a few more elements than maxSize, before they get evicted
+        elements = new ConcurrentHashMap<String, CachedElement<V>>( maxSize + maxSize / 4 + 1 );
+    }
+
+
+    /**
+     * Gets an element from the cache
+     *
+     * @param normName The normalized Dn
+     * @return The cached element, or null if it's not present or has expired
+     */
+    public V get( String normName )
+    {
+        CachedElement<V> element = elements.get( normName );
+
+        if ( element == null )
+        {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if ( now > element.expirationTime )
+        {
+            elements.remove( normName, element );
+
+            return null;
+        }
+
+        element.lastAccess = now;
+
+        return element.value;
+    }
+
+
+    /**
+     * Adds or replaces an element in the cache
+     *
+     * @param normName The normalized Dn
+     * @param value The element to cache
+     */
+    public void put( String normName, V value )
+    {
+        elements.put( normName, new CachedElement<V>( value, System.currentTimeMillis(), timeToLive ) );
+
+        if ( elements.size() > maxSize )
+        {
+            evict();
+        }
+    }
+
+
+    /**
+     * Removes an element from the cache
+     *
+     * @param normName The normalized Dn
+     */
+    public void remove( String normName )
+    {
+        elements.remove( normName );
+    }
+
+
+    /**
+     * Removes all the elements from the cache
+     */
+    public void clear()
+    {
+        elements.clear();
+    }
+
+
+    /**
+     * @return The number of elements in the cache, including the expired ones not yet removed
+     */
+    public int size()
+    {
+        return elements.size();
+    }
+
+
+    /**
+     * Removes the expired elements then, if the cache is still too large, the least recently
+     * used ones. We remove a few more elements than needed, so that we don't have to do it
+     * again on the next put.
+     */
+    private void evict()
+    {
+        if ( !evicting.compareAndSet( false, true ) )
+        {
+            // Another thread is already doing the job
+            return;
+        }
+
+        try
+        {
+            long now = System.currentTimeMillis();
+            List<EvictionCandidate<V>> candidates = new ArrayList<EvictionCandidate<V>>( elements.size() );
+
+            for ( Map.Entry<String, CachedElement<V>> entry : elements.entrySet() )
+            {
+                if ( now > entry.getValue().expirationTime )
+                {
+                    elements.remove( entry.getKey(), entry.getValue() );
+                }
+                else
+                {
+                    candidates.add( new EvictionCandidate<V>( entry.getKey(), entry.getValue() ) );
+                }
+            }
+
+            int target = maxSize - maxSize / 10;
+            int toRemove = candidates.size() - target;
+
+            if ( ( elements.size() <= maxSize ) || ( toRemove <= 0 ) )
+            {
+                return;
+            }
+
+            Collections.sort( candidates, LRU_COMPARATOR );
+
+            for ( int i = 0; i < toRemove; i++ )
+            {
+                EvictionCandidate<V> candidate = candidates.get( i );
+                elements.remove( candidate.normName, candidate.element );
+            }
+        }
+        finally
+        {
+            evicting.set( false );
+        }
+    }
+}
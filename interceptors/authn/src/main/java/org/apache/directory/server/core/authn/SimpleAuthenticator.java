@@ -21,8 +21,10 @@ package org.apache.directory.server.core.authn;
 
 
 import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -50,7 +52,12 @@ import org.apache.mina.core.session.IoSession;
  * password is stored with a one-way encryption applied (e.g. SHA), the password
  * is hashed the same way before comparison.
  *
- * We use a cache to speedup authentication, where the Dn/password are stored.
+ * We use a cache to speedup authentication, where the Dn/password are stored. A
+ * second, smaller cache remembers the last wrong password used for a Dn, so that
+ * a client repeatedly binding with the same wrong password is rejected without
+ * a lookup nor a password comparison. Both caches are bypassed when the password
+ * policy is enabled, as each bind has to update the password policy state of the
+ * entry then.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -73,21 +80,38 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * just have to offer an access to refresh the local cache.
      *
      * We need to be sure that frequently used passwords be always in cache, and not discarded.
-     * We will use a LRU cache for this purpose.
+     * The least recently used entries are evicted when the cache is full.
      */
-    private final LRUMap credentialCache;
+    private final CredentialCache<LdapPrincipal> credentialCache;
+
+    /** A cache storing a digest of the last wrong password used for a Dn */
+    private final CredentialCache<byte[]> invalidCredentialCache;
+
+    /** A random salt added to the wrong passwords before they are digested */
+    private final byte[] invalidCredentialSalt = new byte[16];
 
     /** Declare a default for this cache. 100 entries seems to be enough */
     private static final int DEFAULT_CACHE_SIZE = 100;
 
+    /** The default time after which a cached password is read again from the backend, in ms */
+    public static final long DEFAULT_CACHE_TTL = 600000L;
+
+    /** The default number of wrong passwords we remember */
+    private static final int DEFAULT_INVALID_CACHE_SIZE = 100;
+
+    /** The default time during which we remember a wrong password, in ms */
+    public static final long DEFAULT_INVALID_CACHE_TTL = 60000L;
+
+    /** The algorithm used to digest the wrong passwords */
+    private static final String INVALID_CREDENTIAL_DIGEST = "SHA-256";
+
 
     /**
      * Creates a new instance.
      */
     public SimpleAuthenticator()
     {
-        super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        this( DEFAULT_CACHE_SIZE, Dn.ROOT_DSE );
     }
 
 
@@ -97,8 +121,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( Dn baseDn )
     {
-        super( AuthenticationLevel.SIMPLE, baseDn );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        this( DEFAULT_CACHE_SIZE, baseDn );
     }
 
 
@@ -108,9 +131,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( int cacheSize )
     {
-        super( AuthenticationLevel.SIMPLE, Dn.ROOT_DSE );
-
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        this( cacheSize, Dn.ROOT_DSE );
     }
 
 
@@ -119,10 +140,35 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * @param cacheSize the size of the credential cache
      */
     public SimpleAuthenticator( int cacheSize, Dn baseDn )
+    {
+        this( cacheSize, DEFAULT_CACHE_TTL, DEFAULT_INVALID_CACHE_SIZE, DEFAULT_INVALID_CACHE_TTL, baseDn );
+    }
+
+
+    /**
+     * Creates a new instance, with a configured credential cache
+     * @param cacheSize the size of the credential cache
+     * @param cacheTtl the time after which a cached password expires, in ms. 0 means never
+     * @param invalidCacheSize the number of wrong passwords we remember. 0 disables the
+     * wrong passwords cache
+     * @param invalidCacheTtl the time during which we remember a wrong password, in ms
+     */
+    public SimpleAuthenticator( int cacheSize, long cacheTtl, int invalidCacheSize, long invalidCacheTtl, Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache<LdapPrincipal>( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE,
+            cacheTtl );
+
+        if ( ( invalidCacheSize > 0 ) && ( invalidCacheTtl > 0 ) )
+        {
+            invalidCredentialCache = new CredentialCache<byte[]>( invalidCacheSize, invalidCacheTtl );
+            new SecureRandom().nextBytes( invalidCredentialSalt );
+        }
+        else
+        {
+            invalidCredentialCache = null;
+        }
     }
 
 
@@ -139,10 +185,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         // use cache only if pwdpolicy is not enabled
         if ( !getDirectoryService().isPwdPolicyEnabled() )
         {
-            synchronized ( credentialCache )
-            {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn().getNormName() );
-            }
+            principal = credentialCache.get( bindContext.getDn().getNormName() );
         }
 
         byte[][] storedPasswords;
@@ -171,10 +214,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
             // Now, update the local cache ONLY if pwdpolicy is not enabled.
             if ( !getDirectoryService().isPwdPolicyEnabled() )
             {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
+                credentialCache.put( bindContext.getDn().getNormName(), principal );
             }
         }
 
@@ -199,6 +239,25 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         // ---- extract password from JNDI environment
         byte[] credentials = bindContext.getCredentials();
 
+        // Reject a wrong password we have already seen, without looking up the entry.
+        // The password policy needs each failure to be recorded, so we don't do that
+        // when it's enabled.
+        boolean useInvalidCache = ( invalidCredentialCache != null ) && !getDirectoryService().isPwdPolicyEnabled();
+        byte[] credentialsDigest = null;
+
+        if ( useInvalidCache )
+        {
+            credentialsDigest = digest( credentials );
+            byte[] invalidDigest = invalidCredentialCache.get( bindContext.getDn().getNormName() );
+
+            if ( ( invalidDigest != null ) && MessageDigest.isEqual( invalidDigest, credentialsDigest ) )
+            {
+                String message = I18n.err( I18n.ERR_230, bindContext.getDn().getName() );
+                LOG.info( message );
+                throw new LdapAuthenticationException( message );
+            }
+        }
+
         LdapPrincipal principal = getStoredPassword( bindContext );
 
         IoSession session = bindContext.getIoSession();
@@ -240,11 +299,21 @@ public class SimpleAuthenticator extends AbstractAuthenticator
                     LOG.debug( "{} Authenticated", bindContext.getDn() );
                 }
 
+                if ( useInvalidCache )
+                {
+                    invalidCredentialCache.remove( bindContext.getDn().getNormName() );
+                }
+
                 return principal;
             }
         }
 
         // Bad password ...
+        if ( useInvalidCache )
+        {
+            invalidCredentialCache.put( bindContext.getDn().getNormName(), credentialsDigest );
+        }
+
         String message = I18n.err( I18n.ERR_230, bindContext.getDn().getName() );
         LOG.info( message );
         throw new LdapAuthenticationException( message );
@@ -332,15 +401,42 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     }
 
 
+    /**
+     * Computes the salted digest of a wrong password, so that we don't keep it in memory
+     */
+    private byte[] digest( byte[] credentials )
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( INVALID_CREDENTIAL_DIGEST );
+            digest.update( invalidCredentialSalt );
+
+            if ( credentials != null )
+            {
+                digest.update( credentials );
+            }
+
+            return digest.digest();
+        }
+        catch ( NoSuchAlgorithmException nsae )
+        {
+            // Can't happen, SHA-256 is available on all the JVMs
+            throw new IllegalStateException( nsae );
+        }
+    }
+
+
     /**
      * Remove the principal form the cache. This is used when the user changes
      * his password.
      */
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
+        credentialCache.remove( bindDn.getNormName() );
+
+        if ( invalidCredentialCache != null )
         {
-            credentialCache.remove( bindDn.getNormName() );
+            invalidCredentialCache.remove( bindDn.getNormName() );
         }
     }
 }
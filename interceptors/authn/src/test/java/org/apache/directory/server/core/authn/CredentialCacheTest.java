@@ -0,0 +1,137 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Test the CredentialCache class
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCacheTest
+{
+    @Test
+    public void testPutGetRemove()
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 10, 0L );
+
+        cache.put( "uid=a", "A" );
+        cache.put( "uid=b", "B" );
+
+        assertEquals( "A", cache.get( "uid=a" ) );
+        assertEquals( "B", cache.get( "uid=b" ) );
+        assertNull( cache.get( "uid=c" ) );
+
+        cache.put( "uid=a", "A2" );
+        assertEquals( "A2", cache.get( "uid=a" ) );
+
+        cache.remove( "uid=a" );
+        assertNull( cache.get( "uid=a" ) );
+        assertEquals( 1, cache.size() );
+
+        cache.clear();
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testExpiration() throws Exception
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 10, 50L );
+
+        cache.put( "uid=a", "A" );
+        assertEquals( "A", cache.get( "uid=a" ) );
+
+        Thread.sleep( 100L );
+
+        assertNull( cache.get( "uid=a" ) );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 10, 0L );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            cache.put( "uid=" + i, "value" + i );
+            Thread.sleep( 2L );
+        }
+
+        // Make sure the first element is more recently used than the others
+        Thread.sleep( 5L );
+        assertEquals( "value0", cache.get( "uid=0" ) );
+
+        cache.put( "uid=10", "value10" );
+
+        assertTrue( cache.size() <= 10 );
+        assertEquals( "value0", cache.get( "uid=0" ) );
+        assertEquals( "value10", cache.get( "uid=10" ) );
+        assertNull( cache.get( "uid=1" ) );
+    }
+
+
+    @Test
+    public void testConcurrentAccess() throws Exception
+    {
+        final CredentialCache<String> cache = new CredentialCache<String>( 100, 0L );
+        Thread[] threads = new Thread[8];
+
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            final int threadNumber = t;
+
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < 10000; i++ )
+                    {
+                        String key = "uid=" + ( ( i * 31 + threadNumber ) % 500 );
+                        cache.put( key, key );
+                        cache.get( "uid=" + ( i % 500 ) );
+                    }
+                }
+            };
+
+            threads[t].start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        Thread.sleep( 2L );
+        cache.put( "uid=last", "last" );
+
+        assertTrue( cache.size() <= 100 );
+        assertEquals( "last", cache.get( "uid=last" ) );
+    }
+}
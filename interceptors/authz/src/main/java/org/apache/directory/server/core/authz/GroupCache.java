@@ -23,6 +23,8 @@ package org.apache.directory.server.core.authz;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.naming.directory.SearchControls;
 
@@ -58,7 +60,9 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * A cache for tracking static group membership.
+ * A cache for tracking static group membership. The members of each group are stored
+ * in an ehcache, and a reverse index gives the groups of each member without having
+ * to scan all the groups.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -92,6 +96,11 @@ public class GroupCache
     /** String key for the Dn of a group to a Set (HashSet) for the Strings of member DNs */
     private Cache ehCache;
 
+    /** The reverse index, giving the groups of a member */
+    private final GroupMembershipIndex membershipIndex = new GroupMembershipIndex();
+
+    /** The lock protecting the member sets and the reverse index */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
 
     /**
@@ -162,11 +171,16 @@ public class GroupCache
 
                     if ( members != null )
                     {
-                        Set<String> memberSet = new HashSet<String>( members.size() );
-                        addMembers( memberSet, members );
-
-                        Element cacheElement = new Element( groupDn.getNormName(), memberSet );
-                        ehCache.put( cacheElement );
+                        lock.writeLock().lock();
+
+                        try
+                        {
+                            putGroup( groupDn, members );
+                        }
+                        finally
+                        {
+                            lock.writeLock().unlock();
+                        }
                     }
                     else
                     {
@@ -221,11 +235,12 @@ public class GroupCache
     /**
      * Adds normalized member DNs to the set of normalized member names.
      *
+     * @param groupId the ID of the group in the reverse index
      * @param memberSet the set of member Dns (Strings)
      * @param members the member attribute values being added
      * @throws LdapException if there are problems accessing the attr values
      */
-    private void addMembers( Set<String> memberSet, Attribute members ) throws LdapException
+    private void addMembers( int groupId, Set<String> memberSet, Attribute members ) throws LdapException
     {
         for ( Value<?> value : members )
         {
@@ -242,7 +257,10 @@ public class GroupCache
                 LOG.warn( "Malformed member Dn in groupOf[Unique]Names entry.  Member not added to GroupCache.", e );
             }
 
-            memberSet.add( memberDn );
+            if ( memberSet.add( memberDn ) )
+            {
+                membershipIndex.addMember( groupId, memberDn );
+            }
         }
     }
 
@@ -250,11 +268,12 @@ public class GroupCache
     /**
      * Removes a set of member names from an existing set.
      *
+     * @param groupId the ID of the group in the reverse index
      * @param memberSet the set of normalized member DNs
      * @param members the set of member values
      * @throws LdapException if there are problems accessing the attr values
      */
-    private void removeMembers( Set<String> memberSet, Attribute members ) throws LdapException
+    private void removeMembers( int groupId, Set<String> memberSet, Attribute members ) throws LdapException
     {
         for ( Value<?> value : members )
         {
@@ -270,8 +289,83 @@ public class GroupCache
                 LOG.warn( "Malformed member Dn in groupOf[Unique]Names entry.  Member not removed from GroupCache.", e );
             }
 
-            memberSet.remove( memberDn );
+            if ( memberSet.remove( memberDn ) )
+            {
+                membershipIndex.removeMember( groupId, memberDn );
+            }
+        }
+    }
+
+
+    /**
+     * Removes all the members of a group from the reverse index.
+     *
+     * @param groupId the ID of the group in the reverse index
+     * @param memberSet the set of normalized member DNs
+     */
+    private void unindexMembers( int groupId, Set<String> memberSet )
+    {
+        for ( String memberDn : memberSet )
+        {
+            membershipIndex.removeMember( groupId, memberDn );
+        }
+    }
+
+
+    /**
+     * Gets the set of members of a group.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @return the set of normalized member DNs, or null if the group is unknown
+     */
+    private Set<String> getMemberSet( Dn groupDn )
+    {
+        Element cacheElement = ehCache.get( groupDn.getNormName() );
+
+        if ( cacheElement == null )
+        {
+            return null;
         }
+
+        return ( Set<String> ) cacheElement.getValue();
+    }
+
+
+    /**
+     * Stores the set of members of a group. The element has to be put back after any
+     * change, as the cache may hold a copy of it if it has been overflowed to disk.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @param memberSet the set of normalized member DNs
+     */
+    private void putMemberSet( Dn groupDn, Set<String> memberSet )
+    {
+        Element cacheElement = new Element( groupDn.getNormName(), memberSet );
+        ehCache.put( cacheElement );
+    }
+
+
+    /**
+     * Stores a group and its members, replacing the group if it was already known.
+     * The caller must hold the write lock.
+     *
+     * @param groupDn the normalized Dn of the group
+     * @param members the member attribute of the group
+     * @throws LdapException if there are problems accessing the attr values
+     */
+    private void putGroup( Dn groupDn, Attribute members ) throws LdapException
+    {
+        int groupId = membershipIndex.getGroupId( groupDn );
+        Set<String> oldMemberSet = getMemberSet( groupDn );
+
+        if ( oldMemberSet != null )
+        {
+            unindexMembers( groupId, oldMemberSet );
+        }
+
+        Set<String> memberSet = new HashSet<String>( members.size() );
+        addMembers( groupId, memberSet, members );
+        putMemberSet( groupDn, memberSet );
     }
 
 
@@ -292,11 +386,16 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = new HashSet<String>( members.size() );
-        addMembers( memberSet, members );
+        lock.writeLock().lock();
 
-        Element cacheElement = new Element( name.getNormName(), memberSet );
-        ehCache.put( cacheElement );
+        try
+        {
+            putGroup( name, members );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 
         if ( IS_DEBUG )
         {
@@ -322,7 +421,24 @@ public class GroupCache
             return;
         }
 
-        ehCache.remove( name.getNormName() );
+        lock.writeLock().lock();
+
+        try
+        {
+            Set<String> memberSet = getMemberSet( name );
+
+            if ( memberSet != null )
+            {
+                unindexMembers( membershipIndex.getGroupId( name ), memberSet );
+            }
+
+            membershipIndex.removeGroup( name );
+            ehCache.remove( name.getNormName() );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 
         if ( IS_DEBUG )
         {
@@ -336,36 +452,56 @@ public class GroupCache
      * Utility method to modify a set of member names based on a modify operation
      * that changes the members of a group.
      *
-     * @param memberSet the set of members to be altered
+     * @param groupDn the normalized Dn of the group
      * @param modOp the type of modify operation being performed
      * @param members the members being added, removed or replaced
      * @throws LdapException if there are problems accessing attribute values
      */
-    private void modify( Set<String> memberSet, ModificationOperation modOp, Attribute members )
+    private void modify( Dn groupDn, ModificationOperation modOp, Attribute members )
         throws LdapException
     {
+        lock.writeLock().lock();
 
-        switch ( modOp )
+        try
         {
-            case ADD_ATTRIBUTE:
-                addMembers( memberSet, members );
-                break;
+            Set<String> memberSet = getMemberSet( groupDn );
 
-            case REPLACE_ATTRIBUTE:
-                if ( members.size() > 0 )
-                {
-                    memberSet.clear();
-                    addMembers( memberSet, members );
-                }
+            if ( memberSet == null )
+            {
+                return;
+            }
 
-                break;
+            int groupId = membershipIndex.getGroupId( groupDn );
 
-            case REMOVE_ATTRIBUTE:
-                removeMembers( memberSet, members );
-                break;
+            switch ( modOp )
+            {
+                case ADD_ATTRIBUTE:
+                    addMembers( groupId, memberSet, members );
+                    break;
 
-            default:
-                throw new InternalError( I18n.err( I18n.ERR_235, modOp ) );
+                case REPLACE_ATTRIBUTE:
+                    if ( members.size() > 0 )
+                    {
+                        unindexMembers( groupId, memberSet );
+                        memberSet.clear();
+                        addMembers( groupId, memberSet, members );
+                    }
+
+                    break;
+
+                case REMOVE_ATTRIBUTE:
+                    removeMembers( groupId, memberSet, members );
+                    break;
+
+                default:
+                    throw new InternalError( I18n.err( I18n.ERR_235, modOp ) );
+            }
+
+            putMemberSet( groupDn, memberSet );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
         }
     }
 
@@ -407,13 +543,7 @@ public class GroupCache
         {
             if ( memberAttr.getOid() == modification.getAttribute().getId() )
             {
-                Element memSetElement = ehCache.get( name.getNormName() );
-
-                if ( memSetElement != null )
-                {
-                    Set<String> memberSet = ( Set<String> ) memSetElement.getValue();
-                    modify( memberSet, modification.getOperation(), modification.getAttribute() );
-                }
+                modify( name, modification.getOperation(), modification.getAttribute() );
 
                 break;
             }
@@ -445,13 +575,7 @@ public class GroupCache
             return;
         }
 
-        Element memSetElement = ehCache.get( name.getNormName() );
-
-        if ( memSetElement != null )
-        {
-            Set<String> memberSet = ( Set<String> ) memSetElement.getValue();
-            modify( memberSet, modOp, members );
-        }
+        modify( name, modOp, members );
 
         if ( IS_DEBUG )
         {
@@ -475,17 +599,25 @@ public class GroupCache
             return true;
         }
 
-        Element cacheElement = ehCache.get( administratorsGroupDn.getNormName() );
+        lock.readLock().lock();
 
-        if ( cacheElement == null )
+        try
         {
-            LOG.warn( "What do you mean there is no administrators group? This is bad news." );
-            return false;
+            Set<String> members = getMemberSet( administratorsGroupDn );
+
+            if ( members == null )
+            {
+                LOG.warn( "What do you mean there is no administrators group? This is bad news." );
+                return false;
+            }
+            else
+            {
+                return members.contains( principalDn.getNormName() );
+            }
         }
-        else
+        finally
         {
-            Set<String> members = ( Set<String> ) cacheElement.getValue();
-            return members.contains( principalDn.getNormName() );
+            lock.readLock().unlock();
         }
     }
 
@@ -517,32 +649,15 @@ public class GroupCache
 
         Set<Dn> memberGroups = null;
 
-        for ( Object obj : ehCache.getKeys() )
-        {
-            String group = ( String ) obj;
-            Element element = ehCache.get( group );
+        lock.readLock().lock();
 
-            if ( element == null )
-            {
-                continue;
-            }
-
-            Set<String> members = ( Set<String> ) element.getValue();
-
-            if ( members == null )
-            {
-                continue;
-            }
-
-            if ( members.contains( normMember.getNormName() ) )
-            {
-                if ( memberGroups == null )
-                {
-                    memberGroups = new HashSet<Dn>();
-                }
-
-                memberGroups.add( parseNormalized( group ) );
-            }
+        try
+        {
+            memberGroups = membershipIndex.getGroups( normMember.getNormName() );
+        }
+        finally
+        {
+            lock.readLock().unlock();
         }
 
         if ( memberGroups == null )
@@ -554,28 +669,41 @@ public class GroupCache
     }
 
 
+    /**
+     * Renames a group in the cache. Its members are unchanged.
+     *
+     * @param oldName the former normalized name of the group
+     * @param newName the new normalized name of the group
+     * @return true if the group was known
+     */
     public boolean groupRenamed( Dn oldName, Dn newName )
     {
-        Element membersElement = ehCache.get( oldName.getNormName() );
+        lock.writeLock().lock();
 
-        if ( membersElement != null )
+        try
         {
-            Set<String> members = ( Set<String> ) membersElement.getValue();
-
-            ehCache.remove( oldName.getNormName() );
-
-            Element cacheElement = new Element( newName.getNormName(), members );
-            ehCache.put( cacheElement );
+            Set<String> members = getMemberSet( oldName );
 
-            if ( IS_DEBUG )
+            if ( members == null )
             {
-                LOG.debug( "group cache contents after renaming '{}' :\n{}", oldName.getName(),
-                    ehCache.getAllWithLoader( ehCache.getKeys(), null ) );
+                return false;
             }
 
-            return true;
+            ehCache.remove( oldName.getNormName() );
+            putMemberSet( newName, members );
+            membershipIndex.renameGroup( oldName, newName );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "group cache contents after renaming '{}' :\n{}", oldName.getName(),
+                ehCache.getAllWithLoader( ehCache.getKeys(), null ) );
         }
 
-        return false;
+        return true;
     }
 }
@@ -0,0 +1,243 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+
+
+/**
+ * The reverse index of the static groups membership : for each member, it stores the
+ * groups it belongs to. Each group gets an integer ID, and the groups of a member are
+ * stored as a sorted array of IDs, which keeps the index small even with large groups.
+ * <br/>
+ * This class is not thread safe : the GroupCache protects it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class GroupMembershipIndex
+{
+    /** An empty array of group IDs */
+    private static final int[] NO_GROUP = new int[0];
+
+    /** The ID of each group, per normalized Dn */
+    private final Map<String, Integer> groupIds = new HashMap<String, Integer>();
+
+    /** The Dn of each group, per ID */
+    private final List<Dn> groupDns = new ArrayList<Dn>();
+
+    /** The IDs of the deleted groups, which can be reused */
+    private final List<Integer> freeIds = new ArrayList<Integer>();
+
+    /** The sorted IDs of the groups of each member, per normalized member Dn */
+    private final Map<String, int[]> memberGroups = new HashMap<String, int[]>();
+
+
+    /**
+     * Gets the ID of a group, allocating one if the group is not known yet.
+     *
+     * @param groupDn The normalized group Dn
+     * @return The group ID
+     */
+    int getGroupId( Dn groupDn )
+    {
+        Integer id = groupIds.get( groupDn.getNormName() );
+
+        if ( id != null )
+        {
+            return id;
+        }
+
+        if ( freeIds.isEmpty() )
+        {
+            id = groupDns.size();
+            groupDns.add( groupDn );
+        }
+        else
+        {
+            id = freeIds.remove( freeIds.size() - 1 );
+            groupDns.set( id, groupDn );
+        }
+
+        groupIds.put( groupDn.getNormName(), id );
+
+        return id;
+    }
+
+
+    /**
+     * Releases the ID of a group which has no member left.
+     *
+     * @param groupDn The normalized group Dn
+     */
+    void removeGroup( Dn groupDn )
+    {
+        Integer id = groupIds.remove( groupDn.getNormName() );
+
+        if ( id != null )
+        {
+            groupDns.set( id, null );
+            freeIds.add( id );
+        }
+    }
+
+
+    /**
+     * Updates the Dn of a renamed group. Its members are unchanged.
+     *
+     * @param oldDn The former normalized group Dn
+     * @param newDn The new normalized group Dn
+     */
+    void renameGroup( Dn oldDn, Dn newDn )
+    {
+        Integer id = groupIds.remove( oldDn.getNormName() );
+
+        if ( id != null )
+        {
+            groupIds.put( newDn.getNormName(), id );
+            groupDns.set( id, newDn );
+        }
+    }
+
+
+    /**
+     * Records that a member belongs to a group.
+     *
+     * @param groupId The group ID
+     * @param member The normalized member Dn
+     */
+    void addMember( int groupId, String member )
+    {
+        int[] groups = memberGroups.get( member );
+
+        if ( groups == null )
+        {
+            groups = NO_GROUP;
+        }
+
+        int pos = Arrays.binarySearch( groups, groupId );
+
+        if ( pos >= 0 )
+        {
+            // Already there
+            return;
+        }
+
+        int insert = -( pos + 1 );
+        int[] newGroups = new int[groups.length + 1];
+        System.arraycopy( groups, 0, newGroups, 0, insert );
+        newGroups[insert] = groupId;
+        System.arraycopy( groups, insert, newGroups, insert + 1, groups.length - insert );
+
+        memberGroups.put( member, newGroups );
+    }
+
+
+    /**
+     * Records that a member does not belong to a group anymore.
+     *
+     * @param groupId The group ID
+     * @param member The normalized member Dn
+     */
+    void removeMember( int groupId, String member )
+    {
+        int[] groups = memberGroups.get( member );
+
+        if ( groups == null )
+        {
+            return;
+        }
+
+        int pos = Arrays.binarySearch( groups, groupId );
+
+        if ( pos < 0 )
+        {
+            return;
+        }
+
+        if ( groups.length == 1 )
+        {
+            memberGroups.remove( member );
+
+            return;
+        }
+
+        int[] newGroups = new int[groups.length - 1];
+        System.arraycopy( groups, 0, newGroups, 0, pos );
+        System.arraycopy( groups, pos + 1, newGroups, pos, groups.length - pos - 1 );
+
+        memberGroups.put( member, newGroups );
+    }
+
+
+    /**
+     * Gets the groups a member belongs to.
+     *
+     * @param member The normalized member Dn
+     * @return The normalized Dns of the member's groups, or null if there is none
+     */
+    Set<Dn> getGroups( String member )
+    {
+        int[] groups = memberGroups.get( member );
+
+        if ( groups == null )
+        {
+            return null;
+        }
+
+        Set<Dn> result = new HashSet<Dn>( groups.length * 2 );
+
+        for ( int groupId : groups )
+        {
+            result.add( groupDns.get( groupId ) );
+        }
+
+        return result;
+    }
+
+
+    /**
+     * @return The number of indexed members
+     */
+    int getMemberCount()
+    {
+        return memberGroups.size();
+    }
+
+
+    /**
+     * Removes all the groups and members
+     */
+    void clear()
+    {
+        groupIds.clear();
+        groupDns.clear();
+        freeIds.clear();
+        memberGroups.clear();
+    }
+}
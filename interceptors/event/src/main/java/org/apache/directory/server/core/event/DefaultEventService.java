@@ -20,48 +20,95 @@
 package org.apache.directory.server.core.event;
 
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
 import org.apache.directory.api.ldap.model.schema.normalizers.NameComponentNormalizer;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.event.DirectoryListener;
 import org.apache.directory.server.core.api.event.EventService;
+import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.core.api.event.RegistrationEntry;
 import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
  * A class implementing the EventService interface. It stores all the Listener 
  * associated with a DirectoryService.
+ * <br/>
+ * The queue of each asynchronous listener is published on the platform MBean server, as
+ * <pre>
+ * org.apache.directory.server:type=EventDeliveryQueue,instance=&lt;instance&gt;,name=&lt;listener&gt;-&lt;n&gt;
+ * </pre>
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 class DefaultEventService implements EventService
 {
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( DefaultEventService.class );
+
+    /** The domain of the ObjectNames */
+    private static final String DOMAIN = "org.apache.directory.server";
+
     /** The list of RegistrationEntries being registered */
     private List<RegistrationEntry> registrations = new CopyOnWriteArrayList<RegistrationEntry>();
 
+    /** The index used to select the registrations interested in a change */
+    private RegistrationIndex registrationIndex = new RegistrationIndex();
+
+    /** The queues of notifications waiting to be delivered to the asynchronous listeners */
+    private ConcurrentMap<DirectoryListener, EventDeliveryQueue> deliveryQueues =
+        new ConcurrentHashMap<DirectoryListener, EventDeliveryQueue>();
+
+    /** The shared pool of threads delivering the asynchronous notifications */
+    private Executor executor;
+
     /** The DirectoryService instance */
     private DirectoryService directoryService;
 
     /** A normalizer used for filters */
     private FilterNormalizingVisitor filterNormalizer;
 
+    /** The MBean server the delivery queues are published on */
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    /** The names of the delivery queues MBeans, per listener */
+    private final ConcurrentMap<DirectoryListener, ObjectName> mbeanNames =
+        new ConcurrentHashMap<DirectoryListener, ObjectName>();
+
+    /** The counter used to give a unique name to each delivery queue MBean */
+    private final AtomicLong mbeanCounter = new AtomicLong();
+
 
     /**
      * Create an instance of EventService
      * @param directoryService The associated DirectoryService
-     * @param registrations The list of Registrations
+     * @param executor The pool of threads delivering the asynchronous notifications
      */
-    public DefaultEventService( DirectoryService directoryService )
+    public DefaultEventService( DirectoryService directoryService, Executor executor )
     {
         this.directoryService = directoryService;
+        this.executor = executor;
         SchemaManager schemaManager = directoryService.getSchemaManager();
         NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( schemaManager );
         filterNormalizer = new FilterNormalizingVisitor( ncn, schemaManager );
@@ -76,7 +123,21 @@ class DefaultEventService implements EventService
         criteria.getBase().apply( directoryService.getSchemaManager() );
         ExprNode result = ( ExprNode ) criteria.getFilter().accept( filterNormalizer );
         criteria.setFilter( result );
-        registrations.add( new RegistrationEntry( listener, criteria ) );
+        RegistrationEntry registration = new RegistrationEntry( listener, criteria );
+
+        if ( !listener.isSynchronous() && !deliveryQueues.containsKey( listener ) )
+        {
+            EventDeliveryQueue deliveryQueue = new EventDeliveryQueue( listener, this, executor,
+                criteria.getQueueCapacity(), criteria.getOverflowPolicy() );
+
+            if ( deliveryQueues.putIfAbsent( listener, deliveryQueue ) == null )
+            {
+                registerMBean( deliveryQueue );
+            }
+        }
+
+        registrations.add( registration );
+        registrationIndex.add( registration );
     }
 
 
@@ -90,8 +151,75 @@ class DefaultEventService implements EventService
             if ( entry.getListener() == listener )
             {
                 registrations.remove( entry );
+                registrationIndex.remove( entry );
             }
         }
+
+        EventDeliveryQueue deliveryQueue = deliveryQueues.remove( listener );
+
+        if ( deliveryQueue != null )
+        {
+            deliveryQueue.close();
+            unregisterMBean( listener );
+        }
+    }
+
+
+    /**
+     * Publishes a delivery queue on the MBean server
+     */
+    private void registerMBean( EventDeliveryQueue deliveryQueue )
+    {
+        DirectoryListener listener = deliveryQueue.getListener();
+
+        try
+        {
+            String name = listener.getClass().getSimpleName() + "-" + mbeanCounter.incrementAndGet();
+            ObjectName objectName = new ObjectName( DOMAIN + ":type=EventDeliveryQueue,instance="
+                + ObjectName.quote( directoryService.getInstanceId() ) + ",name=" + ObjectName.quote( name ) );
+
+            mbeanServer.registerMBean( deliveryQueue, objectName );
+            mbeanNames.put( listener, objectName );
+        }
+        catch ( JMException jme )
+        {
+            LOG.warn( "Cannot register the delivery queue MBean of {} : {}", listener, jme.getMessage() );
+        }
+    }
+
+
+    /**
+     * Removes the delivery queue of a listener from the MBean server
+     */
+    private void unregisterMBean( DirectoryListener listener )
+    {
+        ObjectName objectName = mbeanNames.remove( listener );
+
+        if ( objectName == null )
+        {
+            return;
+        }
+
+        try
+        {
+            mbeanServer.unregisterMBean( objectName );
+        }
+        catch ( JMException jme )
+        {
+            LOG.debug( "Cannot unregister the delivery queue MBean {} : {}", objectName, jme.getMessage() );
+        }
+    }
+
+
+    /**
+     * Removes all the delivery queues from the MBean server
+     */
+    void unregisterMBeans()
+    {
+        for ( DirectoryListener listener : mbeanNames.keySet() )
+        {
+            unregisterMBean( listener );
+        }
     }
 
 
@@ -102,4 +230,41 @@ class DefaultEventService implements EventService
     {
         return Collections.unmodifiableList( registrations );
     }
+
+
+    /**
+     * Gets the registrations which base and scope include the given DN, and which are
+     * interested in the given event type. Their filter still has to be evaluated
+     * against the entry.
+     *
+     * @param name The DN of the changed entry
+     * @param entry The changed entry
+     * @param eventType The type of change
+     * @return The candidate registrations
+     */
+    List<RegistrationEntry> getCandidateRegistrations( Dn name, Entry entry, EventType eventType )
+    {
+        return registrationIndex.getCandidates( name, entry, eventType );
+    }
+
+
+    /**
+     * Gets the queue of notifications waiting to be delivered to an asynchronous listener
+     *
+     * @param listener The listener
+     * @return The listener's queue, or null if it's not registered anymore
+     */
+    EventDeliveryQueue getDeliveryQueue( DirectoryListener listener )
+    {
+        return deliveryQueues.get( listener );
+    }
+
+
+    /**
+     * @return The queues of the registered asynchronous listeners
+     */
+    List<EventDeliveryQueue> getDeliveryQueues()
+    {
+        return new ArrayList<EventDeliveryQueue>( deliveryQueues.values() );
+    }
 }
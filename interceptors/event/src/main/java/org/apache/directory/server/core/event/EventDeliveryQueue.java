@@ -0,0 +1,435 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.DisconnectableListener;
+import org.apache.directory.server.core.api.event.EventOverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The bounded queue of notifications waiting to be delivered to an asynchronous listener.
+ * The notifications are delivered in order, by at most one thread of the shared pool at a
+ * time, so that a slow listener only delays its own notifications. When the queue is full,
+ * the listener's {@link EventOverflowPolicy} is applied : the writers never wait for a
+ * slow listener.
+ * <br/>
+ * The counters exposed by this class, also published as a MXBean by the
+ * {@link DefaultEventService}, can be used to monitor the listeners which don't keep up
+ * with the changes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EventDeliveryQueue implements Runnable, EventDeliveryQueueMXBean
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( EventDeliveryQueue.class );
+
+    /** The maximum number of notifications delivered before giving the thread back to the pool */
+    private static final int MAX_DELIVERIES_PER_RUN = 64;
+
+    /** The listener */
+    private final DirectoryListener listener;
+
+    /** The event service the listener is registered in */
+    private final DefaultEventService eventService;
+
+    /** The shared pool of threads used to deliver the notifications */
+    private final Executor executor;
+
+    /** The maximum number of pending notifications */
+    private final int capacity;
+
+    /** The policy applied when the queue is full */
+    private final EventOverflowPolicy overflowPolicy;
+
+    /** The pending notifications */
+    private final Deque<Notification> notifications = new ArrayDeque<Notification>();
+
+    /** Tells if a delivery task has been submitted to the pool */
+    private boolean scheduled;
+
+    /** Tells if the queue has been closed */
+    private boolean closed;
+
+    /** The number of queued notifications */
+    private long queuedCount;
+
+    /** The number of delivered notifications */
+    private long deliveredCount;
+
+    /** The number of dropped notifications */
+    private long droppedCount;
+
+    /** The highest number of pending notifications */
+    private int maxDepth;
+
+    /** The time spent in the queue by the last delivered notification, in ms */
+    private long lastLag;
+
+
+    /**
+     * A notification waiting to be delivered
+     */
+    private static final class Notification
+    {
+        /** The call to the listener */
+        private final Runnable delivery;
+
+        /** The time the notification has been queued, in ns */
+        private final long queuedTime = System.nanoTime();
+
+
+        private Notification( Runnable delivery )
+        {
+            this.delivery = delivery;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of EventDeliveryQueue
+     *
+     * @param listener The listener the notifications are delivered to
+     * @param eventService The event service the listener is registered in
+     * @param executor The shared pool of delivery threads
+     * @param capacity The maximum number of pending notifications
+     * @param overflowPolicy The policy applied when the queue is full
+     */
+    EventDeliveryQueue( DirectoryListener listener, DefaultEventService eventService, Executor executor,
+        int capacity, EventOverflowPolicy overflowPolicy )
+    {
+        this.listener = listener;
+        this.eventService = eventService;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+
+    /**
+     * Queues a notification. If the queue is full, depending on the overflow policy, either
+     * the notification is dropped, or the listener gets disconnected. The caller never waits.
+     *
+     * @param delivery The call to the listener
+     */
+    void offer( Runnable delivery )
+    {
+        boolean schedule = false;
+        boolean disconnect = false;
+
+        synchronized ( this )
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            if ( notifications.size() >= capacity )
+            {
+                if ( overflowPolicy == EventOverflowPolicy.DROP )
+                {
+                    droppedCount++;
+
+                    return;
+                }
+
+                // The listener can't keep up, get rid of it
+                droppedCount += notifications.size() + 1;
+                notifications.clear();
+                closed = true;
+                disconnect = true;
+
+                if ( listener instanceof DisconnectableListener )
+                {
+                    // Tell the listener through its own queue, so that it's done after the
+                    // notification which may be being delivered right now
+                    final long dropped = droppedCount;
+
+                    notifications.add( new Notification( new Runnable()
+                    {
+                        public void run()
+                        {
+                            ( ( DisconnectableListener ) listener ).disconnected( dropped );
+                        }
+                    } ) );
+                }
+            }
+            else
+            {
+                notifications.add( new Notification( delivery ) );
+                queuedCount++;
+
+                if ( notifications.size() > maxDepth )
+                {
+                    maxDepth = notifications.size();
+                }
+            }
+
+            if ( !scheduled && !notifications.isEmpty() )
+            {
+                scheduled = true;
+                schedule = true;
+            }
+        }
+
+        if ( disconnect )
+        {
+            LOG.warn( "The listener {} could not keep up with {} pending notifications, disconnecting it", listener,
+                capacity );
+
+            eventService.removeListener( listener );
+        }
+
+        if ( schedule )
+        {
+            schedule();
+        }
+    }
+
+
+    /**
+     * Delivers the pending notifications, in order. The thread is given back to the pool
+     * after a few notifications, so that the other listeners get their turn.
+     */
+    public void run()
+    {
+        for ( int i = 0; i < MAX_DELIVERIES_PER_RUN; i++ )
+        {
+            Notification notification = null;
+
+            synchronized ( this )
+            {
+                notification = notifications.poll();
+
+                if ( notification == null )
+                {
+                    scheduled = false;
+
+                    return;
+                }
+
+                lastLag = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - notification.queuedTime );
+            }
+
+            try
+            {
+                notification.delivery.run();
+            }
+            catch ( RuntimeException re )
+            {
+                LOG.warn( "The listener {} failed to handle a notification", listener, re );
+            }
+
+            synchronized ( this )
+            {
+                deliveredCount++;
+            }
+        }
+
+        // More notifications are pending : resubmit ourselves at the end of the pool's queue
+        schedule();
+    }
+
+
+    /**
+     * Submits the delivery task to the pool
+     */
+    private void schedule()
+    {
+        try
+        {
+            executor.execute( this );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            // The pool has been shut down
+            LOG.debug( "Cannot deliver the notifications to {}, the pool is stopped", listener );
+            close();
+
+            synchronized ( this )
+            {
+                scheduled = false;
+            }
+        }
+    }
+
+
+    /**
+     * Drops the pending notifications, and stops accepting new ones. Does nothing if the
+     * queue is already closed, so that a pending disconnection notice is still delivered.
+     */
+    synchronized void close()
+    {
+        if ( closed )
+        {
+            return;
+        }
+
+        droppedCount += notifications.size();
+        notifications.clear();
+        closed = true;
+    }
+
+
+    /**
+     * @return the listener the notifications are delivered to
+     */
+    public DirectoryListener getListener()
+    {
+        return listener;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getListenerClass()
+    {
+        return listener.getClass().getName();
+    }
+
+
+    /**
+     * @return the maximum number of pending notifications
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+
+    /**
+     * @return the policy applied when the queue is full
+     */
+    public EventOverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getOverflowPolicyName()
+    {
+        return overflowPolicy.name();
+    }
+
+
+    /**
+     * @return the number of pending notifications
+     */
+    public synchronized int getDepth()
+    {
+        return notifications.size();
+    }
+
+
+    /**
+     * @return the highest number of pending notifications seen so far
+     */
+    public synchronized int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+
+    /**
+     * @return the number of queued notifications
+     */
+    public synchronized long getQueuedCount()
+    {
+        return queuedCount;
+    }
+
+
+    /**
+     * @return the number of delivered notifications
+     */
+    public synchronized long getDeliveredCount()
+    {
+        return deliveredCount;
+    }
+
+
+    /**
+     * @return the number of dropped notifications
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+
+    /**
+     * @return the time the oldest pending notification has been waiting, in ms. 0 if
+     * there is no pending notification
+     */
+    public synchronized long getLag()
+    {
+        Notification oldest = notifications.peek();
+
+        if ( oldest == null )
+        {
+            return 0L;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - oldest.queuedTime );
+    }
+
+
+    /**
+     * @return the time the last delivered notification has been waiting, in ms
+     */
+    public synchronized long getLastLag()
+    {
+        return lastLag;
+    }
+
+
+    /**
+     * @return true if the queue does not accept notifications anymore
+     */
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        return "EventDeliveryQueue [listener=" + listener + ", depth=" + getDepth() + ", queued="
+            + getQueuedCount() + ", delivered=" + getDeliveredCount() + ", dropped=" + getDroppedCount()
+            + ", lag=" + getLag() + "ms]";
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.event;
+
+
+/**
+ * The JMX view of an {@link EventDeliveryQueue}, used to spot the asynchronous listeners
+ * which don't keep up with the changes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface EventDeliveryQueueMXBean
+{
+    /**
+     * @return the class of the listener the notifications are delivered to
+     */
+    String getListenerClass();
+
+
+    /**
+     * @return the maximum number of pending notifications
+     */
+    int getCapacity();
+
+
+    /**
+     * @return the name of the policy applied when the queue is full
+     */
+    String getOverflowPolicyName();
+
+
+    /**
+     * @return the number of pending notifications
+     */
+    int getDepth();
+
+
+    /**
+     * @return the highest number of pending notifications seen so far
+     */
+    int getMaxDepth();
+
+
+    /**
+     * @return the number of queued notifications
+     */
+    long getQueuedCount();
+
+
+    /**
+     * @return the number of delivered notifications
+     */
+    long getDeliveredCount();
+
+
+    /**
+     * @return the number of dropped notifications
+     */
+    long getDroppedCount();
+
+
+    /**
+     * @return the time the oldest pending notification has been waiting, in ms
+     */
+    long getLag();
+
+
+    /**
+     * @return the time the last delivered notification has been waiting, in ms
+     */
+    long getLastLag();
+
+
+    /**
+     * @return true if the queue does not accept notifications anymore
+     */
+    boolean isClosed();
+}
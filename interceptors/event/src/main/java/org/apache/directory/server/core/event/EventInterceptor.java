@@ -27,8 +27,8 @@ import static org.apache.directory.api.ldap.model.message.SearchScope.SUBTREE;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -43,6 +43,7 @@ import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.event.DirectoryListener;
 import org.apache.directory.server.core.api.event.Evaluator;
+import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.ExpressionEvaluator;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
@@ -70,9 +71,17 @@ public class EventInterceptor extends BaseInterceptor
     /** A logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( EventInterceptor.class );
 
+    /** The default number of threads delivering the asynchronous notifications */
+    public static final int DEFAULT_DELIVERY_THREADS = 10;
+
     private Evaluator evaluator;
+
+    /** The shared pool of threads delivering the asynchronous notifications */
     private ExecutorService executor;
 
+    /** The number of threads delivering the asynchronous notifications */
+    private int deliveryThreads = DEFAULT_DELIVERY_THREADS;
+
 
     /**
      * Creates a new instance of a EventInterceptor.
@@ -93,131 +102,176 @@ public class EventInterceptor extends BaseInterceptor
         super.init( directoryService );
 
         evaluator = new ExpressionEvaluator( schemaManager );
-        executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ) );
 
-        this.directoryService.setEventService( new DefaultEventService( directoryService ) );
+        // Each listener has its own bounded queue, and at most one pending task in the pool
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor( deliveryThreads, deliveryThreads, 60,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() );
+        threadPool.allowCoreThreadTimeOut( true );
+        executor = threadPool;
+
+        this.directoryService.setEventService( new DefaultEventService( directoryService, executor ) );
         LOG.info( "Initialization complete." );
     }
 
 
     /**
-     * Call the listener passing it the context.
+     * Stops the threads delivering the asynchronous notifications
+     */
+    public void destroy()
+    {
+        if ( executor != null )
+        {
+            executor.shutdown();
+        }
+
+        if ( ( directoryService != null ) && ( directoryService.getEventService() instanceof DefaultEventService ) )
+        {
+            ( ( DefaultEventService ) directoryService.getEventService() ).unregisterMBeans();
+        }
+    }
+
+
+    /**
+     * Call the listener passing it the context. The asynchronous listeners get their
+     * notifications through their own queue, delivered by the shared pool of threads.
      */
     private void fire( final OperationContext opContext, EventType type, final DirectoryListener listener )
     {
+        Runnable delivery = null;
+
         switch ( type )
         {
             case ADD:
-                if ( listener.isSynchronous() )
+                delivery = new Runnable()
                 {
-                    listener.entryAdded( ( AddOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
+                    public void run()
                     {
-                        public void run()
-                        {
-                            listener.entryAdded( ( AddOperationContext ) opContext );
-                        }
-                    } );
-                }
+                        listener.entryAdded( ( AddOperationContext ) opContext );
+                    }
+                };
 
                 break;
 
             case DELETE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                }
-                else
+                delivery = new Runnable()
                 {
-                    executor.execute( new Runnable()
+                    public void run()
                     {
-                        public void run()
-                        {
-                            listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                        }
-                    } );
-                }
+                        listener.entryDeleted( ( DeleteOperationContext ) opContext );
+                    }
+                };
 
                 break;
 
             case MODIFY:
-                if ( listener.isSynchronous() )
+                delivery = new Runnable()
                 {
-                    listener.entryModified( ( ModifyOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
+                    public void run()
                     {
-                        public void run()
-                        {
-                            listener.entryModified( ( ModifyOperationContext ) opContext );
-                        }
-                    } );
-                }
+                        listener.entryModified( ( ModifyOperationContext ) opContext );
+                    }
+                };
 
                 break;
 
             case MOVE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMoved( ( MoveOperationContext ) opContext );
-                }
-                else
+                delivery = new Runnable()
                 {
-                    executor.execute( new Runnable()
+                    public void run()
                     {
-                        public void run()
-                        {
-                            listener.entryMoved( ( MoveOperationContext ) opContext );
-                        }
-                    } );
-                }
+                        listener.entryMoved( ( MoveOperationContext ) opContext );
+                    }
+                };
 
                 break;
 
             case RENAME:
-                if ( listener.isSynchronous() )
+                delivery = new Runnable()
                 {
-                    listener.entryRenamed( ( RenameOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
+                    public void run()
                     {
-                        public void run()
-                        {
-                            listener.entryRenamed( ( RenameOperationContext ) opContext );
-                        }
-                    } );
-                }
+                        listener.entryRenamed( ( RenameOperationContext ) opContext );
+                    }
+                };
 
                 break;
 
             case MOVE_AND_RENAME:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                }
-                else
+                delivery = new Runnable()
                 {
-                    executor.execute( new Runnable()
+                    public void run()
                     {
-                        public void run()
-                        {
-                            listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                        }
-                    } );
-                }
+                        listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
+                    }
+                };
 
                 break;
 
             default:
                 throw new IllegalArgumentException( "Unexpected event type " + type );
         }
+
+        if ( listener.isSynchronous() )
+        {
+            delivery.run();
+
+            return;
+        }
+
+        EventService eventService = directoryService.getEventService();
+
+        if ( eventService instanceof DefaultEventService )
+        {
+            EventDeliveryQueue deliveryQueue = ( ( DefaultEventService ) eventService ).getDeliveryQueue( listener );
+
+            // No queue : the listener has been removed in the meantime
+            if ( deliveryQueue != null )
+            {
+                deliveryQueue.offer( delivery );
+            }
+        }
+        else
+        {
+            executor.execute( delivery );
+        }
+    }
+
+
+    /**
+     * @return The queues of notifications waiting to be delivered to the asynchronous
+     * listeners, with their depth, lag and drop counters
+     */
+    public List<EventDeliveryQueue> getDeliveryQueues()
+    {
+        EventService eventService = directoryService.getEventService();
+
+        if ( eventService instanceof DefaultEventService )
+        {
+            return ( ( DefaultEventService ) eventService ).getDeliveryQueues();
+        }
+
+        return Collections.emptyList();
+    }
+
+
+    /**
+     * @return The number of threads delivering the asynchronous notifications
+     */
+    public int getDeliveryThreads()
+    {
+        return deliveryThreads;
+    }
+
+
+    /**
+     * Sets the number of threads delivering the asynchronous notifications. Must be
+     * set before the interceptor is initialized.
+     *
+     * @param deliveryThreads The number of threads
+     */
+    public void setDeliveryThreads( int deliveryThreads )
+    {
+        this.deliveryThreads = deliveryThreads;
     }
 
 
@@ -228,7 +282,8 @@ public class EventInterceptor extends BaseInterceptor
     {
         next( addContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( addContext.getDn(), addContext.getEntry() );
+        List<RegistrationEntry> selecting = getSelectingRegistrations( addContext.getDn(), addContext.getEntry(),
+            EventType.ADD );
 
         if ( selecting.isEmpty() )
         {
@@ -252,7 +307,8 @@ public class EventInterceptor extends BaseInterceptor
     {
         next( deleteContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( deleteContext.getDn(), deleteContext.getEntry() );
+        List<RegistrationEntry> selecting = getSelectingRegistrations( deleteContext.getDn(), deleteContext.getEntry(),
+            EventType.DELETE );
 
         if ( selecting.isEmpty() )
         {
@@ -282,7 +338,7 @@ public class EventInterceptor extends BaseInterceptor
             next( modifyContext );
         }
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( modifyContext.getDn(), oriEntry );
+        List<RegistrationEntry> selecting = getSelectingRegistrations( modifyContext.getDn(), oriEntry, EventType.MODIFY );
 
         if ( selecting.isEmpty() )
         {
@@ -316,7 +372,7 @@ public class EventInterceptor extends BaseInterceptor
 
         next( moveContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( moveContext.getDn(), oriEntry );
+        List<RegistrationEntry> selecting = getSelectingRegistrations( moveContext.getDn(), oriEntry, EventType.MOVE );
 
         if ( selecting.isEmpty() )
         {
@@ -341,7 +397,8 @@ public class EventInterceptor extends BaseInterceptor
         Entry oriEntry = moveAndRenameContext.getOriginalEntry();
         next( moveAndRenameContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( moveAndRenameContext.getDn(), oriEntry );
+        List<RegistrationEntry> selecting = getSelectingRegistrations( moveAndRenameContext.getDn(), oriEntry,
+            EventType.MOVE_AND_RENAME );
 
         if ( selecting.isEmpty() )
         {
@@ -367,7 +424,7 @@ public class EventInterceptor extends BaseInterceptor
 
         next( renameContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( renameContext.getDn(), oriEntry );
+        List<RegistrationEntry> selecting = getSelectingRegistrations( renameContext.getDn(), oriEntry, EventType.RENAME );
 
         if ( selecting.isEmpty() )
         {
@@ -393,12 +450,25 @@ public class EventInterceptor extends BaseInterceptor
 
 
     /**
-     * Find a list of registrationEntries given an entry and a name. We check against
-     * the criteria for each registrationEntry
+     * Find a list of registrationEntries given an entry, a name and an event type. We check
+     * against the criteria for each registrationEntry. When the event service is ours, only
+     * the registrations selected by its index are checked.
      */
-    private List<RegistrationEntry> getSelectingRegistrations( Dn name, Entry entry ) throws LdapException
+    private List<RegistrationEntry> getSelectingRegistrations( Dn name, Entry entry, EventType eventType )
+        throws LdapException
     {
-        List<RegistrationEntry> registrations = directoryService.getEventService().getRegistrationEntries();
+        EventService eventService = directoryService.getEventService();
+        List<RegistrationEntry> registrations = null;
+
+        if ( eventService instanceof DefaultEventService )
+        {
+            registrations = ( ( DefaultEventService ) eventService ).getCandidateRegistrations( name, entry,
+                eventType );
+        }
+        else
+        {
+            registrations = eventService.getRegistrationEntries();
+        }
 
         if ( registrations.isEmpty() )
         {
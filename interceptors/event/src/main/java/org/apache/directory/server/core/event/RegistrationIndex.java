@@ -0,0 +1,584 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+import org.apache.directory.api.ldap.model.schema.Normalizer;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An index on the registered listeners, used to find the few registrations which may
+ * be interested in a change without evaluating all of them. The registrations are
+ * stored in a tree of RDNs built from their base DN, then per scope, per event type
+ * and, when their filter contains an equality assertion, per asserted value.
+ * <br/>
+ * The returned registrations are only candidates : their scope and event type match
+ * the change, but their filter must still be evaluated against the entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class RegistrationIndex
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( RegistrationIndex.class );
+
+    /** The event types having a dedicated bucket */
+    private static final EventType[] EVENT_TYPES =
+        { EventType.ADD, EventType.DELETE, EventType.MODIFY, EventType.RENAME, EventType.MOVE };
+
+    /** The root of the RDN tree, holding the registrations based on the RootDSE */
+    private final Node root = new Node( null, null );
+
+    /** The node each registration has been stored in */
+    private final Map<RegistrationEntry, Node> registrationNodes = new IdentityHashMap<RegistrationEntry, Node>();
+
+    /** The lock protecting the index */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+    /**
+     * A node of the RDN tree. It holds the registrations which base DN is the node's DN.
+     */
+    private static final class Node
+    {
+        /** The parent node */
+        private final Node parent;
+
+        /** The normalized RDN of this node */
+        private final String rdn;
+
+        /** The children, per normalized RDN */
+        private final Map<String, Node> children = new HashMap<String, Node>();
+
+        /** The buckets, per scope ordinal and event type */
+        private final Bucket[][] buckets = new Bucket[SearchScope.values().length][];
+
+
+        private Node( Node parent, String rdn )
+        {
+            this.parent = parent;
+            this.rdn = rdn;
+        }
+
+
+        private boolean isEmpty()
+        {
+            if ( !children.isEmpty() )
+            {
+                return false;
+            }
+
+            for ( Bucket[] scopeBuckets : buckets )
+            {
+                if ( scopeBuckets != null )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+
+    /**
+     * The registrations sharing a base DN, a scope and an event type.
+     */
+    private static final class Bucket
+    {
+        /** The registrations which can't be selected on an equality assertion */
+        private final List<RegistrationEntry> unindexed = new ArrayList<RegistrationEntry>();
+
+        /** The registrations with an equality assertion, per attributeType and normalized value */
+        private final Map<AttributeType, Map<String, List<RegistrationEntry>>> equalities =
+            new HashMap<AttributeType, Map<String, List<RegistrationEntry>>>();
+
+
+        private boolean isEmpty()
+        {
+            return unindexed.isEmpty() && equalities.isEmpty();
+        }
+    }
+
+
+    /**
+     * The equality assertion used to index a registration.
+     */
+    private static final class EqualityKey
+    {
+        private final AttributeType attributeType;
+
+        private final String value;
+
+
+        private EqualityKey( AttributeType attributeType, String value )
+        {
+            this.attributeType = attributeType;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Adds a registration in the index. Its criteria base DN and filter must have been normalized.
+     *
+     * @param registration The registration to add
+     */
+    public void add( RegistrationEntry registration )
+    {
+        NotificationCriteria criteria = registration.getCriteria();
+        EqualityKey key = getEqualityKey( criteria.getFilter() );
+
+        lock.writeLock().lock();
+
+        try
+        {
+            Node node = root;
+
+            for ( String rdn : getRdnPath( criteria.getBase() ) )
+            {
+                Node child = node.children.get( rdn );
+
+                if ( child == null )
+                {
+                    child = new Node( node, rdn );
+                    node.children.put( rdn, child );
+                }
+
+                node = child;
+            }
+
+            registrationNodes.put( registration, node );
+            int scope = criteria.getScope().ordinal();
+
+            if ( node.buckets[scope] == null )
+            {
+                node.buckets[scope] = new Bucket[EVENT_TYPES.length];
+            }
+
+            for ( int i = 0; i < EVENT_TYPES.length; i++ )
+            {
+                if ( ( criteria.getEventMask() & EVENT_TYPES[i].getMask() ) == 0 )
+                {
+                    continue;
+                }
+
+                Bucket bucket = node.buckets[scope][i];
+
+                if ( bucket == null )
+                {
+                    bucket = new Bucket();
+                    node.buckets[scope][i] = bucket;
+                }
+
+                if ( key == null )
+                {
+                    bucket.unindexed.add( registration );
+                }
+                else
+                {
+                    Map<String, List<RegistrationEntry>> values = bucket.equalities.get( key.attributeType );
+
+                    if ( values == null )
+                    {
+                        values = new HashMap<String, List<RegistrationEntry>>();
+                        bucket.equalities.put( key.attributeType, values );
+                    }
+
+                    List<RegistrationEntry> registrations = values.get( key.value );
+
+                    if ( registrations == null )
+                    {
+                        registrations = new ArrayList<RegistrationEntry>( 1 );
+                        values.put( key.value, registrations );
+                    }
+
+                    registrations.add( registration );
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes a registration from the index.
+     *
+     * @param registration The registration to remove
+     */
+    public void remove( RegistrationEntry registration )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Node node = registrationNodes.remove( registration );
+
+            if ( node == null )
+            {
+                return;
+            }
+
+            for ( int scope = 0; scope < node.buckets.length; scope++ )
+            {
+                if ( node.buckets[scope] == null )
+                {
+                    continue;
+                }
+
+                boolean empty = true;
+
+                for ( int i = 0; i < EVENT_TYPES.length; i++ )
+                {
+                    Bucket bucket = node.buckets[scope][i];
+
+                    if ( bucket == null )
+                    {
+                        continue;
+                    }
+
+                    removeIdentity( bucket.unindexed, registration );
+
+                    Iterator<Map<String, List<RegistrationEntry>>> attributes = bucket.equalities.values()
+                        .iterator();
+
+                    while ( attributes.hasNext() )
+                    {
+                        Map<String, List<RegistrationEntry>> values = attributes.next();
+                        Iterator<List<RegistrationEntry>> registrations = values.values().iterator();
+
+                        while ( registrations.hasNext() )
+                        {
+                            List<RegistrationEntry> list = registrations.next();
+                            removeIdentity( list, registration );
+
+                            if ( list.isEmpty() )
+                            {
+                                registrations.remove();
+                            }
+                        }
+
+                        if ( values.isEmpty() )
+                        {
+                            attributes.remove();
+                        }
+                    }
+
+                    if ( bucket.isEmpty() )
+                    {
+                        node.buckets[scope][i] = null;
+                    }
+                    else
+                    {
+                        empty = false;
+                    }
+                }
+
+                if ( empty )
+                {
+                    node.buckets[scope] = null;
+                }
+            }
+
+            // Prune the nodes which don't hold anything anymore
+            while ( ( node != root ) && node.isEmpty() )
+            {
+                node.parent.children.remove( node.rdn );
+                node = node.parent;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets the registrations which scope includes the given DN, which are interested in
+     * the given event type, and which filter may match the given entry.
+     *
+     * @param name The DN of the modified entry
+     * @param entry The modified entry
+     * @param eventType The type of change
+     * @return The candidate registrations, each present once
+     */
+    public List<RegistrationEntry> getCandidates( Dn name, Entry entry, EventType eventType )
+    {
+        List<String> path = getRdnPath( name );
+        int depth = path.size();
+        List<RegistrationEntry> candidates = new ArrayList<RegistrationEntry>();
+
+        lock.readLock().lock();
+
+        try
+        {
+            Node node = root;
+
+            for ( int i = 0; ( i <= depth ) && ( node != null ); i++ )
+            {
+                collect( node, SearchScope.SUBTREE, entry, eventType, candidates );
+
+                if ( i == depth - 1 )
+                {
+                    collect( node, SearchScope.ONELEVEL, entry, eventType, candidates );
+                }
+                else if ( i == depth )
+                {
+                    collect( node, SearchScope.OBJECT, entry, eventType, candidates );
+                }
+
+                if ( i < depth )
+                {
+                    node = node.children.get( path.get( i ) );
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        if ( candidates.size() > 1 )
+        {
+            // A registration may have been found in more than one event type bucket, or
+            // through more than one value of the entry
+            return removeDuplicates( candidates );
+        }
+
+        return candidates;
+    }
+
+
+    /**
+     * Adds the registrations of a node's scope which may match the entry
+     */
+    private void collect( Node node, SearchScope scope, Entry entry, EventType eventType,
+        List<RegistrationEntry> candidates )
+    {
+        Bucket[] scopeBuckets = node.buckets[scope.ordinal()];
+
+        if ( scopeBuckets == null )
+        {
+            return;
+        }
+
+        for ( int i = 0; i < EVENT_TYPES.length; i++ )
+        {
+            Bucket bucket = scopeBuckets[i];
+
+            if ( ( bucket == null ) || ( ( eventType.getMask() & EVENT_TYPES[i].getMask() ) == 0 ) )
+            {
+                continue;
+            }
+
+            candidates.addAll( bucket.unindexed );
+
+            for ( Map.Entry<AttributeType, Map<String, List<RegistrationEntry>>> equality : bucket.equalities
+                .entrySet() )
+            {
+                Attribute attribute = entry.get( equality.getKey() );
+
+                if ( attribute == null )
+                {
+                    continue;
+                }
+
+                Map<String, List<RegistrationEntry>> values = equality.getValue();
+                Normalizer normalizer = equality.getKey().getEquality().getNormalizer();
+
+                for ( Value<?> value : attribute )
+                {
+                    try
+                    {
+                        List<RegistrationEntry> registrations = values.get( normalizer.normalize( value.getString() ) );
+
+                        if ( registrations != null )
+                        {
+                            candidates.addAll( registrations );
+                        }
+                    }
+                    catch ( LdapException le )
+                    {
+                        // We can't tell : let the filter evaluation decide for all of them
+                        LOG.debug( "Cannot normalize the value {} of {}", value, equality.getKey().getName() );
+
+                        for ( List<RegistrationEntry> registrations : values.values() )
+                        {
+                            candidates.addAll( registrations );
+                        }
+
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Gets the equality assertion a registration can be indexed on : the filter itself
+     * or one of the children of a top level AND. Returns null if there is none.
+     */
+    private EqualityKey getEqualityKey( ExprNode filter )
+    {
+        if ( filter instanceof EqualityNode )
+        {
+            return getEqualityKey( ( EqualityNode<?> ) filter );
+        }
+
+        if ( filter instanceof AndNode )
+        {
+            for ( ExprNode child : ( ( AndNode ) filter ).getChildren() )
+            {
+                if ( child instanceof EqualityNode )
+                {
+                    EqualityKey key = getEqualityKey( ( EqualityNode<?> ) child );
+
+                    if ( key != null )
+                    {
+                        return key;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Gets the key of an equality assertion, if its value can be compared on its normalized
+     * form. ObjectClass assertions are not selective enough to be worth it, and their values
+     * can be matched through their OID or any of their names.
+     */
+    private EqualityKey getEqualityKey( EqualityNode<?> node )
+    {
+        AttributeType attributeType = node.getAttributeType();
+
+        if ( ( attributeType == null ) || ( attributeType.getSyntax() == null )
+            || !attributeType.getSyntax().isHumanReadable()
+            || SchemaConstants.OBJECT_CLASS_AT_OID.equals( attributeType.getOid() ) )
+        {
+            return null;
+        }
+
+        MatchingRule equality = attributeType.getEquality();
+
+        if ( ( equality == null ) || ( equality.getNormalizer() == null ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            return new EqualityKey( attributeType, equality.getNormalizer().normalize( node.getValue().getString() ) );
+        }
+        catch ( LdapException le )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Gets the normalized RDNs of a DN, starting from the top of the tree
+     */
+    private static List<String> getRdnPath( Dn dn )
+    {
+        List<Rdn> rdns = dn.getRdns();
+        List<String> path = new ArrayList<String>( rdns.size() );
+
+        for ( int i = rdns.size() - 1; i >= 0; i-- )
+        {
+            path.add( rdns.get( i ).getNormName() );
+        }
+
+        return path;
+    }
+
+
+    /**
+     * Removes a registration from a list, comparing them by identity
+     */
+    private static void removeIdentity( List<RegistrationEntry> registrations, RegistrationEntry registration )
+    {
+        Iterator<RegistrationEntry> iterator = registrations.iterator();
+
+        while ( iterator.hasNext() )
+        {
+            if ( iterator.next() == registration )
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Removes the duplicated registrations from a list, keeping their order
+     */
+    private static List<RegistrationEntry> removeDuplicates( Collection<RegistrationEntry> registrations )
+    {
+        Map<RegistrationEntry, Boolean> seen = new IdentityHashMap<RegistrationEntry, Boolean>();
+        List<RegistrationEntry> result = new ArrayList<RegistrationEntry>( registrations.size() );
+
+        for ( RegistrationEntry registration : registrations )
+        {
+            if ( seen.put( registration, Boolean.TRUE ) == null )
+            {
+                result.add( registration );
+            }
+        }
+
+        return result;
+    }
+}
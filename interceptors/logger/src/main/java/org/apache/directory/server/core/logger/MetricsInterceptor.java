@@ -0,0 +1,513 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.logger;
+
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.CompareOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.GetRootDseOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.metrics.MetricsRegistry;
+
+
+/**
+ * An interceptor gathering the server metrics, and publishing them over JMX and under
+ * <em>cn=monitor</em>.
+ * <br/>
+ * When this interceptor is initialized, it enables the {@link MetricsRegistry} of the
+ * directory service, so that :
+ * <ul>
+ *   <li>the latency of each operation is recorded by this interceptor (it should be the
+ *   first one in the chain to measure the whole processing)</li>
+ *   <li>the time spent in each interceptor, and in the interceptors it calls, is recorded
+ *   when an interceptor calls the next one</li>
+ *   <li>the time spent waiting for the operation locks is recorded by the OperationManager</li>
+ *   <li>the entry cache hits and misses, and the entries examined and returned by the
+ *   searches, are counted by the partitions</li>
+ * </ul>
+ * The latencies are stored in HdrHistogram-like histograms, so that their percentiles can be
+ * computed. The metrics are published as MXBeans (see {@link MetricsMBeans}), and by the
+ * MetricsPublishers registered in the MetricsRegistry, all of them being refreshed
+ * every <em>refreshPeriod</em> ms. When <em>monitorEnabled</em> is set, the DirectoryService
+ * registers such a publisher, exposing the metrics under <em>cn=monitor</em>, when this
+ * interceptor is initialized.
+ * <br/>
+ * For a search, only the creation of the cursor is timed : the time spent fetching the
+ * entries is not.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MetricsInterceptor extends BaseInterceptor
+{
+    /** The default delay between two refreshes of the published metrics, in ms */
+    public static final long DEFAULT_REFRESH_PERIOD = 10000L;
+
+    /** The registry the metrics are gathered in */
+    private MetricsRegistry metricsRegistry;
+
+    /** Tells if the metrics are published over JMX */
+    private boolean jmxEnabled = true;
+
+    /** Tells if the metrics are published under cn=monitor */
+    private boolean monitorEnabled = true;
+
+    /** The delay between two refreshes of the published metrics, in ms */
+    private long refreshPeriod = DEFAULT_REFRESH_PERIOD;
+
+    /** The MBeans publishing the metrics */
+    private MetricsMBeans mbeans;
+
+    /** The executor refreshing the published metrics */
+    private ScheduledExecutorService refresher;
+
+    /** Set when the directory service has been seen started by the refresher */
+    private volatile boolean serviceStarted;
+
+
+    /**
+     * Creates a new instance of MetricsInterceptor.
+     */
+    public MetricsInterceptor()
+    {
+        super( "MetricsInterceptor" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init( DirectoryService directoryService ) throws LdapException
+    {
+        super.init( directoryService );
+
+        metricsRegistry = directoryService.getMetricsRegistry();
+        metricsRegistry.setEnabled( true );
+        metricsRegistry.setMonitorEnabled( monitorEnabled );
+
+        if ( jmxEnabled )
+        {
+            mbeans = new MetricsMBeans( metricsRegistry, directoryService.getInstanceId() );
+        }
+
+        refresh();
+
+        if ( refreshPeriod > 0 )
+        {
+            refresher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "MetricsRefresher" );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+
+            refresher.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    refreshPeriodically();
+                }
+            }, refreshPeriod, refreshPeriod, TimeUnit.MILLISECONDS );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void destroy()
+    {
+        if ( refresher != null )
+        {
+            refresher.shutdownNow();
+        }
+
+        if ( mbeans != null )
+        {
+            mbeans.unregister();
+        }
+
+        metricsRegistry.setEnabled( false );
+    }
+
+
+    /**
+     * Publishes the current metrics. This method must not be called by a thread
+     * which holds an operation lock.
+     */
+    public void refresh()
+    {
+        if ( mbeans != null )
+        {
+            mbeans.register();
+        }
+
+        metricsRegistry.publish();
+    }
+
+
+    /**
+     * Called by the refresher. As the interceptors are not destroyed when the server
+     * is shut down, we stop the refresher ourselves when we see the server is stopped.
+     */
+    private void refreshPeriodically()
+    {
+        if ( !directoryService.isStarted() )
+        {
+            if ( serviceStarted )
+            {
+                refresher.shutdown();
+
+                if ( mbeans != null )
+                {
+                    mbeans.unregister();
+                }
+            }
+
+            return;
+        }
+
+        serviceStarted = true;
+        refresh();
+    }
+
+
+    /**
+     * Records the latency of an operation
+     */
+    private void record( OperationEnum operation, long start )
+    {
+        metricsRegistry.getOperationHistogram( operation ).record( System.nanoTime() - start );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void add( AddOperationContext addContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( addContext );
+        }
+        finally
+        {
+            record( OperationEnum.ADD, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void bind( BindOperationContext bindContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( bindContext );
+        }
+        finally
+        {
+            record( OperationEnum.BIND, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean compare( CompareOperationContext compareContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            return next( compareContext );
+        }
+        finally
+        {
+            record( OperationEnum.COMPARE, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete( DeleteOperationContext deleteContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( deleteContext );
+        }
+        finally
+        {
+            record( OperationEnum.DELETE, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry getRootDse( GetRootDseOperationContext getRootDseContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            return next( getRootDseContext );
+        }
+        finally
+        {
+            record( OperationEnum.GET_ROOT_DSE, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasEntry( HasEntryOperationContext hasEntryContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            return next( hasEntryContext );
+        }
+        finally
+        {
+            record( OperationEnum.HAS_ENTRY, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry lookup( LookupOperationContext lookupContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            return next( lookupContext );
+        }
+        finally
+        {
+            record( OperationEnum.LOOKUP, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void modify( ModifyOperationContext modifyContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( modifyContext );
+        }
+        finally
+        {
+            record( OperationEnum.MODIFY, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void move( MoveOperationContext moveContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( moveContext );
+        }
+        finally
+        {
+            record( OperationEnum.MOVE, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( moveAndRenameContext );
+        }
+        finally
+        {
+            record( OperationEnum.MOVE_AND_RENAME, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rename( RenameOperationContext renameContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( renameContext );
+        }
+        finally
+        {
+            record( OperationEnum.RENAME, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public EntryFilteringCursor search( SearchOperationContext searchContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            return next( searchContext );
+        }
+        finally
+        {
+            record( OperationEnum.SEARCH, start );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void unbind( UnbindOperationContext unbindContext ) throws LdapException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            next( unbindContext );
+        }
+        finally
+        {
+            record( OperationEnum.UNBIND, start );
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the metrics are published over JMX
+     */
+    public boolean isJmxEnabled()
+    {
+        return jmxEnabled;
+    }
+
+
+    /**
+     * @param jmxEnabled Tells if the metrics must be published over JMX. Must be set before
+     * the interceptor is initialized.
+     */
+    public void setJmxEnabled( boolean jmxEnabled )
+    {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+
+    /**
+     * @return <code>true</code> if the metrics are published under cn=monitor
+     */
+    public boolean isMonitorEnabled()
+    {
+        return monitorEnabled;
+    }
+
+
+    /**
+     * @param monitorEnabled Tells if the metrics must be published under cn=monitor. Must be
+     * set before the interceptor is initialized.
+     */
+    public void setMonitorEnabled( boolean monitorEnabled )
+    {
+        this.monitorEnabled = monitorEnabled;
+    }
+
+
+    /**
+     * @return The delay between two refreshes of the published metrics, in ms
+     */
+    public long getRefreshPeriod()
+    {
+        return refreshPeriod;
+    }
+
+
+    /**
+     * @param refreshPeriod The delay between two refreshes of the published metrics, in ms. A
+     * value of 0 disables the periodic refresh. Must be set before the interceptor is initialized.
+     */
+    public void setRefreshPeriod( long refreshPeriod )
+    {
+        this.refreshPeriod = refreshPeriod;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.logger;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.metrics.LatencyHistogram;
+import org.apache.directory.server.core.api.metrics.MetricsRegistry;
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Publishes the content of a {@link MetricsRegistry} on the platform MBean server. Each
+ * histogram and each set of partition counters is exposed as a MXBean named
+ * <pre>
+ * org.apache.directory.server:type=Metrics,instance=&lt;instance&gt;,category=&lt;category&gt;,name=&lt;name&gt;
+ * </pre>
+ * where the category is one of Operations, Interceptors, Partitions or Locks. The
+ * interceptor histograms have an additional <em>interceptor</em> key.
+ * <br/>
+ * As the registry creates its histograms and counters lazily, {@link #register()} has to
+ * be called periodically to publish the new ones.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MetricsMBeans
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( MetricsMBeans.class );
+
+    /** The domain of the ObjectNames */
+    public static final String DOMAIN = "org.apache.directory.server";
+
+    /** The registry to publish */
+    private final MetricsRegistry metricsRegistry;
+
+    /** The directory service instance the metrics belong to */
+    private final String instanceId;
+
+    /** The MBean server */
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    /** The names of the registered MBeans */
+    private final Set<ObjectName> registered = new HashSet<ObjectName>();
+
+
+    /**
+     * Creates a new instance of MetricsMBeans
+     *
+     * @param metricsRegistry The registry to publish
+     * @param instanceId The directory service instance ID
+     */
+    public MetricsMBeans( MetricsRegistry metricsRegistry, String instanceId )
+    {
+        this.metricsRegistry = metricsRegistry;
+        this.instanceId = instanceId;
+    }
+
+
+    /**
+     * Registers the MBeans of the histograms and counters which are not yet published
+     */
+    public synchronized void register()
+    {
+        for ( Map.Entry<OperationEnum, LatencyHistogram> operation : metricsRegistry.getOperationHistograms()
+            .entrySet() )
+        {
+            register( "Operations", null, operation.getKey().getMethodName(), operation.getValue() );
+        }
+
+        for ( Map.Entry<String, Map<OperationEnum, LatencyHistogram>> interceptor : metricsRegistry
+            .getInterceptorHistograms().entrySet() )
+        {
+            for ( Map.Entry<OperationEnum, LatencyHistogram> operation : interceptor.getValue().entrySet() )
+            {
+                register( "Interceptors", interceptor.getKey(), operation.getKey().getMethodName(),
+                    operation.getValue() );
+            }
+        }
+
+        for ( Map.Entry<String, PartitionMetrics> partition : metricsRegistry.getPartitionMetrics().entrySet() )
+        {
+            register( "Partitions", null, partition.getKey(), partition.getValue() );
+        }
+
+        for ( Map.Entry<String, LatencyHistogram> lockWait : metricsRegistry.getLockWaitHistograms().entrySet() )
+        {
+            register( "Locks", null, lockWait.getKey(), lockWait.getValue() );
+        }
+    }
+
+
+    /**
+     * Registers one MBean, if it's not already registered. An MBean with the same name
+     * registered by a previous instance of the server is replaced.
+     */
+    private void register( String category, String interceptor, String name, Object mbean )
+    {
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append( DOMAIN ).append( ":type=Metrics,instance=" ).append( quote( instanceId ) );
+            sb.append( ",category=" ).append( category );
+
+            if ( interceptor != null )
+            {
+                sb.append( ",interceptor=" ).append( quote( interceptor ) );
+            }
+
+            sb.append( ",name=" ).append( quote( name ) );
+
+            ObjectName objectName = new ObjectName( sb.toString() );
+
+            if ( registered.contains( objectName ) )
+            {
+                return;
+            }
+
+            try
+            {
+                mbeanServer.registerMBean( mbean, objectName );
+            }
+            catch ( InstanceAlreadyExistsException iaee )
+            {
+                mbeanServer.unregisterMBean( objectName );
+                mbeanServer.registerMBean( mbean, objectName );
+            }
+
+            registered.add( objectName );
+        }
+        catch ( JMException jme )
+        {
+            LOG.warn( "Cannot register the {} metrics MBean {} : {}", category, name, jme.getMessage() );
+        }
+    }
+
+
+    /**
+     * Unregisters all the MBeans
+     */
+    public synchronized void unregister()
+    {
+        for ( ObjectName objectName : registered )
+        {
+            try
+            {
+                mbeanServer.unregisterMBean( objectName );
+            }
+            catch ( JMException jme )
+            {
+                LOG.debug( "Cannot unregister the metrics MBean {} : {}", objectName, jme.getMessage() );
+            }
+        }
+
+        registered.clear();
+    }
+
+
+    /**
+     * Quotes an ObjectName value if it contains some special characters
+     */
+    private static String quote( String value )
+    {
+        for ( char c : value.toCharArray() )
+        {
+            switch ( c )
+            {
+                case ',':
+                case '=':
+                case ':':
+                case '"':
+                case '*':
+                case '?':
+                case '\n':
+                case '\\':
+                    return ObjectName.quote( value );
+
+                default:
+                    break;
+            }
+        }
+
+        return value;
+    }
+}
@@ -56,8 +56,11 @@ import org.slf4j.LoggerFactory;
  * 
  * Thos two loggers must be set to DEBUG.
  * 
+ * @deprecated Use the {@link MetricsInterceptor}, which records the latencies in histograms
+ * published over JMX and under cn=monitor
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
+@Deprecated
 public class TimerInterceptor extends BaseInterceptor
 {
     /** A aggregating logger */
@@ -40,6 +40,7 @@ import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,6 +69,12 @@ public class EntrySerializer implements Serializer
     /** The schemaManager reference */
     private transient SchemaManager schemaManager;
 
+    /** The codec used to read the entries stored in the compact format */
+    private transient EntryCodec codec;
+
+    /** Tells if the entries are written in the compact format */
+    private transient boolean compact;
+
 
     /**
      * Creates a new instance of ServerEntrySerializer.
@@ -80,6 +87,21 @@ public class EntrySerializer implements Serializer
     }
 
 
+    /**
+     * Sets the codec used to read and write the entries in the compact format. Without
+     * a codec, the entries are written using an ObjectOutputStream.
+     *
+     * @param codec The codec
+     * @param compact true if the entries are written in the compact format, false
+     * if the codec is only used to read them
+     */
+    public void setCodec( EntryCodec codec, boolean compact )
+    {
+        this.codec = codec;
+        this.compact = compact;
+    }
+
+
     /**
      * <p>
      * 
@@ -101,11 +123,24 @@ public class EntrySerializer implements Serializer
      *     </ul>
      *   </li>
      * </ul>
+     * The entries are written in the format described in {@link EntryCodec} when a
+     * codec is set.
      */
     public byte[] serialize( Object object ) throws IOException
     {
         Entry entry = ( Entry ) object;
 
+        if ( compact )
+        {
+            byte[] bytes = codec.encode( entry );
+
+            // Null if an attribute type is not yet in the dictionary
+            if ( bytes != null )
+            {
+                return bytes;
+            }
+        }
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ObjectOutput out = new ObjectOutputStream( baos );
 
@@ -169,6 +204,16 @@ public class EntrySerializer implements Serializer
      */
     public Object deserialize( byte[] bytes ) throws IOException
     {
+        if ( EntryCodec.isCompact( bytes, 0 ) )
+        {
+            if ( codec == null )
+            {
+                throw new IOException( I18n.err( I18n.ERR_134, "no codec for the compact entry format" ) );
+            }
+
+            return codec.decode( bytes, 0, bytes.length );
+        }
+
         ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
 
         try
@@ -28,7 +28,6 @@ import java.io.IOException;
 import jdbm.helper.MRU;
 import jdbm.recman.BaseRecordManager;
 import jdbm.recman.CacheRecordManager;
-import jdbm.recman.TransactionManager;
 
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
@@ -80,11 +79,9 @@ public class JdbmDnIndex extends JdbmIndex<Dn>
         String path = new File( this.wkDirPath, attributeType.getOid() ).getAbsolutePath();
 
         //System.out.println( "IDX Created index " + path )
-        BaseRecordManager base = new BaseRecordManager( path );
-        TransactionManager transactionManager = base.getTransactionManager();
-        transactionManager.setMaximumTransactionsInLog( 2000 );
+        BaseRecordManager base = openFile( path );
 
-        recMan = new CacheRecordManager( base, new MRU( cacheSize ) );
+        recMan = new CacheRecordManager( createStore( base, path ), new MRU( cacheSize ) );
 
         try
         {
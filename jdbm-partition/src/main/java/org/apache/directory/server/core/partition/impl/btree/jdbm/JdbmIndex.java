@@ -98,6 +98,12 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
     /** a custom working directory path when specified in configuration */
     protected File wkDirPath;
 
+    /** tells if the index file is read through a memory mapping */
+    protected boolean mappedReads;
+
+    /** tells if the index file is written without transactions, while bulk loading a partition */
+    protected boolean bulkLoad;
+
 
     /*
      * NOTE: Duplicate Key Limit
@@ -158,9 +164,7 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
 
         String path = new File( this.wkDirPath, attributeType.getOid() ).getAbsolutePath();
 
-        BaseRecordManager base = new BaseRecordManager( path );
-        TransactionManager transactionManager = base.getTransactionManager();
-        transactionManager.setMaximumTransactionsInLog( 2000 );
+        BaseRecordManager base = openFile( path );
 
         // see DIRSERVER-2002
         // prevent the OOM when more than 50k users are loaded at a stretch
@@ -171,7 +175,7 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
         
         LOG.info( "Setting CacheRecondManager's cache size to {}", recCacheSize );
 
-        recMan = new CacheRecordManager( base, new MRU( recCacheSize ) );
+        recMan = new CacheRecordManager( createStore( base, path ), new MRU( recCacheSize ) );
 
         try
         {
@@ -300,6 +304,95 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
     }
 
 
+    /**
+     * Sets whether the index file is read through a read only memory mapping.
+     *
+     * @param mappedReads true if the records are read through a memory mapping
+     */
+    public void setMappedReads( boolean mappedReads )
+    {
+        protect( "mappedReads" );
+        this.mappedReads = mappedReads;
+    }
+
+
+    /**
+     * @return true if the records are read through a memory mapping
+     */
+    public boolean isMappedReads()
+    {
+        return mappedReads;
+    }
+
+
+    /**
+     * Sets whether the index file is written without transactions. The writes are then
+     * not logged before being applied, so the file is only consistent once the index is
+     * closed : this is only meant for the offline loading of a partition.
+     *
+     * @param bulkLoad true to write the index file without transactions
+     */
+    public void setBulkLoad( boolean bulkLoad )
+    {
+        protect( "bulkLoad" );
+        this.bulkLoad = bulkLoad;
+    }
+
+
+    /**
+     * @return true if the index file is written without transactions
+     */
+    public boolean isBulkLoad()
+    {
+        return bulkLoad;
+    }
+
+
+    /**
+     * Opens the index file, with a transaction log unless we are bulk loading the partition
+     *
+     * @param path The index file path
+     * @return The BaseRecordManager opened on the index file
+     * @throws IOException If the file can't be opened
+     */
+    protected BaseRecordManager openFile( String path ) throws IOException
+    {
+        BaseRecordManager base = new BaseRecordManager( path );
+
+        if ( bulkLoad )
+        {
+            base.disableTransactions();
+        }
+        else
+        {
+            TransactionManager transactionManager = base.getTransactionManager();
+            transactionManager.setMaximumTransactionsInLog( 2000 );
+        }
+
+        return base;
+    }
+
+
+    /**
+     * Creates the record manager on which the cache is built : the BaseRecordManager, or
+     * a MappedRecordManager reading the file through a memory mapping.
+     *
+     * @param base The BaseRecordManager opened on the index file
+     * @param path The index file path
+     * @return The record manager
+     * @throws IOException If the file can't be mapped
+     */
+    protected RecordManager createStore( BaseRecordManager base, String path ) throws IOException
+    {
+        if ( mappedReads )
+        {
+            return new MappedRecordManager( base, path );
+        }
+
+        return base;
+    }
+
+
     /**
      * Gets the working directory path to something other than the default. Sometimes more
      * performance is gained by locating indices on separate disk spindles.
@@ -589,21 +682,10 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
         // Commit
         recMan.commit();
 
-        // And flush the journal
-        if ( ( commitNumber.get() % 4000 ) == 0 )
+        // And flush the journal. The mapped reads are disabled until it's done
+        if ( ( ( commitNumber.get() % 4000 ) == 0 ) || mappedReads )
         {
-            BaseRecordManager baseRecordManager = null;
-
-            if ( recMan instanceof CacheRecordManager )
-            {
-                baseRecordManager = ( ( BaseRecordManager ) ( ( CacheRecordManager ) recMan ).getRecordManager() );
-            }
-            else
-            {
-                baseRecordManager = ( ( BaseRecordManager ) recMan );
-            }
-
-            baseRecordManager.getTransactionManager().synchronizeLog();
+            MappedRecordManager.synchronizeLog( recMan );
         }
     }
 
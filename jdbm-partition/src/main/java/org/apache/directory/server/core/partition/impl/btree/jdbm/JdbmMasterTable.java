@@ -30,6 +30,7 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
 import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
+import org.apache.directory.server.xdbm.EntryCodec;
 import org.apache.directory.server.xdbm.MasterTable;
 
 
@@ -56,6 +57,9 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
 
     protected final JdbmTable<String, String> adminTbl;
 
+    /** The codec writing the entries in the compact format, null if it's disabled */
+    private EntryCodec codec;
+
 
     /**
      * Creates the master table using JDBM B+Trees for the backing store.
@@ -66,8 +70,14 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
      */
     public JdbmMasterTable( RecordManager recMan, SchemaManager schemaManager ) throws Exception
     {
-        super( schemaManager, DBF, recMan, UuidComparator.INSTANCE, UuidSerializer.INSTANCE,
-            new EntrySerializer( schemaManager ) );
+        this( recMan, schemaManager, new EntrySerializer( schemaManager ) );
+    }
+
+
+    private JdbmMasterTable( RecordManager recMan, SchemaManager schemaManager, EntrySerializer serializer )
+        throws Exception
+    {
+        super( schemaManager, DBF, recMan, UuidComparator.INSTANCE, UuidSerializer.INSTANCE, serializer );
         adminTbl = new JdbmTable<String, String>( schemaManager, "admin", recMan, STRING_COMPARATOR,
             StringSerializer.INSTANCE, StringSerializer.INSTANCE );
         String seqValue = adminTbl.get( SEQPROP_KEY );
@@ -79,6 +89,12 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
 
         UuidComparator.INSTANCE.setSchemaManager( schemaManager );
         STRING_COMPARATOR.setSchemaManager( schemaManager );
+
+        // The attribute types dictionary is stored in the admin table. The
+        // codec is also needed to read the entries when the compact format
+        // has been disabled.
+        codec = new EntryCodec( schemaManager, adminTbl );
+        serializer.setCodec( codec, EntryCodec.isEnabled() );
     }
 
 
@@ -113,6 +129,33 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
     }
 
 
+    /**
+     * {@inheritDoc}
+     * 
+     * The attribute types of the entry are added to the dictionary before it's stored.
+     */
+    @Override
+    public synchronized void put( String key, Entry entry ) throws Exception
+    {
+        if ( codec != null )
+        {
+            codec.register( entry );
+        }
+
+        super.put( key, entry );
+    }
+
+
+    /**
+     * @return The codec serializing the entries in the compact format, null if the
+     * entries are written by another serializer
+     */
+    public EntryCodec getCodec()
+    {
+        return codec;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -34,8 +35,6 @@ import jdbm.helper.MRU;
 import jdbm.recman.BaseRecordManager;
 import jdbm.recman.CacheRecordManager;
 import jdbm.recman.TransactionManager;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.Element;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.CsnFactory;
@@ -66,8 +65,10 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryWeigher;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.apache.directory.server.xdbm.WeightedCache;
 import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
 import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
@@ -100,11 +101,23 @@ public class JdbmPartition extends AbstractBTreePartition
         }
     };
 
+    /** The system property enabling the memory mapped reads of the JDBM files */
+    public static final String MAPPED_READS_PROPERTY = "apacheds.jdbm.mappedReads";
+
     /** the JDBM record manager used by this database */
     private RecordManager recMan;
 
+    /** Tells if the JDBM files are read through a read only memory mapping */
+    private boolean mappedReads = Boolean.getBoolean( MAPPED_READS_PROPERTY );
+
+    /** Tells if the JDBM files are written without transactions, while bulk loading the partition */
+    private boolean bulkLoad;
+
+    /** The number of tuples sorted together when building an index */
+    private static final int BUILD_CHUNK_SIZE = 100000;
+
     /** the entry cache */
-    private Cache entryCache;
+    private WeightedCache<String, Entry> entryCache;
 
 
     /**
@@ -432,8 +445,17 @@ public class JdbmPartition extends AbstractBTreePartition
             String path = partitionDir.getPath() + File.separator + "master";
 
             BaseRecordManager base = new BaseRecordManager( path );
-            TransactionManager transactionManager = base.getTransactionManager();
-            transactionManager.setMaximumTransactionsInLog( 2000 );
+
+            if ( bulkLoad )
+            {
+                LOG.info( "Bulk loading the {} partition : the transactions are disabled", id );
+                base.disableTransactions();
+            }
+            else
+            {
+                TransactionManager transactionManager = base.getTransactionManager();
+                transactionManager.setMaximumTransactionsInLog( 2000 );
+            }
 
             if ( cacheSize < 0 )
             {
@@ -453,7 +475,15 @@ public class JdbmPartition extends AbstractBTreePartition
             
             LOG.info( "Setting CacheRecondManager's cache size to {}", recCacheSize );
             
-            recMan = new CacheRecordManager( base, new MRU( recCacheSize ) );
+            if ( mappedReads )
+            {
+                LOG.info( "Reading the {} partition files through a memory mapping", id );
+                recMan = new CacheRecordManager( new MappedRecordManager( base, path ), new MRU( recCacheSize ) );
+            }
+            else
+            {
+                recMan = new CacheRecordManager( base, new MRU( recCacheSize ) );
+            }
 
             // Create the master table (the table containing all the entries)
             master = new JdbmMasterTable( recMan, schemaManager );
@@ -467,14 +497,10 @@ public class JdbmPartition extends AbstractBTreePartition
 
             if ( cacheService != null )
             {
-                entryCache = cacheService.getCache( getId() );
-
-                int cacheSizeConfig = ( int ) entryCache.getCacheConfiguration().getMaxEntriesLocalHeap();
-
-                if ( cacheSizeConfig < cacheSize )
-                {
-                    entryCache.getCacheConfiguration().setMaxEntriesLocalHeap( cacheSize );
-                }
+                long maxBytes = getCacheMaxBytes();
+                entryCache = new WeightedCache<String, Entry>( maxBytes, DEFAULT_ENTRY_WEIGHT, new EntryWeigher() );
+                LOG.debug( "Using an entry cache of {} bytes for {} partition", maxBytes, id );
+                initOffHeapCache( ( ( JdbmMasterTable ) master ).getCodec() );
             }
 
             // Initialization of the context entry
@@ -530,6 +556,53 @@ public class JdbmPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * @return true if the JDBM files are read through a read only memory mapping
+     */
+    public boolean isMappedReads()
+    {
+        return mappedReads;
+    }
+
+
+    /**
+     * Sets whether the JDBM files are read through a read only memory mapping. The cold
+     * reads are then served by the OS page cache instead of the RandomAccessFile. The
+     * mapped reads are suspended after a modification, until the next sync.
+     *
+     * @param mappedReads true to read the files through a memory mapping
+     */
+    public void setMappedReads( boolean mappedReads )
+    {
+        checkInitialized( "mappedReads" );
+        this.mappedReads = mappedReads;
+    }
+
+
+    /**
+     * @return true if the JDBM files are written without transactions
+     */
+    public boolean isBulkLoad()
+    {
+        return bulkLoad;
+    }
+
+
+    /**
+     * Sets whether the JDBM files are written without transactions. The writes are then
+     * neither logged nor synced before being applied, and the files are only consistent
+     * once the partition is destroyed : this is used by the {@link JdbmPartitionBuilder},
+     * and must never be set on a partition served by a running server.
+     *
+     * @param bulkLoad true to write the files without transactions
+     */
+    public void setBulkLoad( boolean bulkLoad )
+    {
+        checkInitialized( "bulkLoad" );
+        this.bulkLoad = bulkLoad;
+    }
+
+
     /**
      * {@inheritDoc}}
      */
@@ -590,46 +663,94 @@ public class JdbmPartition extends AbstractBTreePartition
      */
     private void buildUserIndex( List<Index<?, String>> indices ) throws Exception
     {
-        Cursor<Tuple<String, Entry>> cursor = master.cursor();
-        cursor.beforeFirst();
+        List<Index<?, String>> userIndexes = new ArrayList<Index<?, String>>();
 
-        while ( cursor.next() )
+        for ( Index<?, String> index : indices )
         {
-            for ( Index index : indices )
+            // skipping building of the system index
+            if ( systemIndices.get( index.getAttribute().getOid() ) == null )
             {
-                AttributeType atType = index.getAttribute();
+                LOG.info( "building the index for attribute type {}", index.getAttribute() );
+                userIndexes.add( index );
+            }
+        }
 
-                String attributeOid = index.getAttribute().getOid();
+        if ( userIndexes.isEmpty() )
+        {
+            return;
+        }
 
-                if ( systemIndices.get( attributeOid ) != null )
-                {
-                    // skipping building of the system index
-                    continue;
-                }
-                
-                LOG.info( "building the index for attribute type {}", atType );
+        // The tuples are gathered and sorted by chunks before being added, so that
+        // the BTree pages are mostly updated in their key order
+        List<List<IndexTuple>> tuples = new ArrayList<List<IndexTuple>>();
 
-                Tuple<String, Entry> tuple = cursor.get();
+        for ( int i = 0; i < userIndexes.size(); i++ )
+        {
+            tuples.add( new ArrayList<IndexTuple>() );
+        }
 
-                String id = tuple.getKey();
-                Entry entry = tuple.getValue();
+        int nbTuples = 0;
+        Cursor<Tuple<String, Entry>> cursor = master.cursor();
+        cursor.beforeFirst();
 
-                Attribute entryAttr = entry.get( atType );
+        while ( cursor.next() )
+        {
+            Tuple<String, Entry> tuple = cursor.get();
+
+            String id = tuple.getKey();
+            Entry entry = tuple.getValue();
+
+            for ( int i = 0; i < userIndexes.size(); i++ )
+            {
+                Index<?, String> index = userIndexes.get( i );
+                Attribute entryAttr = entry.get( index.getAttribute() );
 
                 if ( entryAttr != null )
                 {
                     for ( Value<?> value : entryAttr )
                     {
-                        index.add( value.getNormValue(), id );
+                        tuples.get( i ).add( new IndexTuple( value.getNormValue(), id ) );
+                        nbTuples++;
                     }
 
                     // Adds only those attributes that are indexed
-                    presenceIdx.add( attributeOid, id );
+                    presenceIdx.add( index.getAttribute().getOid(), id );
                 }
             }
+
+            if ( nbTuples >= BUILD_CHUNK_SIZE )
+            {
+                addSorted( userIndexes, tuples );
+                nbTuples = 0;
+            }
         }
 
         cursor.close();
+
+        addSorted( userIndexes, tuples );
+    }
+
+
+    /**
+     * Sorts the gathered tuples of each index, adds them to the index, and clears them
+     */
+    @SuppressWarnings("unchecked")
+    private void addSorted( List<Index<?, String>> indexes, List<List<IndexTuple>> tuples ) throws Exception
+    {
+        for ( int i = 0; i < indexes.size(); i++ )
+        {
+            Index index = indexes.get( i );
+            List<IndexTuple> indexTuples = tuples.get( i );
+
+            Collections.sort( indexTuples );
+
+            for ( IndexTuple tuple : indexTuples )
+            {
+                index.add( tuple.key, tuple.id );
+            }
+
+            indexTuples.clear();
+        }
     }
 
 
@@ -721,6 +842,16 @@ public class JdbmPartition extends AbstractBTreePartition
             jdbmIndex.setWkDirPath( index.getWkDirPath() );
         }
 
+        if ( jdbmIndex.isMappedReads() != mappedReads )
+        {
+            jdbmIndex.setMappedReads( mappedReads );
+        }
+
+        if ( jdbmIndex.isBulkLoad() != bulkLoad )
+        {
+            jdbmIndex.setBulkLoad( bulkLoad );
+        }
+
         jdbmIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ) );
 
         return jdbmIndex;
@@ -763,7 +894,7 @@ public class JdbmPartition extends AbstractBTreePartition
         {
             if ( entryCache != null )
             {
-                entryCache.removeAll();
+                entryCache.clear();
             }
         }
 
@@ -807,9 +938,18 @@ public class JdbmPartition extends AbstractBTreePartition
     }
 
 
+    @Override
+    protected WeightedCache<String, Entry> getEntryCache()
+    {
+        return entryCache;
+    }
+
+
     @Override
     public void updateCache( OperationContext opCtx )
     {
+        updateOffHeapCache( opCtx );
+
         if ( entryCache == null )
         {
             return;
@@ -829,14 +969,14 @@ public class JdbmPartition extends AbstractBTreePartition
                     entry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
                 }
 
-                entryCache.replace( new Element( id, entry ) );
+                entryCache.replace( id, entry );
             }
             else if ( ( opCtx instanceof MoveOperationContext )
                 || ( opCtx instanceof MoveAndRenameOperationContext )
                 || ( opCtx instanceof RenameOperationContext ) )
             {
                 // clear the cache it is not worth updating all the children
-                entryCache.removeAll();
+                entryCache.clear();
             }
             else if ( opCtx instanceof DeleteOperationContext )
             {
@@ -860,14 +1000,20 @@ public class JdbmPartition extends AbstractBTreePartition
             return null;
         }
 
-        Element el = entryCache.get( id );
+        Entry entry = entryCache.get( id );
 
-        if ( el != null )
+        if ( entry == null )
         {
-            return ( Entry ) el.getValue();
+            // Promote the entries found in the off-heap cache
+            entry = lookupOffHeapCache( id );
+
+            if ( entry != null )
+            {
+                entryCache.put( id, entry );
+            }
         }
 
-        return null;
+        return entry;
     }
 
 
@@ -884,7 +1030,36 @@ public class JdbmPartition extends AbstractBTreePartition
             entry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
         }
 
-        entryCache.put( new Element( id, entry ) );
+        entryCache.put( id, entry );
+        addToOffHeapCache( id, entry );
     }
 
+
+    /**
+     * An index tuple gathered while building an index, sorted on its normalized key
+     * when it's a String
+     */
+    private static final class IndexTuple implements Comparable<IndexTuple>
+    {
+        private final Object key;
+        private final String id;
+
+
+        private IndexTuple( Object key, String id )
+        {
+            this.key = key;
+            this.id = id;
+        }
+
+
+        public int compareTo( IndexTuple that )
+        {
+            if ( ( key instanceof String ) && ( that.key instanceof String ) )
+            {
+                return ( ( String ) key ).compareTo( ( String ) that.key );
+            }
+
+            return 0;
+        }
+    }
 }
@@ -0,0 +1,532 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Base64;
+import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Builds a {@link JdbmPartition} offline from a LDIF file, without going through the
+ * interceptor chain. The produced directory can then be opened by a JdbmPartition
+ * configured with the same suffix and indexes.
+ * <br/>
+ * The build is done in three steps :
+ * <ul>
+ *   <li>The LDIF records are split in temporary files, one per Dn depth, so that the
+ *   parents are always loaded before their children, whatever the LDIF order</li>
+ *   <li>The records are parsed and normalized by batches on several threads, and the
+ *   entries are added to the partition, in order, with the JDBM transactions disabled.
+ *   Only the system indexes are maintained during this step</li>
+ *   <li>The partition is opened again with the user indexes, which are built from the
+ *   master table with their tuples sorted by chunks</li>
+ * </ul>
+ * The missing entryUUID, entryCSN, creatorsName and createTimestamp attributes are added
+ * to the entries. As the JDBM files are written without transaction, the partition
+ * directory must be deleted if the build fails.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmPartitionBuilder
+{
+    /** static logger */
+    private static final Logger LOG = LoggerFactory.getLogger( JdbmPartitionBuilder.class );
+
+    /** The number of LDIF records normalized together by a thread */
+    private static final int BATCH_SIZE = 500;
+
+    /** The name of the directory where the LDIF records are split by depth */
+    private static final String WORK_DIR = "bulk-load";
+
+    /** The schema manager */
+    private final SchemaManager schemaManager;
+
+    /** The Dn factory */
+    private final DnFactory dnFactory;
+
+    /** The partition ID */
+    private String id;
+
+    /** The partition suffix */
+    private Dn suffixDn;
+
+    /** The directory where the partition is created */
+    private File partitionDir;
+
+    /** The user indexes, with the flag telling if they have a reverse table */
+    private final Map<String, Boolean> indexes = new LinkedHashMap<String, Boolean>();
+
+    /** The number of threads parsing and normalizing the entries */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** The factory for the missing entryCSN */
+    private final CsnFactory csnFactory = new CsnFactory( 0 );
+
+
+    /**
+     * Creates a new instance of JdbmPartitionBuilder.
+     *
+     * @param schemaManager The schema manager
+     * @param dnFactory The Dn factory used by the partition
+     */
+    public JdbmPartitionBuilder( SchemaManager schemaManager, DnFactory dnFactory )
+    {
+        this.schemaManager = schemaManager;
+        this.dnFactory = dnFactory;
+    }
+
+
+    /**
+     * @param id The partition ID
+     */
+    public void setId( String id )
+    {
+        this.id = id;
+    }
+
+
+    /**
+     * @param suffixDn The partition suffix
+     */
+    public void setSuffixDn( Dn suffixDn )
+    {
+        this.suffixDn = suffixDn;
+    }
+
+
+    /**
+     * @param partitionDir The directory where the partition is created. It must not
+     * already contain a partition
+     */
+    public void setPartitionDir( File partitionDir )
+    {
+        this.partitionDir = partitionDir;
+    }
+
+
+    /**
+     * Adds an user index, which must be configured the same way on the partition using
+     * the built files.
+     *
+     * @param attributeId The indexed attribute
+     * @param withReverse Tells if the index has a reverse table
+     */
+    public void addIndex( String attributeId, boolean withReverse )
+    {
+        indexes.put( attributeId, withReverse );
+    }
+
+
+    /**
+     * @param threads The number of threads parsing and normalizing the entries. Defaults
+     * to the number of processors
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = Math.max( 1, threads );
+    }
+
+
+    /**
+     * Builds the partition from a LDIF file containing entries
+     *
+     * @param ldifFile The LDIF file
+     * @return The number of loaded entries
+     * @throws Exception If the LDIF file is invalid, or if the partition can't be written
+     */
+    public long build( File ldifFile ) throws Exception
+    {
+        if ( new File( partitionDir, "master.db" ).exists() )
+        {
+            throw new IOException( "The directory " + partitionDir + " already contains a partition" );
+        }
+
+        File workDir = new File( partitionDir, WORK_DIR );
+
+        if ( !workDir.exists() && !workDir.mkdirs() )
+        {
+            throw new IOException( "Cannot create the directory " + workDir );
+        }
+
+        try
+        {
+            long start = System.currentTimeMillis();
+            List<File> levels = splitLevels( ldifFile, workDir );
+
+            long count = load( levels );
+            LOG.info( "Loaded {} entries in the {} partition in {} ms", count, id, System.currentTimeMillis()
+                - start );
+
+            if ( !indexes.isEmpty() )
+            {
+                // The indexes with no file are built when the partition is initialized
+                JdbmPartition partition = createPartition( true );
+                partition.destroy();
+                LOG.info( "Built the {} partition indexes in {} ms", id, System.currentTimeMillis() - start );
+            }
+
+            return count;
+        }
+        finally
+        {
+            File[] files = workDir.listFiles();
+
+            if ( files != null )
+            {
+                for ( File file : files )
+                {
+                    file.delete();
+                }
+            }
+
+            workDir.delete();
+        }
+    }
+
+
+    /**
+     * Copies the LDIF records in one file per Dn depth, and returns the files sorted by depth
+     */
+    private List<File> splitLevels( File ldifFile, File workDir ) throws IOException, LdapException
+    {
+        Map<Integer, Writer> writers = new TreeMap<Integer, Writer>();
+        List<File> levels = new ArrayList<File>();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( ldifFile ), "UTF-8" ) );
+
+        try
+        {
+            List<String> record = new ArrayList<String>();
+            String line;
+
+            do
+            {
+                line = reader.readLine();
+
+                if ( ( line == null ) || ( line.length() == 0 ) )
+                {
+                    String dn = getDn( record );
+
+                    if ( dn != null )
+                    {
+                        int depth = new Dn( dn ).size();
+                        Writer writer = writers.get( depth );
+
+                        if ( writer == null )
+                        {
+                            File level = new File( workDir, "level-" + depth + ".ldif" );
+                            writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( level ), "UTF-8" ) );
+                            writers.put( depth, writer );
+                        }
+
+                        for ( String recordLine : record )
+                        {
+                            writer.write( recordLine );
+                            writer.write( '\n' );
+                        }
+
+                        writer.write( '\n' );
+                    }
+
+                    record.clear();
+                }
+                else if ( !line.startsWith( "#" ) )
+                {
+                    record.add( line );
+                }
+            }
+            while ( line != null );
+        }
+        finally
+        {
+            reader.close();
+
+            for ( Writer writer : writers.values() )
+            {
+                writer.close();
+            }
+        }
+
+        for ( Integer depth : writers.keySet() )
+        {
+            levels.add( new File( workDir, "level-" + depth + ".ldif" ) );
+        }
+
+        return levels;
+    }
+
+
+    /**
+     * Reads the Dn of a LDIF record, which may be folded or base64 encoded. Returns null for
+     * a record without Dn, like the version record.
+     */
+    private String getDn( List<String> record )
+    {
+        if ( record.isEmpty() || !Strings.toLowerCase( record.get( 0 ) ).startsWith( "dn:" ) )
+        {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder( record.get( 0 ).substring( 3 ) );
+
+        for ( int i = 1; ( i < record.size() ) && record.get( i ).startsWith( " " ); i++ )
+        {
+            sb.append( record.get( i ).substring( 1 ) );
+        }
+
+        if ( ( sb.length() > 0 ) && ( sb.charAt( 0 ) == ':' ) )
+        {
+            return Strings.utf8ToString( Base64.decode( sb.substring( 1 ).trim().toCharArray() ) );
+        }
+
+        return sb.toString().trim();
+    }
+
+
+    /**
+     * Loads the entries of each level, parsing the batches in parallel, and adding them in order
+     */
+    private long load( List<File> levels ) throws Exception
+    {
+        JdbmPartition partition = createPartition( false );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        LinkedList<Future<List<Entry>>> batches = new LinkedList<Future<List<Entry>>>();
+        long count = 0;
+
+        try
+        {
+            for ( File level : levels )
+            {
+                BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( level ),
+                    "UTF-8" ) );
+
+                try
+                {
+                    StringBuilder batch = new StringBuilder();
+                    int nbRecords = 0;
+                    String line;
+
+                    while ( ( line = reader.readLine() ) != null )
+                    {
+                        batch.append( line ).append( '\n' );
+
+                        if ( ( line.length() == 0 ) && ( ++nbRecords == BATCH_SIZE ) )
+                        {
+                            batches.add( executor.submit( new Normalizer( batch.toString() ) ) );
+                            batch.setLength( 0 );
+                            nbRecords = 0;
+
+                            // Don't parse too far ahead of the writes
+                            if ( batches.size() > threads * 2 )
+                            {
+                                count += add( partition, batches.removeFirst() );
+                            }
+                        }
+                    }
+
+                    if ( nbRecords > 0 )
+                    {
+                        batches.add( executor.submit( new Normalizer( batch.toString() ) ) );
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+
+            while ( !batches.isEmpty() )
+            {
+                count += add( partition, batches.removeFirst() );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            partition.destroy();
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Adds the entries of a normalized batch to the partition
+     */
+    private int add( JdbmPartition partition, Future<List<Entry>> batch ) throws Exception
+    {
+        List<Entry> entries = null;
+
+        try
+        {
+            entries = batch.get();
+        }
+        catch ( ExecutionException ee )
+        {
+            if ( ee.getCause() instanceof Exception )
+            {
+                throw ( Exception ) ee.getCause();
+            }
+
+            throw ee;
+        }
+
+        for ( Entry entry : entries )
+        {
+            partition.add( new AddOperationContext( null, entry ) );
+        }
+
+        return entries.size();
+    }
+
+
+    /**
+     * Creates and initializes the partition, with or without its user indexes
+     */
+    private JdbmPartition createPartition( boolean withIndexes ) throws Exception
+    {
+        JdbmPartition partition = new JdbmPartition( schemaManager, dnFactory );
+        partition.setId( id );
+        partition.setSuffixDn( suffixDn );
+        partition.setPartitionPath( partitionDir.toURI() );
+        partition.setSyncOnWrite( false );
+        partition.setBulkLoad( true );
+
+        if ( withIndexes )
+        {
+            for ( Map.Entry<String, Boolean> index : indexes.entrySet() )
+            {
+                JdbmIndex<Object> jdbmIndex = new JdbmIndex<Object>( index.getKey(), index.getValue() );
+                jdbmIndex.setWkDirPath( partitionDir.toURI() );
+
+                // Declared as indexed attributes, so that the missing index files get built
+                partition.addIndexedAttributes( jdbmIndex );
+            }
+        }
+
+        partition.initialize();
+
+        return partition;
+    }
+
+
+    /**
+     * Parses and normalizes a batch of LDIF records, adding the missing operational attributes
+     */
+    private final class Normalizer implements Callable<List<Entry>>
+    {
+        /** The LDIF records */
+        private final String records;
+
+
+        private Normalizer( String records )
+        {
+            this.records = records;
+        }
+
+
+        public List<Entry> call() throws Exception
+        {
+            List<Entry> entries = new ArrayList<Entry>();
+            LdifReader reader = new LdifReader( schemaManager );
+
+            try
+            {
+                for ( LdifEntry ldifEntry : reader.parseLdif( records ) )
+                {
+                    if ( !ldifEntry.isLdifContent() )
+                    {
+                        throw new LdapException( "Only entries can be loaded, not changes : " + ldifEntry.getDn() );
+                    }
+
+                    Entry entry = new DefaultEntry( schemaManager, ldifEntry.getEntry() );
+
+                    if ( !entry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
+                    {
+                        entry.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+                    }
+
+                    if ( !entry.containsAttribute( SchemaConstants.ENTRY_CSN_AT ) )
+                    {
+                        synchronized ( csnFactory )
+                        {
+                            entry.add( SchemaConstants.ENTRY_CSN_AT, csnFactory.newInstance().toString() );
+                        }
+                    }
+
+                    if ( !entry.containsAttribute( SchemaConstants.CREATORS_NAME_AT ) )
+                    {
+                        entry.add( SchemaConstants.CREATORS_NAME_AT, ServerDNConstants.ADMIN_SYSTEM_DN );
+                    }
+
+                    if ( !entry.containsAttribute( SchemaConstants.CREATE_TIMESTAMP_AT ) )
+                    {
+                        entry.add( SchemaConstants.CREATE_TIMESTAMP_AT, DateUtils.getGeneralizedTime() );
+                    }
+
+                    entries.add( entry );
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            return entries;
+        }
+    }
+}
@@ -29,8 +29,6 @@ import jdbm.btree.BTree;
 import jdbm.helper.Serializer;
 import jdbm.helper.Tuple;
 import jdbm.helper.TupleBrowser;
-import jdbm.recman.BaseRecordManager;
-import jdbm.recman.CacheRecordManager;
 
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
@@ -975,21 +973,10 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
         // Commit
         recMan.commit();
 
-        // And flush the journal
-        if ( ( commitNumber.get() % 2000 ) == 0 )
+        // And flush the journal. The mapped reads are disabled until it's done
+        if ( ( ( commitNumber.get() % 2000 ) == 0 ) || MappedRecordManager.isMapped( recMan ) )
         {
-            BaseRecordManager baseRecordManager = null;
-
-            if ( recMan instanceof CacheRecordManager )
-            {
-                baseRecordManager = ( ( BaseRecordManager ) ( ( CacheRecordManager ) recMan ).getRecordManager() );
-            }
-            else
-            {
-                baseRecordManager = ( ( BaseRecordManager ) recMan );
-            }
-
-            baseRecordManager.getTransactionManager().synchronizeLog();
+            MappedRecordManager.synchronizeLog( recMan );
         }
     }
 
@@ -0,0 +1,666 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jdbm.RecordManager;
+import jdbm.helper.DefaultSerializer;
+import jdbm.helper.Serializer;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.CacheRecordManager;
+import jdbm.recman.Magic;
+import jdbm.recman.RecordFile;
+import jdbm.recman.TransactionManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A RecordManager reading the records of a JDBM file through a read only memory mapping,
+ * instead of the synchronized RandomAccessFile reads of the BaseRecordManager. A cold fetch
+ * is then served by the OS page cache, with no system call and no lock on the record manager.
+ * <br/>
+ * The mapping only reflects what has been written in the .db file. As the modified blocks
+ * are first kept in memory, then in the transaction log, the mapped reads are disabled as
+ * soon as a record is modified, and enabled again when the log has been synchronized with
+ * the file by {@link #synchronizeLog()}. In between, the records are fetched by the
+ * BaseRecordManager. The writes are always done by the BaseRecordManager.
+ * <br/>
+ * The records are decoded the way the jdbm.recman package does it : the record ID is the
+ * location of a slot in a translation page, which contains the location of the record
+ * header in a data page. The record data follows the header, and continues in the next
+ * pages of the used pages list if it's too big for one page.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MappedRecordManager implements RecordManager
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( MappedRecordManager.class );
+
+    /** The size of the mapped regions. A multiple of the block size, so that a block is never split */
+    private static final long REGION_SIZE = 256L * 1024L * 1024L;
+
+    /** The size of a block */
+    private static final int BLOCK_SIZE = RecordFile.BLOCK_SIZE;
+
+    /** The position of the next page ID in a page header */
+    private static final int PAGE_NEXT = 2;
+
+    /** The size of a page header */
+    private static final int PAGE_HEADER_SIZE = 18;
+
+    /** The position of the data in a data page */
+    private static final int DATA_START = PAGE_HEADER_SIZE + 2;
+
+    /** The size of a physical row ID : a block ID and an offset */
+    private static final int PHYSICAL_ID_SIZE = 10;
+
+    /** The size of a record header : the current and the available sizes */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** The magic number of a used data page */
+    private static final short USED_PAGE_MAGIC = Magic.BLOCK + Magic.USED_PAGE;
+
+    /** The magic number of a translation page */
+    private static final short TRANSLATION_PAGE_MAGIC = Magic.BLOCK + Magic.TRANSLATION_PAGE;
+
+    /** The record manager which does the writes, and the reads the mapping can't serve */
+    private final BaseRecordManager base;
+
+    /** The .db file */
+    private final RandomAccessFile file;
+
+    /** The mapped regions of the .db file */
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    /** The mapped size */
+    private long mappedSize;
+
+    /** Tells if the .db file contains all the modifications done on the record manager */
+    private volatile boolean inSync;
+
+    /**
+     * The mapped reads and the writes hold the read lock, the operations which write in
+     * the .db file or change the synchronized flag hold the write lock
+     */
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    /** The number of records read through the mapping */
+    private final AtomicLong mappedFetches = new AtomicLong();
+
+    /** The number of records read by the BaseRecordManager */
+    private final AtomicLong fileFetches = new AtomicLong();
+
+
+    /**
+     * Creates a new instance of MappedRecordManager.
+     *
+     * @param base The BaseRecordManager opened on the file
+     * @param path The file path, without the .db extension, as given to the BaseRecordManager
+     * @throws IOException If the file can't be mapped
+     */
+    public MappedRecordManager( BaseRecordManager base, String path ) throws IOException
+    {
+        this.base = base;
+        file = new RandomAccessFile( new File( path + ".db" ), "r" );
+
+        // The BaseRecordManager has recovered the transaction log on opening
+        map();
+        inSync = true;
+    }
+
+
+    /**
+     * @return The BaseRecordManager
+     */
+    public BaseRecordManager getBaseRecordManager()
+    {
+        return base;
+    }
+
+
+    /**
+     * Writes the transaction log in the .db file, and enables the mapped reads until the
+     * next modification.
+     *
+     * @throws IOException If the log can't be written
+     */
+    public void synchronizeLog() throws IOException
+    {
+        fileLock.writeLock().lock();
+
+        try
+        {
+            base.commit();
+            synchronizeLog( base );
+            map();
+            inSync = true;
+        }
+        finally
+        {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the records are currently read through the mapping
+     */
+    public boolean isInSync()
+    {
+        return inSync;
+    }
+
+
+    /**
+     * @return The number of records read through the mapping
+     */
+    public long getMappedFetchCount()
+    {
+        return mappedFetches.get();
+    }
+
+
+    /**
+     * @return The number of records read by the BaseRecordManager
+     */
+    public long getFileFetchCount()
+    {
+        return fileFetches.get();
+    }
+
+
+    /**
+     * Writes the transaction log of a record manager in its file.
+     *
+     * @param recMan The record manager, a BaseRecordManager or a MappedRecordManager,
+     * possibly wrapped in a CacheRecordManager
+     * @throws IOException If the log can't be written
+     */
+    public static void synchronizeLog( RecordManager recMan ) throws IOException
+    {
+        RecordManager store = getStore( recMan );
+
+        if ( store instanceof MappedRecordManager )
+        {
+            ( ( MappedRecordManager ) store ).synchronizeLog();
+        }
+        else
+        {
+            synchronizeLog( ( BaseRecordManager ) store );
+        }
+    }
+
+
+    /**
+     * Writes the transaction log in the file, if the transactions are enabled. They are
+     * disabled when a partition is bulk loaded, and the records are then directly written
+     * in the file.
+     */
+    private static void synchronizeLog( BaseRecordManager base ) throws IOException
+    {
+        TransactionManager transactionManager = null;
+
+        try
+        {
+            transactionManager = base.getTransactionManager();
+        }
+        catch ( IllegalStateException ise )
+        {
+            // The transactions are disabled
+            return;
+        }
+
+        transactionManager.synchronizeLog();
+    }
+
+
+    /**
+     * Tells if a record manager reads its records through a memory mapping.
+     *
+     * @param recMan The record manager, possibly wrapped in a CacheRecordManager
+     * @return <code>true</code> if the record manager is a MappedRecordManager
+     */
+    public static boolean isMapped( RecordManager recMan )
+    {
+        return getStore( recMan ) instanceof MappedRecordManager;
+    }
+
+
+    private static RecordManager getStore( RecordManager recMan )
+    {
+        if ( recMan instanceof CacheRecordManager )
+        {
+            return ( ( CacheRecordManager ) recMan ).getRecordManager();
+        }
+
+        return recMan;
+    }
+
+
+    /**
+     * Maps the regions of the file which are not yet mapped. The last region is mapped
+     * again if the file has grown.
+     */
+    private void map() throws IOException
+    {
+        FileChannel channel = file.getChannel();
+        long size = channel.size();
+
+        if ( size == mappedSize )
+        {
+            return;
+        }
+
+        int count = ( int ) ( ( size + REGION_SIZE - 1 ) / REGION_SIZE );
+        MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+        int reused = ( int ) ( mappedSize / REGION_SIZE );
+        System.arraycopy( regions, 0, mapped, 0, Math.min( reused, regions.length ) );
+
+        for ( int i = reused; i < count; i++ )
+        {
+            long position = i * REGION_SIZE;
+            mapped[i] = channel.map( FileChannel.MapMode.READ_ONLY, position, Math.min( REGION_SIZE, size - position ) );
+        }
+
+        LOG.debug( "Mapped {} bytes of {}", size, file );
+        regions = mapped;
+        mappedSize = size;
+    }
+
+
+    /**
+     * Gets the region containing a block.
+     *
+     * @return The region, or null if the block is not mapped
+     */
+    private ByteBuffer region( long blockId )
+    {
+        MappedByteBuffer[] current = regions;
+        long position = blockId * BLOCK_SIZE;
+        int index = ( int ) ( position / REGION_SIZE );
+
+        if ( ( blockId < 0 ) || ( index >= current.length )
+            || ( ( position % REGION_SIZE ) + BLOCK_SIZE > current[index].capacity() ) )
+        {
+            return null;
+        }
+
+        return current[index];
+    }
+
+
+    /**
+     * Reads a long the way jdbm's BlockIo does it.
+     */
+    private static long readLong( ByteBuffer buffer, int position )
+    {
+        return ( ( long ) buffer.getInt( position ) << 32 ) | buffer.getInt( position + 4 );
+    }
+
+
+    /**
+     * Reads a record from the mapping.
+     *
+     * @param recid The record ID
+     * @return The record bytes, or null if the structure found in the file is not the expected one
+     */
+    private byte[] read( long recid )
+    {
+        // The record ID is the location of a physical row ID in a translation page
+        long translationBlock = recid >>> 16;
+        int slot = ( int ) ( recid & 0xFFFF );
+        ByteBuffer region = region( translationBlock );
+
+        if ( ( region == null ) || ( slot < PAGE_HEADER_SIZE ) || ( slot + PHYSICAL_ID_SIZE > BLOCK_SIZE ) )
+        {
+            return null;
+        }
+
+        int page = ( int ) ( ( translationBlock * BLOCK_SIZE ) % REGION_SIZE );
+
+        if ( region.getShort( page ) != TRANSLATION_PAGE_MAGIC )
+        {
+            return null;
+        }
+
+        // The physical row ID is the location of the record header in a data page
+        long dataBlock = readLong( region, page + slot );
+        int offset = region.getShort( page + slot + 8 );
+        region = region( dataBlock );
+
+        if ( ( region == null ) || ( offset < DATA_START ) || ( offset + RECORD_HEADER_SIZE > BLOCK_SIZE ) )
+        {
+            return null;
+        }
+
+        page = ( int ) ( ( dataBlock * BLOCK_SIZE ) % REGION_SIZE );
+        int size = region.getInt( page + offset );
+
+        if ( ( region.getShort( page ) != USED_PAGE_MAGIC ) || ( size < 0 )
+            || ( size > region.getInt( page + offset + 4 ) ) )
+        {
+            return null;
+        }
+
+        // The data follows the header, and continues on the next pages
+        byte[] data = new byte[size];
+        int copied = 0;
+        int start = offset + RECORD_HEADER_SIZE;
+
+        while ( copied < size )
+        {
+            int length = Math.min( size - copied, BLOCK_SIZE - start );
+            ByteBuffer view = region.duplicate();
+            view.position( page + start );
+            view.get( data, copied, length );
+            copied += length;
+
+            if ( copied < size )
+            {
+                dataBlock = readLong( region, page + PAGE_NEXT );
+                region = region( dataBlock );
+
+                if ( region == null )
+                {
+                    return null;
+                }
+
+                page = ( int ) ( ( dataBlock * BLOCK_SIZE ) % REGION_SIZE );
+
+                if ( region.getShort( page ) != USED_PAGE_MAGIC )
+                {
+                    return null;
+                }
+
+                start = DATA_START;
+            }
+        }
+
+        return data;
+    }
+
+
+    /**
+     * Disables the mapped reads before a modification.
+     */
+    private void modifying()
+    {
+        inSync = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object fetch( long recid, Serializer serializer ) throws IOException
+    {
+        if ( inSync && ( recid > 0 ) )
+        {
+            byte[] data = null;
+            fileLock.readLock().lock();
+
+            try
+            {
+                if ( inSync )
+                {
+                    data = read( recid );
+                }
+            }
+            finally
+            {
+                fileLock.readLock().unlock();
+            }
+
+            if ( data != null )
+            {
+                mappedFetches.incrementAndGet();
+
+                return serializer.deserialize( data );
+            }
+        }
+
+        fileFetches.incrementAndGet();
+
+        return base.fetch( recid, serializer );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object fetch( long recid ) throws IOException
+    {
+        return fetch( recid, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long insert( Object obj ) throws IOException
+    {
+        return insert( obj, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long insert( Object obj, Serializer serializer ) throws IOException
+    {
+        fileLock.readLock().lock();
+
+        try
+        {
+            modifying();
+
+            return base.insert( obj, serializer );
+        }
+        finally
+        {
+            fileLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete( long recid ) throws IOException
+    {
+        fileLock.readLock().lock();
+
+        try
+        {
+            modifying();
+            base.delete( recid );
+        }
+        finally
+        {
+            fileLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update( long recid, Object obj ) throws IOException
+    {
+        update( recid, obj, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update( long recid, Object obj, Serializer serializer ) throws IOException
+    {
+        fileLock.readLock().lock();
+
+        try
+        {
+            modifying();
+            base.update( recid, obj, serializer );
+        }
+        finally
+        {
+            fileLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getRootCount()
+    {
+        return base.getRootCount();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRoot( int id ) throws IOException
+    {
+        return base.getRoot( id );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setRoot( int id, long rowid ) throws IOException
+    {
+        fileLock.readLock().lock();
+
+        try
+        {
+            modifying();
+            base.setRoot( id, rowid );
+        }
+        finally
+        {
+            fileLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getNamedObject( String name ) throws IOException
+    {
+        return base.getNamedObject( name );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setNamedObject( String name, long recid ) throws IOException
+    {
+        fileLock.readLock().lock();
+
+        try
+        {
+            modifying();
+            base.setNamedObject( name, recid );
+        }
+        finally
+        {
+            fileLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void commit() throws IOException
+    {
+        // The commit may synchronize the log with the file when it's full
+        fileLock.writeLock().lock();
+
+        try
+        {
+            base.commit();
+        }
+        finally
+        {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rollback() throws IOException
+    {
+        fileLock.writeLock().lock();
+
+        try
+        {
+            modifying();
+            base.rollback();
+        }
+        finally
+        {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException
+    {
+        fileLock.writeLock().lock();
+
+        try
+        {
+            inSync = false;
+            regions = new MappedByteBuffer[0];
+            mappedSize = 0;
+            file.close();
+            base.close();
+        }
+        finally
+        {
+            fileLock.writeLock().unlock();
+        }
+    }
+}
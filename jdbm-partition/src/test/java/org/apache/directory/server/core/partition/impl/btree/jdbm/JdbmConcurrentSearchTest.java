@@ -0,0 +1,244 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.MockCoreSession;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Test the searches on a JdbmPartition modified while their entries are returned. The
+ * JDBM browsers are not protected against the concurrent modifications, so the candidates
+ * must have been gathered before the first entry is returned.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmConcurrentSearchTest
+{
+    /** The number of entries which are not modified during the search */
+    private static final int STABLE_COUNT = 300;
+
+    /** The number of entries deleted during the search */
+    private static final int DOOMED_COUNT = 100;
+
+    private static SchemaManager schemaManager;
+    private static CacheService cacheService;
+
+    private File wkdir;
+    private JdbmPartition store;
+    private CoreSession session;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = JdbmConcurrentSearchTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+    }
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+
+        store = new JdbmPartition( schemaManager, new DefaultDnFactory( schemaManager,
+            cacheService.getCache( "dnCache" ) ) );
+        store.setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+
+        JdbmIndex ouIndex = new JdbmIndex( SchemaConstants.OU_AT_OID, false );
+        ouIndex.setWkDirPath( wkdir.toURI() );
+        store.addIndex( ouIndex );
+
+        store.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        store.setCacheService( cacheService );
+        store.initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        for ( int i = 0; i < STABLE_COUNT; i++ )
+        {
+            addOu( "stable" + i, 1000 + i );
+        }
+
+        for ( int i = 0; i < DOOMED_COUNT; i++ )
+        {
+            addOu( "doomed" + i, 2000 + i );
+        }
+
+        DirectoryService directoryService = new MockDirectoryService();
+        directoryService.setSchemaManager( schemaManager );
+        session = new MockCoreSession( new LdapPrincipal(), directoryService );
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            store.destroy();
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    private void addOu( String ou, long index ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "ou=" + ou + ",o=Good Times Co.",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou", ou );
+
+        StoreUtils.injectEntryInStore( store, entry, index );
+    }
+
+
+    /**
+     * Adds and deletes some entries while the result of a search on the ou index is read :
+     * the entries which have not been modified must be returned exactly once.
+     */
+    @Test
+    public void testModificationsDuringSearch() throws Exception
+    {
+        SearchOperationContext searchContext = new SearchOperationContext( session );
+        searchContext.setDn( store.getSuffixDn() );
+        searchContext.setScope( SearchScope.SUBTREE );
+        searchContext.setFilter( FilterParser.parse( schemaManager, "(ou=*)" ) );
+        searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+
+        PartitionSearchResult searchResult = store.getSearchEngine().computeResult( schemaManager, searchContext );
+
+        EntryCursorAdaptor cursor = new EntryCursorAdaptor( store, searchResult );
+        Set<String> uuids = new HashSet<String>();
+        int returned = 0;
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                Entry entry = cursor.get();
+
+                if ( entry == null )
+                {
+                    continue;
+                }
+
+                assertTrue( entry.getDn().toString(), uuids.add( entry.get( SchemaConstants.ENTRY_UUID_AT )
+                    .getString() ) );
+                returned++;
+
+                // Modify the B-trees the candidates are read from
+                if ( returned <= DOOMED_COUNT )
+                {
+                    store.delete( Strings.getUUID( 2000 + returned - 1 ).toString() );
+                    addOu( "new" + returned, 3000 + returned );
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        for ( int i = 0; i < STABLE_COUNT; i++ )
+        {
+            assertTrue( "ou=stable" + i, uuids.contains( Strings.getUUID( 1000 + i ).toString() ) );
+        }
+
+        // Nothing added during the search has been returned
+        for ( int i = 1; i <= DOOMED_COUNT; i++ )
+        {
+            assertFalse( "ou=new" + i, uuids.contains( Strings.getUUID( 3000 + i ).toString() ) );
+        }
+    }
+}
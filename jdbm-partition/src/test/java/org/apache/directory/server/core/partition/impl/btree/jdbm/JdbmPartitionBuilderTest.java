@@ -0,0 +1,263 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.Index;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the JdbmPartitionBuilder : the built partition must be readable and writable by
+ * a JdbmPartition.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmPartitionBuilderTest
+{
+    private static SchemaManager schemaManager;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+
+    /** The number of users in the LDIF file */
+    private static final int USERS = 1200;
+
+    private File wkdir;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = JdbmPartitionBuilderTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        schemaManager = new DefaultSchemaManager( new LdifSchemaLoader( schemaRepository ) );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager, cacheService.getCache( "dnCache" ) );
+    }
+
+
+    @Before
+    public void createDir() throws Exception
+    {
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        FileUtils.deleteDirectory( wkdir );
+        wkdir.mkdirs();
+    }
+
+
+    @After
+    public void deleteDir() throws Exception
+    {
+        FileUtils.deleteDirectory( wkdir );
+    }
+
+
+    /**
+     * Writes the users before their parent, and the context entry last
+     */
+    private File writeLdif() throws Exception
+    {
+        File ldif = new File( wkdir, "data.ldif" );
+        Writer writer = new OutputStreamWriter( new FileOutputStream( ldif ), "UTF-8" );
+
+        try
+        {
+            writer.write( "version: 1\n\n" );
+
+            for ( int i = 0; i < USERS; i++ )
+            {
+                writer.write( "# user " + i + "\n" );
+                writer.write( "dn: cn=user " + i + ",ou=people,dc=example,dc=com\n" );
+                writer.write( "objectClass: top\n" );
+                writer.write( "objectClass: person\n" );
+                writer.write( "cn: user " + i + "\n" );
+                writer.write( "sn: " + ( i % 10 ) + "\n\n" );
+            }
+
+            // A base64 encoded Dn
+            writer.write( "dn:: b3U9cGVvcGxlLGRjPWV4YW1wbGUsZGM9Y29t\n" );
+            writer.write( "objectClass: top\n" );
+            writer.write( "objectClass: organizationalUnit\n" );
+            writer.write( "ou: people\n\n" );
+
+            writer.write( "dn: dc=example,dc=com\n" );
+            writer.write( "objectClass: top\n" );
+            writer.write( "objectClass: domain\n" );
+            writer.write( "dc: example\n" );
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        return ldif;
+    }
+
+
+    private JdbmPartition openPartition( File partitionDir ) throws Exception
+    {
+        JdbmPartition partition = new JdbmPartition( schemaManager, dnFactory );
+        partition.setId( "example" );
+        partition.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+        partition.setPartitionPath( partitionDir.toURI() );
+        partition.setCacheService( cacheService );
+        partition.addIndex( new JdbmIndex<Object>( SchemaConstants.CN_AT_OID, false ) );
+        partition.addIndex( new JdbmIndex<Object>( SchemaConstants.SN_AT_OID, false ) );
+        partition.initialize();
+
+        return partition;
+    }
+
+
+    @Test
+    public void testBuild() throws Exception
+    {
+        File partitionDir = new File( wkdir, "example" );
+
+        JdbmPartitionBuilder builder = new JdbmPartitionBuilder( schemaManager, dnFactory );
+        builder.setId( "example" );
+        builder.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+        builder.setPartitionDir( partitionDir );
+        builder.addIndex( SchemaConstants.CN_AT_OID, false );
+        builder.addIndex( SchemaConstants.SN_AT_OID, false );
+        builder.setThreads( 3 );
+
+        assertEquals( USERS + 2, builder.build( writeLdif() ) );
+        assertFalse( new File( partitionDir, "bulk-load" ).exists() );
+
+        // A second build in the same directory is refused
+        try
+        {
+            builder.build( writeLdif() );
+            fail();
+        }
+        catch ( Exception e )
+        {
+            // Expected
+        }
+
+        JdbmPartition partition = openPartition( partitionDir );
+
+        try
+        {
+            assertEquals( USERS + 2, partition.count() );
+
+            Dn dn = new Dn( schemaManager, "cn=user 42,ou=people,dc=example,dc=com" );
+            assertTrue( partition.hasEntry( new HasEntryOperationContext( null, dn ) ) );
+
+            String id = partition.getEntryId( dn );
+            assertNotNull( id );
+
+            Entry entry = partition.fetch( id, dn );
+            assertTrue( entry.contains( SchemaConstants.SN_AT, "2" ) );
+            assertNotNull( entry.get( SchemaConstants.ENTRY_CSN_AT ) );
+            assertNotNull( entry.get( SchemaConstants.CREATE_TIMESTAMP_AT ) );
+
+            // The user indexes have been built
+            Index<String, String> cnIndex = ( Index<String, String> ) partition.getUserIndex( schemaManager
+                .getAttributeType( SchemaConstants.CN_AT ) );
+            assertEquals( id, cnIndex.forwardLookup( "user 42" ) );
+            assertEquals( USERS, cnIndex.count() );
+
+            Index<String, String> snIndex = ( Index<String, String> ) partition.getUserIndex( schemaManager
+                .getAttributeType( SchemaConstants.SN_AT ) );
+            assertEquals( USERS / 10, snIndex.count( "2" ) );
+
+            assertEquals( USERS, partition.getChildCount( partition.getEntryId( new Dn( schemaManager,
+                "ou=people,dc=example,dc=com" ) ) ) );
+
+            // The partition can be modified with the transactions enabled
+            partition.modify( dn, new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                new DefaultAttribute( schemaManager.getAttributeType( SchemaConstants.SN_AT ), "modified" ) ) );
+        }
+        finally
+        {
+            partition.destroy();
+        }
+
+        partition = openPartition( partitionDir );
+
+        try
+        {
+            Dn dn = new Dn( schemaManager, "cn=user 42,ou=people,dc=example,dc=com" );
+            assertTrue( partition.hasEntry( new HasEntryOperationContext( null, dn ) ) );
+
+            Entry entry = partition.fetch( partition.getEntryId( dn ), dn );
+            assertTrue( entry.contains( SchemaConstants.SN_AT, "modified" ) );
+            assertNull( partition.getEntryId( new Dn( schemaManager, "cn=user " + USERS
+                + ",ou=people,dc=example,dc=com" ) ) );
+        }
+        finally
+        {
+            partition.destroy();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.ByteArraySerializer;
+import jdbm.helper.IntegerComparator;
+import jdbm.helper.IntegerSerializer;
+import jdbm.helper.MRU;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.CacheRecordManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the MappedRecordManager.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MappedRecordManagerTest
+{
+    private File dbFile;
+
+    private MappedRecordManager recMan;
+
+
+    @Before
+    public void open() throws Exception
+    {
+        dbFile = File.createTempFile( getClass().getSimpleName(), "db" );
+        recMan = new MappedRecordManager( new BaseRecordManager( dbFile.getAbsolutePath() ), dbFile.getAbsolutePath() );
+    }
+
+
+    @After
+    public void close() throws Exception
+    {
+        if ( recMan != null )
+        {
+            recMan.close();
+        }
+
+        new File( dbFile.getAbsolutePath() + ".db" ).delete();
+        new File( dbFile.getAbsolutePath() + ".lg" ).delete();
+        dbFile.delete();
+    }
+
+
+    private static byte[] record( int size, int seed )
+    {
+        byte[] bytes = new byte[size];
+
+        for ( int i = 0; i < size; i++ )
+        {
+            bytes[i] = ( byte ) ( i * 31 + seed );
+        }
+
+        return bytes;
+    }
+
+
+    /**
+     * Test that the records, including the ones spanning over several pages, are read
+     * through the mapping once the log is synchronized.
+     */
+    @Test
+    public void testMappedFetch() throws Exception
+    {
+        long[] recids = new long[300];
+
+        for ( int i = 0; i < recids.length; i++ )
+        {
+            recids[i] = recMan.insert( record( 1 + i * 97, i ), ByteArraySerializer.INSTANCE );
+        }
+
+        recMan.synchronizeLog();
+        assertTrue( recMan.isInSync() );
+
+        for ( int i = 0; i < recids.length; i++ )
+        {
+            assertArrayEquals( record( 1 + i * 97, i ), ( byte[] ) recMan.fetch( recids[i], ByteArraySerializer.INSTANCE ) );
+        }
+
+        // The same bytes as the ones read by the BaseRecordManager
+        for ( int i = 0; i < recids.length; i++ )
+        {
+            assertArrayEquals( ( byte[] ) recMan.getBaseRecordManager().fetch( recids[i], ByteArraySerializer.INSTANCE ),
+                ( byte[] ) recMan.fetch( recids[i], ByteArraySerializer.INSTANCE ) );
+        }
+
+        assertEquals( 2 * recids.length, recMan.getMappedFetchCount() );
+        assertEquals( 0, recMan.getFileFetchCount() );
+    }
+
+
+    /**
+     * Test that a modification suspends the mapped reads until the next synchronization
+     */
+    @Test
+    public void testModificationSuspendsMappedReads() throws Exception
+    {
+        long recid = recMan.insert( record( 100, 1 ), ByteArraySerializer.INSTANCE );
+        long other = recMan.insert( record( 100, 2 ), ByteArraySerializer.INSTANCE );
+        recMan.synchronizeLog();
+
+        // Grow the record, so that it's moved
+        recMan.update( recid, record( 20000, 3 ), ByteArraySerializer.INSTANCE );
+        recMan.delete( other );
+        assertFalse( recMan.isInSync() );
+        assertArrayEquals( record( 20000, 3 ), ( byte[] ) recMan.fetch( recid, ByteArraySerializer.INSTANCE ) );
+        assertEquals( 0, recMan.getMappedFetchCount() );
+        assertEquals( 1, recMan.getFileFetchCount() );
+
+        recMan.synchronizeLog();
+        assertArrayEquals( record( 20000, 3 ), ( byte[] ) recMan.fetch( recid, ByteArraySerializer.INSTANCE ) );
+        assertEquals( 1, recMan.getMappedFetchCount() );
+    }
+
+
+    /**
+     * Test a BTree built on a cached MappedRecordManager, the way the JdbmTables use it,
+     * and reopened.
+     */
+    @Test
+    public void testBTree() throws Exception
+    {
+        RecordManager cached = new CacheRecordManager( recMan, new MRU( 10 ) );
+        BTree<Integer, byte[]> tree = new BTree<Integer, byte[]>( cached, new IntegerComparator(),
+            new IntegerSerializer(), ByteArraySerializer.INSTANCE );
+        cached.setNamedObject( "test", tree.getRecordId() );
+
+        for ( int i = 0; i < 5000; i++ )
+        {
+            tree.insert( i, record( 50 + i % 200, i ), true );
+        }
+
+        MappedRecordManager.synchronizeLog( cached );
+        cached.close();
+        recMan = new MappedRecordManager( new BaseRecordManager( dbFile.getAbsolutePath() ), dbFile.getAbsolutePath() );
+        cached = new CacheRecordManager( recMan, new MRU( 10 ) );
+        assertTrue( MappedRecordManager.isMapped( cached ) );
+        tree = new BTree<Integer, byte[]>().load( cached, cached.getNamedObject( "test" ) );
+
+        for ( int i = 0; i < 5000; i++ )
+        {
+            assertTrue( Arrays.equals( record( 50 + i % 200, i ), tree.find( i ) ) );
+        }
+
+        assertEquals( 0, recMan.getFileFetchCount() );
+        assertTrue( recMan.getMappedFetchCount() > 0 );
+    }
+}
@@ -21,6 +21,8 @@ package org.apache.directory.server.core.partition.impl.btree.jdbm;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
@@ -42,6 +44,7 @@ import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
 import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.xdbm.EntryCodec;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -287,4 +290,51 @@ public class ServerEntrySerializerTest
 
         assertEquals( entry, result );
     }
+
+
+    @Test
+    public void testSerializeCompactServerEntry() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "cn=test",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: test",
+            "sn: Test" );
+        entry.add( "userPassword", Strings.getBytesUtf8( "secret" ) );
+
+        EntryCodec codec = new EntryCodec( schemaManager, null );
+        codec.register( entry );
+
+        EntrySerializer ses = new EntrySerializer( schemaManager );
+        ses.setCodec( codec, true );
+
+        byte[] data = ses.serialize( entry );
+        assertTrue( EntryCodec.isCompact( data, 0 ) );
+
+        Entry result = ( Entry ) ses.deserialize( data );
+
+        assertEquals( entry, result );
+    }
+
+
+    @Test
+    public void testReadPreviousFormat() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "cn=test",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: test",
+            "sn: Test" );
+
+        // Written without codec
+        byte[] data = new EntrySerializer( schemaManager ).serialize( entry );
+        assertFalse( EntryCodec.isCompact( data, 0 ) );
+
+        EntrySerializer ses = new EntrySerializer( schemaManager );
+        ses.setCodec( new EntryCodec( schemaManager, null ), true );
+
+        Entry result = ( Entry ) ses.deserialize( data );
+
+        assertEquals( entry, result );
+    }
 }
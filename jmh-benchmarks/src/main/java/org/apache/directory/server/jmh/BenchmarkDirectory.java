@@ -0,0 +1,293 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.jmh;
+
+
+import java.io.File;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.factory.AvlPartitionFactory;
+import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
+import org.apache.directory.server.core.factory.DirectoryServiceFactory;
+import org.apache.directory.server.core.factory.JdbmPartitionFactory;
+import org.apache.directory.server.core.factory.MavibotPartitionFactory;
+import org.apache.directory.server.core.factory.PartitionFactory;
+
+
+/**
+ * The helper methods used by the benchmarks to start a DirectoryService in a temporary
+ * instance directory, and to fill it with some user entries.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class BenchmarkDirectory
+{
+    /** The suffix of the partition used by the benchmarks */
+    public static final String SUFFIX = "dc=example,dc=com";
+
+    /** The container of the user entries */
+    public static final String PEOPLE = "ou=people," + SUFFIX;
+
+    /** The attributes indexed in the benchmark partition */
+    private static final String[] INDEXED_ATTRIBUTES =
+        { SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.UID_AT, SchemaConstants.CN_AT, SchemaConstants.OU_AT };
+
+
+    private BenchmarkDirectory()
+    {
+    }
+
+
+    /**
+     * Starts a DirectoryService, with no partition but the system one.
+     *
+     * @param name The instance name, used to name its temporary directory
+     * @return The started DirectoryService
+     * @throws Exception If the service can't be started
+     */
+    public static DirectoryService startDirectoryService( String name ) throws Exception
+    {
+        DirectoryServiceFactory factory = new DefaultDirectoryServiceFactory();
+        factory.init( name );
+
+        return factory.getDirectoryService();
+    }
+
+
+    /**
+     * Gets the factory of a type of partition.
+     *
+     * @param type One of "avl", "jdbm" or "mavibot"
+     * @return The partition factory
+     */
+    public static PartitionFactory getPartitionFactory( String type )
+    {
+        if ( "avl".equals( type ) )
+        {
+            return new AvlPartitionFactory();
+        }
+        else if ( "jdbm".equals( type ) )
+        {
+            return new JdbmPartitionFactory();
+        }
+        else if ( "mavibot".equals( type ) )
+        {
+            return new MavibotPartitionFactory();
+        }
+
+        throw new IllegalArgumentException( "Unknown partition type " + type );
+    }
+
+
+    /**
+     * Adds the example partition to the service, with its context entry and the people
+     * container.
+     *
+     * @param service The DirectoryService
+     * @param partitionFactory The factory used to create the partition
+     * @param id The partition ID
+     * @return The created partition
+     * @throws Exception If the partition can't be created
+     */
+    public static Partition addPartition( DirectoryService service, PartitionFactory partitionFactory, String id )
+        throws Exception
+    {
+        Partition partition = createPartition( service, partitionFactory, id );
+        partition.setCacheService( service.getCacheService() );
+        addPartition( service, partition );
+
+        return partition;
+    }
+
+
+    /**
+     * Creates the example partition, with its indexes, without initializing it.
+     *
+     * @param service The DirectoryService
+     * @param partitionFactory The factory used to create the partition
+     * @param id The partition ID
+     * @return The created partition
+     * @throws Exception If the partition can't be created
+     */
+    public static Partition createPartition( DirectoryService service, PartitionFactory partitionFactory, String id )
+        throws Exception
+    {
+        Partition partition = partitionFactory.createPartition( service.getSchemaManager(), service.getDnFactory(),
+            id, SUFFIX, 1000, new File( service.getInstanceLayout().getPartitionsDirectory(), id ) );
+
+        for ( String attribute : INDEXED_ATTRIBUTES )
+        {
+            partitionFactory.addIndex( partition, attribute, 100 );
+        }
+
+        return partition;
+    }
+
+
+    /**
+     * Initializes a partition created by {@link #createPartition(DirectoryService, PartitionFactory, String)},
+     * adds it to the service, with its context entry and the people container.
+     *
+     * @param service The DirectoryService
+     * @param partition The partition
+     * @throws Exception If the partition can't be added
+     */
+    public static void addPartition( DirectoryService service, Partition partition ) throws Exception
+    {
+        SchemaManager schemaManager = service.getSchemaManager();
+        partition.initialize();
+        service.addPartition( partition );
+
+        CoreSession session = service.getAdminSession();
+
+        session.add( new DefaultEntry( schemaManager, SUFFIX,
+            "objectClass: top",
+            "objectClass: domain",
+            "dc: example" ) );
+
+        session.add( new DefaultEntry( schemaManager, PEOPLE,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: people" ) );
+    }
+
+
+    /**
+     * @param index The user number
+     * @return The Dn of a user entry, as a String
+     */
+    public static String getUserDn( long index )
+    {
+        return "uid=user" + index + "," + PEOPLE;
+    }
+
+
+    /**
+     * Creates a user entry, without its operational attributes.
+     *
+     * @param schemaManager The SchemaManager
+     * @param index The user number
+     * @return The user entry
+     * @throws LdapException If the entry can't be created
+     */
+    public static Entry createUser( SchemaManager schemaManager, long index ) throws LdapException
+    {
+        return new DefaultEntry( schemaManager, getUserDn( index ),
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "objectClass: inetOrgPerson",
+            "uid", "user" + index,
+            "cn", "user " + index,
+            "sn", "user",
+            "mail", "user" + index + "@example.com",
+            "telephoneNumber", "+1 408 555 " + ( 1000 + index % 9000 ),
+            "description", "A user entry created for the benchmarks" );
+    }
+
+
+    /**
+     * Creates a user entry with the operational attributes the partitions expect, so
+     * that it can be added without going through the interceptors.
+     *
+     * @param service The DirectoryService
+     * @param index The user number
+     * @return The user entry
+     * @throws LdapException If the entry can't be created
+     */
+    public static Entry createStoredUser( DirectoryService service, long index ) throws LdapException
+    {
+        Entry entry = createUser( service.getSchemaManager(), index );
+        entry.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+        entry.add( SchemaConstants.ENTRY_CSN_AT, service.getCSN().toString() );
+        entry.add( SchemaConstants.CREATORS_NAME_AT, "uid=admin,ou=system" );
+        entry.add( SchemaConstants.CREATE_TIMESTAMP_AT, "20160101000000Z" );
+
+        return entry;
+    }
+
+
+    /**
+     * Adds user entries, through the whole interceptor chain.
+     *
+     * @param service The DirectoryService
+     * @param count The number of entries to add
+     * @throws LdapException If an entry can't be added
+     */
+    public static void loadUsers( DirectoryService service, int count ) throws LdapException
+    {
+        CoreSession session = service.getAdminSession();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            session.add( createUser( service.getSchemaManager(), i ) );
+        }
+    }
+
+
+    /**
+     * Parses the Dns of the loaded user entries.
+     *
+     * @param service The DirectoryService
+     * @param count The number of loaded entries
+     * @return The user entries Dns
+     * @throws LdapException If a Dn can't be parsed
+     */
+    public static Dn[] getUserDns( DirectoryService service, int count ) throws LdapException
+    {
+        Dn[] dns = new Dn[count];
+
+        for ( int i = 0; i < count; i++ )
+        {
+            dns[i] = service.getDnFactory().create( getUserDn( i ) );
+        }
+
+        return dns;
+    }
+
+
+    /**
+     * Stops the DirectoryService, and removes its instance directory.
+     *
+     * @param service The DirectoryService
+     * @throws Exception If the service can't be stopped
+     */
+    public static void shutdown( DirectoryService service ) throws Exception
+    {
+        if ( service == null )
+        {
+            return;
+        }
+
+        File instanceDirectory = service.getInstanceLayout().getInstanceDirectory();
+        service.shutdown();
+        FileUtils.deleteDirectory( instanceDirectory );
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.jmh;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the parsing of Dns by the DefaultDnFactory, with and without its cache,
+ * and by the Dn constructor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class DnFactoryBenchmark
+{
+    /** The number of distinct Dns */
+    @Param({ "1000" })
+    private int dnCount;
+
+    private SchemaManager schemaManager;
+
+    private CacheService cacheService;
+
+    private DefaultDnFactory cachedDnFactory;
+
+    private DefaultDnFactory uncachedDnFactory;
+
+    /** The parsed Dns */
+    private String[] dns;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+
+        cachedDnFactory = new DefaultDnFactory( schemaManager, cacheService.getCache( "dnCache" ) );
+        uncachedDnFactory = new DefaultDnFactory( schemaManager, null );
+
+        dns = new String[dnCount];
+
+        for ( int i = 0; i < dnCount; i++ )
+        {
+            dns[i] = "uid=User" + i + ", ou=People, dc=Example, dc=Com";
+        }
+    }
+
+
+    @TearDown
+    public void tearDown()
+    {
+        cacheService.destroy();
+    }
+
+
+    private String nextDn()
+    {
+        return dns[ThreadLocalRandom.current().nextInt( dnCount )];
+    }
+
+
+    @Benchmark
+    public Dn cachedFactory() throws Exception
+    {
+        return cachedDnFactory.create( nextDn() );
+    }
+
+
+    @Benchmark
+    public Dn uncachedFactory() throws Exception
+    {
+        return uncachedDnFactory.create( nextDn() );
+    }
+
+
+    @Benchmark
+    public Dn schemaAwareConstructor() throws Exception
+    {
+        return new Dn( schemaManager, nextDn() );
+    }
+
+
+    @Benchmark
+    public Dn constructor() throws Exception
+    {
+        return new Dn( nextDn() );
+    }
+}
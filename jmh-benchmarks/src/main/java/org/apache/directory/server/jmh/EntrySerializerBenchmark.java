@@ -0,0 +1,131 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.jmh;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.EntrySerializer;
+import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotEntrySerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the serialization and deserialization of an entry by the EntrySerializer
+ * used by the JdbmPartition and the MavibotEntrySerializer used by the MavibotPartition.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class EntrySerializerBenchmark
+{
+    private EntrySerializer jdbmSerializer;
+
+    private MavibotEntrySerializer mavibotSerializer;
+
+    /** The serialized entry */
+    private Entry entry;
+
+    /** The entry, as serialized by the EntrySerializer */
+    private byte[] jdbmBytes;
+
+    /** The entry, as serialized by the MavibotEntrySerializer */
+    private byte[] mavibotBytes;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        SchemaManager schemaManager = new DefaultSchemaManager();
+
+        entry = BenchmarkDirectory.createUser( schemaManager, 42 );
+        entry.add( SchemaConstants.ENTRY_UUID_AT, "f81d4fae-7dec-11d0-a765-00a0c91e6bf6" );
+        entry.add( SchemaConstants.ENTRY_CSN_AT, "20160101000000.000000Z#000000#000#000000" );
+        entry.add( SchemaConstants.CREATORS_NAME_AT, "uid=admin,ou=system" );
+        entry.add( SchemaConstants.CREATE_TIMESTAMP_AT, "20160101000000Z" );
+
+        jdbmSerializer = new EntrySerializer( schemaManager );
+        jdbmBytes = jdbmSerializer.serialize( entry );
+
+        MavibotEntrySerializer.setSchemaManager( schemaManager );
+        mavibotSerializer = new MavibotEntrySerializer();
+        mavibotBytes = mavibotSerializer.serialize( entry );
+    }
+
+
+    @Benchmark
+    public byte[] jdbmSerialize() throws Exception
+    {
+        return jdbmSerializer.serialize( entry );
+    }
+
+
+    @Benchmark
+    public Object jdbmDeserialize() throws Exception
+    {
+        return jdbmSerializer.deserialize( jdbmBytes );
+    }
+
+
+    @Benchmark
+    public Object jdbmRoundTrip() throws Exception
+    {
+        return jdbmSerializer.deserialize( jdbmSerializer.serialize( entry ) );
+    }
+
+
+    @Benchmark
+    public byte[] mavibotSerialize() throws Exception
+    {
+        return mavibotSerializer.serialize( entry );
+    }
+
+
+    @Benchmark
+    public Entry mavibotDeserialize() throws Exception
+    {
+        return mavibotSerializer.fromBytes( mavibotBytes );
+    }
+
+
+    @Benchmark
+    public Entry mavibotRoundTrip() throws Exception
+    {
+        return mavibotSerializer.fromBytes( mavibotSerializer.serialize( entry ) );
+    }
+}
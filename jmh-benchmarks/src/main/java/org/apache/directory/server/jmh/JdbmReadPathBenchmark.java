@@ -0,0 +1,141 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.jmh;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.factory.JdbmPartitionFactory;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compares the lookup latency of a JdbmPartition reading its files through the
+ * RandomAccessFile of the JDBM RecordManager, and through a memory mapping.
+ * <br/>
+ * The partition has no entry cache, so that every lookup goes down to the JDBM record
+ * caches : the warm lookups hit a few entries whose pages stay in these caches, the cold
+ * lookups are spread over all the entries, so that most of the pages have to be read
+ * from the files. The files are in the OS page cache in both cases, the difference being
+ * the cost of the reads, and of the lock taken by the RecordManager. The cold lookups
+ * are also measured with several threads, as this lock serializes the file reads.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JdbmReadPathBenchmark
+{
+    /** The number of entries the warm lookups are done on */
+    private static final int HOT_ENTRIES = 16;
+
+    /** How the JDBM files are read : "file" or "mapped" */
+    @Param({ "file", "mapped" })
+    private String readPath;
+
+    /** The number of entries loaded before the measures */
+    @Param({ "10000" })
+    private int entryCount;
+
+    private DirectoryService service;
+
+    private JdbmPartition partition;
+
+    private CoreSession session;
+
+    /** The Dns of the loaded entries */
+    private Dn[] dns;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        service = BenchmarkDirectory.startDirectoryService( "JdbmReadPathBenchmark-" + readPath );
+        partition = ( JdbmPartition ) BenchmarkDirectory.createPartition( service, new JdbmPartitionFactory(),
+            "example" );
+        partition.setMappedReads( "mapped".equals( readPath ) );
+        BenchmarkDirectory.addPartition( service, partition );
+        BenchmarkDirectory.loadUsers( service, entryCount );
+
+        // Flush the transaction logs in the files, so that the mapping sees all the entries
+        partition.sync();
+
+        session = service.getAdminSession();
+        dns = BenchmarkDirectory.getUserDns( service, entryCount );
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        BenchmarkDirectory.shutdown( service );
+    }
+
+
+    @Benchmark
+    public Entry warmLookup() throws Exception
+    {
+        return lookup( ThreadLocalRandom.current().nextInt( HOT_ENTRIES ) );
+    }
+
+
+    @Benchmark
+    public Entry coldLookup() throws Exception
+    {
+        return lookup( ThreadLocalRandom.current().nextInt( entryCount ) );
+    }
+
+
+    @Benchmark
+    @Threads(4)
+    public Entry coldLookupConcurrent() throws Exception
+    {
+        return lookup( ThreadLocalRandom.current().nextInt( entryCount ) );
+    }
+
+
+    private Entry lookup( int user ) throws Exception
+    {
+        return partition.lookup( new LookupOperationContext( session, dns[user] ) );
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.jmh;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.factory.JdbmPartitionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the add, lookup and search operations going through the OperationManager,
+ * hence through the whole interceptor chain, down to a JdbmPartition.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class OperationManagerBenchmark
+{
+    /** The number of entries loaded before the measures */
+    @Param({ "10000" })
+    private int entryCount;
+
+    private DirectoryService service;
+
+    private OperationManager operationManager;
+
+    private CoreSession session;
+
+    /** The Dns of the loaded entries */
+    private Dn[] dns;
+
+    /** The base of the searches */
+    private Dn peopleDn;
+
+    /** The user number of the next added entry */
+    private AtomicLong nextUser;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        service = BenchmarkDirectory.startDirectoryService( "OperationManagerBenchmark" );
+        BenchmarkDirectory.addPartition( service, new JdbmPartitionFactory(), "example" );
+        BenchmarkDirectory.loadUsers( service, entryCount );
+
+        operationManager = service.getOperationManager();
+        session = service.getAdminSession();
+        dns = BenchmarkDirectory.getUserDns( service, entryCount );
+        peopleDn = service.getDnFactory().create( BenchmarkDirectory.PEOPLE );
+        nextUser = new AtomicLong( entryCount );
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        BenchmarkDirectory.shutdown( service );
+    }
+
+
+    @Benchmark
+    public Entry lookup() throws Exception
+    {
+        Dn dn = dns[ThreadLocalRandom.current().nextInt( entryCount )];
+
+        return operationManager.lookup( new LookupOperationContext( session, dn ) );
+    }
+
+
+    @Benchmark
+    public int searchEquality() throws Exception
+    {
+        int user = ThreadLocalRandom.current().nextInt( entryCount );
+        ExprNode filter = FilterParser.parse( service.getSchemaManager(), "(uid=user" + user + ")" );
+
+        return search( new SearchOperationContext( session, peopleDn, SearchScope.ONELEVEL, filter ) );
+    }
+
+
+    @Benchmark
+    public int searchSubstring() throws Exception
+    {
+        int user = ThreadLocalRandom.current().nextInt( 10 );
+        ExprNode filter = FilterParser.parse( service.getSchemaManager(), "(cn=user " + user + "99*)" );
+
+        return search( new SearchOperationContext( session, peopleDn, SearchScope.SUBTREE, filter ) );
+    }
+
+
+    @Benchmark
+    public void add() throws Exception
+    {
+        Entry entry = BenchmarkDirectory.createUser( service.getSchemaManager(), nextUser.getAndIncrement() );
+
+        operationManager.add( new AddOperationContext( session, entry ) );
+    }
+
+
+    private int search( SearchOperationContext searchContext ) throws Exception
+    {
+        EntryFilteringCursor cursor = operationManager.search( searchContext );
+        int count = 0;
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                cursor.get();
+                count++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.jmh;
+
+
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.factory.JdbmPartitionFactory;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
+import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
+import org.apache.directory.server.xdbm.search.impl.EvaluatorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the annotation of some common filters by the DefaultOptimizer, and the
+ * computation of their candidates by the CursorBuilder, on a JdbmPartition.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SearchPlanBenchmark
+{
+    /** The evaluated filter. The values are already normalized */
+    @Param(
+        {
+            "(uid=user42)",
+            "(objectClass=person)",
+            "(cn=user 42*)",
+            "(&(objectClass=person)(uid=user42))",
+            "(|(uid=user1)(uid=user2)(uid=user3))",
+            "(&(objectClass=person)(!(uid=user42)))"
+    })
+    private String filter;
+
+    /** The number of entries loaded before the measures */
+    @Param({ "10000" })
+    private int entryCount;
+
+    private DirectoryService service;
+
+    private AbstractBTreePartition partition;
+
+    private DefaultOptimizer optimizer;
+
+    private EvaluatorBuilder evaluatorBuilder;
+
+    private CursorBuilder cursorBuilder;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        service = BenchmarkDirectory.startDirectoryService( "SearchPlanBenchmark" );
+        partition = ( AbstractBTreePartition ) BenchmarkDirectory.addPartition( service, new JdbmPartitionFactory(),
+            "example" );
+        BenchmarkDirectory.loadUsers( service, entryCount );
+
+        optimizer = new DefaultOptimizer( partition );
+        evaluatorBuilder = new EvaluatorBuilder( partition, service.getSchemaManager() );
+        cursorBuilder = new CursorBuilder( partition, evaluatorBuilder );
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        BenchmarkDirectory.shutdown( service );
+    }
+
+
+    @Benchmark
+    public Long annotate() throws Exception
+    {
+        ExprNode node = FilterParser.parse( service.getSchemaManager(), filter );
+
+        return optimizer.annotate( node );
+    }
+
+
+    @Benchmark
+    public int buildCandidates() throws Exception
+    {
+        ExprNode node = FilterParser.parse( service.getSchemaManager(), filter );
+        optimizer.annotate( node );
+
+        PartitionSearchResult searchResult = new PartitionSearchResult( service.getSchemaManager() );
+        searchResult.setEvaluator( evaluatorBuilder.build( node ) );
+        searchResult.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchResult.setCandidateSet( new HashSet<String>() );
+        cursorBuilder.build( node, searchResult );
+
+        return searchResult.getCandidateSet().size();
+    }
+}
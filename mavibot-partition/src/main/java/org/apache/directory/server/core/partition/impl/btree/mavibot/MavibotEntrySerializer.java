@@ -42,6 +42,7 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.mavibot.btree.serializer.AbstractElementSerializer;
 import org.apache.directory.mavibot.btree.serializer.BufferHandler;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,6 +71,12 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
     /** The schemaManager reference */
     private static SchemaManager schemaManager;
 
+    /** The codec used to read the entries stored in the compact format */
+    private EntryCodec codec;
+
+    /** Tells if the entries are written in the compact format */
+    private boolean compact;
+
     private static class EntryComparator implements Comparator<Entry>
     {
 
@@ -101,6 +108,21 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
     }
 
 
+    /**
+     * Sets the codec used to read and write the entries in the compact format. Without
+     * a codec, the entries are written using an ObjectOutputStream.
+     *
+     * @param codec The codec
+     * @param compact true if the entries are written in the compact format, false
+     * if the codec is only used to read them
+     */
+    public void setCodec( EntryCodec codec, boolean compact )
+    {
+        this.codec = codec;
+        this.compact = compact;
+    }
+
+
     /**
      * <p>
      * 
@@ -122,11 +144,24 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
      *     </ul>
      *   </li>
      * </ul>
+     * The entries are written in the format described in {@link EntryCodec} when a
+     * codec is set.
      */
     public byte[] serialize( Entry entry )
     {
         try
         {
+            if ( compact )
+            {
+                byte[] bytes = codec.encode( entry );
+
+                // Null if an attribute type is not yet in the dictionary
+                if ( bytes != null )
+                {
+                    return bytes;
+                }
+            }
+
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
             ObjectOutput out = new ObjectOutputStream( baos );
@@ -201,6 +236,14 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
         // read the length
         int len = buffer.limit();
 
+        if ( EntryCodec.isCompact( buffer.array(), buffer.position() ) )
+        {
+            Entry entry = decodeCompact( buffer.array(), buffer.position(), buffer.remaining() );
+            buffer.position( buffer.limit() );
+
+            return entry;
+        }
+
         ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( buffer.array(), buffer.position(), len ) );
 
         try
@@ -271,6 +314,20 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
     }
 
 
+    /**
+     * Decodes an entry stored in the compact format
+     */
+    private Entry decodeCompact( byte[] bytes, int offset, int length ) throws IOException
+    {
+        if ( codec == null )
+        {
+            throw new IOException( I18n.err( I18n.ERR_134, "no codec for the compact entry format" ) );
+        }
+
+        return codec.decode( bytes, offset, length );
+    }
+
+
     @Override
     public Entry deserialize( BufferHandler bufferHandler ) throws IOException
     {
@@ -303,6 +360,11 @@ public class MavibotEntrySerializer extends AbstractElementSerializer<Entry>
         // read the length
         int len = buffer.length - pos;
 
+        if ( EntryCodec.isCompact( buffer, pos ) )
+        {
+            return decodeCompact( buffer, pos, len );
+        }
+
         ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( buffer, pos, len ) );
 
         try
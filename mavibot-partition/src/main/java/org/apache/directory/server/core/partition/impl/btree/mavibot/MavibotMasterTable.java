@@ -27,6 +27,8 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.mavibot.btree.RecordManager;
 import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.xdbm.EntryCodec;
 import org.apache.directory.server.xdbm.MasterTable;
 
 
@@ -37,16 +39,57 @@ import org.apache.directory.server.xdbm.MasterTable;
  */
 public class MavibotMasterTable extends MavibotTable<String, Entry> implements MasterTable
 {
+    /** The codec writing the entries in the compact format */
+    private EntryCodec codec;
+
+
     public MavibotMasterTable( RecordManager recordMan, SchemaManager schemaManager, String name, int cacheSize )
         throws IOException
     {
-        super( recordMan, schemaManager, name, StringSerializer.INSTANCE, new MavibotEntrySerializer(), false, cacheSize );
+        this( recordMan, schemaManager, name, cacheSize, new MavibotEntrySerializer() );
     }
 
+
     public MavibotMasterTable( RecordManager recordMan, SchemaManager schemaManager, String name )
         throws IOException
     {
-        super( recordMan, schemaManager, name, StringSerializer.INSTANCE, new MavibotEntrySerializer(), false );
+        this( recordMan, schemaManager, name, AbstractBTreePartition.DEFAULT_CACHE_SIZE, new MavibotEntrySerializer() );
+    }
+
+
+    private MavibotMasterTable( RecordManager recordMan, SchemaManager schemaManager, String name, int cacheSize,
+        MavibotEntrySerializer serializer ) throws IOException
+    {
+        super( recordMan, schemaManager, name, StringSerializer.INSTANCE, serializer, false, cacheSize );
+
+        // The attribute types dictionary is stored in its own B-tree
+        MavibotTable<String, String> dictionaryTable = new MavibotTable<String, String>( recordMan,
+            schemaManager, name + "_attributeTypes", StringSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+
+        try
+        {
+            codec = new EntryCodec( schemaManager, dictionaryTable );
+        }
+        catch ( Exception e )
+        {
+            throw new IOException( e.getMessage(), e );
+        }
+
+        serializer.setCodec( codec, EntryCodec.isEnabled() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The attribute types of the entry are added to the dictionary before it's stored.
+     */
+    @Override
+    public void put( String key, Entry entry ) throws Exception
+    {
+        codec.register( entry );
+
+        super.put( key, entry );
     }
 
 
@@ -62,4 +105,13 @@ public class MavibotMasterTable extends MavibotTable<String, Entry> implements M
     {
         // do nothing here, the RecordManager will be closed in MavibotMasterTable.close()
     }
+
+
+    /**
+     * @return The codec serializing the entries in the compact format
+     */
+    public EntryCodec getCodec()
+    {
+        return codec;
+    }
 }
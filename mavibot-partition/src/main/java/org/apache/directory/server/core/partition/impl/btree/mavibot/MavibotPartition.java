@@ -31,7 +31,6 @@ import java.util.List;
 import java.util.Set;
 
 import net.sf.ehcache.Cache;
-import net.sf.ehcache.Element;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
@@ -56,7 +55,9 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryWeigher;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.WeightedCache;
 import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
 import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
@@ -92,7 +93,7 @@ public class MavibotPartition extends AbstractBTreePartition
     private RecordManager recordMan;
 
     /** the entry cache */
-    private Cache entryCache;
+    private WeightedCache<String, Entry> entryCache;
 
 
     public MavibotPartition( SchemaManager schemaManager, DnFactory dnFactory )
@@ -223,14 +224,9 @@ public class MavibotPartition extends AbstractBTreePartition
 
             if ( cacheService != null )
             {
-                entryCache = cacheService.getCache( getId() );
-                
-                int cacheSizeConfig = entryCache.getCacheConfiguration().getMaxElementsInMemory();
-
-                if ( cacheSizeConfig < cacheSize )
-                {
-                    entryCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize );
-                }
+                entryCache = new WeightedCache<String, Entry>( getCacheMaxBytes(), DEFAULT_ENTRY_WEIGHT,
+                    new EntryWeigher() );
+                initOffHeapCache( ( ( MavibotMasterTable ) master ).getCodec() );
             }
 
             // We are done !
@@ -314,7 +310,7 @@ public class MavibotPartition extends AbstractBTreePartition
         {
             if ( entryCache != null )
             {
-                entryCache.removeAll();
+                entryCache.clear();
             }
         }
 
@@ -456,6 +452,13 @@ public class MavibotPartition extends AbstractBTreePartition
     }
 
 
+    @Override
+    protected WeightedCache<String, Entry> getEntryCache()
+    {
+        return entryCache;
+    }
+
+
     public Entry lookupCache( String id )
     {
         if ( entryCache == null )
@@ -463,14 +466,20 @@ public class MavibotPartition extends AbstractBTreePartition
             return null;
         }
 
-        Element el = entryCache.get( id );
+        Entry entry = entryCache.get( id );
 
-        if ( el != null )
+        if ( entry == null )
         {
-            return ( Entry ) el.getValue();
+            // Promote the entries found in the off-heap cache
+            entry = lookupOffHeapCache( id );
+
+            if ( entry != null )
+            {
+                entryCache.put( id, entry );
+            }
         }
 
-        return null;
+        return entry;
     }
 
 
@@ -487,13 +496,16 @@ public class MavibotPartition extends AbstractBTreePartition
             entry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
         }
 
-        entryCache.put( new Element( id, entry ) );
+        entryCache.put( id, entry );
+        addToOffHeapCache( id, entry );
     }
 
 
     @Override
     public void updateCache( OperationContext opCtx )
     {
+        updateOffHeapCache( opCtx );
+
         if ( entryCache == null )
         {
             return;
@@ -513,13 +525,13 @@ public class MavibotPartition extends AbstractBTreePartition
                     entry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
                 }
 
-                entryCache.replace( new Element( id, entry ) );
+                entryCache.replace( id, entry );
             }
             else if ( ( opCtx instanceof MoveOperationContext ) || ( opCtx instanceof MoveAndRenameOperationContext )
                 || ( opCtx instanceof RenameOperationContext ) )
             {
                 // clear the cache it is not worth updating all the children
-                entryCache.removeAll();
+                entryCache.clear();
             }
             else if ( opCtx instanceof DeleteOperationContext )
             {
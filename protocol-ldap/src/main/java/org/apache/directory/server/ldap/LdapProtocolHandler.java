@@ -86,6 +86,18 @@ class LdapProtocolHandler extends DemuxingIoHandler
         // Now, we have to store the DirectoryService instance into the session
         session.setAttribute( LdapDecoder.MAX_PDU_SIZE_ATTR, ldapServer.getDirectoryService().getMaxPDUSize() );
 
+        // Close the session of a client which does not read its responses anymore
+        long writeStallTimeout = ldapServer.getWriteStallTimeout();
+
+        if ( writeStallTimeout > 0 )
+        {
+            session.getConfig().setWriteTimeout( ( int ) Math.max( 1L, ( writeStallTimeout + 999L ) / 1000L ) );
+        }
+        else
+        {
+            session.getConfig().setWriteTimeout( 0 );
+        }
+
         // Last, store the message container
         LdapMessageContainer<? extends MessageDecorator<Message>> ldapMessageContainer =
             new LdapMessageContainer<MessageDecorator<Message>>(
@@ -132,6 +144,9 @@ class LdapProtocolHandler extends DemuxingIoHandler
         // Abandon all the requests
         ldapSession.abandonAllOutstandingRequests();
 
+        // and let the suspended searches release their cursors
+        ldapSession.resumeWrites();
+
         if ( !ldapSession.getIoSession().isClosing() || ldapSession.getIoSession().isConnected() )
         {
             try
@@ -151,6 +166,14 @@ class LdapProtocolHandler extends DemuxingIoHandler
      */
     public void messageSent( IoSession session, Object message ) throws Exception
     {
+        // Resume the searches waiting for the client to read their results
+        LdapSession ldapSession = ldapServer.getLdapSessionManager().getLdapSession( session );
+
+        if ( ldapSession != null )
+        {
+            ldapSession.resumeWrites();
+        }
+
         // Do nothing : we have to ignore this message, otherwise we get an exception,
         // thanks to the way MINA 2 works ...
         if ( message instanceof IoBuffer )
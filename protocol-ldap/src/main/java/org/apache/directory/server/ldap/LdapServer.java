@@ -67,6 +67,7 @@ import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.security.CoreKeyStoreSpi;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.ldap.handlers.EncodedEntryCache;
 import org.apache.directory.server.ldap.handlers.LdapRequestHandler;
 import org.apache.directory.server.ldap.handlers.LdapResponseHandler;
 import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
@@ -148,6 +149,15 @@ public class LdapServer extends DirectoryBackedService
     /** The default maximum time limit. */
     private static final int MAX_TIME_LIMIT_DEFAULT = 10000;
 
+    /** The default number of bytes queued on a session before a search stops reading its cursor */
+    private static final long MAX_PENDING_WRITE_BYTES_DEFAULT = 4L * 1024L * 1024L;
+
+    /** The default number of messages queued on a session before a search stops reading its cursor */
+    private static final int MAX_PENDING_WRITE_MESSAGES_DEFAULT = 4096;
+
+    /** The default time a client can spend without reading its pending responses, in milliseconds */
+    private static final long WRITE_STALL_TIMEOUT_DEFAULT = 300000L;
+
     /** The default service pid. */
     private static final String SERVICE_PID_DEFAULT = "org.apache.directory.server.ldap";
 
@@ -175,6 +185,21 @@ public class LdapServer extends DirectoryBackedService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /** The maximum number of bytes waiting to be written on a session while a search is running */
+    private long maxPendingWriteBytes = MAX_PENDING_WRITE_BYTES_DEFAULT;
+
+    /** The maximum number of messages waiting to be written on a session while a search is running */
+    private int maxPendingWriteMessages = MAX_PENDING_WRITE_MESSAGES_DEFAULT;
+
+    /** The time a client can spend without reading its pending responses before its session is closed */
+    private long writeStallTimeout = WRITE_STALL_TIMEOUT_DEFAULT;
+
+    /** Tells if the encoded search result entries are cached */
+    private boolean encodedEntryCacheEnabled = false;
+
+    /** The cache of encoded search result entries, if enabled */
+    private EncodedEntryCache encodedEntryCache;
+
     /** If LDAPS is activated : the external Keystore file, if defined */
     private String keystoreFile;
 
@@ -493,6 +518,12 @@ public class LdapServer extends DirectoryBackedService
 
         nexus.registerSupportedSaslMechanisms( saslMechanismHandlers.keySet() );
 
+        if ( encodedEntryCacheEnabled )
+        {
+            encodedEntryCache = new EncodedEntryCache( getDirectoryService() );
+            encodedEntryCache.init();
+        }
+
         // Install the replication handler if we have one
         startReplicationProducer();
 
@@ -643,6 +674,12 @@ public class LdapServer extends DirectoryBackedService
             LOG.warn( "Failed to sent NoD.", e );
         }
 
+        if ( encodedEntryCache != null )
+        {
+            encodedEntryCache.destroy();
+            encodedEntryCache = null;
+        }
+
         started = false;
         LOG.info( "Ldap service stopped." );
     }
@@ -1713,6 +1750,108 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * @return The maximum number of bytes which can wait to be written on a session before
+     * a search stops fetching entries from its cursor
+     */
+    public long getMaxPendingWriteBytes()
+    {
+        return maxPendingWriteBytes;
+    }
+
+
+    /**
+     * Sets the maximum number of bytes which can wait to be written on a session. When
+     * this limit is reached, the searches running on the session are suspended, without
+     * holding any thread, until the client has read half of those bytes.
+     *
+     * @param maxPendingWriteBytes A positive number of bytes. A negative or zero value
+     * disables the limit
+     */
+    public void setMaxPendingWriteBytes( long maxPendingWriteBytes )
+    {
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+
+    /**
+     * @return The maximum number of messages which can wait to be written on a session
+     * before a search stops fetching entries from its cursor
+     */
+    public int getMaxPendingWriteMessages()
+    {
+        return maxPendingWriteMessages;
+    }
+
+
+    /**
+     * Sets the maximum number of messages which can wait to be written on a session.
+     *
+     * @param maxPendingWriteMessages A positive number of messages. A negative or zero
+     * value disables the limit
+     */
+    public void setMaxPendingWriteMessages( int maxPendingWriteMessages )
+    {
+        this.maxPendingWriteMessages = maxPendingWriteMessages;
+    }
+
+
+    /**
+     * @return The time, in milliseconds, a client can spend without reading any of its
+     * pending responses before its session is closed
+     */
+    public long getWriteStallTimeout()
+    {
+        return writeStallTimeout;
+    }
+
+
+    /**
+     * Sets the time a client can spend without reading any of its pending responses. When
+     * nothing has been written on the session during this time, the session is closed. This
+     * is the write timeout of the sessions, rounded up to the second, and it applies to the
+     * sessions created after the call.
+     *
+     * @param writeStallTimeout The timeout in milliseconds. A negative or zero value
+     * means we wait as long as the session is opened
+     */
+    public void setWriteStallTimeout( long writeStallTimeout )
+    {
+        this.writeStallTimeout = writeStallTimeout;
+    }
+
+
+    /**
+     * @return <code>true</code> if the encoded search result entries are cached
+     */
+    public boolean isEncodedEntryCacheEnabled()
+    {
+        return encodedEntryCacheEnabled;
+    }
+
+
+    /**
+     * Enables or disables the cache of encoded search result entries. This must be set
+     * before the server is started. The cache is bypassed when the access control is
+     * enabled.
+     *
+     * @param encodedEntryCacheEnabled <code>true</code> to cache the encoded entries
+     */
+    public void setEncodedEntryCacheEnabled( boolean encodedEntryCacheEnabled )
+    {
+        this.encodedEntryCacheEnabled = encodedEntryCacheEnabled;
+    }
+
+
+    /**
+     * @return The cache of encoded search result entries, or null if it's not enabled
+     */
+    public EncodedEntryCache getEncodedEntryCache()
+    {
+        return encodedEntryCache;
+    }
+
+
     /**
      * @return the number of seconds pinger thread sleeps between subsequent pings
      */
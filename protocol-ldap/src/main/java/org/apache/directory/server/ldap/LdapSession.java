@@ -24,7 +24,10 @@ import java.net.SocketAddress;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.entry.Entry;
@@ -36,7 +39,10 @@ import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.SearchRequestContainer;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.ExecutorFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -93,6 +99,15 @@ public class LdapSession
     /** A map containing all the paged search context */
     private Map<Integer, PagedSearchContext> pagedSearchContexts;
 
+    /** The requests waiting for the client to read the responses already written */
+    private final Queue<Runnable> suspendedWrites = new ConcurrentLinkedQueue<Runnable>();
+
+    /** The pending bytes under which the suspended requests are resumed */
+    private volatile long resumeBytes;
+
+    /** The pending messages under which the suspended requests are resumed */
+    private volatile int resumeMessages;
+
 
     /**
      * Creates a new instance of LdapSession associated with the underlying
@@ -545,6 +560,132 @@ public class LdapSession
     }
 
 
+    /**
+     * @return The number of bytes written on this session the client has not yet read
+     */
+    public long getScheduledWriteBytes()
+    {
+        return ioSession.getScheduledWriteBytes();
+    }
+
+
+    /**
+     * @return The number of messages written on this session the client has not yet read
+     */
+    public int getScheduledWriteMessages()
+    {
+        return ioSession.getScheduledWriteMessages();
+    }
+
+
+    /**
+     * Tells if the pending writes have reached one of the given limits. A negative or
+     * zero limit is ignored.
+     *
+     * @param maxBytes The maximum number of pending bytes
+     * @param maxMessages The maximum number of pending messages
+     * @return <code>true</code> if one of the limits has been reached
+     */
+    public boolean isWriteQueueFull( long maxBytes, int maxMessages )
+    {
+        return ( ( maxBytes > 0 ) && ( ioSession.getScheduledWriteBytes() >= maxBytes ) )
+            || ( ( maxMessages > 0 ) && ( ioSession.getScheduledWriteMessages() >= maxMessages ) );
+    }
+
+
+    /**
+     * Suspends a request which can't write its next responses because the client has not
+     * read the previous ones yet. The request is run again, on the session executor, once
+     * the pending writes have gone under half of the given limits, or when the session is
+     * closed : the request has to check the session state when it's resumed. Nothing is
+     * waiting for the client meanwhile.
+     *
+     * @param request The task resuming the request
+     * @param maxBytes The maximum number of pending bytes
+     * @param maxMessages The maximum number of pending messages
+     */
+    public void suspendWrites( Runnable request, long maxBytes, int maxMessages )
+    {
+        // Resume when half of the pending writes have been read
+        resumeBytes = ( maxBytes > 0 ) ? Math.max( 1L, maxBytes / 2 ) : 0L;
+        resumeMessages = ( maxMessages > 0 ) ? Math.max( 1, maxMessages / 2 ) : 0;
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "Suspending a request on {}, {} bytes and {} messages are pending", new Object[]
+                { this, getScheduledWriteBytes(), getScheduledWriteMessages() } );
+        }
+
+        suspendedWrites.add( request );
+
+        // The client may have read everything before the request was stored
+        resumeWrites();
+    }
+
+
+    /**
+     * Resumes the requests suspended by {@link #suspendWrites(Runnable, long, int)} if the
+     * client has read enough of its pending responses, or if the session is closing. This
+     * is called each time a message has been written on the session, and when the session
+     * is closed.
+     */
+    public void resumeWrites()
+    {
+        if ( suspendedWrites.isEmpty() )
+        {
+            return;
+        }
+
+        if ( !ioSession.isClosing() && isWriteQueueFull( resumeBytes, resumeMessages ) )
+        {
+            return;
+        }
+
+        Runnable request = suspendedWrites.poll();
+
+        while ( request != null )
+        {
+            execute( request );
+            request = suspendedWrites.poll();
+        }
+    }
+
+
+    /**
+     * Runs a resumed request on the executor which processes the requests received on
+     * this session, so that the IoProcessor thread calling messageSent is not used to
+     * read the entries. The request is run directly if the session has no executor.
+     */
+    private void execute( final Runnable request )
+    {
+        ExecutorFilter executorFilter = ( ExecutorFilter ) ioSession.getFilterChain().get( ExecutorFilter.class );
+
+        if ( executorFilter != null )
+        {
+            try
+            {
+                // The MINA executors only accept IoEvents
+                executorFilter.getExecutor().execute( new IoEvent( IoEventType.MESSAGE_RECEIVED, ioSession, request )
+                {
+                    public void fire()
+                    {
+                        request.run();
+                    }
+                } );
+
+                return;
+            }
+            catch ( RejectedExecutionException ree )
+            {
+                // The server is being stopped : let the request clean up from this thread
+                LOG.debug( "Cannot resume the request on {}, the executor is stopped", this );
+            }
+        }
+
+        request.run();
+    }
+
+
     /**
      * The principal and remote address associated with this session.
      * @see Object#toString()
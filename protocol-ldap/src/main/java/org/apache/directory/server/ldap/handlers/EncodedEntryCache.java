@@ -0,0 +1,494 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap.handlers;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.asn1.ber.tlv.BerValue;
+import org.apache.directory.api.asn1.ber.tlv.TLV;
+import org.apache.directory.api.asn1.ber.tlv.UniversalTag;
+import org.apache.directory.api.ldap.codec.api.LdapEncoder;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A cache of the BER encoded SearchResultEntry returned for the entries which are read
+ * over and over with the same list of attributes. The protocolOp part of the response
+ * is stored, keyed by the entry ID (its entryUUID), the returned name and the requested
+ * attributes : only the messageID envelope is built when the entry is sent again.
+ * <br/>
+ * The entryCSN of the entry is stored with its encoded form, so a modified entry is
+ * never sent from the cache. The changes which modify the returned entries without
+ * touching their entryCSN (a rename of one of their ancestors, a subentry or an
+ * administrative point modification, a schema modification) clear the whole cache :
+ * they are caught by a synchronous listener registered on the EventService.
+ * <br/>
+ * Only the entries read through the core, for which the original entry is known, are
+ * cached. The referrals and the responses carrying some controls are not, nor the entries
+ * returned with their nbChildren or nbSubordinates attributes : those are computed each
+ * time the entry is read, and change when an entry is added or deleted below it.
+ * <br/>
+ * The cache is not used when the access control is enabled : the attributes a user can
+ * read depend on the groups the user belongs to and on the authentication level, which
+ * can change without modifying the returned entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EncodedEntryCache
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( EncodedEntryCache.class );
+
+    /** The name of the cache in the CacheService */
+    public static final String CACHE_NAME = "encodedEntryCache";
+
+    /** The encoded entries larger than this are not cached */
+    private static final int MAX_ENCODED_SIZE = 64 * 1024;
+
+    /** The directory service */
+    private final DirectoryService directoryService;
+
+    /** The underlying cache */
+    private final Cache cache;
+
+    /** The encoder used for the first response */
+    private final LdapEncoder encoder;
+
+    /** The schema partition suffix */
+    private final Dn schemaDn;
+
+    /** The listener clearing the cache */
+    private final InvalidationListener listener = new InvalidationListener();
+
+    /** The number of responses sent from the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of responses which had to be encoded */
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * Creates a new instance of EncodedEntryCache, using the {@link #CACHE_NAME} cache
+     * of the directory service CacheService.
+     *
+     * @param directoryService The directory service
+     */
+    public EncodedEntryCache( DirectoryService directoryService )
+    {
+        this.directoryService = directoryService;
+        cache = directoryService.getCacheService().getCache( CACHE_NAME );
+        encoder = new LdapEncoder( directoryService.getLdapCodecService() );
+        schemaDn = directoryService.getSchemaPartition().getSuffixDn();
+    }
+
+
+    /**
+     * Registers the listener which clears the cache when the directory is modified
+     *
+     * @throws Exception If the listener can't be registered
+     */
+    public void init() throws Exception
+    {
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( Dn.ROOT_DSE );
+        criteria.setScope( SearchScope.SUBTREE );
+
+        directoryService.getEventService().addListener( listener, criteria );
+    }
+
+
+    /**
+     * Unregisters the listener and clears the cache
+     */
+    public void destroy()
+    {
+        directoryService.getEventService().removeListener( listener );
+        clear();
+    }
+
+
+    /**
+     * Computes the key of an entry returned by a search.
+     *
+     * @param session The session the entry is returned to
+     * @param req The search request
+     * @param entry The returned entry
+     * @return The key, or null if the entry can't be cached
+     */
+    public String getKey( CoreSession session, SearchRequest req, Entry entry )
+    {
+        // The ACIs may hide some attributes, depending on the user groups
+        if ( directoryService.isAccessControlEnabled() )
+        {
+            return null;
+        }
+
+        Entry original = getOriginalEntry( entry );
+
+        if ( original == null )
+        {
+            return null;
+        }
+
+        // The number of subordinates changes without modifying the entryCSN
+        if ( ( entry.get( directoryService.getAtProvider().getNbChildren() ) != null )
+            || ( entry.get( directoryService.getAtProvider().getNbSubordinates() ) != null ) )
+        {
+            return null;
+        }
+
+        String id = getValue( original, SchemaConstants.ENTRY_UUID_AT );
+
+        if ( ( id == null ) || ( getValue( original, SchemaConstants.ENTRY_CSN_AT ) == null ) )
+        {
+            return null;
+        }
+
+        // The returned name depends on the way the client wrote the search base
+        StringBuilder sb = new StringBuilder( id );
+        sb.append( '|' ).append( entry.getDn().getName() );
+        sb.append( '|' ).append( req.getTypesOnly() ? 'T' : 'F' );
+
+        String[] attributes = new String[req.getAttributes().size()];
+        int pos = 0;
+
+        for ( String attribute : req.getAttributes() )
+        {
+            attributes[pos++] = attribute.toLowerCase();
+        }
+
+        Arrays.sort( attributes );
+
+        for ( String attribute : attributes )
+        {
+            sb.append( '|' ).append( attribute );
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Gets the encoded response for an entry, if it is in the cache and has not been
+     * modified since it was stored.
+     *
+     * @param key The entry key
+     * @param entry The returned entry
+     * @param messageId The ID of the search request
+     * @return The encoded response, or null if it's not in the cache
+     */
+    public IoBuffer get( String key, Entry entry, int messageId )
+    {
+        Element element = cache.get( key );
+
+        if ( element != null )
+        {
+            EncodedEntry encoded = ( EncodedEntry ) element.getObjectValue();
+            String csn = getValue( getOriginalEntry( entry ), SchemaConstants.ENTRY_CSN_AT );
+
+            if ( encoded.csn.equals( csn ) )
+            {
+                hits.incrementAndGet();
+
+                return encoded.toBuffer( messageId );
+            }
+
+            cache.remove( key );
+        }
+
+        misses.incrementAndGet();
+
+        return null;
+    }
+
+
+    /**
+     * Encodes a response and stores it in the cache, if it's a SearchResultEntry without
+     * any control.
+     *
+     * @param key The entry key
+     * @param entry The returned entry
+     * @param response The response generated for the entry
+     * @return The encoded response, or null if it can't be cached
+     * @throws EncoderException If the response can't be encoded
+     */
+    public IoBuffer put( String key, Entry entry, Response response ) throws EncoderException
+    {
+        if ( !( response instanceof SearchResultEntry ) || !response.getControls().isEmpty() )
+        {
+            return null;
+        }
+
+        // The returned buffer is ready to be read
+        ByteBuffer buffer = encoder.encodeMessage( response );
+
+        if ( buffer.remaining() > MAX_ENCODED_SIZE )
+        {
+            return IoBuffer.wrap( buffer );
+        }
+
+        // Skip the LdapMessage envelope and the messageID to get the protocolOp
+        int pos = buffer.position() + 1;
+        pos += getLengthSize( buffer.get( pos ) );
+        pos += 1;
+        pos += getLengthSize( buffer.get( pos ) ) + ( buffer.get( pos ) & 0xFF );
+
+        byte[] protocolOp = new byte[buffer.limit() - pos];
+        buffer.position( pos );
+        buffer.get( protocolOp );
+        buffer.rewind();
+
+        String csn = getValue( getOriginalEntry( entry ), SchemaConstants.ENTRY_CSN_AT );
+        cache.put( new Element( key, new EncodedEntry( csn, protocolOp ) ) );
+
+        return IoBuffer.wrap( buffer );
+    }
+
+
+    /**
+     * Removes all the entries from the cache
+     */
+    public void clear()
+    {
+        LOG.debug( "Clearing the encoded entry cache" );
+        cache.removeAll();
+    }
+
+
+    /**
+     * @return The number of responses sent from the cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    /**
+     * @return The number of responses which were not found in the cache
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * @return The number of bytes used to encode a length, given its first byte
+     */
+    private static int getLengthSize( byte firstByte )
+    {
+        if ( ( firstByte & 0x80 ) == 0 )
+        {
+            return 1;
+        }
+
+        return 1 + ( firstByte & 0x7F );
+    }
+
+
+    private static Entry getOriginalEntry( Entry entry )
+    {
+        if ( entry instanceof ClonedServerEntry )
+        {
+            return ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        return null;
+    }
+
+
+    private static String getValue( Entry entry, String attributeId )
+    {
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        Attribute attribute = entry.get( attributeId );
+
+        if ( attribute == null )
+        {
+            return null;
+        }
+
+        Value<?> value = attribute.get();
+
+        return ( value == null ) ? null : value.getString();
+    }
+
+
+    /**
+     * The encoded protocolOp of a SearchResultEntry, and the entryCSN of the entry it
+     * was built from.
+     */
+    private static final class EncodedEntry
+    {
+        private final String csn;
+        private final byte[] protocolOp;
+
+
+        private EncodedEntry( String csn, byte[] protocolOp )
+        {
+            this.csn = csn;
+            this.protocolOp = protocolOp;
+        }
+
+
+        /**
+         * Builds the LdapMessage around the protocolOp :
+         * <pre>
+         * LDAPMessage ::= SEQUENCE {
+         *     messageID       MessageID,
+         *     protocolOp      SearchResultEntry }
+         * </pre>
+         */
+        private IoBuffer toBuffer( int messageId )
+        {
+            int messageIdLength = BerValue.getNbBytes( messageId );
+            int sequenceLength = 1 + TLV.getNbBytes( messageIdLength ) + messageIdLength + protocolOp.length;
+            ByteBuffer buffer = ByteBuffer.allocate( 1 + TLV.getNbBytes( sequenceLength ) + sequenceLength );
+
+            buffer.put( UniversalTag.SEQUENCE.getValue() );
+            buffer.put( TLV.getBytes( sequenceLength ) );
+            buffer.put( UniversalTag.INTEGER.getValue() );
+            buffer.put( TLV.getBytes( messageIdLength ) );
+            buffer.put( BerValue.getBytes( messageId ) );
+            buffer.put( protocolOp );
+            buffer.flip();
+
+            return IoBuffer.wrap( buffer );
+        }
+    }
+
+
+    /**
+     * Clears the cache when a change may modify some entries without modifying their
+     * entryCSN. It's called synchronously, so that the cache is cleared before the
+     * operation returns.
+     */
+    private final class InvalidationListener extends DirectoryListenerAdapter
+    {
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            if ( isInSchema( addContext.getDn() ) || isShared( addContext.getEntry() ) )
+            {
+                clear();
+            }
+        }
+
+
+        @Override
+        public void entryDeleted( DeleteOperationContext deleteContext )
+        {
+            if ( isInSchema( deleteContext.getDn() ) || isShared( deleteContext.getEntry() ) )
+            {
+                clear();
+            }
+        }
+
+
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            if ( isInSchema( modifyContext.getDn() ) || isShared( modifyContext.getEntry() )
+                || isShared( modifyContext.getAlteredEntry() ) )
+            {
+                clear();
+            }
+        }
+
+
+        @Override
+        public void entryRenamed( RenameOperationContext renameContext )
+        {
+            clear();
+        }
+
+
+        @Override
+        public void entryMoved( MoveOperationContext moveContext )
+        {
+            clear();
+        }
+
+
+        @Override
+        public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+        {
+            clear();
+        }
+
+
+        @Override
+        public boolean isSynchronous()
+        {
+            return true;
+        }
+
+
+        private boolean isInSchema( Dn dn )
+        {
+            return dn.equals( schemaDn ) || dn.isDescendantOf( schemaDn );
+        }
+
+
+        /**
+         * Tells if an entry may change the content of other entries : a subentry or an
+         * administrative point
+         */
+        private boolean isShared( Entry entry )
+        {
+            return ( entry != null )
+                && ( entry.contains( SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.SUBENTRY_OC )
+                || entry.containsAttribute( SchemaConstants.ADMINISTRATIVE_ROLE_AT ) );
+        }
+    }
+}
@@ -24,6 +24,8 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.AbandonListener;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
@@ -34,7 +36,7 @@ import org.apache.directory.api.ldap.model.message.controls.PersistentSearch;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.entry.ServerEntryUtils;
-import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.DisconnectableListener;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ChangeOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
@@ -61,7 +63,7 @@ import org.slf4j.LoggerFactory;
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
-public class PersistentSearchListener implements DirectoryListener, AbandonListener
+public class PersistentSearchListener implements DisconnectableListener, AbandonListener
 {
     private static final Logger LOG = LoggerFactory.getLogger( PersistentSearchListener.class );
     final LdapSession session;
@@ -123,6 +125,23 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
     }
 
 
+    /**
+     * The client did not read the notifications fast enough, and the event service has
+     * dropped this listener : we terminate the persistent search.
+     */
+    public void disconnected( long droppedEvents )
+    {
+        LOG.warn( "Terminating the persistent search {} : {} notifications could not be delivered",
+            req.getMessageId(), droppedEvents );
+
+        LdapResult result = req.getResultResponse().getLdapResult();
+        result.setResultCode( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+        result.setDiagnosticMessage( "The persistent search client could not keep up with the changes, "
+            + droppedEvents + " notifications have been dropped" );
+        session.getIoSession().write( req.getResultResponse() );
+    }
+
+
     private void setECResponseControl( SearchResultEntry response, ChangeOperationContext opContext, ChangeType type )
     {
         if ( psearchControl.isReturnECs() )
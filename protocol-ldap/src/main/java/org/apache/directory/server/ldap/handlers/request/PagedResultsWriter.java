@@ -0,0 +1,183 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.request;
+
+
+import org.apache.directory.api.ldap.codec.controls.search.pagedSearch.PagedResultsDecorator;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
+
+
+/**
+ * Sends one page of a paged search. The cursor is kept in the paged search
+ * context if there are more entries to send.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class PagedResultsWriter extends SearchResultsWriter
+{
+    /** The number of entries in a page */
+    private final int pagedLimit;
+
+    /** The paged search context */
+    private final PagedSearchContext pagedContext;
+
+    /** The control added to the SearchResultDone */
+    private final PagedResultsDecorator pagedResultsControl;
+
+    /** The number of entries sent in this page */
+    private int pageCount;
+
+
+    /**
+     * Creates a new instance of PagedResultsWriter.
+     *
+     * @param handler The handler which has started the search
+     * @param session The session the entries are sent on
+     * @param req The search request
+     * @param cursor The cursor on the entries to send, positioned before the first entry of the page
+     * @param sizeLimit The maximum number of entries to send
+     * @param pagedContext The paged search context
+     * @param listener What to do when the page has been sent
+     */
+    PagedResultsWriter( SearchRequestHandler handler, LdapSession session, SearchRequest req,
+        Cursor<Entry> cursor, long sizeLimit, PagedSearchContext pagedContext, SearchDoneListener listener )
+    {
+        super( handler, session, req, cursor, sizeLimit, listener );
+        this.pagedContext = pagedContext;
+        pagedLimit = ( ( PagedResults ) req.getControls().get( PagedResults.OID ) ).getSize();
+        count = pagedContext.getCurrentPosition();
+
+        pagedResultsControl = new PagedResultsDecorator( handler.getLdapServer().getDirectoryService()
+            .getLdapCodecService() );
+        pagedResultsControl.setCookie( pagedContext.getCookie() );
+        pagedResultsControl.setSize( 0 );
+        pagedResultsControl.setCritical( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected boolean writeNext() throws Exception
+    {
+        if ( ( count >= sizeLimit ) || ( pageCount >= pagedLimit ) || isClosing() || !cursor.next() )
+        {
+            return false;
+        }
+
+        Entry entry = cursor.get();
+        handler.writeResponse( session, req, entry );
+        count++;
+        pageCount++;
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected SearchResultDone complete() throws Exception
+    {
+        LdapResult ldapResult = req.getResultResponse().getLdapResult();
+        int cookieValue = 0;
+
+        // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+        ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+
+        boolean hasMoreEntry = cursor.next();
+
+        // We have some entry, move back to the first one, as we just moved forward 
+        // to get the first entry
+        if ( hasMoreEntry )
+        {
+            cursor.previous();
+        }
+
+        if ( !hasMoreEntry )
+        {
+            // That means we don't have anymore entry
+            // If we are here, it means we have returned all the entries
+            // We have to remove the cookie from the session
+            cookieValue = pagedContext.getCookieValue();
+            PagedSearchContext psCookie = session.removePagedSearchContext( cookieValue );
+
+            // Close the cursor if there is one
+            if ( psCookie != null )
+            {
+                Cursor<Entry> psCursor = psCookie.getCursor();
+
+                if ( psCursor != null )
+                {
+                    psCursor.close();
+                }
+            }
+
+            PagedResultsDecorator lastPageControl = new PagedResultsDecorator( handler.getLdapServer().getDirectoryService()
+                .getLdapCodecService() );
+            lastPageControl.setCritical( true );
+            lastPageControl.setSize( 0 );
+            req.getResultResponse().addControl( lastPageControl );
+        }
+        else
+        {
+            // We have reached one limit
+
+            if ( count < sizeLimit )
+            {
+                // We stop here. We have to add a ResponseControl
+                // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+                ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+                req.getResultResponse().addControl( pagedResultsControl );
+
+                // Stores the cursor current position
+                pagedContext.incrementCurrentPosition( pageCount );
+            }
+            else
+            {
+                // Return an exception, close the cursor, and clean the session
+                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+
+                cursor.close();
+
+                session.removePagedSearchContext( cookieValue );
+            }
+        }
+
+        return ( SearchResultDone ) req.getResultResponse();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected SearchResultDone failed( Exception e )
+    {
+        return ( SearchResultDone ) req.getResultResponse();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.request;
+
+
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+
+
+/**
+ * What to do once all the entries of a search have been sent. As a search is
+ * suspended while its client does not read the responses, this may be called
+ * by another thread than the one which received the request.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+interface SearchDoneListener
+{
+    /**
+     * Called when all the entries have been sent.
+     *
+     * @param done The SearchResultDone to send back
+     */
+    void searchDone( SearchResultDone done );
+
+
+    /**
+     * Called when the search has failed.
+     *
+     * @param e The exception thrown by the search
+     */
+    void searchFailed( Exception e );
+}
@@ -69,17 +69,20 @@ import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.ReferralManager;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.event.EventOverflowPolicy;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.handlers.EncodedEntryCache;
 import org.apache.directory.server.ldap.handlers.LdapRequestHandler;
 import org.apache.directory.server.ldap.handlers.PersistentSearchListener;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
 import org.apache.directory.server.ldap.replication.provider.ReplicationRequestHandler;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -132,8 +135,8 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
      * @param psearchDecorator the persistent search decorator extracted
      * @throws Exception if failures are encountered while searching
      */
-    private void handlePersistentSearch( LdapSession session, SearchRequest req,
-        PersistentSearch psearch ) throws Exception
+    private void handlePersistentSearch( final LdapSession session, final SearchRequest req,
+        final PersistentSearch psearch ) throws Exception
     {
         /*
          * We want the search to complete first before we start listening to
@@ -141,16 +144,54 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          */
         if ( !psearch.isChangesOnly() )
         {
-            SearchResultDone done = doSimpleSearch( session, req );
-
-            // ok if normal search beforehand failed somehow quickly abandon psearch
-            if ( done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+            doSimpleSearch( session, req, new SearchDoneListener()
             {
-                session.getIoSession().write( done );
-                return;
-            }
+                public void searchDone( SearchResultDone done )
+                {
+                    // ok if normal search beforehand failed somehow quickly abandon psearch
+                    if ( done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+                    {
+                        session.getIoSession().write( done );
+                        return;
+                    }
+
+                    try
+                    {
+                        listenToChanges( session, req, psearch );
+                    }
+                    catch ( Exception e )
+                    {
+                        searchFailed( e );
+                    }
+                }
+
+
+                public void searchFailed( Exception e )
+                {
+                    // Nothing is sent back for an abandoned search, see handleIgnoringReferrals()
+                    if ( e instanceof OperationAbandonedException )
+                    {
+                        return;
+                    }
+
+                    handleException( session, req, e );
+                    session.unregisterOutstandingRequest( req );
+                }
+            } );
+
+            return;
         }
 
+        listenToChanges( session, req, psearch );
+    }
+
+
+    /**
+     * Registers the listener sending the changes to the client of a persistent search.
+     */
+    private void listenToChanges( LdapSession session, SearchRequest req, PersistentSearch psearch )
+        throws Exception
+    {
         if ( req.isAbandoned() )
         {
             return;
@@ -168,6 +209,9 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         criteria.setFilter( req.getFilter() );
         criteria.setScope( req.getScope() );
         criteria.setEventMask( EventType.getEventTypes( psearch.getChangeTypes() ) );
+
+        // A slow client must not slow down the writers : it gets disconnected instead
+        criteria.setOverflowPolicy( EventOverflowPolicy.DROP_AND_DISCONNECT );
         getLdapServer().getDirectoryService().getEventService().addListener( persistentSearchListener, criteria );
         req.addAbandonListener( new SearchAbandonListener( ldapServer, persistentSearchListener ) );
     }
@@ -274,7 +318,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             req.getAttributes().toArray( new String[]
                 {} ) );
 
-        session.getIoSession().write( generateResponse( session, req, entry ) );
+        writeResponse( session, req, entry );
 
         // write the SearchResultDone message
         session.getIoSession().write( req.getResultResponse() );
@@ -372,172 +416,6 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
-    private void writeResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
-        Cursor<Entry> cursor, long sizeLimit ) throws Exception
-    {
-        long count = 0;
-
-        while ( ( count < sizeLimit ) && cursor.next() )
-        {
-            // Handle closed session
-            if ( session.getIoSession().isClosing() )
-            {
-                // The client has closed the connection
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "Request terminated for message {}, the client has closed the session",
-                        req.getMessageId() );
-                }
-
-                break;
-            }
-
-            if ( req.isAbandoned() )
-            {
-                cursor.close( new OperationAbandonedException() );
-
-                // The cursor has been closed by an abandon request.
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "Request terminated by an AbandonRequest for message {}", req.getMessageId() );
-                }
-
-                break;
-            }
-
-            Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
-
-            if ( IS_DEBUG )
-            {
-                LOG.debug( "Sending {}", entry.getDn() );
-            }
-
-            count++;
-        }
-
-        // check if the result code is not already set
-        // the result code might be set when sort control is present
-        if ( ldapResult.getResultCode() == null )
-        {
-            // DO NOT WRITE THE RESPONSE - JUST RETURN IT
-            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
-        }
-
-        if ( ( count >= sizeLimit ) && ( cursor.next() ) )
-        {
-            // We have reached the limit
-            // Move backward on the cursor to restore the previous position, as we moved forward
-            // to check if there is one more entry available
-            cursor.previous();
-            // Special case if the user has requested more elements than the request size limit
-            ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
-        }
-    }
-
-
-    private void readPagedResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
-        Cursor<Entry> cursor, long sizeLimit, int pagedLimit, PagedSearchContext pagedContext,
-        PagedResultsDecorator pagedResultsControl ) throws Exception
-    {
-        req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
-        setTimeLimitsOnCursor( req, session, cursor );
-
-        if ( IS_DEBUG )
-        {
-            LOG.debug( "using <{},{}> for size limit", sizeLimit, pagedLimit );
-        }
-
-        int cookieValue = 0;
-
-        int count = pagedContext.getCurrentPosition();
-        int pageCount = 0;
-
-        while ( ( count < sizeLimit ) && ( pageCount < pagedLimit ) && cursor.next() )
-        {
-            if ( session.getIoSession().isClosing() )
-            {
-                break;
-            }
-
-            Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
-            count++;
-            pageCount++;
-        }
-
-        // DO NOT WRITE THE RESPONSE - JUST RETURN IT
-        ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
-
-        boolean hasMoreEntry = cursor.next();
-
-        // We have some entry, move back to the first one, as we just moved forward 
-        // to get the first entry
-        if ( hasMoreEntry )
-        {
-            cursor.previous();
-        }
-
-        if ( !hasMoreEntry )
-        {
-            // That means we don't have anymore entry
-            // If we are here, it means we have returned all the entries
-            // We have to remove the cookie from the session
-            cookieValue = pagedContext.getCookieValue();
-            PagedSearchContext psCookie = session.removePagedSearchContext( cookieValue );
-
-            // Close the cursor if there is one
-            if ( psCookie != null )
-            {
-                cursor = psCookie.getCursor();
-
-                if ( cursor != null )
-                {
-                    cursor.close();
-                }
-            }
-
-            pagedResultsControl = new PagedResultsDecorator( ldapServer.getDirectoryService()
-                .getLdapCodecService() );
-            pagedResultsControl.setCritical( true );
-            pagedResultsControl.setSize( 0 );
-            req.getResultResponse().addControl( pagedResultsControl );
-
-            return;
-        }
-        else
-        {
-            // We have reached one limit
-
-            if ( count < sizeLimit )
-            {
-                // We stop here. We have to add a ResponseControl
-                // DO NOT WRITE THE RESPONSE - JUST RETURN IT
-                ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
-                req.getResultResponse().addControl( pagedResultsControl );
-
-                // Stores the cursor current position
-                pagedContext.incrementCurrentPosition( pageCount );
-                return;
-            }
-            else
-            {
-                // Return an exception, close the cursor, and clean the session
-                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
-
-                if ( cursor != null )
-                {
-                    cursor.close();
-                }
-
-                session.removePagedSearchContext( cookieValue );
-
-                return;
-            }
-        }
-    }
-
-
     /**
      * Manage the abandoned Paged Search (when paged size = 0). We have to
      * remove the cookie and its associated cursor from the session.
@@ -582,29 +460,12 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
 
 
     /**
-     * Remove a cookie instance from the session, if it exists.
+     * Handle a Paged Search request. The listener is called once the page has been sent.
      */
-    private PagedSearchContext removeContext( LdapSession session, PagedSearchContext cookieInstance )
-    {
-        if ( cookieInstance == null )
-        {
-            return null;
-        }
-
-        int cookieValue = cookieInstance.getCookieValue();
-
-        return session.removePagedSearchContext( cookieValue );
-    }
-
-
-    /**
-     * Handle a Paged Search request.
-     */
-    private SearchResultDone doPagedSearch( LdapSession session, SearchRequest req, PagedResultsDecorator control )
-        throws Exception
+    private void doPagedSearch( LdapSession session, SearchRequest req, PagedResultsDecorator control,
+        SearchDoneListener listener ) throws Exception
     {
         PagedResultsDecorator pagedSearchControl = control;
-        PagedResultsDecorator pagedResultsControl = null;
 
         // Get the size limits
         // Don't bother setting size limits for administrators that don't ask for it
@@ -635,7 +496,9 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         if ( pagedLimit == 0L )
         {
             // An abandoned paged search
-            return abandonPagedSearch( session, req );
+            listener.searchDone( abandonPagedSearch( session, req ) );
+
+            return;
         }
 
         // Now, depending on the cookie, we will deal with case 2, 3, 4 and 5
@@ -655,28 +518,10 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             // standard search
             if ( pagedLimit > sizeLimit )
             {
-                // Normal search : create the cursor, and set pagedControl to false
-                try
-                {
-                    // And write the entries
-                    writeResults( session, req, ldapResult, cursor, sizeLimit );
-                }
-                finally
-                {
-                    try
-                    {
-                        cursor.close();
-                    }
-                    catch ( Exception e )
-                    {
-                        LOG.error( I18n.err( I18n.ERR_168 ), e );
-                    }
-                }
-
-                // If we had a cookie in the session, remove it
-                removeContext( session, pagedContext );
+                // Normal search : write the entries, the cursor is closed when they have been sent
+                new SimpleResultsWriter( this, session, req, cursor, sizeLimit, listener ).run();
 
-                return ( SearchResultDone ) req.getResultResponse();
+                return;
             }
             else
             {
@@ -684,13 +529,6 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
                 pagedContext = new PagedSearchContext( req );
 
                 session.addPagedSearchContext( pagedContext );
-                cookie = pagedContext.getCookie();
-                pagedResultsControl = new PagedResultsDecorator( ldapServer.getDirectoryService()
-                    .getLdapCodecService() );
-                pagedResultsControl.setCookie( cookie );
-                pagedResultsControl.setSize( 0 );
-                pagedResultsControl.setCritical( true );
-
                 // And stores the cursor into the session
                 pagedContext.setCursor( cursor );
             }
@@ -708,23 +546,15 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
                 // send an error.
                 ldapResult.setDiagnosticMessage( "Invalid cookie for this PagedSearch request." );
                 ldapResult.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+                listener.searchDone( ( SearchResultDone ) req.getResultResponse() );
 
-                return ( SearchResultDone ) req.getResultResponse();
+                return;
             }
 
             if ( pagedContext.hasSameRequest( req, session ) )
             {
                 // Case 3 : continue the search
                 cursor = pagedContext.getCursor();
-
-                // get the cookie
-                cookie = pagedContext.getCookie();
-                pagedResultsControl = new PagedResultsDecorator( ldapServer.getDirectoryService()
-                    .getLdapCodecService() );
-                pagedResultsControl.setCookie( cookie );
-                pagedResultsControl.setSize( 0 );
-                pagedResultsControl.setCritical( true );
-
             }
             else
             {
@@ -741,42 +571,24 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
                 pagedContext = new PagedSearchContext( req );
 
                 session.addPagedSearchContext( pagedContext );
-
-                cookie = pagedContext.getCookie();
-                pagedResultsControl = new PagedResultsDecorator( ldapServer.getDirectoryService()
-                    .getLdapCodecService() );
-                pagedResultsControl.setCookie( cookie );
-                pagedResultsControl.setSize( 0 );
-                pagedResultsControl.setCritical( true );
             }
         }
 
+        req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
+        setTimeLimitsOnCursor( req, session, cursor );
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "using <{},{}> for size limit", sizeLimit, pagedLimit );
+        }
+
         // Now, do the real search
         /*
          * Iterate through all search results building and sending back responses
-         * for each search result returned.
+         * for each search result returned. The control sent back with the page
+         * holds the cookie of the context.
          */
-        try
-        {
-            readPagedResults( session, req, ldapResult, cursor, sizeLimit, pagedLimit, pagedContext,
-                pagedResultsControl );
-        }
-        catch ( Exception e )
-        {
-            if ( cursor != null )
-            {
-                try
-                {
-                    cursor.close();
-                }
-                catch ( Exception ne )
-                {
-                    LOG.error( I18n.err( I18n.ERR_168 ), ne );
-                }
-            }
-        }
-
-        return ( SearchResultDone ) req.getResultResponse();
+        new PagedResultsWriter( this, session, req, cursor, sizeLimit, pagedContext, listener ).run();
     }
 
 
@@ -784,43 +596,44 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
      * Conducts a simple search across the result set returning each entry
      * back except for the search response done.  This is calculated but not
      * returned so the persistent search mechanism can leverage this method
-     * along with standard search.<br>
+     * along with standard search. The search result done is given to the
+     * listener once all the entries have been sent, which may happen after
+     * this method has returned if the client does not read them fast enough.<br>
      * <br>
      * @param session the LDAP session object for this request
      * @param req the search request
-     * @return the result done
-     * @throws Exception if there are failures while processing the request
+     * @param listener the listener called with the result done, or with the
+     * exception if the search fails
      */
-    private SearchResultDone doSimpleSearch( LdapSession session, SearchRequest req ) throws Exception
+    private void doSimpleSearch( LdapSession session, SearchRequest req, SearchDoneListener listener )
     {
-        LdapResult ldapResult = req.getResultResponse().getLdapResult();
-
-        // Check if we are using the Paged Search Control
-        Object control = req.getControls().get( PagedResults.OID );
+        Cursor<Entry> cursor = null;
+        long sizeLimit = 0L;
 
-        if ( control != null )
+        try
         {
-            // Let's deal with the pagedControl
-            return doPagedSearch( session, req, ( PagedResultsDecorator ) control );
-        }
+            // Check if we are using the Paged Search Control
+            Object control = req.getControls().get( PagedResults.OID );
 
-        // A normal search
-        // Check that we have a cursor or not.
-        // No cursor : do a search.
-        Cursor<Entry> cursor = session.getCoreSession().search( req );
+            if ( control != null )
+            {
+                // Let's deal with the pagedControl
+                doPagedSearch( session, req, ( PagedResultsDecorator ) control, listener );
 
-        // register the request in the session
-        session.registerSearchRequest( req, cursor );
+                return;
+            }
 
-        // Position the cursor at the beginning
-        cursor.beforeFirst();
+            // A normal search
+            // Check that we have a cursor or not.
+            // No cursor : do a search.
+            cursor = session.getCoreSession().search( req );
+
+            // register the request in the session
+            session.registerSearchRequest( req, cursor );
+
+            // Position the cursor at the beginning
+            cursor.beforeFirst();
 
-        /*
-         * Iterate through all search results building and sending back responses
-         * for each search result returned.
-         */
-        try
-        {
             // Get the size limits
             // Don't bother setting size limits for administrators that don't ask for it
             long serverLimit = getServerSizeLimit( session, req );
@@ -835,15 +648,9 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
                 LOG.debug( "using <{},{}> for size limit", requestLimit, serverLimit );
             }
 
-            long sizeLimit = min( requestLimit, serverLimit );
-
-            writeResults( session, req, ldapResult, cursor, sizeLimit );
+            sizeLimit = min( requestLimit, serverLimit );
         }
         catch ( Exception e )
-        {
-            throw e;
-        }
-        finally
         {
             if ( ( cursor != null ) && !cursor.isClosed() )
             {
@@ -851,14 +658,22 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
                 {
                     cursor.close();
                 }
-                catch ( Exception e )
+                catch ( Exception ce )
                 {
-                    LOG.error( I18n.err( I18n.ERR_168 ), e );
+                    LOG.error( I18n.err( I18n.ERR_168 ), ce );
                 }
             }
+
+            listener.searchFailed( e );
+
+            return;
         }
 
-        return ( SearchResultDone ) req.getResultResponse();
+        /*
+         * Iterate through all search results building and sending back responses
+         * for each search result returned.
+         */
+        new SimpleResultsWriter( this, session, req, cursor, sizeLimit, listener ).run();
     }
 
 
@@ -947,6 +762,50 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Writes the response for an entry, taking its encoded form from the encoded entry
+     * cache when it's enabled and has it.
+     */
+    void writeResponse( LdapSession session, SearchRequest req, Entry entry ) throws Exception
+    {
+        EncodedEntryCache encodedEntryCache = ldapServer.getEncodedEntryCache();
+
+        if ( encodedEntryCache == null )
+        {
+            session.getIoSession().write( generateResponse( session, req, entry ) );
+
+            return;
+        }
+
+        String key = encodedEntryCache.getKey( session.getCoreSession(), req, entry );
+
+        if ( key == null )
+        {
+            session.getIoSession().write( generateResponse( session, req, entry ) );
+
+            return;
+        }
+
+        IoBuffer encoded = encodedEntryCache.get( key, entry, req.getMessageId() );
+
+        if ( encoded == null )
+        {
+            Response response = generateResponse( session, req, entry );
+            encoded = encodedEntryCache.put( key, entry, response );
+
+            if ( encoded == null )
+            {
+                // A referral, or a response with some controls
+                session.getIoSession().write( response );
+
+                return;
+            }
+        }
+
+        session.getIoSession().write( encoded );
+    }
+
+
     /**
      * Alters the filter expression based on the presence of the
      * ManageDsaIT decorator.  If the decorator is not present, the search
@@ -1099,7 +958,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
      * @param session the associated session
      * @param req the received SearchRequest
      */
-    private void handleIgnoringReferrals( LdapSession session, SearchRequest req )
+    private void handleIgnoringReferrals( final LdapSession session, final SearchRequest req )
     {
         if ( IS_DEBUG )
         {
@@ -1113,6 +972,10 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         // persistent search
         boolean persistentSearchException = false;
 
+        // A flag set when the request is unregistered once its entries
+        // have been sent
+        boolean isSearchStarted = false;
+
         // add the search request to the registry of outstanding requests for this session
         session.registerOutstandingRequest( req );
 
@@ -1150,26 +1013,40 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             // Handle regular search requests from here down
             // ===============================================================
 
-            boolean isLogSearchTime = SEARCH_TIME_LOG.isDebugEnabled();
-            
-            long t0 = 0;
-            String filter = null;
-            
-            if ( isLogSearchTime )
-            {
-                t0 = System.nanoTime();
-                filter = req.getFilter().toString();
-            }
-            
-            SearchResultDone done = doSimpleSearch( session, req );
-            session.getIoSession().write( done );
-            
-            if ( isLogSearchTime )
+            final boolean isLogSearchTime = SEARCH_TIME_LOG.isDebugEnabled();
+            final long t0 = isLogSearchTime ? System.nanoTime() : 0L;
+            final String filter = isLogSearchTime ? req.getFilter().toString() : null;
+
+            isSearchStarted = true;
+
+            doSimpleSearch( session, req, new SearchDoneListener()
             {
-                long t1 = System.nanoTime();
-                SEARCH_TIME_LOG.debug( "Search with filter {} took {}ms. Filter with assigned counts is {}", filter,
-                    ( ( t1 - t0 ) / 1000000 ), req.getFilter() );
-            }
+                public void searchDone( SearchResultDone done )
+                {
+                    session.getIoSession().write( done );
+
+                    if ( isLogSearchTime )
+                    {
+                        long t1 = System.nanoTime();
+                        SEARCH_TIME_LOG.debug( "Search with filter {} took {}ms. Filter with assigned counts is {}",
+                            filter, ( ( t1 - t0 ) / 1000000 ), req.getFilter() );
+                    }
+
+                    session.unregisterOutstandingRequest( req );
+                }
+
+
+                public void searchFailed( Exception e )
+                {
+                    // Nothing is sent back for an abandoned search, see below
+                    if ( !( e instanceof OperationAbandonedException ) )
+                    {
+                        handleException( session, req, e );
+                    }
+
+                    session.unregisterOutstandingRequest( req );
+                }
+            } );
         }
         catch ( Exception e )
         {
@@ -1203,8 +1080,9 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         {
 
             // remove the request from the session, except if
-            // we didn't got an exception for a Persistent search
-            if ( !isPersistentSearch || persistentSearchException )
+            // we didn't got an exception for a Persistent search,
+            // or if the search will do it once its entries are sent
+            if ( ( !isPersistentSearch || persistentSearchException ) && !isSearchStarted )
             {
                 session.unregisterOutstandingRequest( req );
             }
@@ -0,0 +1,199 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.request;
+
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sends the entries of a search to the client. When the client does not read its
+ * responses fast enough, the writer suspends itself on the session, which runs it
+ * again once the client has read enough of them : no thread waits for a slow client.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+abstract class SearchResultsWriter implements Runnable
+{
+    /** The logger */
+    protected static final Logger LOG = LoggerFactory.getLogger( SearchResultsWriter.class );
+
+    /** Speedup for logs */
+    protected static final boolean IS_DEBUG = LOG.isDebugEnabled();
+
+    /** The handler which has started the search */
+    protected final SearchRequestHandler handler;
+
+    /** The session the entries are sent on */
+    protected final LdapSession session;
+
+    /** The search request */
+    protected final SearchRequest req;
+
+    /** The cursor on the entries to send */
+    protected final Cursor<Entry> cursor;
+
+    /** The maximum number of entries to send */
+    protected final long sizeLimit;
+
+    /** The number of entries already sent */
+    protected long count;
+
+    /** What to do when the search is done */
+    protected final SearchDoneListener listener;
+
+
+    /**
+     * Creates a new instance of SearchResultsWriter.
+     *
+     * @param handler The handler which has started the search
+     * @param session The session the entries are sent on
+     * @param req The search request
+     * @param cursor The cursor on the entries to send, positioned before the next entry
+     * @param sizeLimit The maximum number of entries to send
+     * @param listener What to do when the search is done
+     */
+    protected SearchResultsWriter( SearchRequestHandler handler, LdapSession session, SearchRequest req,
+        Cursor<Entry> cursor, long sizeLimit, SearchDoneListener listener )
+    {
+        this.handler = handler;
+        this.session = session;
+        this.req = req;
+        this.cursor = cursor;
+        this.sizeLimit = sizeLimit;
+        this.listener = listener;
+    }
+
+
+    /**
+     * Sends the entries until the search is done, or until the client has too many
+     * pending responses.
+     */
+    public void run()
+    {
+        LdapServer ldapServer = handler.getLdapServer();
+        SearchResultDone done = null;
+
+        try
+        {
+            do
+            {
+                if ( !session.getIoSession().isClosing()
+                    && session.isWriteQueueFull( ldapServer.getMaxPendingWriteBytes(),
+                        ldapServer.getMaxPendingWriteMessages() ) )
+                {
+                    // Don't fetch more entries than the client can read
+                    session.suspendWrites( this, ldapServer.getMaxPendingWriteBytes(),
+                        ldapServer.getMaxPendingWriteMessages() );
+
+                    return;
+                }
+            }
+            while ( writeNext() );
+
+            done = complete();
+        }
+        catch ( Exception e )
+        {
+            closeCursor();
+            done = failed( e );
+        }
+
+        if ( done != null )
+        {
+            listener.searchDone( done );
+        }
+    }
+
+
+    /**
+     * Sends the next entry.
+     *
+     * @return <code>true</code> if there may be more entries to send
+     * @throws Exception If the entry can't be read or sent
+     */
+    protected abstract boolean writeNext() throws Exception;
+
+
+    /**
+     * Completes the search once all the entries have been sent.
+     *
+     * @return The SearchResultDone to send back
+     * @throws Exception If the search can't be completed
+     */
+    protected abstract SearchResultDone complete() throws Exception;
+
+
+    /**
+     * Handles a failed search. The cursor has already been closed.
+     *
+     * @param e The exception thrown by the search
+     * @return The SearchResultDone to send back, or null if the listener has been told
+     */
+    protected abstract SearchResultDone failed( Exception e );
+
+
+    /**
+     * Checks that the session is still opened before sending an entry.
+     */
+    protected boolean isClosing()
+    {
+        if ( session.getIoSession().isClosing() )
+        {
+            // The client has closed the connection
+            if ( IS_DEBUG )
+            {
+                LOG.debug( "Request terminated for message {}, the client has closed the session",
+                    req.getMessageId() );
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Closes the cursor, if it's not already closed.
+     */
+    protected void closeCursor()
+    {
+        if ( !cursor.isClosed() )
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( I18n.err( I18n.ERR_168 ), e );
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.request;
+
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.OperationAbandonedException;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.server.ldap.LdapSession;
+
+
+/**
+ * Sends all the entries of a search, up to the size limit, then closes its cursor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class SimpleResultsWriter extends SearchResultsWriter
+{
+    /**
+     * Creates a new instance of SimpleResultsWriter.
+     *
+     * @param handler The handler which has started the search
+     * @param session The session the entries are sent on
+     * @param req The search request
+     * @param cursor The cursor on the entries to send, positioned before the first entry
+     * @param sizeLimit The maximum number of entries to send
+     * @param listener What to do when the search is done
+     */
+    SimpleResultsWriter( SearchRequestHandler handler, LdapSession session, SearchRequest req,
+        Cursor<Entry> cursor, long sizeLimit, SearchDoneListener listener )
+    {
+        super( handler, session, req, cursor, sizeLimit, listener );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected boolean writeNext() throws Exception
+    {
+        if ( ( count >= sizeLimit ) || isClosing() || !cursor.next() )
+        {
+            return false;
+        }
+
+        if ( req.isAbandoned() )
+        {
+            cursor.close( new OperationAbandonedException() );
+
+            // The cursor has been closed by an abandon request.
+            if ( IS_DEBUG )
+            {
+                LOG.debug( "Request terminated by an AbandonRequest for message {}", req.getMessageId() );
+            }
+
+            return false;
+        }
+
+        Entry entry = cursor.get();
+        handler.writeResponse( session, req, entry );
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "Sending {}", entry.getDn() );
+        }
+
+        count++;
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected SearchResultDone complete() throws Exception
+    {
+        LdapResult ldapResult = req.getResultResponse().getLdapResult();
+
+        // check if the result code is not already set
+        // the result code might be set when sort control is present
+        if ( ldapResult.getResultCode() == null )
+        {
+            // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+        }
+
+        if ( ( count >= sizeLimit ) && ( cursor.next() ) )
+        {
+            // We have reached the limit
+            // Move backward on the cursor to restore the previous position, as we moved forward
+            // to check if there is one more entry available
+            cursor.previous();
+            // Special case if the user has requested more elements than the request size limit
+            ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+        }
+
+        closeCursor();
+
+        return ( SearchResultDone ) req.getResultResponse();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected SearchResultDone failed( Exception e )
+    {
+        listener.searchFailed( e );
+
+        return null;
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 
 
@@ -41,15 +42,36 @@ public class ReplicaEventMessage
     /** The entry */
     private Entry entry;
 
+    /** The entry DN before a MODDN operation, if known */
+    private Dn previousDn;
+
+    /** The ID of the replica the change has been received from, or -1 if it's a local change */
+    private int rid = -1;
+
     /**
      * Create a new ReplicaEvent instance for a Add/Delete+Modify operation
      * @param changeType The change type
      * @param entry The entry
      */
     public ReplicaEventMessage( ChangeType changeType, Entry entry )
+    {
+        this( changeType, entry, null, -1 );
+    }
+
+
+    /**
+     * Create a new ReplicaEvent instance
+     * @param changeType The change type
+     * @param entry The entry
+     * @param previousDn The entry DN before a MODDN operation, or null
+     * @param rid The ID of the replica the change has been received from, or -1 for a local change
+     */
+    public ReplicaEventMessage( ChangeType changeType, Entry entry, Dn previousDn, int rid )
     {
         this.changeType = changeType;
-        
+        this.previousDn = previousDn;
+        this.rid = rid;
+
         if ( entry instanceof ClonedServerEntry )
         {
             this.entry = ( ( ClonedServerEntry ) entry ).getClonedEntry();
@@ -79,6 +101,34 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * @return The entry DN before a MODDN operation, or null if unknown
+     */
+    public Dn getPreviousDn()
+    {
+        return previousDn;
+    }
+
+
+    /**
+     * @return The ID of the replica the change has been received from, or -1 if it's a local change
+     */
+    public int getRid()
+    {
+        return rid;
+    }
+
+
+    /**
+     * @return The entryCSN of the stored entry
+     * @throws LdapException if the entry has no entryCSN attribute
+     */
+    public String getCsn() throws LdapException
+    {
+        return entry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+    }
+
+
     /**
      * checks if the event's CSN is older than the given CSN
      *
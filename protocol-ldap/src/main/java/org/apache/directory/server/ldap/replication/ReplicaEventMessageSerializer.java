@@ -41,10 +41,15 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
  * 
  * A modification is serialized following this format : <br/>
  * <ul>
- * <li>byte : EventType</li>
+ * <li>byte : EventType, with the {@link #EXTENDED_FORMAT} bit set</li>
  * <li>byte[] : the serialized DN</li>
  * <li>byte[] : the serialized entry</li>
+ * <li>int : the ID of the replica the change has been received from, or -1</li>
+ * <li>boolean : true if the DN before a MODDN operation follows</li>
+ * <li>byte[] : the serialized DN before the MODDN operation, if any</li>
  * </ul>
+ * The messages written without the {@link #EXTENDED_FORMAT} bit (by the former
+ * per replica logs) stop after the entry.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -53,6 +58,9 @@ public class ReplicaEventMessageSerializer implements Serializer
     /** The serialVersionUID */
     private static final long serialVersionUID = 1L;
 
+    /** The bit set in the change type when the rid and the previous DN are stored */
+    public static final int EXTENDED_FORMAT = 0x40;
+
     /** The schemaManager */
     private transient SchemaManager schemaManager;
 
@@ -83,7 +91,7 @@ public class ReplicaEventMessageSerializer implements Serializer
         {
 
             // The change type first
-            out.writeByte( changeType.getValue() );
+            out.writeByte( changeType.getValue() | EXTENDED_FORMAT );
 
             // The entry DN
             entry.getDn().writeExternal( out );
@@ -91,6 +99,22 @@ public class ReplicaEventMessageSerializer implements Serializer
             // The entry
             entry.writeExternal( out );
 
+            // The origin of the change
+            out.writeInt( replicaEventMessage.getRid() );
+
+            // The DN before a MODDN, if known
+            Dn previousDn = replicaEventMessage.getPreviousDn();
+
+            if ( previousDn != null )
+            {
+                out.writeBoolean( true );
+                previousDn.writeExternal( out );
+            }
+            else
+            {
+                out.writeBoolean( false );
+            }
+
             out.flush();
 
             return baos.toByteArray();
@@ -115,7 +139,7 @@ public class ReplicaEventMessageSerializer implements Serializer
         {
             // The changeType
             byte type = in.readByte();
-            ChangeType changeType = ChangeType.getChangeType( type );
+            ChangeType changeType = ChangeType.getChangeType( type & ~EXTENDED_FORMAT );
 
             // The Entry's DN
             Dn entryDn = new Dn( schemaManager );
@@ -126,8 +150,22 @@ public class ReplicaEventMessageSerializer implements Serializer
             entry.readExternal( in );
             entry.setDn( entryDn );
 
+            int rid = -1;
+            Dn previousDn = null;
+
+            if ( ( type & EXTENDED_FORMAT ) != 0 )
+            {
+                rid = in.readInt();
+
+                if ( in.readBoolean() )
+                {
+                    previousDn = new Dn( schemaManager );
+                    previousDn.readExternal( in );
+                }
+            }
+
             // And create a ReplicaEventMessage
-            replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            replicaEventMessage = new ReplicaEventMessage( changeType, entry, previousDn, rid );
         }
         catch ( ClassNotFoundException cnfe )
         {
@@ -0,0 +1,213 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The pipeline used by a consumer to apply the changes it receives from its producer.
+ * The changes are dispatched on a set of threads, using the entryUUID of the modified
+ * entry to select the thread : the changes done on the same entry are applied in the
+ * order they have been received, while the changes done on different entries are applied
+ * concurrently.
+ * <br/>
+ * The changes are applied by batches. A batch ends, and all its changes are waited for,
+ * when it is full, when a change is done on an entry whose parent has been modified in
+ * the current batch (an entry can't be added before its parent), or when the consumer
+ * calls {@link #drain()}, typically before a change which must be applied alone.
+ * <br/>
+ * A change which throws an exception is logged, and makes the next call to {@link #drain()}
+ * return <code>false</code> : the consumer must not store a cookie past a change it could
+ * not apply.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationApplyPipeline
+{
+    /** A dedicated logger for the consumer */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The threads the changes are applied on, one executor per thread */
+    private final ExecutorService[] workers;
+
+    /** The maximum number of changes in a batch */
+    private final int batchSize;
+
+    /** The changes of the current batch */
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+    /** The normalized Dn of the entries modified in the current batch */
+    private final Set<String> pendingDns = new HashSet<String>();
+
+    /** Set when a change has failed since the last call to drain() */
+    private boolean failed;
+
+
+    /**
+     * Creates a new instance of ReplicationApplyPipeline.
+     *
+     * @param name The name of the pipeline, used to name its threads
+     * @param nbThreads The number of threads the changes are applied on
+     * @param batchSize The maximum number of changes in a batch
+     */
+    public ReplicationApplyPipeline( final String name, int nbThreads, int batchSize )
+    {
+        workers = new ExecutorService[Math.max( 1, nbThreads )];
+        this.batchSize = Math.max( 1, batchSize );
+
+        for ( int i = 0; i < workers.length; i++ )
+        {
+            final String threadName = name + "-" + i;
+
+            workers[i] = Executors.newSingleThreadExecutor( new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, threadName );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+        }
+    }
+
+
+    /**
+     * Submits a change. The change will be applied after the changes already submitted
+     * on the same entry, and concurrently with the changes done on the other entries.
+     *
+     * @param entryUuid The entryUUID of the modified entry
+     * @param dn The Dn of the modified entry
+     * @param change The change to apply. It throws an exception if it can't be applied
+     */
+    public synchronized void submit( byte[] entryUuid, Dn dn, Callable<?> change )
+    {
+        if ( !pending.isEmpty() )
+        {
+            Dn parentDn = dn.getParent();
+
+            if ( pendingDns.contains( dn.getNormName() )
+                || ( ( parentDn != null ) && pendingDns.contains( parentDn.getNormName() ) ) )
+            {
+                // The entry or its parent is modified in the current batch : wait for it
+                waitForPending();
+            }
+        }
+
+        int worker = ( Arrays.hashCode( entryUuid ) & Integer.MAX_VALUE ) % workers.length;
+
+        pending.add( workers[worker].submit( change ) );
+        pendingDns.add( dn.getNormName() );
+
+        if ( pending.size() >= batchSize )
+        {
+            waitForPending();
+        }
+    }
+
+
+    /**
+     * Waits until all the submitted changes have been applied
+     *
+     * @return <code>true</code> if all the changes submitted since the previous call have
+     * been applied, <code>false</code> if at least one of them has failed
+     */
+    public synchronized boolean drain()
+    {
+        waitForPending();
+
+        boolean applied = !failed;
+        failed = false;
+
+        return applied;
+    }
+
+
+    /**
+     * Waits for the changes of the current batch, and records their failures
+     */
+    private void waitForPending()
+    {
+        boolean interrupted = false;
+
+        for ( Future<?> change : pending )
+        {
+            while ( true )
+            {
+                try
+                {
+                    change.get();
+                    break;
+                }
+                catch ( InterruptedException ie )
+                {
+                    // Don't leave before the change is applied, the caller expects it
+                    interrupted = true;
+                }
+                catch ( ExecutionException ee )
+                {
+                    CONSUMER_LOG.error( "Failed to apply a change", ee.getCause() );
+                    failed = true;
+                    break;
+                }
+            }
+        }
+
+        pending.clear();
+        pendingDns.clear();
+
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Waits for the submitted changes, and stops the threads
+     */
+    public synchronized void shutdown()
+    {
+        drain();
+
+        for ( ExecutorService worker : workers )
+        {
+            worker.shutdown();
+        }
+    }
+}
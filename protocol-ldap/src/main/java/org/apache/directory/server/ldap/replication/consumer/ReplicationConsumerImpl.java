@@ -20,13 +20,18 @@
 package org.apache.directory.server.ldap.replication.consumer;
 
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.api.ldap.codec.controls.manageDsaIT.ManageDsaITDecorator;
 import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncDone.SyncDoneValue;
@@ -47,6 +52,7 @@ import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapContextNotEmptyException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
@@ -89,9 +95,13 @@ import org.apache.directory.server.core.api.interceptor.context.ModifyOperationC
 import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.apache.directory.server.ldap.replication.consumer.SortedUuidSet.UuidIterator;
+import org.apache.directory.server.xdbm.IndexEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -161,7 +171,62 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     private AttributeType adsReplCookieAT;
     private AttributeType adsDsReplicaIdAT;
 
-    private static final Map<String, Object> UUID_LOCK_MAP = new LRUMap( 1000 );
+    /** The locks used to serialize the updates done on the same entry by several consumers */
+    private static final Object[] UUID_LOCKS = new Object[1024];
+
+    static
+    {
+        for ( int i = 0; i < UUID_LOCKS.length; i++ )
+        {
+            UUID_LOCKS[i] = new Object();
+        }
+    }
+
+    /** The system property used to set the number of threads the changes are applied on */
+    public static final String APPLY_THREADS_PROPERTY = "apacheds.replication.consumer.applyThreads";
+
+    /** The system property used to set the maximum number of changes applied concurrently */
+    public static final String APPLY_BATCH_SIZE_PROPERTY = "apacheds.replication.consumer.batchSize";
+
+    /** The system property used to set the number of changes between two cookie checkpoints */
+    public static final String CHECKPOINT_COUNT_PROPERTY = "apacheds.replication.consumer.checkpointCount";
+
+    /** The system property used to set the maximum time (in ms) between two cookie checkpoints */
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "apacheds.replication.consumer.checkpointInterval";
+
+    /** The number of threads the changes are applied on */
+    private int applyThreads = Integer.getInteger( APPLY_THREADS_PROPERTY,
+        Math.min( 4, Runtime.getRuntime().availableProcessors() ) );
+
+    /** The maximum number of changes applied concurrently */
+    private int applyBatchSize = Integer.getInteger( APPLY_BATCH_SIZE_PROPERTY, 1000 );
+
+    /** The number of changes between two cookie checkpoints */
+    private int checkpointCount = Integer.getInteger( CHECKPOINT_COUNT_PROPERTY, 1000 );
+
+    /** The maximum time (in ms) between two cookie checkpoints */
+    private long checkpointInterval = Long.getLong( CHECKPOINT_INTERVAL_PROPERTY, 1000L );
+
+    /** The system property used to set the number of present UUIDs kept in memory during a refreshPresent */
+    public static final String PRESENT_UUIDS_IN_MEMORY_PROPERTY = "apacheds.replication.consumer.presentUuidsInMemory";
+
+    /** The number of present UUIDs kept in memory during a refreshPresent, the others are written on disk */
+    private int presentUuidsInMemory = Integer.getInteger( PRESENT_UUIDS_IN_MEMORY_PROPERTY, 1000000 );
+
+    /** The pipeline the received changes are applied with */
+    private ReplicationApplyPipeline pipeline;
+
+    /** The cookie of the last received change, not yet checkpointed */
+    private byte[] pendingCookie;
+
+    /** Set when a received change could not be applied : its cookie and the next ones are not stored */
+    private volatile boolean changeFailed;
+
+    /** The number of changes received since the last checkpoint */
+    private int changesSinceCheckpoint;
+
+    /** The time of the last checkpoint */
+    private long lastCheckpoint = System.currentTimeMillis();
 
 
     /**
@@ -307,9 +372,12 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     {
         CONSUMER_LOG.debug( "///////////////// handleSearchDone //////////////////" );
 
+        // The changes sent before the SearchResultDone must be applied before its cookie is stored
+        boolean applied = flushChanges();
+
         SyncDoneValue ctrl = ( SyncDoneValue ) searchDone.getControls().get( SyncDoneValue.OID );
 
-        if ( ( ctrl != null ) && ( ctrl.getCookie() != null ) )
+        if ( applied && ( ctrl != null ) && ( ctrl.getCookie() != null ) )
         {
             syncCookie = ctrl.getCookie();
             CONSUMER_LOG.debug( "assigning cookie from sync done value control: " + Strings.utf8ToString( syncCookie ) );
@@ -332,138 +400,264 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
 
     /**
-     * Process a SearchResultEntry received from a consumer. We have to handle all the
-     * cases :
-     * - Add
-     * - Modify
-     * - Moddn
-     * - Delete
-     * - Present
+     * Process a SearchResultEntry received from a consumer. The change is submitted to
+     * the apply pipeline, except the MODDN and DELETE changes which may modify a whole
+     * subtree, and are applied alone. The cookie is stored every {@link #checkpointCount}
+     * changes, or every {@link #checkpointInterval} ms.
+     *
      * @param syncResult
      */
-    private void handleSearchResultEntry( SearchResultEntry syncResult )
+    private synchronized void handleSearchResultEntry( final SearchResultEntry syncResult )
     {
         CONSUMER_LOG.debug( "------------- starting handleSearchResult ------------" );
 
-        SyncStateValue syncStateCtrl = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+        final SyncStateValue syncStateCtrl = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+        SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+        int rid = -1;
 
-        try
+        if ( syncStateCtrl.getCookie() != null )
         {
-            Entry remoteEntry = new DefaultEntry( schemaManager, syncResult.getEntry() );
-            String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
-            // lock on UUID to serialize the updates when there are multiple consumers
-            // connected to several producers and to the *same* base/partition
-            Object lock = getLockFor( uuid );
+            pendingCookie = syncStateCtrl.getCookie();
+            rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( pendingCookie ) );
+            CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
+                Strings.utf8ToString( pendingCookie ) );
+        }
 
-            synchronized ( lock )
+        // check to avoid conversion of UUID from byte[] to String
+        if ( CONSUMER_LOG.isDebugEnabled() )
+        {
+            CONSUMER_LOG.debug( "state name {}", state.name() );
+            CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
+        }
+
+        try
+        {
+            switch ( state )
             {
-                int rid = -1;
+                case PRESENT:
+                    CONSUMER_LOG.debug( "entry present {}", syncResult.getObjectName() );
+                    break;
 
-                if ( syncStateCtrl.getCookie() != null )
-                {
-                    syncCookie = syncStateCtrl.getCookie();
-                    rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
-                    CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
-                        Strings.utf8ToString( syncCookie ) );
-                }
+                case MODDN:
+                case DELETE:
+                    // Those changes may modify a whole subtree : apply them once the previous
+                    // changes are done, and before the next ones
+                    if ( !getPipeline().drain() )
+                    {
+                        setChangeFailed();
+                    }
 
-                SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+                    applyChange( syncResult, syncStateCtrl, rid );
 
-                // check to avoid conversion of UUID from byte[] to String
-                if ( CONSUMER_LOG.isDebugEnabled() )
-                {
-                    CONSUMER_LOG.debug( "state name {}", state.name() );
-                    CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
-                }
+                    break;
 
-                Dn remoteDn = remoteEntry.getDn();
+                default:
+                    Dn dn = syncResult.getObjectName();
 
-                switch ( state )
-                {
-                    case ADD:
-                        boolean remoteDnExist = false;
+                    if ( !dn.isSchemaAware() )
+                    {
+                        dn = new Dn( schemaManager, dn.getName() );
+                    }
 
-                        try
-                        {
-                            remoteDnExist = session.exists( remoteDn );
-                        }
-                        catch ( LdapNoSuchObjectException lnsoe )
-                        {
-                            CONSUMER_LOG.error( lnsoe.getMessage() );
-                        }
+                    final int changeRid = rid;
 
-                        if ( !remoteDnExist )
-                        {
-                            CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
-                            CONSUMER_LOG.debug( remoteEntry.toString() );
-                            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
-                            addContext.setReplEvent( true );
-                            addContext.setRid( rid );
-
-                            OperationManager operationManager = directoryService.getOperationManager();
-                            operationManager.add( addContext );
-                        }
-                        else
+                    getPipeline().submit( syncStateCtrl.getEntryUUID(), dn, new Callable<Void>()
+                    {
+                        public Void call() throws Exception
                         {
-                            CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
-                            modify( remoteEntry, rid );
+                            applyChange( syncResult, syncStateCtrl, changeRid );
+
+                            return null;
                         }
+                    } );
 
-                        break;
+                    break;
+            }
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( e.getMessage(), e );
+            setChangeFailed();
+        }
 
-                    case MODIFY:
-                        CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
+        changesSinceCheckpoint++;
+
+        if ( ( changesSinceCheckpoint >= checkpointCount )
+            || ( System.currentTimeMillis() - lastCheckpoint >= checkpointInterval ) )
+        {
+            checkpoint();
+        }
+
+        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+    }
+
+
+    /**
+     * Applies a change received from the producer.
+     *
+     * @param syncResult The received entry
+     * @param syncStateCtrl The entry's SyncStateValue control
+     * @param rid The replica ID
+     * @throws Exception If the change can't be applied
+     */
+    private void applyChange( SearchResultEntry syncResult, SyncStateValue syncStateCtrl, int rid ) throws Exception
+    {
+        Entry remoteEntry = new DefaultEntry( schemaManager, syncResult.getEntry() );
+        // lock on UUID to serialize the updates when there are multiple consumers
+        // connected to several producers and to the *same* base/partition
+        Object lock = getLockFor( syncStateCtrl.getEntryUUID() );
+
+        synchronized ( lock )
+        {
+            SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+            Dn remoteDn = remoteEntry.getDn();
+
+            switch ( state )
+            {
+                case ADD:
+                    boolean remoteDnExist = false;
+
+                    try
+                    {
+                        remoteDnExist = session.exists( remoteDn );
+                    }
+                    catch ( LdapNoSuchObjectException lnsoe )
+                    {
+                        CONSUMER_LOG.error( lnsoe.getMessage() );
+                    }
+
+                    if ( !remoteDnExist )
+                    {
+                        CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
+                        CONSUMER_LOG.debug( remoteEntry.toString() );
+                        AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
+                        addContext.setReplEvent( true );
+                        addContext.setSyncDeferred( true );
+                        addContext.setRid( rid );
+
+                        OperationManager operationManager = directoryService.getOperationManager();
+                        operationManager.add( addContext );
+                    }
+                    else
+                    {
+                        CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
                         modify( remoteEntry, rid );
+                    }
 
-                        break;
+                    break;
 
-                    case MODDN:
-                        String entryUuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() ).toString();
-                        applyModDnOperation( remoteEntry, entryUuid, rid );
+                case MODIFY:
+                    CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
+                    modify( remoteEntry, rid );
 
-                        break;
+                    break;
 
-                    case DELETE:
-                        CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
+                case MODDN:
+                    String entryUuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() ).toString();
+                    applyModDnOperation( remoteEntry, entryUuid, rid );
 
-                        if ( !session.exists( remoteDn ) )
-                        {
-                            CONSUMER_LOG
-                                .debug(
-                                    "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
-                                    remoteDn );
-                        }
-                        else
-                        {
-                            // incase of a MODDN operation resulting in a branch to be moved out of scope
-                            // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
-                            // so the branch needs to be recursively deleted here
-                            deleteRecursive( remoteEntry.getDn(), rid );
-                        }
+                    break;
 
-                        break;
+                case DELETE:
+                    CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
 
-                    case PRESENT:
-                        CONSUMER_LOG.debug( "entry present {}", remoteEntry );
-                        break;
+                    if ( !session.exists( remoteDn ) )
+                    {
+                        CONSUMER_LOG
+                            .debug(
+                                "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
+                                remoteDn );
+                    }
+                    else
+                    {
+                        // incase of a MODDN operation resulting in a branch to be moved out of scope
+                        // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
+                        // so the branch needs to be recursively deleted here
+                        deleteRecursive( remoteEntry.getDn(), rid );
+                    }
 
-                    default:
-                        throw new IllegalArgumentException( "Unexpected sync state " + state );
-                }
+                    break;
 
-                // store the cookie only if the above operation was successful
-                if ( syncStateCtrl.getCookie() != null )
-                {
-                    storeCookie();
-                }
+                default:
+                    throw new IllegalArgumentException( "Unexpected sync state " + state );
             }
         }
-        catch ( Exception e )
+    }
+
+
+    /**
+     * @return The apply pipeline, created if needed
+     */
+    private synchronized ReplicationApplyPipeline getPipeline()
+    {
+        if ( pipeline == null )
         {
-            CONSUMER_LOG.error( e.getMessage(), e );
+            pipeline = new ReplicationApplyPipeline( "consumer-" + config.getReplicaId(), applyThreads,
+                applyBatchSize );
         }
 
-        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+        return pipeline;
+    }
+
+
+    /**
+     * Records that a received change could not be applied. The cookies are not stored
+     * anymore until the next synchronization search, so that the producer sends the change
+     * again.
+     */
+    private void setChangeFailed()
+    {
+        if ( !changeFailed )
+        {
+            CONSUMER_LOG.error( "A change from {} could not be applied, the cookie will not be stored anymore "
+                + "until the consumer resynchronizes", config.getProducer() );
+            changeFailed = true;
+        }
+    }
+
+
+    /**
+     * Waits for the submitted changes. The cookie of the last change can then be stored,
+     * unless one of the changes could not be applied.
+     *
+     * @return <code>true</code> if all the changes have been applied
+     */
+    private synchronized boolean flushChanges()
+    {
+        if ( ( pipeline != null ) && !pipeline.drain() )
+        {
+            setChangeFailed();
+        }
+
+        if ( changeFailed )
+        {
+            pendingCookie = null;
+
+            return false;
+        }
+
+        if ( pendingCookie != null )
+        {
+            syncCookie = pendingCookie;
+            pendingCookie = null;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Applies the pending changes, and stores the cookie of the last one
+     */
+    private synchronized void checkpoint()
+    {
+        if ( flushChanges() )
+        {
+            storeCookie();
+        }
+
+        changesSinceCheckpoint = 0;
+        lastCheckpoint = System.currentTimeMillis();
     }
 
 
@@ -476,6 +670,9 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             CONSUMER_LOG.debug( "............... inside handleSyncInfo ..............." );
 
+            // The deletions must be applied on top of the previous changes
+            boolean applied = flushChanges();
+
             byte[] syncInfoBytes = syncInfoResp.getResponseValue();
 
             if ( syncInfoBytes == null )
@@ -500,9 +697,8 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             {
                 CONSUMER_LOG.debug( "setting the cookie from the sync info: " + Strings.utf8ToString( cookie ) );
                 CONSUMER_LOG.debug( "setting the cookie from the sync info: " + Strings.utf8ToString( cookie ) );
-                syncCookie = cookie;
 
-                String cookieString = Strings.utf8ToString( syncCookie );
+                String cookieString = Strings.utf8ToString( cookie );
                 replicaId = LdapProtocolUtils.getReplicaId( cookieString );
             }
 
@@ -523,11 +719,18 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
             CONSUMER_LOG.info( "refreshDone: " + syncInfoValue.isRefreshDone() );
 
-            storeCookie();
+            // The cookie can be stored once the deletions are done, and if the previous changes
+            // have all been applied
+            if ( applied && ( cookie != null ) )
+            {
+                syncCookie = cookie;
+                storeCookie();
+            }
         }
         catch ( Exception de )
         {
             CONSUMER_LOG.error( "Failed to handle syncinfo message", de );
+            setChangeFailed();
         }
 
         CONSUMER_LOG.debug( ".................... END handleSyncInfo ..............." );
@@ -704,6 +907,15 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             disconnect();
         }
+
+        synchronized ( this )
+        {
+            if ( pipeline != null )
+            {
+                pipeline.shutdown();
+                pipeline = null;
+            }
+        }
     }
 
 
@@ -734,6 +946,11 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     private ReplicationStatusEnum doSyncSearch( SynchronizationModeEnum syncType, boolean reloadHint ) throws Exception
     {
         CONSUMER_LOG.debug( "Starting synchronization mode {}, reloadHint {}", syncType, reloadHint );
+
+        // The producer sends the changes again from the last applied one
+        changeFailed = false;
+        pendingCookie = null;
+
         // Prepare the Syncrepl Request
         SyncRequestValue syncReq = new SyncRequestValueDecorator( directoryService.getLdapCodecService() );
 
@@ -779,14 +996,20 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             {
                 handleSyncInfo( ( IntermediateResponse ) resp );
             }
+            else if ( resp == null )
+            {
+                // Nothing received for a while : store what has been applied
+                checkpoint();
+            }
 
             // Next entry
-            resp = sf.get();
+            resp = sf.get( checkpointInterval, TimeUnit.MILLISECONDS );
             CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
         }
 
         if ( sf.isCancelled() )
         {
+            checkpoint();
 
             CONSUMER_LOG.debug( "Search sync on {} has been canceled ", config.getProducer(), sf.getCause() );
 
@@ -889,11 +1112,12 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         }
         finally
         {
-            // persist the cookie
-            storeCookie();
+            // apply the pending changes and persist the cookie
+            checkpoint();
 
             // reset the cookie
             syncCookie = null;
+            pendingCookie = null;
         }
     }
 
@@ -915,6 +1139,19 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             return;
         }
 
+        // The changes have been applied without syncing the partition : the cookie
+        // must not get ahead of the data on disk
+        try
+        {
+            directoryService.getPartitionNexus().getPartition( new Dn( schemaManager, config.getBaseDn() ) ).sync();
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( "Failed to sync the partition of {}, the cookie is not stored", config.getBaseDn(), e );
+
+            return;
+        }
+
         try
         {
             Attribute attr = cookieMod.getAttribute();
@@ -1078,6 +1315,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 CONSUMER_LOG.debug( "moving {} to the new parent {}", localDn, remoteParentDn );
                 MoveOperationContext movCtx = new MoveOperationContext( session, localDn, remoteParentDn );
                 movCtx.setReplEvent( true );
+                movCtx.setSyncDeferred( true );
                 movCtx.setRid( rid );
                 directoryService.getOperationManager().move( movCtx );
             }
@@ -1090,6 +1328,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 RenameOperationContext renCtx = new RenameOperationContext( session, localDn, remoteRdn,
                     deleteOldRdn );
                 renCtx.setReplEvent( true );
+                renCtx.setSyncDeferred( true );
                 renCtx.setRid( rid );
                 directoryService.getOperationManager().rename( renCtx );
             }
@@ -1106,6 +1345,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 MoveAndRenameOperationContext movRenCtx = new MoveAndRenameOperationContext( session, localDn,
                     remoteParentDn, remoteRdn, deleteOldRdn );
                 movRenCtx.setReplEvent( true );
+                movRenCtx.setSyncDeferred( true );
                 movRenCtx.setRid( rid );
                 directoryService.getOperationManager().moveAndRename( movRenCtx );
             }
@@ -1188,6 +1428,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         ModifyOperationContext modifyContext = new ModifyOperationContext( session, remoteEntry.getDn(),
             serverModifications );
         modifyContext.setReplEvent( true );
+        modifyContext.setSyncDeferred( true );
         modifyContext.setRid( rid );
 
         OperationManager operationManager = directoryService.getOperationManager();
@@ -1251,7 +1492,12 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         if ( isRefreshPresent )
         {
             CONSUMER_LOG.debug( "refresh present syncinfo list has {} UUIDs", uuidList.size() );
-            processDelete( uuidList, isRefreshPresent, replicaId );
+
+            if ( !deleteAbsentEntries( uuidList, replicaId ) )
+            {
+                processDelete( uuidList, isRefreshPresent, replicaId );
+            }
+
             return;
         }
 
@@ -1280,6 +1526,244 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Deletes the entries of the replicated area whose UUID is not in the given present list.
+     * The entry IDs are read in ascending order from the partition, and merged with the
+     * sorted present UUIDs, so that the cost is linear in the number of entries. The
+     * absent entries are then deleted by batches.
+     *
+     * @param presentUuids The UUIDs of the entries present on the producer
+     * @param replicaId The replica ID
+     * @return <code>false</code> if the partition can't be read this way, or if its entry IDs
+     * are not canonical UUIDs. Nothing has been deleted then.
+     * @throws Exception in case of any problems while deleting the entries
+     */
+    private boolean deleteAbsentEntries( List<byte[]> presentUuids, int replicaId ) throws Exception
+    {
+        Dn baseDn = new Dn( schemaManager, config.getBaseDn() );
+        Partition partition = directoryService.getPartitionNexus().getPartition( baseDn );
+
+        if ( !( partition instanceof AbstractBTreePartition ) )
+        {
+            return false;
+        }
+
+        AbstractBTreePartition store = ( AbstractBTreePartition ) partition;
+        File tmpDir = directoryService.getInstanceLayout().getRunDirectory();
+        SortedUuidSet present = new SortedUuidSet( tmpDir, presentUuidsInMemory );
+        SortedUuidSet absent = new SortedUuidSet( tmpDir, presentUuidsInMemory );
+
+        try
+        {
+            for ( byte[] uuid : presentUuids )
+            {
+                present.add( uuid );
+            }
+
+            if ( !findAbsentEntries( store, present, absent ) )
+            {
+                return false;
+            }
+
+            // The entries outside of the replicated area have to be filtered out, unless
+            // the whole partition is replicated
+            boolean checkScope = !baseDn.equals( store.getSuffixDn() );
+            List<Dn> batch = new ArrayList<Dn>();
+            UuidIterator absentIds = absent.iterator();
+
+            try
+            {
+                while ( absentIds.next() )
+                {
+                    String id = new UUID( absentIds.getMostSignificantBits(),
+                        absentIds.getLeastSignificantBits() ).toString();
+                    Dn dn = null;
+
+                    try
+                    {
+                        dn = store.getEntryDn( id );
+                    }
+                    catch ( Exception e )
+                    {
+                        // Already deleted
+                        continue;
+                    }
+
+                    if ( checkScope && !dn.equals( baseDn ) && !dn.isDescendantOf( baseDn ) )
+                    {
+                        continue;
+                    }
+
+                    batch.add( dn );
+
+                    if ( batch.size() >= applyBatchSize )
+                    {
+                        deleteBatch( batch, replicaId );
+                        batch.clear();
+                    }
+                }
+            }
+            finally
+            {
+                absentIds.close();
+            }
+
+            deleteBatch( batch, replicaId );
+        }
+        finally
+        {
+            present.close();
+            absent.close();
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Merges the entry IDs of a partition with the present UUIDs, and stores the IDs
+     * which are not present. The merge needs the IDs to come in the same order as the
+     * UUIDs of the SortedUuidSet : this is the case for the lower case UUIDs the server
+     * generates, but not for an ID which is not a UUID, or which has some upper case
+     * hexadecimal digits.
+     *
+     * @return <code>false</code> if an ID is not a UUID, or is not greater than the previous one
+     */
+    @SuppressWarnings(
+        { "unchecked", "rawtypes" })
+    private boolean findAbsentEntries( AbstractBTreePartition store, SortedUuidSet present, SortedUuidSet absent )
+        throws Exception
+    {
+        UuidIterator presentIds = present.iterator();
+        Lock lock = store.getReadWriteLock().readLock();
+        lock.lock();
+
+        // The reverse table of the Rdn index is keyed by the entry IDs, which are the
+        // entryUUIDs, in ascending order
+        Cursor<IndexEntry> cursor = ( Cursor ) store.getRdnIndex().reverseCursor();
+
+        try
+        {
+            boolean hasPresent = presentIds.next();
+            boolean isFirst = true;
+            long previousMsb = 0L;
+            long previousLsb = 0L;
+            long nbEntries = 0L;
+            cursor.beforeFirst();
+
+            while ( cursor.next() )
+            {
+                String id = ( String ) cursor.get().getKey();
+                UUID uuid = null;
+                nbEntries++;
+
+                try
+                {
+                    uuid = UUID.fromString( id );
+                }
+                catch ( IllegalArgumentException iae )
+                {
+                    CONSUMER_LOG.debug( "The entry ID {} is not a UUID, the IDs can't be merged", id );
+
+                    return false;
+                }
+
+                long msb = uuid.getMostSignificantBits();
+                long lsb = uuid.getLeastSignificantBits();
+
+                if ( !isFirst && ( SortedUuidSet.compare( previousMsb, previousLsb, msb, lsb ) >= 0 ) )
+                {
+                    CONSUMER_LOG.debug( "The entry ID {} is out of order, the IDs can't be merged", id );
+
+                    return false;
+                }
+
+                isFirst = false;
+                previousMsb = msb;
+                previousLsb = lsb;
+
+                while ( hasPresent && SortedUuidSet.compare( presentIds.getMostSignificantBits(),
+                    presentIds.getLeastSignificantBits(), msb, lsb ) < 0 )
+                {
+                    hasPresent = presentIds.next();
+                }
+
+                if ( !hasPresent || ( SortedUuidSet.compare( presentIds.getMostSignificantBits(),
+                    presentIds.getLeastSignificantBits(), msb, lsb ) != 0 ) )
+                {
+                    absent.add( msb, lsb );
+                }
+            }
+
+            CONSUMER_LOG.debug( "Checked the presence of {} entries in partition {}", nbEntries, store.getId() );
+
+            return true;
+        }
+        finally
+        {
+            cursor.close();
+            lock.unlock();
+            presentIds.close();
+        }
+    }
+
+
+    /**
+     * Deletes a batch of entries, the parents first, with their subtree. The deletions
+     * don't sync the partition : it is synced before the next cookie is stored.
+     */
+    private void deleteBatch( List<Dn> batch, int replicaId ) throws Exception
+    {
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+
+        Collections.sort( batch, new Comparator<Dn>()
+        {
+            public int compare( Dn dn1, Dn dn2 )
+            {
+                return dn1.size() - dn2.size();
+            }
+        } );
+
+        OperationManager operationManager = directoryService.getOperationManager();
+
+        for ( Dn dn : batch )
+        {
+            DeleteOperationContext ctx = new DeleteOperationContext( session );
+            ctx.setReplEvent( true );
+            ctx.setSyncDeferred( true );
+            ctx.setRid( replicaId );
+
+            // DO NOT generate replication event if this is being deleted as part of 
+            // e_sync_refresh_required
+            if ( reload )
+            {
+                ctx.setGenerateNoReplEvt( true );
+            }
+
+            ctx.setDn( dn );
+
+            try
+            {
+                operationManager.delete( ctx );
+            }
+            catch ( LdapNoSuchObjectException lnsoe )
+            {
+                // Deleted with its parent
+                CONSUMER_LOG.debug( "The entry {} has already been deleted", dn );
+            }
+            catch ( LdapContextNotEmptyException lcnee )
+            {
+                deleteRecursive( dn, replicaId );
+            }
+        }
+
+        CONSUMER_LOG.debug( "Deleted {} entries absent from the producer", batch.size() );
+    }
+
+
     /**
      * do not call this method directly, instead call deleteEntries()
      *
@@ -1360,6 +1844,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
             DeleteOperationContext ctx = new DeleteOperationContext( session );
             ctx.setReplEvent( true );
+            ctx.setSyncDeferred( true );
             ctx.setRid( replicaId );
 
             // DO NOT generate replication event if this is being deleted as part of 
@@ -1377,17 +1862,9 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
-    private synchronized Object getLockFor( String uuid )
+    private static Object getLockFor( byte[] uuid )
     {
-        Object lock = UUID_LOCK_MAP.get( uuid );
-
-        if ( lock == null )
-        {
-            lock = new Object();
-            UUID_LOCK_MAP.put( uuid, lock );
-        }
-
-        return lock;
+        return UUID_LOCKS[( Arrays.hashCode( uuid ) & Integer.MAX_VALUE ) % UUID_LOCKS.length];
     }
 
 
@@ -1430,6 +1907,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
                 DeleteOperationContext ctx = new DeleteOperationContext( session );
                 ctx.setReplEvent( true );
+                ctx.setSyncDeferred( true );
                 ctx.setRid( rid );
 
                 // DO NOT generate replication event if this is being deleted as part of 
@@ -0,0 +1,521 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A set of UUIDs which can be read back in ascending order. The UUIDs are stored as
+ * pairs of longs, and compared as unsigned 128 bits numbers, which is the order of their
+ * string representation, and thus the order of the entry IDs in the partitions.
+ * <br/>
+ * The UUIDs are kept in memory up to a limit. Past it, they are sorted and written
+ * into a temporary file, and the files are merged when the set is read. The temporary
+ * files are deleted when the set is closed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SortedUuidSet implements Closeable
+{
+    /** A dedicated logger for the consumer */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The directory the temporary files are created in */
+    private final File directory;
+
+    /** The maximum number of UUIDs kept in memory */
+    private final int memoryLimit;
+
+    /** The UUIDs kept in memory, as (most significant bits, least significant bits) pairs */
+    private long[] buffer = new long[32];
+
+    /** The number of UUIDs in memory */
+    private int size;
+
+    /** The temporary files, each one containing sorted UUIDs */
+    private final List<File> runs = new ArrayList<File>();
+
+
+    /**
+     * Creates a new instance of SortedUuidSet.
+     *
+     * @param directory The directory the temporary files are created in
+     * @param memoryLimit The maximum number of UUIDs kept in memory
+     */
+    public SortedUuidSet( File directory, int memoryLimit )
+    {
+        this.directory = directory;
+        this.memoryLimit = Math.max( 1, memoryLimit );
+    }
+
+
+    /**
+     * Adds a UUID, given as its 16 bytes.
+     *
+     * @param uuid The UUID
+     * @throws IOException If the UUIDs can't be written on disk
+     */
+    public void add( byte[] uuid ) throws IOException
+    {
+        add( toLong( uuid, 0 ), toLong( uuid, 8 ) );
+    }
+
+
+    /**
+     * Adds a UUID.
+     *
+     * @param msb The most significant bits of the UUID
+     * @param lsb The least significant bits of the UUID
+     * @throws IOException If the UUIDs can't be written on disk
+     */
+    public void add( long msb, long lsb ) throws IOException
+    {
+        if ( size == memoryLimit )
+        {
+            spill();
+        }
+
+        if ( size * 2 == buffer.length )
+        {
+            long[] newBuffer = new long[Math.min( buffer.length * 2, memoryLimit * 2 )];
+            System.arraycopy( buffer, 0, newBuffer, 0, buffer.length );
+            buffer = newBuffer;
+        }
+
+        buffer[size * 2] = msb;
+        buffer[size * 2 + 1] = lsb;
+        size++;
+    }
+
+
+    /**
+     * Reads the UUIDs in ascending order, without the duplicates. No UUID can be added
+     * once the set is read.
+     *
+     * @return An iterator over the UUIDs
+     * @throws IOException If the temporary files can't be read
+     */
+    public UuidIterator iterator() throws IOException
+    {
+        sort();
+
+        List<UuidIterator> sources = new ArrayList<UuidIterator>();
+
+        try
+        {
+            for ( File run : runs )
+            {
+                sources.add( new RunIterator( run ) );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            for ( UuidIterator source : sources )
+            {
+                source.close();
+            }
+
+            throw ioe;
+        }
+
+        sources.add( new BufferIterator( buffer, size ) );
+
+        return new MergeIterator( sources );
+    }
+
+
+    /**
+     * Deletes the temporary files
+     */
+    public void close()
+    {
+        for ( File run : runs )
+        {
+            if ( !run.delete() )
+            {
+                CONSUMER_LOG.warn( "Failed to delete the temporary file {}", run );
+            }
+        }
+
+        runs.clear();
+        buffer = new long[32];
+        size = 0;
+    }
+
+
+    /**
+     * Compares two UUIDs, as unsigned 128 bits numbers.
+     *
+     * @param msb1 The most significant bits of the first UUID
+     * @param lsb1 The least significant bits of the first UUID
+     * @param msb2 The most significant bits of the second UUID
+     * @param lsb2 The least significant bits of the second UUID
+     * @return A negative value, 0, or a positive value if the first UUID is lower, equal
+     * or greater than the second one
+     */
+    public static int compare( long msb1, long lsb1, long msb2, long lsb2 )
+    {
+        if ( msb1 != msb2 )
+        {
+            return ( msb1 ^ Long.MIN_VALUE ) < ( msb2 ^ Long.MIN_VALUE ) ? -1 : 1;
+        }
+
+        if ( lsb1 != lsb2 )
+        {
+            return ( lsb1 ^ Long.MIN_VALUE ) < ( lsb2 ^ Long.MIN_VALUE ) ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+
+    private static long toLong( byte[] bytes, int start )
+    {
+        long value = 0L;
+
+        for ( int i = start; i < start + 8; i++ )
+        {
+            value = ( value << 8 ) | ( bytes[i] & 0xFF );
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Sorts the UUIDs in memory and writes them into a new temporary file
+     */
+    private void spill() throws IOException
+    {
+        sort();
+
+        if ( ( directory != null ) && !directory.exists() && !directory.mkdirs() )
+        {
+            throw new IOException( "Cannot create the directory " + directory );
+        }
+
+        File run = File.createTempFile( "present-uuids-", ".tmp", directory );
+        runs.add( run );
+
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( run ) ) );
+
+        try
+        {
+            for ( int i = 0; i < size * 2; i++ )
+            {
+                out.writeLong( buffer[i] );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        CONSUMER_LOG.debug( "Wrote {} UUIDs in {}", size, run );
+
+        size = 0;
+    }
+
+
+    /**
+     * Sorts the UUIDs in memory, using a heap sort
+     */
+    private void sort()
+    {
+        for ( int i = size / 2 - 1; i >= 0; i-- )
+        {
+            siftDown( i, size );
+        }
+
+        for ( int end = size - 1; end > 0; end-- )
+        {
+            swap( 0, end );
+            siftDown( 0, end );
+        }
+    }
+
+
+    private void siftDown( int root, int end )
+    {
+        while ( true )
+        {
+            int child = root * 2 + 1;
+
+            if ( child >= end )
+            {
+                return;
+            }
+
+            if ( ( child + 1 < end ) && ( compareAt( child, child + 1 ) < 0 ) )
+            {
+                child++;
+            }
+
+            if ( compareAt( root, child ) >= 0 )
+            {
+                return;
+            }
+
+            swap( root, child );
+            root = child;
+        }
+    }
+
+
+    private int compareAt( int i, int j )
+    {
+        return compare( buffer[i * 2], buffer[i * 2 + 1], buffer[j * 2], buffer[j * 2 + 1] );
+    }
+
+
+    private void swap( int i, int j )
+    {
+        long msb = buffer[i * 2];
+        long lsb = buffer[i * 2 + 1];
+        buffer[i * 2] = buffer[j * 2];
+        buffer[i * 2 + 1] = buffer[j * 2 + 1];
+        buffer[j * 2] = msb;
+        buffer[j * 2 + 1] = lsb;
+    }
+
+
+    /**
+     * An iterator over sorted UUIDs.
+     */
+    public abstract static class UuidIterator implements Closeable
+    {
+        /** The most significant bits of the current UUID */
+        protected long msb;
+
+        /** The least significant bits of the current UUID */
+        protected long lsb;
+
+
+        /**
+         * Moves to the next UUID.
+         *
+         * @return <code>true</code> if there is a next UUID
+         * @throws IOException If the UUID can't be read
+         */
+        public abstract boolean next() throws IOException;
+
+
+        /**
+         * @return The most significant bits of the current UUID
+         */
+        public long getMostSignificantBits()
+        {
+            return msb;
+        }
+
+
+        /**
+         * @return The least significant bits of the current UUID
+         */
+        public long getLeastSignificantBits()
+        {
+            return lsb;
+        }
+
+
+        /**
+         * Releases the resources used by the iterator
+         */
+        public void close()
+        {
+        }
+    }
+
+
+    /**
+     * An iterator over the sorted UUIDs kept in memory.
+     */
+    private static final class BufferIterator extends UuidIterator
+    {
+        private final long[] buffer;
+        private final int size;
+        private int pos = -1;
+
+
+        private BufferIterator( long[] buffer, int size )
+        {
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+
+        public boolean next()
+        {
+            if ( pos + 1 >= size )
+            {
+                return false;
+            }
+
+            pos++;
+            msb = buffer[pos * 2];
+            lsb = buffer[pos * 2 + 1];
+
+            return true;
+        }
+    }
+
+
+    /**
+     * An iterator over the sorted UUIDs stored in a temporary file.
+     */
+    private static final class RunIterator extends UuidIterator
+    {
+        private final DataInputStream in;
+
+
+        private RunIterator( File run ) throws IOException
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( run ) ) );
+        }
+
+
+        public boolean next() throws IOException
+        {
+            try
+            {
+                msb = in.readLong();
+                lsb = in.readLong();
+
+                return true;
+            }
+            catch ( EOFException eofe )
+            {
+                return false;
+            }
+        }
+
+
+        public void close()
+        {
+            try
+            {
+                in.close();
+            }
+            catch ( IOException ioe )
+            {
+                CONSUMER_LOG.warn( "Failed to close a temporary file", ioe );
+            }
+        }
+    }
+
+
+    /**
+     * Merges several iterators, skipping the duplicated UUIDs.
+     */
+    private static final class MergeIterator extends UuidIterator
+    {
+        /** The iterators which still have UUIDs, positioned on their current UUID */
+        private final List<UuidIterator> sources = new ArrayList<UuidIterator>();
+
+        /** The iterators which are done */
+        private final List<UuidIterator> done = new ArrayList<UuidIterator>();
+
+        private boolean started;
+
+
+        private MergeIterator( List<UuidIterator> sources ) throws IOException
+        {
+            for ( UuidIterator source : sources )
+            {
+                if ( source.next() )
+                {
+                    this.sources.add( source );
+                }
+                else
+                {
+                    done.add( source );
+                }
+            }
+        }
+
+
+        public boolean next() throws IOException
+        {
+            while ( !sources.isEmpty() )
+            {
+                UuidIterator lowest = sources.get( 0 );
+
+                for ( UuidIterator source : sources )
+                {
+                    if ( compare( source.msb, source.lsb, lowest.msb, lowest.lsb ) < 0 )
+                    {
+                        lowest = source;
+                    }
+                }
+
+                long lowestMsb = lowest.msb;
+                long lowestLsb = lowest.lsb;
+
+                if ( !lowest.next() )
+                {
+                    sources.remove( lowest );
+                    done.add( lowest );
+                }
+
+                if ( !started || ( compare( lowestMsb, lowestLsb, msb, lsb ) != 0 ) )
+                {
+                    started = true;
+                    msb = lowestMsb;
+                    lsb = lowestLsb;
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+
+        public void close()
+        {
+            for ( UuidIterator source : sources )
+            {
+                source.close();
+            }
+
+            for ( UuidIterator source : done )
+            {
+                source.close();
+            }
+        }
+    }
+}
@@ -21,25 +21,19 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
-import java.io.IOException;
-
-import jdbm.RecordManager;
-import jdbm.recman.BaseRecordManager;
-import jdbm.recman.TransactionManager;
-
 import org.apache.directory.api.ldap.model.constants.Loggers;
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.ldap.model.schema.SchemaManager;
-import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.event.Evaluator;
 import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
+import org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,8 +49,9 @@ import org.slf4j.LoggerFactory;
  * <li>refreshNPersist : a flag indicating that the consumer is processing in Refresh and persist mode</li>
  * <li></li>
  * </ul>
- * A separate log is maintained for each syncrepl consumer.<br/>
- * We also associate a Queue with each structure, which will store the messages to send to the consumer.
+ * The messages to send to the consumers are stored once, in the {@link ReplicaJournal} shared by
+ * all the consumers : each consumer only keeps its position in this journal, and selects the
+ * messages it is interested in when reading it.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -96,14 +91,14 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     private int purgeThresholdCount = DEFAULT_PURGE_THRESHOLD_COUNT;
 
     // fields that won't be serialized
-    /** The Journal of modifications */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** The journal of modifications shared by all the consumers */
+    private ReplicaJournal journal;
 
-    /** the underlying file  */
-    private File journalFile;
+    /** The evaluator used to select the journal messages matching the search criteria */
+    private Evaluator evaluator;
 
-    /** The record manager*/
-    private RecordManager recman;
+    /** The sequence number of the last message logged before the last content update */
+    private volatile long refreshSequence;
 
     /** A flag used to indicate that the consumer is not up to date */
     private volatile boolean dirty;
@@ -125,52 +120,141 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      * @param directoryService The DirectoryService instance
      * @param replicaId The replica ID
      */
-    public ReplicaEventLog( DirectoryService directoryService, int replicaId ) throws IOException
+    public ReplicaEventLog( DirectoryService directoryService, int replicaId )
     {
         PROVIDER_LOG.debug( "Creating the replication queue for replica {}", replicaId );
-        SchemaManager schemaManager = directoryService.getSchemaManager();
         this.replicaId = replicaId;
         this.searchCriteria = new NotificationCriteria();
         this.searchCriteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+        this.evaluator = new ExpressionEvaluator( directoryService.getSchemaManager() );
+    }
+
+
+    /**
+     * Stores the given message in the shared journal, unless another consumer has already
+     * stored it. If a {@link ReplicaJournalFlusher} is set, the message is queued to be written
+     * with the next batch, and the write is registered in the operation context : the operation
+     * is not acknowledged before the message has been synced.
+     *
+     * @param message The message to store
+     * @param context The context of the operation which produced the message
+     * @return The sequence number of the message in the journal
+     */
+    public synchronized long log( ReplicaEventMessage message, AbstractChangeOperationContext context )
+    {
+        LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
+            message.getChangeType() );
+        PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
+            message.getChangeType() );
+
+        return journal.append( message, context );
+    }
+
 
-        // Create the journal file, or open if already exists
-        File replDir = directoryService.getInstanceLayout().getReplDirectory();
-        journalFile = new File( replDir, REPLICA_EVENT_LOG_NAME_PREFIX + replicaId );
-        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
-        TransactionManager transactionManager = ( ( BaseRecordManager ) recman ).getTransactionManager();
-        transactionManager.setMaximumTransactionsInLog( 200 );
+    /**
+     * Waits until all the messages logged so far have been written in the journal. They will
+     * be read from the journal by the next cursor, the messages logged from now on have to be
+     * pushed to the consumer by the listener.
+     */
+    public void flush()
+    {
+        refreshSequence = journal.flush();
+    }
 
-        SerializableComparator<String> comparator = new SerializableComparator<String>(
-            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
-        comparator.setSchemaManager( schemaManager );
 
-        journal = new JdbmTable<String, ReplicaEventMessage>( schemaManager, journalFile.getName(), recman, comparator,
-            StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager ) );
+    /**
+     * Tells if a message has been logged after the last {@link #flush()}, and has then not
+     * been read from the journal during the last content update.
+     *
+     * @param sequence The message sequence number, as returned by {@link #log(ReplicaEventMessage)}
+     * @return <code>true</code> if the message has to be pushed to the consumer
+     */
+    public boolean isLoggedAfterFlush( long sequence )
+    {
+        return sequence > refreshSequence;
     }
 
 
     /**
-     * Stores the given message in the queue 
+     * Tells if a journal message has to be sent to this consumer : the changed entry must
+     * have been within the scope of the consumer's search, and must match its filter. The
+     * changes received from this consumer are not sent back to it.
      *
-     * @param message The message to store
+     * @param message The journal message
+     * @return <code>true</code> if the message has to be sent to the consumer
+     * @throws LdapException If the filter can't be evaluated
      */
-    public synchronized void log( ReplicaEventMessage message )
+    public boolean isSelected( ReplicaEventMessage message ) throws LdapException
     {
-        try
+        if ( message.getRid() == replicaId )
         {
-            LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
-                message.getChangeType() );
-            PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
-                message.getChangeType() );
-
-            String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-            journal.put( entryCsn, message );
-            journal.sync();
+            return false;
         }
-        catch ( Exception e )
+
+        Entry entry = message.getEntry();
+        Dn name = message.getPreviousDn();
+
+        if ( name == null )
         {
-            LOG.warn( "Failed to insert the entry into syncrepl log", e );
-            PROVIDER_LOG.error( "Failed to insert the entry into syncrepl log", e );
+            name = entry.getDn();
+        }
+
+        if ( !isInScope( name, searchCriteria.getScope() ) )
+        {
+            return false;
+        }
+
+        return evaluator.evaluate( searchCriteria.getFilter(), searchCriteria.getBase(), entry );
+    }
+
+
+    /**
+     * Gets the message to send to this consumer for a selected journal message : an entry
+     * moved out of the consumer's base is sent as a deleted entry.
+     *
+     * @param message The journal message
+     * @return The message to send
+     */
+    public ReplicaEventMessage toConsumerMessage( ReplicaEventMessage message )
+    {
+        Dn previousDn = message.getPreviousDn();
+
+        if ( ( message.getChangeType() != ChangeType.MODDN ) || ( previousDn == null ) )
+        {
+            return message;
+        }
+
+        Dn newSuperior = message.getEntry().getDn().getParent();
+
+        if ( newSuperior.equals( previousDn.getParent() ) || isInScope( newSuperior, SearchScope.SUBTREE ) )
+        {
+            return message;
+        }
+
+        Entry deletedEntry = message.getEntry().clone();
+        deletedEntry.setDn( previousDn );
+
+        return new ReplicaEventMessage( ChangeType.DELETE, deletedEntry, null, message.getRid() );
+    }
+
+
+    /**
+     * Tells if the given name is in the given scope of the search base
+     */
+    private boolean isInScope( Dn name, SearchScope scope )
+    {
+        Dn base = searchCriteria.getBase();
+
+        switch ( scope )
+        {
+            case OBJECT:
+                return name.equals( base );
+
+            case ONELEVEL:
+                return name.getParent().equals( base );
+
+            default:
+                return name.isDescendantOf( base ) || name.equals( base );
         }
     }
 
@@ -205,20 +289,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     {
         PROVIDER_LOG.debug( "Stopping the EventLog for replicaId {}", replicaId );
 
-        // Close the producer and session, DO NOT close connection 
-        if ( journal != null )
-        {
-            journal.close();
-        }
-
-        journal = null;
-
-        if ( recman != null )
-        {
-            recman.close();
-        }
-
-        recman = null;
+        // Nothing to close : the journal is shared, and closed by the SyncReplRequestHandler
     }
 
 
@@ -438,7 +509,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public ReplicaJournalCursor getCursor( String consumerCsn ) throws Exception
     {
-        return new ReplicaJournalCursor( journal, consumerCsn );
+        return new ReplicaJournalCursor( journal, this, consumerCsn, refreshSequence );
     }
 
 
@@ -447,23 +518,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public String getName()
     {
-        return journal.getName();
-    }
-
-
-    /**
-     * @return the number of entries present in the replica log
-     */
-    public synchronized long count()
-    {
-        try
-        {
-            return journal.count();
-        }
-        catch ( IOException e )
-        {
-            throw new RuntimeException( e );
-        }
+        return REPLICA_EVENT_LOG_NAME_PREFIX + replicaId;
     }
 
 
@@ -501,6 +556,26 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     }
 
 
+    /**
+     * @return The journal of modifications shared by all the consumers
+     */
+    public ReplicaJournal getJournal()
+    {
+        return journal;
+    }
+
+
+    /**
+     * Set the journal of modifications shared by all the consumers
+     *
+     * @param journal The journal
+     */
+    public void setJournal( ReplicaJournal journal )
+    {
+        this.journal = journal;
+    }
+
+
     public Dn getConsumerEntryDn()
     {
         return consumerEntryDn;
@@ -519,7 +594,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
         return "ReplicaEventLog [hostName=" + hostName + ", searchFilter=" + searchFilter + ", lastSentCsn="
             + lastSentCsn + ", searchCriteria=" + searchCriteria + ", replicaId=" + replicaId
             + ", refreshNPersist=" + refreshNPersist + ", maxInactivePeriod=" + maxIdlePeriod
-            + ", purgeThresholdCount=" + purgeThresholdCount + ", journalFile=" + journalFile
+            + ", purgeThresholdCount=" + purgeThresholdCount
             + ", dirty=" + dirty + ", consumerEntryDn=" + consumerEntryDn + "]";
     }
 }
@@ -20,21 +20,20 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
 import java.util.Map;
 
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.Csn;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.util.DateUtils;
 import org.apache.directory.server.core.api.DirectoryService;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Deletes old entries from the replication event logs that are configured in refreshNPersist mode.
+ * Removes the replication event logs of the consumers which have been idle for too long, and
+ * deletes the old messages from the shared replication journal : the messages already sent to
+ * the slowest consumer, and the messages over the journal retention limits.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -46,6 +45,8 @@ public class ReplicaEventLogJanitor extends Thread
 
     private Map<Integer, ReplicaEventLog> replicaLogMap;
 
+    private ReplicaJournal journal;
+
     private volatile boolean stop = false;
 
     /** A lock used to wait */
@@ -58,12 +59,13 @@ public class ReplicaEventLogJanitor extends Thread
 
 
     public ReplicaEventLogJanitor( final DirectoryService directoryService,
-        final Map<Integer, ReplicaEventLog> replicaLogMap )
+        final Map<Integer, ReplicaEventLog> replicaLogMap, final ReplicaJournal journal )
     {
-        // if log is in refreshNpersist mode, has more entries than the log's threshold count then 
-        // all the entries before the last sent CSN and older than 2 hours will be purged
+        // if the journal has more entries than the smallest threshold count of the logs then 
+        // all the entries before the slowest last sent CSN and older than 2 hours will be purged
         this.directoryService = directoryService;
         this.replicaLogMap = replicaLogMap;
+        this.journal = journal;
         setDaemon( true );
     }
 
@@ -73,97 +75,79 @@ public class ReplicaEventLogJanitor extends Thread
     {
         while ( !stop )
         {
+            String slowestCsn = null;
+            boolean allSent = true;
+            long thresholdCount = Long.MAX_VALUE;
+
             for ( ReplicaEventLog log : replicaLogMap.values() )
             {
                 synchronized ( log ) // lock the log and clean
                 {
-                    try
+                    String lastSentCsn = log.getLastSentCsn();
+
+                    if ( lastSentCsn == null )
                     {
-                        String lastSentCsn = log.getLastSentCsn();
+                        LOG.debug( "last sent CSN is null for the replica {}, no sent message can be purged",
+                            log.getName() );
+                        allSent = false;
 
-                        if ( lastSentCsn == null )
-                        {
-                            LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
-                            return;
-                        }
+                        continue;
+                    }
 
-                        long now = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
+                    long now = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
 
-                        long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
+                    long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
 
-                        long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
+                    long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
 
-                        LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
-                            lastUpdatedTime, maxIdleTime );
+                    LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
+                        lastUpdatedTime, maxIdleTime );
 
-                        // DO NOT delete those with maxIdleTime <= 0
-                        if ( ( maxIdleTime > 0 ) && ( now - lastUpdatedTime ) >= maxIdleTime )
+                    // DO NOT delete those with maxIdleTime <= 0
+                    if ( ( maxIdleTime > 0 ) && ( now - lastUpdatedTime ) >= maxIdleTime )
+                    {
+                        //max idle time of the event log reached, delete it
+                        removeEventLog( log );
+
+                        // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
+                        // will get called eventually but removeEventLog() will not be called cause by 
+                        // that time this log will not be present in replicaLogMap
+                        // The reason we don't call this method first is to guard against any rename
+                        // operation performed on the log's entry in DiT
+                        try
                         {
-                            //max idle time of the event log reached, delete it
-                            removeEventLog( log );
-
-                            // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
-                            // will get called eventually but removeEventLog() will not be called cause by 
-                            // that time this log will not be present in replicaLogMap
-                            // The reason we don't call this method first is to guard against any rename
-                            // operation performed on the log's entry in DiT
-                            try
-                            {
-                                directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
-                            }
-                            catch ( LdapException e )
-                            {
-                                LOG.warn( "Failed to delete the entry {} of replica event log {}",
-                                    log.getConsumerEntryDn(), log.getName(), e );
-                            }
-
-                            continue;
+                            directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
                         }
-
-                        long thresholdCount = log.getPurgeThresholdCount();
-
-                        if ( log.count() < thresholdCount )
+                        catch ( LdapException e )
                         {
-                            continue;
+                            LOG.warn( "Failed to delete the entry {} of replica event log {}",
+                                log.getConsumerEntryDn(), log.getName(), e );
                         }
 
-                        LOG.debug( "starting to purge the log entries that are older than {} milliseconds",
-                            thresholdTime );
+                        continue;
+                    }
 
-                        long deleteCount = 0;
+                    if ( ( slowestCsn == null ) || ( lastSentCsn.compareTo( slowestCsn ) < 0 ) )
+                    {
+                        slowestCsn = lastSentCsn;
+                    }
 
-                        ReplicaJournalCursor cursor = log.getCursor( null ); // pass no CSN
-                        cursor.skipQualifyingWhileFetching();
+                    thresholdCount = Math.min( thresholdCount, log.getPurgeThresholdCount() );
+                }
+            }
 
-                        while ( cursor.next() )
-                        {
-                            ReplicaEventMessage message = cursor.get();
-                            String csnVal = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-
-                            // skip if we reach the lastSentCsn or got past it
-                            if ( csnVal.compareTo( lastSentCsn ) >= 0 )
-                            {
-                                break;
-                            }
-
-                            Csn csn = new Csn( csnVal );
-
-                            if ( ( now - csn.getTimestamp() ) >= thresholdTime )
-                            {
-                                cursor.delete();
-                                deleteCount++;
-                            }
-                        }
+            try
+            {
+                LOG.debug( "starting to purge the journal messages that are older than {} milliseconds",
+                    thresholdTime );
 
-                        cursor.close();
+                long deleteCount = journal.purge( allSent ? slowestCsn : null, thresholdCount, thresholdTime );
 
-                        LOG.debug( "purged {} messages from the log {}", deleteCount, log.getName() );
-                    }
-                    catch ( Exception e )
-                    {
-                        LOG.warn( "Failed to purge old entries from the log {}", log.getName(), e );
-                    }
-                }
+                LOG.debug( "purged {} messages from the replication journal", deleteCount );
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to purge old entries from the replication journal", e );
             }
 
             try
@@ -193,8 +177,7 @@ public class ReplicaEventLogJanitor extends Thread
         {
             replicaEventLog.stop();
 
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".db" ).delete();
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".lg" ).delete();
+            // The messages it still needs will be purged from the journal with the next cleanup
             LOG.info( "successfully removed replication event log {}", name );
         }
         catch ( Exception e )
@@ -0,0 +1,878 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdbm.RecordManager;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.TransactionManager;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
+import org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The replication journal shared by all the consumers of a provider. Each change is stored
+ * once, ordered by its entryCSN, whatever the number of consumers : a consumer only keeps its
+ * position in the journal (its last sent CSN), and the messages it does not care about are
+ * filtered when they are read (see {@link ReplicaEventLog#isSelected(ReplicaEventMessage)}).
+ * <br/>
+ * The journal is purged by the {@link ReplicaEventLogJanitor}, up to the position of the
+ * slowest consumer. Its size and the age of its messages can also be capped, using the
+ * <em>apacheds.replication.journal.maxSize</em> and <em>apacheds.replication.journal.maxAge</em>
+ * system properties : the consumers which have not read the removed messages yet will then
+ * have to do a full refresh.
+ * <br/>
+ * The JDBM cursors don't support concurrent modifications, so the journal is read in small
+ * batches, each of them being read while holding the journal lock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournal
+{
+    /** The logger */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaJournal.class );
+
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The journal file name */
+    public static final String REPLICA_JOURNAL_NAME = "REPL_JOURNAL";
+
+    /** The system property used to set the maximum number of messages kept in the journal */
+    public static final String MAX_SIZE_PROPERTY = "apacheds.replication.journal.maxSize";
+
+    /** The system property used to set the maximum age (in seconds) of the messages kept in the journal */
+    public static final String MAX_AGE_PROPERTY = "apacheds.replication.journal.maxAge";
+
+    /** The default maximum number of messages kept in the journal */
+    public static final long DEFAULT_MAX_SIZE = 1000000L;
+
+    /** The number of recently appended messages we remember, to avoid storing them twice */
+    private static final int RECENT_MESSAGES_SIZE = 10000;
+
+    /** The number of messages removed at once when purging the journal */
+    private static final int PURGE_BATCH_SIZE = 1000;
+
+    /** The name of the record storing the CSN of the last purged message */
+    private static final String PURGED_CSN_NAME = REPLICA_JOURNAL_NAME + "_purgedCsn";
+
+    /** The journal of modifications */
+    private JdbmTable<String, ReplicaEventMessage> journal;
+
+    /** The record manager */
+    private RecordManager recman;
+
+    /** The lock protecting the journal against concurrent accesses */
+    private final Object journalLock = new Object();
+
+    /** The shared writer used to group the journal writes, if any */
+    private ReplicaJournalFlusher journalFlusher;
+
+    /** The CSN of the last message removed from the journal, if any */
+    private volatile String purgedCsn;
+
+    /** The record ID of the purged CSN */
+    private long purgedCsnRecId;
+
+    /** The sequence number given to the last appended message */
+    private long sequence;
+
+    /** The sequence numbers of the recently appended messages, per CSN */
+    private final Map<String, Long> recentMessages = new LinkedHashMap<String, Long>( 16, 0.75f, false )
+    {
+        private static final long serialVersionUID = 1L;
+
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Long> eldest )
+        {
+            return size() > RECENT_MESSAGES_SIZE;
+        }
+    };
+
+    /** The CSNs from which some consumers, not yet registered, are reading the journal */
+    private final List<String> retainedCsns = new ArrayList<String>();
+
+    /** The maximum number of messages kept in the journal, whatever the consumers position */
+    private long maxSize = Long.getLong( MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE );
+
+    /** The maximum age (in seconds) of the messages kept in the journal, 0 to keep them all */
+    private long maxAge = Long.getLong( MAX_AGE_PROPERTY, 0L );
+
+
+    /**
+     * Creates the journal in the given directory, or opens it if it already exists
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param replDir The directory containing the journal
+     * @throws IOException If the journal can't be opened
+     */
+    public ReplicaJournal( SchemaManager schemaManager, File replDir ) throws IOException
+    {
+        File journalFile = new File( replDir, REPLICA_JOURNAL_NAME );
+        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
+        TransactionManager transactionManager = ( ( BaseRecordManager ) recman ).getTransactionManager();
+        transactionManager.setMaximumTransactionsInLog( 200 );
+
+        journal = new JdbmTable<String, ReplicaEventMessage>( schemaManager, REPLICA_JOURNAL_NAME, recman,
+            createComparator( schemaManager ), StringSerializer.INSTANCE,
+            new ReplicaEventMessageSerializer( schemaManager ) );
+
+        purgedCsnRecId = recman.getNamedObject( PURGED_CSN_NAME );
+
+        if ( purgedCsnRecId == 0 )
+        {
+            purgedCsnRecId = recman.insert( "" );
+            recman.setNamedObject( PURGED_CSN_NAME, purgedCsnRecId );
+            recman.commit();
+        }
+        else
+        {
+            String csn = ( String ) recman.fetch( purgedCsnRecId );
+            purgedCsn = csn.isEmpty() ? null : csn;
+        }
+
+        PROVIDER_LOG.debug( "Opened the replication journal {}, containing {} messages", journalFile,
+            journal.count() );
+    }
+
+
+    private static SerializableComparator<String> createComparator( SchemaManager schemaManager )
+    {
+        SerializableComparator<String> comparator = new SerializableComparator<String>(
+            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
+        comparator.setSchemaManager( schemaManager );
+
+        return comparator;
+    }
+
+
+    /**
+     * Stores the given message in the journal, unless it has already been stored. If a
+     * {@link ReplicaJournalFlusher} is set, the message is queued to be written with the
+     * next batch. The write is registered in the given operation context, so that the
+     * operation is not acknowledged before the message has been synced (see
+     * {@link #store(List)} for what happens if it can't be).
+     *
+     * @param message The message to store
+     * @param context The context of the operation which produced the message. If <code>null</code>,
+     * this method waits for the message to be written
+     * @return The sequence number given to the message, growing with each new message
+     */
+    public long append( ReplicaEventMessage message, AbstractChangeOperationContext context )
+    {
+        String csn = null;
+        long messageSequence = 0L;
+
+        try
+        {
+            csn = message.getCsn();
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Cannot log an entry without entryCSN {}", message.getEntry().getDn() );
+
+            return 0L;
+        }
+
+        synchronized ( recentMessages )
+        {
+            Long existing = recentMessages.get( csn );
+
+            if ( existing != null )
+            {
+                // Already logged for another consumer, and registered in the context
+                return existing;
+            }
+
+            messageSequence = ++sequence;
+            recentMessages.put( csn, messageSequence );
+        }
+
+        ReplicaJournalFlusher.JournalWrite journalWrite = null;
+
+        if ( journalFlusher != null )
+        {
+            journalWrite = journalFlusher.enqueue( this, message );
+        }
+
+        if ( journalWrite == null )
+        {
+            // No flusher, or a stopped one : write the message now
+            journalWrite = new ReplicaJournalFlusher.JournalWrite( this, message );
+            List<ReplicaEventMessage> messages = new ArrayList<ReplicaEventMessage>( 1 );
+            messages.add( message );
+
+            store( messages );
+            journalWrite.complete();
+        }
+
+        if ( context != null )
+        {
+            context.addPendingWrite( journalWrite );
+        }
+        else
+        {
+            journalWrite.await();
+        }
+
+        return messageSequence;
+    }
+
+
+    /**
+     * Writes the given messages in the journal, and syncs it once. The operations which
+     * produced the messages are already applied, so a failure is not reported to their
+     * clients : as the consumers would silently miss the messages, all the messages created
+     * until now, and the given ones, are considered as purged instead. The consumers which
+     * are not up to date will be asked to do a full refresh.
+     *
+     * @param messages The messages to store
+     */
+    void store( List<ReplicaEventMessage> messages )
+    {
+        try
+        {
+            write( messages );
+        }
+        catch ( LdapException le )
+        {
+            PROVIDER_LOG.error( "Failed to store {} messages in the replication journal, the consumers will have "
+                + "to do a full refresh", messages.size(), le );
+
+            // A message created during the current millisecond may have a greater CSN than now
+            String csn = new Csn( System.currentTimeMillis(), 0, 0, 0 ).toString();
+
+            for ( ReplicaEventMessage message : messages )
+            {
+                try
+                {
+                    String messageCsn = message.getCsn();
+
+                    if ( messageCsn.compareTo( csn ) > 0 )
+                    {
+                        csn = messageCsn;
+                    }
+                }
+                catch ( LdapException e )
+                {
+                    // Not stored in the journal, the message has no CSN
+                }
+            }
+
+            purgeUntil( csn );
+        }
+    }
+
+
+    /**
+     * Writes the given messages in the journal, and syncs it once.
+     *
+     * @param messages The messages to write
+     * @throws LdapException If the messages can't be stored, or if the journal has been closed
+     */
+    void write( List<ReplicaEventMessage> messages ) throws LdapException
+    {
+        synchronized ( journalLock )
+        {
+            if ( journal == null )
+            {
+                throw new LdapOtherException( "The replication journal has been closed, cannot store "
+                    + messages.size() + " messages" );
+            }
+
+            try
+            {
+                for ( ReplicaEventMessage message : messages )
+                {
+                    journal.put( message.getCsn(), message );
+                }
+
+                journal.sync();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to insert the entry into syncrepl log", e );
+                PROVIDER_LOG.error( "Failed to insert the entry into syncrepl log", e );
+
+                throw new LdapOtherException( "Failed to insert the entry into syncrepl log : " + e.getMessage(), e );
+            }
+        }
+    }
+
+
+    /**
+     * Waits until all the messages appended so far have been written in the journal.
+     *
+     * @return The sequence number of the last appended message
+     */
+    public long flush()
+    {
+        long lastSequence = getSequence();
+
+        if ( journalFlusher != null )
+        {
+            journalFlusher.flush();
+        }
+
+        return lastSequence;
+    }
+
+
+    /**
+     * @return The sequence number of the last appended message
+     */
+    public long getSequence()
+    {
+        synchronized ( recentMessages )
+        {
+            return sequence;
+        }
+    }
+
+
+    /**
+     * Reads the messages following the given CSN, in CSN order.
+     *
+     * @param afterCsn The CSN to start after, or null to start with the first message
+     * @param maxSequence The messages appended after this sequence number are skipped
+     * @param max The maximum number of messages to read
+     * @return The messages, an empty list if there are no more messages
+     * @throws Exception If the journal can't be read
+     */
+    public List<ReplicaEventMessage> read( String afterCsn, long maxSequence, int max ) throws Exception
+    {
+        List<ReplicaEventMessage> messages = new ArrayList<ReplicaEventMessage>();
+
+        synchronized ( journalLock )
+        {
+            if ( journal == null )
+            {
+                return messages;
+            }
+
+            Cursor<Tuple<String, ReplicaEventMessage>> cursor = journal.cursor();
+
+            try
+            {
+                if ( afterCsn == null )
+                {
+                    cursor.beforeFirst();
+                }
+                else
+                {
+                    cursor.after( new Tuple<String, ReplicaEventMessage>( afterCsn, null ) );
+                }
+
+                while ( ( messages.size() < max ) && cursor.next() )
+                {
+                    Tuple<String, ReplicaEventMessage> tuple = cursor.get();
+
+                    if ( isAppendedAfter( tuple.getKey(), maxSequence ) )
+                    {
+                        // It will be pushed by the thread which has appended it
+                        continue;
+                    }
+
+                    messages.add( tuple.getValue() );
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+
+        return messages;
+    }
+
+
+    /**
+     * Tells if the message with the given CSN has been appended after the given sequence number
+     */
+    private boolean isAppendedAfter( String csn, long maxSequence )
+    {
+        synchronized ( recentMessages )
+        {
+            Long messageSequence = recentMessages.get( csn );
+
+            return ( messageSequence != null ) && ( messageSequence > maxSequence );
+        }
+    }
+
+
+    /**
+     * Tells if the journal still contains all the messages following the given CSN. If
+     * not, some of them have been purged and the consumer has to do a full refresh.
+     *
+     * @param consumerCsn The consumer's CSN
+     * @return <code>true</code> if the consumer can be updated from the journal
+     */
+    public boolean isComplete( String consumerCsn )
+    {
+        String purged = purgedCsn;
+
+        if ( purged == null )
+        {
+            return true;
+        }
+
+        if ( consumerCsn == null )
+        {
+            return false;
+        }
+
+        return consumerCsn.compareTo( purged ) >= 0;
+    }
+
+
+    /**
+     * Prevents the messages following the given CSN from being purged as sent messages,
+     * until {@link #release(String)} is called. Used while a new consumer is being
+     * initialized, and is not yet taken into account to find the slowest consumer.
+     *
+     * @param csn The CSN
+     */
+    public void retain( String csn )
+    {
+        synchronized ( retainedCsns )
+        {
+            retainedCsns.add( csn );
+        }
+    }
+
+
+    /**
+     * Releases a CSN retained by {@link #retain(String)}
+     *
+     * @param csn The CSN
+     */
+    public void release( String csn )
+    {
+        synchronized ( retainedCsns )
+        {
+            retainedCsns.remove( csn );
+        }
+    }
+
+
+    /**
+     * Removes the oldest messages from the journal. A message is removed if one of these
+     * conditions is met :
+     * <ul>
+     * <li>the journal contains more than <em>maxSize</em> messages</li>
+     * <li>the message is older than <em>maxAge</em> seconds</li>
+     * <li>the journal contains at least <em>thresholdCount</em> messages, and the message has
+     * been sent to all the consumers (its CSN is before the slowest consumer's CSN) and is
+     * older than <em>thresholdTime</em></li>
+     * </ul>
+     *
+     * @param slowestCsn The last CSN sent to the slowest consumer, or null if some consumer
+     * still needs all the messages
+     * @param thresholdCount The minimum number of messages to keep before purging the sent ones
+     * @param thresholdTime The minimum age (in ms) of the sent messages to purge
+     * @return The number of removed messages
+     * @throws Exception If the journal can't be purged
+     */
+    public long purge( String slowestCsn, long thresholdCount, long thresholdTime ) throws Exception
+    {
+        long now = System.currentTimeMillis();
+        long deleteCount = 0;
+
+        synchronized ( retainedCsns )
+        {
+            for ( String retainedCsn : retainedCsns )
+            {
+                if ( ( retainedCsn == null )
+                    || ( ( slowestCsn != null ) && ( retainedCsn.compareTo( slowestCsn ) < 0 ) ) )
+                {
+                    slowestCsn = retainedCsn;
+                }
+            }
+        }
+
+        synchronized ( journalLock )
+        {
+            if ( journal == null )
+            {
+                return 0;
+            }
+
+            long count = journal.count();
+            long excess = ( maxSize > 0 ) ? count - maxSize : 0;
+            boolean purgeSent = ( slowestCsn != null ) && ( count >= thresholdCount );
+            String lastPurged = null;
+
+            while ( true )
+            {
+                List<String> csns = new ArrayList<String>();
+                Cursor<Tuple<String, ReplicaEventMessage>> cursor = journal.cursor();
+
+                try
+                {
+                    cursor.beforeFirst();
+
+                    while ( ( csns.size() < PURGE_BATCH_SIZE ) && cursor.next() )
+                    {
+                        String csn = cursor.get().getKey();
+                        long age = now - new Csn( csn ).getTimestamp();
+
+                        boolean delete = ( deleteCount + csns.size() < excess )
+                            || ( ( maxAge > 0 ) && ( age >= maxAge * 1000L ) )
+                            || ( purgeSent && ( csn.compareTo( slowestCsn ) < 0 ) && ( age >= thresholdTime ) );
+
+                        if ( !delete )
+                        {
+                            // The following messages are more recent
+                            break;
+                        }
+
+                        csns.add( csn );
+                    }
+                }
+                finally
+                {
+                    cursor.close();
+                }
+
+                if ( csns.isEmpty() )
+                {
+                    break;
+                }
+
+                for ( String csn : csns )
+                {
+                    journal.remove( csn );
+                }
+
+                deleteCount += csns.size();
+                lastPurged = csns.get( csns.size() - 1 );
+
+                if ( csns.size() < PURGE_BATCH_SIZE )
+                {
+                    break;
+                }
+            }
+
+            if ( lastPurged != null )
+            {
+                purgedCsn = lastPurged;
+                recman.update( purgedCsnRecId, lastPurged );
+                journal.sync();
+            }
+        }
+
+        return deleteCount;
+    }
+
+
+    /**
+     * Copies the messages stored in the per replica logs used by the former versions of the
+     * server into the journal, and deletes these logs.<br/>
+     * A log which can't be read is renamed with a ".failed" suffix. As the journal may then
+     * miss some of the messages created until now, they are all considered as purged : the
+     * consumers will be asked to do a full refresh.
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param replDir The directory containing the logs
+     * @return The number of imported messages
+     */
+    public long importReplicaEventLogs( SchemaManager schemaManager, File replDir )
+    {
+        FilenameFilter filter = new FilenameFilter()
+        {
+            @Override
+            public boolean accept( File dir, String name )
+            {
+                return name.startsWith( ReplicaEventLog.REPLICA_EVENT_LOG_NAME_PREFIX ) && name.endsWith( ".db" );
+            }
+        };
+
+        File[] logFiles = replDir.listFiles( filter );
+        long imported = 0;
+
+        if ( logFiles == null )
+        {
+            return imported;
+        }
+
+        for ( File logFile : logFiles )
+        {
+            String name = logFile.getName().substring( 0, logFile.getName().length() - 3 );
+            File file = new File( replDir, name );
+            RecordManager logRecman = null;
+            boolean failed = false;
+
+            try
+            {
+                logRecman = new BaseRecordManager( file.getAbsolutePath() );
+                JdbmTable<String, ReplicaEventMessage> log = new JdbmTable<String, ReplicaEventMessage>(
+                    schemaManager, name, logRecman, createComparator( schemaManager ), StringSerializer.INSTANCE,
+                    new ReplicaEventMessageSerializer( schemaManager ) );
+
+                List<ReplicaEventMessage> messages = new ArrayList<ReplicaEventMessage>();
+                Cursor<Tuple<String, ReplicaEventMessage>> cursor = log.cursor();
+
+                while ( cursor.next() )
+                {
+                    messages.add( cursor.get().getValue() );
+
+                    if ( messages.size() == PURGE_BATCH_SIZE )
+                    {
+                        write( messages );
+                        imported += messages.size();
+                        messages.clear();
+                    }
+                }
+
+                cursor.close();
+                write( messages );
+                imported += messages.size();
+                log.close();
+            }
+            catch ( Exception e )
+            {
+                PROVIDER_LOG.warn( "Failed to import the replication event log {}, the consumers will have to do "
+                    + "a full refresh", name, e );
+                failed = true;
+            }
+            catch ( Error e )
+            {
+                // This is how JDBM reports a corrupted file
+                PROVIDER_LOG.warn( "The replication event log {} is corrupted, the consumers will have to do "
+                    + "a full refresh", name, e );
+                failed = true;
+            }
+            finally
+            {
+                try
+                {
+                    if ( logRecman != null )
+                    {
+                        logRecman.close();
+                    }
+                }
+                catch ( IOException ioe )
+                {
+                    LOG.debug( "Failed to close the replication event log {}", name, ioe );
+                }
+            }
+
+            if ( failed )
+            {
+                purgeUntilNow();
+
+                // Keep the log, but don't try to import it again
+                new File( replDir, name + ".db" ).renameTo( new File( replDir, name + ".db.failed" ) );
+                new File( replDir, name + ".lg" ).renameTo( new File( replDir, name + ".lg.failed" ) );
+            }
+            else
+            {
+                new File( replDir, name + ".db" ).delete();
+                new File( replDir, name + ".lg" ).delete();
+                PROVIDER_LOG.info( "Imported the replication event log {} in the replication journal", name );
+            }
+        }
+
+        return imported;
+    }
+
+
+    /**
+     * Considers all the messages created until now as purged, so that no consumer is
+     * updated from the journal if it may miss some of them.
+     */
+    private void purgeUntilNow()
+    {
+        purgeUntil( new Csn( System.currentTimeMillis(), 0, 0, 0 ).toString() );
+    }
+
+
+    /**
+     * Considers all the messages up to the given CSN as purged.
+     */
+    private void purgeUntil( String csn )
+    {
+        synchronized ( journalLock )
+        {
+            if ( ( purgedCsn != null ) && ( purgedCsn.compareTo( csn ) >= 0 ) )
+            {
+                return;
+            }
+
+            purgedCsn = csn;
+
+            if ( recman == null )
+            {
+                // The journal has been closed
+                PROVIDER_LOG.error( "Cannot store the purged CSN {} of the closed replication journal", csn );
+
+                return;
+            }
+
+            try
+            {
+                recman.update( purgedCsnRecId, csn );
+                journal.sync();
+            }
+            catch ( IOException ioe )
+            {
+                // The consumers will still do a full refresh until the server is restarted
+                PROVIDER_LOG.error( "Failed to store the purged CSN {} of the replication journal", csn, ioe );
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of messages present in the journal
+     */
+    public long count()
+    {
+        synchronized ( journalLock )
+        {
+            try
+            {
+                return journal.count();
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
+        }
+    }
+
+
+    /**
+     * Closes the journal
+     *
+     * @throws IOException If the journal can't be closed
+     */
+    public void close() throws IOException
+    {
+        PROVIDER_LOG.debug( "Closing the replication journal" );
+
+        synchronized ( journalLock )
+        {
+            if ( journal != null )
+            {
+                journal.close();
+            }
+
+            journal = null;
+
+            if ( recman != null )
+            {
+                recman.close();
+            }
+
+            recman = null;
+        }
+    }
+
+
+    /**
+     * @return The CSN of the last message removed from the journal, or null
+     */
+    public String getPurgedCsn()
+    {
+        return purgedCsn;
+    }
+
+
+    /**
+     * @return The shared writer used to group the journal writes, if any
+     */
+    public ReplicaJournalFlusher getJournalFlusher()
+    {
+        return journalFlusher;
+    }
+
+
+    /**
+     * Set the shared writer used to group the journal writes. If null, each message is
+     * written and synced when appended.
+     *
+     * @param journalFlusher The journal flusher
+     */
+    public void setJournalFlusher( ReplicaJournalFlusher journalFlusher )
+    {
+        this.journalFlusher = journalFlusher;
+    }
+
+
+    /**
+     * @return The maximum number of messages kept in the journal, 0 if unlimited
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+
+    /**
+     * @param maxSize The maximum number of messages kept in the journal, 0 if unlimited
+     */
+    public void setMaxSize( long maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * @return The maximum age (in seconds) of the messages kept in the journal, 0 if unlimited
+     */
+    public long getMaxAge()
+    {
+        return maxAge;
+    }
+
+
+    /**
+     * @param maxAge The maximum age (in seconds) of the messages kept in the journal, 0 if unlimited
+     */
+    public void setMaxAge( long maxAge )
+    {
+        this.maxAge = maxAge;
+    }
+}
@@ -23,23 +23,22 @@ package org.apache.directory.server.ldap.replication.provider;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
-import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Define a cursor on top of a replication journal.
+ * Define a cursor on top of the replication journal, returning the messages a consumer has
+ * to receive. The journal is read in small batches, so that it's not locked while the
+ * messages are sent.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -54,28 +53,45 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
-    /** the underlying journal's cursor */
-    private Cursor<Tuple<String, ReplicaEventMessage>> tupleCursor;
+    /** The number of messages read at once from the journal */
+    private static final int BATCH_SIZE = 256;
 
-    /** the event log journal */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** the shared journal */
+    private ReplicaJournal journal;
+
+    /** the consumer's event log, used to select the messages */
+    private ReplicaEventLog eventLog;
 
     /** the consumer's CSN based on which messages will be qualified for sending */
     private String consumerCsn;
 
-    private ReplicaEventMessage qualifiedEvtMsg;
+    /** the messages appended in the journal after this sequence number are skipped */
+    private long maxSequence;
+
+    /** the CSN of the last message read from the journal */
+    private String lastReadCsn;
+
+    /** the current batch of messages */
+    private List<ReplicaEventMessage> batch;
 
-    /** used while cleaning up the log */
-    private boolean skipQualifying;
+    /** the position in the current batch */
+    private int position;
+
+    /** tells if the whole journal has been read */
+    private boolean exhausted;
+
+    private ReplicaEventMessage qualifiedEvtMsg;
 
 
     /**
      * Creates a cursor on top of the given journal
-     * @param journal the log journal
+     * @param journal the shared journal
+     * @param eventLog the consumer's event log, used to select the messages
      * @param consumerCsn the consumer's CSN taken from cookie
-     * @throws Exception 
+     * @param maxSequence the messages appended in the journal after this sequence number are skipped
      */
-    public ReplicaJournalCursor( JdbmTable<String, ReplicaEventMessage> journal, String consumerCsn ) throws Exception
+    public ReplicaJournalCursor( ReplicaJournal journal, ReplicaEventLog eventLog, String consumerCsn,
+        long maxSequence )
     {
         if ( IS_DEBUG )
         {
@@ -83,8 +99,10 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
         }
 
         this.journal = journal;
-        this.tupleCursor = journal.cursor();
+        this.eventLog = eventLog;
         this.consumerCsn = consumerCsn;
+        this.lastReadCsn = consumerCsn;
+        this.maxSequence = maxSequence;
     }
 
 
@@ -155,11 +173,11 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      * 
      * @throws Exception
      */
-    private boolean isQualified( String csn, ReplicaEventMessage evtMsg ) throws LdapException
+    private boolean isQualified( ReplicaEventMessage evtMsg ) throws LdapException
     {
         LOG.debug( "ReplicaEventMessage: {}", evtMsg );
 
-        if ( evtMsg.isEventOlderThan( consumerCsn ) )
+        if ( evtMsg.isEventOlderThan( consumerCsn ) || !eventLog.isSelected( evtMsg ) )
         {
             if ( LOG.isDebugEnabled() )
             {
@@ -196,30 +214,23 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      */
     public boolean next() throws LdapException, CursorException
     {
-        while ( tupleCursor.next() )
+        while ( true )
         {
-            Tuple<String, ReplicaEventMessage> tuple = tupleCursor.get();
-
-            String csn = tuple.getKey();
-            ReplicaEventMessage message = tuple.getValue();
-
-            if ( skipQualifying )
+            if ( ( batch == null ) || ( position == batch.size() ) )
             {
-                qualifiedEvtMsg = message;
-                return true;
+                if ( exhausted || !readBatch() )
+                {
+                    break;
+                }
             }
 
-            boolean qualified = isQualified( csn, message );
+            ReplicaEventMessage message = batch.get( position++ );
 
-            if ( qualified )
+            if ( isQualified( message ) )
             {
-                qualifiedEvtMsg = message;
+                qualifiedEvtMsg = eventLog.toConsumerMessage( message );
                 return true;
             }
-            else
-            {
-                journal.remove( csn );
-            }
         }
 
         qualifiedEvtMsg = null;
@@ -248,7 +259,6 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
         super.close();
     }
 
@@ -264,37 +274,37 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
         super.close( cause );
     }
 
 
     /**
-     * sets the flag to skip CSN based checking while traversing
-     * used for internal log cleanup ONLY 
+     * Reads the next batch of messages from the journal
      */
-    protected void skipQualifyingWhileFetching()
-    {
-        skipQualifying = true;
-    }
-
-
-    /**
-     * delete the current message
-     * used for internal log cleanup ONLY
-     */
-    protected void delete()
+    private boolean readBatch() throws CursorException
     {
         try
         {
-            if ( qualifiedEvtMsg != null )
+            batch = journal.read( lastReadCsn, maxSequence, BATCH_SIZE );
+            position = 0;
+
+            if ( batch.size() < BATCH_SIZE )
             {
-                journal.remove( qualifiedEvtMsg.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                exhausted = true;
             }
+
+            if ( batch.isEmpty() )
+            {
+                return false;
+            }
+
+            lastReadCsn = batch.get( batch.size() - 1 ).getCsn();
+
+            return true;
         }
         catch ( Exception e )
         {
-
+            throw new CursorException( e );
         }
     }
 
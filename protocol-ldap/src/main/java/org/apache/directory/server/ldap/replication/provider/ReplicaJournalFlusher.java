@@ -0,0 +1,404 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.server.core.api.PendingWrite;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A group-commit writer for the replication journal of a provider. The messages to
+ * store are queued, and a single thread writes them in batches, syncing the journal
+ * once per batch instead of once per message.
+ * <br/>
+ * A batch is written as soon as <em>maxBatchSize</em> messages have been queued, or
+ * when <em>maxLatency</em> milliseconds have elapsed since the first message of the
+ * batch was received, whichever comes first.
+ * <br/>
+ * Each queued message gives a {@link PendingWrite}, which is registered in the context of
+ * the operation : the OperationManager waits for it once it has released the operation
+ * locks. A message which can't be synced on disk does not fail the operation, which is
+ * already applied : the journal is considered as purged instead, so that the consumers
+ * do a full refresh (see {@link ReplicaJournal#store(List)}).
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournalFlusher extends Thread
+{
+    /** The logger */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaJournalFlusher.class );
+
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The default maximum number of messages written in one batch */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /** The default maximum time (in ms) a message can wait for its batch to be written */
+    public static final long DEFAULT_MAX_LATENCY = 1L;
+
+    /** The queue of messages to write */
+    private final BlockingQueue<JournalWrite> queue = new LinkedBlockingQueue<JournalWrite>();
+
+    /** The maximum number of messages written in one batch */
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    /** The maximum time (in ms) a message can wait for its batch to be written */
+    private volatile long maxLatency = DEFAULT_MAX_LATENCY;
+
+    /** A flag set when the flusher is stopped */
+    private volatile boolean stop = false;
+
+    /** A lock used to protect the stop flag against concurrent queuing */
+    private final Object lock = new Object();
+
+
+    /**
+     * A message waiting to be written in a replication journal. A JournalWrite with no
+     * journal is a marker, used to wait for all the previously queued messages.
+     */
+    static final class JournalWrite implements PendingWrite
+    {
+        /** The journal to write the message into */
+        private final ReplicaJournal journal;
+
+        /** The message to write */
+        private final ReplicaEventMessage message;
+
+        /** The latch released once the message has been written, or has failed to be */
+        private final CountDownLatch written = new CountDownLatch( 1 );
+
+
+        JournalWrite( ReplicaJournal journal, ReplicaEventMessage message )
+        {
+            this.journal = journal;
+            this.message = message;
+        }
+
+
+        /**
+         * Releases the threads waiting for this write, once the message has been synced
+         * on disk, or once the journal has been purged because it could not be.
+         */
+        void complete()
+        {
+            written.countDown();
+        }
+
+
+        /**
+         * Waits until the message has been handled by the journal. The operation which
+         * produced it is already applied, so this never fails : if the thread is interrupted,
+         * the message is still written in the background.
+         */
+        public void await()
+        {
+            try
+            {
+                written.await();
+            }
+            catch ( InterruptedException ie )
+            {
+                LOG.warn( "Interrupted while waiting for the replication journal to be synced" );
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Creates a new instance of ReplicaJournalFlusher
+     */
+    public ReplicaJournalFlusher()
+    {
+        super( "ReplicaJournalFlusher" );
+        setDaemon( true );
+    }
+
+
+    /**
+     * Queues a message to be written in the given journal.
+     *
+     * @param journal The journal to write the message into
+     * @param message The message to write
+     * @return The pending write to wait for, or <code>null</code> if the flusher is stopped
+     * and the message has not been queued
+     */
+    public JournalWrite enqueue( ReplicaJournal journal, ReplicaEventMessage message )
+    {
+        JournalWrite journalWrite = new JournalWrite( journal, message );
+
+        synchronized ( lock )
+        {
+            if ( stop )
+            {
+                return null;
+            }
+
+            queue.add( journalWrite );
+        }
+
+        return journalWrite;
+    }
+
+
+    /**
+     * Waits until all the messages queued so far, by any thread, have been written.
+     */
+    public void flush()
+    {
+        JournalWrite marker = new JournalWrite( null, null );
+
+        synchronized ( lock )
+        {
+            if ( stop )
+            {
+                return;
+            }
+
+            queue.add( marker );
+        }
+
+        try
+        {
+            marker.written.await();
+        }
+        catch ( InterruptedException ie )
+        {
+            LOG.warn( "Interrupted while flushing the replication journal" );
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Stops the flusher, after having written all the queued messages.
+     */
+    public void stopFlushing()
+    {
+        synchronized ( lock )
+        {
+            stop = true;
+        }
+
+        interrupt();
+
+        try
+        {
+            join();
+        }
+        catch ( InterruptedException ie )
+        {
+            LOG.warn( "Interrupted while waiting for the replication journal flusher to stop" );
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        PROVIDER_LOG.debug( "Starting the replication journal flusher" );
+
+        while ( !stop || !queue.isEmpty() )
+        {
+            List<JournalWrite> batch = new ArrayList<JournalWrite>();
+
+            try
+            {
+                collect( batch );
+            }
+            catch ( InterruptedException ie )
+            {
+                // We have been stopped : write what we already have, the loop will
+                // then drain the queue
+                LOG.debug( "The replication journal flusher has been interrupted" );
+            }
+
+            if ( !batch.isEmpty() )
+            {
+                write( batch );
+            }
+        }
+
+        PROVIDER_LOG.debug( "The replication journal flusher has been stopped" );
+    }
+
+
+    /**
+     * Gathers the next batch of messages to write
+     */
+    private void collect( List<JournalWrite> batch ) throws InterruptedException
+    {
+        if ( stop )
+        {
+            // Don't wait anymore, just drain the queue
+            queue.drainTo( batch, maxBatchSize );
+
+            return;
+        }
+
+        JournalWrite first = queue.take();
+        batch.add( first );
+        queue.drainTo( batch, maxBatchSize - batch.size() );
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( maxLatency );
+
+        while ( batch.size() < maxBatchSize )
+        {
+            long remaining = deadline - System.nanoTime();
+
+            if ( remaining <= 0 )
+            {
+                break;
+            }
+
+            JournalWrite next = queue.poll( remaining, TimeUnit.NANOSECONDS );
+
+            if ( next == null )
+            {
+                break;
+            }
+
+            batch.add( next );
+            queue.drainTo( batch, maxBatchSize - batch.size() );
+        }
+    }
+
+
+    /**
+     * Writes a batch of messages, syncing each impacted journal once.
+     */
+    private void write( List<JournalWrite> batch )
+    {
+        // Group the writes per journal, keeping their order
+        Map<ReplicaJournal, List<JournalWrite>> writesPerJournal =
+            new LinkedHashMap<ReplicaJournal, List<JournalWrite>>();
+
+        for ( JournalWrite journalWrite : batch )
+        {
+            if ( journalWrite.journal == null )
+            {
+                continue;
+            }
+
+            List<JournalWrite> writes = writesPerJournal.get( journalWrite.journal );
+
+            if ( writes == null )
+            {
+                writes = new ArrayList<JournalWrite>();
+                writesPerJournal.put( journalWrite.journal, writes );
+            }
+
+            writes.add( journalWrite );
+        }
+
+        for ( Map.Entry<ReplicaJournal, List<JournalWrite>> entry : writesPerJournal.entrySet() )
+        {
+            List<ReplicaEventMessage> messages = new ArrayList<ReplicaEventMessage>( entry.getValue().size() );
+
+            for ( JournalWrite journalWrite : entry.getValue() )
+            {
+                messages.add( journalWrite.message );
+            }
+
+            entry.getKey().store( messages );
+
+            for ( JournalWrite journalWrite : entry.getValue() )
+            {
+                journalWrite.complete();
+            }
+        }
+
+        // Release the markers, now that all the messages queued before them have been written
+        for ( JournalWrite journalWrite : batch )
+        {
+            if ( journalWrite.journal == null )
+            {
+                journalWrite.complete();
+            }
+        }
+
+        LOG.debug( "Wrote {} messages in {} replication journals", batch.size(), writesPerJournal.size() );
+    }
+
+
+    /**
+     * @return the maximum number of messages written in one batch
+     */
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+
+    /**
+     * @param maxBatchSize the maximum number of messages written in one batch
+     */
+    public void setMaxBatchSize( int maxBatchSize )
+    {
+        if ( maxBatchSize <= 0 )
+        {
+            maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        }
+
+        this.maxBatchSize = maxBatchSize;
+    }
+
+
+    /**
+     * @return the maximum time (in ms) a message can wait for its batch to be written
+     */
+    public long getMaxLatency()
+    {
+        return maxLatency;
+    }
+
+
+    /**
+     * @param maxLatency the maximum time (in ms) a message can wait for its batch to be written.
+     * A value of 0 writes whatever has been queued while the previous batch was synced.
+     */
+    public void setMaxLatency( long maxLatency )
+    {
+        if ( maxLatency < 0 )
+        {
+            maxLatency = DEFAULT_MAX_LATENCY;
+        }
+
+        this.maxLatency = maxLatency;
+    }
+}
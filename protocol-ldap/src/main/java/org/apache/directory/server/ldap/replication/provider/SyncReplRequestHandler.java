@@ -26,13 +26,10 @@ import static org.apache.directory.server.ldap.LdapServer.NO_SIZE_LIMIT;
 import static org.apache.directory.server.ldap.LdapServer.NO_TIME_LIMIT;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -154,6 +151,26 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /** thread used for updating consumer infor */
     private Thread consumerInfoUpdateThread;
 
+    /** The system property used to set the maximum number of journal messages written in one batch */
+    public static final String JOURNAL_MAX_BATCH_SIZE_PROPERTY = "apacheds.replication.journal.maxBatchSize";
+
+    /** The system property used to set the maximum time (in ms) a journal message waits for its batch */
+    public static final String JOURNAL_MAX_LATENCY_PROPERTY = "apacheds.replication.journal.maxLatency";
+
+    /** The group-commit writer of the replication journal */
+    private ReplicaJournalFlusher journalFlusher;
+
+    /** The replication journal shared by all the replica event logs */
+    private ReplicaJournal journal;
+
+    /** The maximum number of journal messages written in one batch */
+    private int journalMaxBatchSize = Integer.getInteger( JOURNAL_MAX_BATCH_SIZE_PROPERTY,
+        ReplicaJournalFlusher.DEFAULT_MAX_BATCH_SIZE );
+
+    /** The maximum time (in ms) a journal message waits for its batch to be written */
+    private long journalMaxLatency = Long.getLong( JOURNAL_MAX_LATENCY_PROPERTY,
+        ReplicaJournalFlusher.DEFAULT_MAX_LATENCY );
+
     /**
      * Create a SyncReplRequestHandler empty instance
      */
@@ -208,9 +225,18 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             // Create the replication manager
             replicaUtil = new ReplConsumerManager( dirService );
 
+            // Open the journal and start its writer before loading the logs, so that they can use it
+            journalFlusher = new ReplicaJournalFlusher();
+            journalFlusher.setMaxBatchSize( journalMaxBatchSize );
+            journalFlusher.setMaxLatency( journalMaxLatency );
+            journalFlusher.start();
+
+            journal = new ReplicaJournal( dirService.getSchemaManager(), syncReplData );
+            journal.setJournalFlusher( journalFlusher );
+
             loadReplicaInfo();
 
-            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap );
+            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap, journal );
             logJanitor.start();
 
             registerPersistentSearches();
@@ -265,7 +291,10 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         //then stop the consumerInfoUpdateThread
         consumerInfoUpdateThread.interrupt();
-        
+
+        // write the pending journal messages before closing the logs
+        journalFlusher.stopFlushing();
+
         for ( ReplicaEventLog log : replicaLogMap.values() )
         {
             try
@@ -280,6 +309,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             }
         }
 
+        try
+        {
+            journal.close();
+        }
+        catch ( Exception e )
+        {
+            PROVIDER_LOG.error( "Failed to close the replication journal", e );
+        }
+
         // flush the dirty repos
         storeReplicaInfo();
 
@@ -433,6 +471,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     private void doContentUpdate( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog, String consumerCsn )
         throws Exception
     {
+        if ( !journal.isComplete( consumerCsn ) )
+        {
+            PROVIDER_LOG.info( "The replication journal has been purged after the CSN {} of the consumer {}, "
+                + "it has to do a full refresh", consumerCsn, replicaLog.getId() );
+            sendESyncRefreshRequired( session, req );
+
+            return;
+        }
+
         synchronized ( replicaLog )
         {
             boolean refreshNPersist = isRefreshNPersist( req );
@@ -447,6 +494,10 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 handler.setSession( session );
             }
 
+            // Make sure the journal contains all the logged messages. The messages logged
+            // from now on will be pushed by the listener once we release the lock on the log
+            replicaLog.flush();
+
             sendContentFromLog( session, req, replicaLog, consumerCsn );
 
             String lastSentCsn = replicaLog.getLastSentCsn();
@@ -525,11 +576,30 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         Partition partition = dirService.getPartitionNexus().getPartition( request.getBase() );
         String contextCsn = partition.getContextCsn();
 
-        boolean refreshNPersist = isRefreshNPersist( request );
-
         // first register a ReplicaEventLog before starting the initial content refresh
-        // this is to log all the operations happen on DIT during initial content refresh
+        // this is to log all the operations happen on DIT during initial content refresh.
+        // The journal must keep them until the log is registered
         ReplicaEventLog replicaLog = createReplicaEventLog( hostName, originalFilter );
+        journal.retain( contextCsn );
+
+        try
+        {
+            sendInitialContent( session, request, replicaLog, modifiedFilter, contextCsn );
+        }
+        finally
+        {
+            journal.release( contextCsn );
+        }
+    }
+
+
+    /**
+     * Process the initial refresh of a newly created replica event log
+     */
+    private void sendInitialContent( LdapSession session, SearchRequest request, ReplicaEventLog replicaLog,
+        ExprNode modifiedFilter, String contextCsn ) throws Exception
+    {
+        boolean refreshNPersist = isRefreshNPersist( request );
 
         replicaLog.setRefreshNPersist( refreshNPersist );
         StringValue contexCsnValue = new StringValue( contextCsn );
@@ -583,25 +653,30 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             {
                 PROVIDER_LOG
                     .debug( "Refresh&Persist requested : send the data being modified since the initial refresh" );
-                // Now, send the modified entries since the search has started
-                sendContentFromLog( session, request, replicaLog, contextCsn );
 
-                byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
+                synchronized ( replicaLog )
+                {
+                    // Now, send the modified entries since the search has started
+                    replicaLog.flush();
+                    sendContentFromLog( session, request, replicaLog, contextCsn );
 
-                IntermediateResponse intermResp = new IntermediateResponseImpl( request.getMessageId() );
-                intermResp.setResponseName( SyncInfoValue.OID );
+                    byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
 
-                SyncInfoValue syncInfo = new SyncInfoValueDecorator(
-                    ldapServer.getDirectoryService().getLdapCodecService(), SynchronizationInfoEnum.NEW_COOKIE );
-                syncInfo.setCookie( cookie );
-                intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
+                    IntermediateResponse intermResp = new IntermediateResponseImpl( request.getMessageId() );
+                    intermResp.setResponseName( SyncInfoValue.OID );
 
-                PROVIDER_LOG.info( "Sending the intermediate response to consumer {}, {}", replicaLog, syncInfo );
+                    SyncInfoValue syncInfo = new SyncInfoValueDecorator(
+                        ldapServer.getDirectoryService().getLdapCodecService(), SynchronizationInfoEnum.NEW_COOKIE );
+                    syncInfo.setCookie( cookie );
+                    intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
 
-                session.getIoSession().write( intermResp );
+                    PROVIDER_LOG.info( "Sending the intermediate response to consumer {}, {}", replicaLog, syncInfo );
+
+                    session.getIoSession().write( intermResp );
 
-                // switch the handler mode to realtime push
-                replicationListener.setPushInRealTime( refreshNPersist );
+                    // switch the handler mode to realtime push
+                    replicationListener.setPushInRealTime( refreshNPersist );
+                }
                 PROVIDER_LOG.debug( "e waiting for any modification for {}", replicaLog );
             }
             else
@@ -626,7 +701,6 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             PROVIDER_LOG.warn( "initial content refresh didn't succeed due to {}", searchDoneResp.getLdapResult()
                 .getResultCode() );
             replicaLog.stop();
-            replicaLog = null;
 
             // remove the listener
             dirService.getEventService().removeListener( replicationListener );
@@ -969,12 +1043,63 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * @return The replication journal shared by all the replica event logs
+     */
+    public ReplicaJournal getReplicaJournal()
+    {
+        return journal;
+    }
+
+
     public ReplicaEventLogJanitor getLogJanitor()
     {
         return logJanitor;
     }
 
 
+    /**
+     * @return the maximum number of journal messages written in one batch
+     */
+    public int getJournalMaxBatchSize()
+    {
+        return journalMaxBatchSize;
+    }
+
+
+    /**
+     * Set the maximum number of journal messages written in one batch. Must be set
+     * before the handler is started.
+     *
+     * @param journalMaxBatchSize the maximum number of journal messages written in one batch
+     */
+    public void setJournalMaxBatchSize( int journalMaxBatchSize )
+    {
+        this.journalMaxBatchSize = journalMaxBatchSize;
+    }
+
+
+    /**
+     * @return the maximum time (in ms) a journal message waits for its batch to be written
+     */
+    public long getJournalMaxLatency()
+    {
+        return journalMaxLatency;
+    }
+
+
+    /**
+     * Set the maximum time (in ms) a journal message waits for its batch to be written. Must
+     * be set before the handler is started.
+     *
+     * @param journalMaxLatency the maximum latency, in ms
+     */
+    public void setJournalMaxLatency( long journalMaxLatency )
+    {
+        this.journalMaxLatency = journalMaxLatency;
+    }
+
+
     public Map<Integer, ReplicaEventLog> getReplicaLogMap()
     {
         return replicaLogMap;
@@ -1025,15 +1150,14 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         try
         {
             List<ReplicaEventLog> eventLogs = replicaUtil.getReplicaEventLogs();
-            Set<String> eventLogNames = new HashSet<String>();
 
             if ( !eventLogs.isEmpty() )
             {
                 for ( ReplicaEventLog replica : eventLogs )
                 {
                     PROVIDER_LOG.debug( "initializing the replica log from {}", replica.getId() );
+                    replica.setJournal( journal );
                     replicaLogMap.put( replica.getId(), replica );
-                    eventLogNames.add( replica.getName() );
 
                     // update the replicaCount's value to assign a correct value to the new replica(s)
                     if ( replicaCount.get() < replica.getId() )
@@ -1047,14 +1171,12 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.debug( "no replica logs found to initialize" );
             }
 
-            // remove unused logs
-            for ( File f : getAllReplJournalNames() )
+            // import the logs written by the former versions, which used one log per replica
+            long imported = journal.importReplicaEventLogs( dirService.getSchemaManager(), syncReplData );
+
+            if ( imported > 0 )
             {
-                if ( !eventLogNames.contains( f.getName() ) )
-                {
-                    f.delete();
-                    PROVIDER_LOG.info( "removed unused replication event log {}", f );
-                }
+                PROVIDER_LOG.info( "imported {} messages in the replication journal", imported );
             }
         }
         catch ( Exception e )
@@ -1151,6 +1273,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         ReplicaEventLog replicaLog = new ReplicaEventLog( dirService, replicaId );
         replicaLog.setHostName( hostName );
         replicaLog.setSearchFilter( filter );
+        replicaLog.setJournal( journal );
 
         return replicaLog;
     }
@@ -1182,21 +1305,6 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
-    private File[] getAllReplJournalNames()
-    {
-        File replDir = dirService.getInstanceLayout().getReplDirectory();
-        FilenameFilter filter = new FilenameFilter()
-        {
-            @Override
-            public boolean accept( File dir, String name )
-            {
-                return name.startsWith( ReplicaEventLog.REPLICA_EVENT_LOG_NAME_PREFIX );
-            }
-        };
-
-        return replDir.listFiles( filter );
-    }
-
     /**
      * an event listener for handling deletions and updates of replication event log entries present under ou=consumers,ou=system
      */
@@ -58,7 +58,10 @@ import org.slf4j.LoggerFactory;
  * A listener associated with the replication system. It does send the modifications to the 
  * consumer, if it's connected, or store the data into a queue for a later transmission.
  * 
- * Note: we always log the entry irrespective of the client's connection status for guaranteed delivery
+ * Note: we always log the entry irrespective of the client's connection status for guaranteed delivery.
+ * The journal is shared by all the consumers, so the entry is only stored by the first listener
+ * receiving it, and the stored message does not depend on the consumer : a moved entry is always
+ * logged as a MODDN, even if it's moved out of the consumer's base.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -221,10 +224,11 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         {
             //System.out.println( "ADD Listener : log " + entry.getDn() );
             // we log it first
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.ADD, entry ) );
+            long sequence = consumerMsgLog.log( new ReplicaEventMessage( ChangeType.ADD, entry, null,
+                getRid( addContext ) ), addContext );
 
             // We send the added entry directly to the consumer if it's connected
-            if ( pushInRealTime )
+            if ( isPushed( sequence ) )
             {
                 // Construct a new SearchResultEntry
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -260,30 +264,33 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             return;
         }
         
-        sendDeletedEntry( ( ( ClonedServerEntry ) entry ).getClonedEntry() );
+        entry = ( ( ClonedServerEntry ) entry ).getClonedEntry();
+
+        //System.out.println( "DELETE Listener : log " + entry.getDn() );
+        long sequence = consumerMsgLog.log( new ReplicaEventMessage( ChangeType.DELETE, entry, null,
+            getRid( deleteContext ) ), deleteContext );
+
+        if ( isPushed( sequence ) )
+        {
+            sendDeletedEntry( entry );
+        }
     }
     
 
     /**
-     * A helper method, as the delete opertaionis used by the ModDN operations.
+     * A helper method pushing a deleted entry, as the delete operation is used by the ModDN operations.
      */
     private void sendDeletedEntry( Entry entry )
     {
         try
         {
-            //System.out.println( "DELETE Listener : log " + entry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.DELETE, entry ) );
-            
-            if ( pushInRealTime )
-            {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
+            SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+            resultEntry.setObjectName( entry.getDn() );
+            resultEntry.setEntry( entry );
 
-                SyncStateValue syncDelete = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.DELETE, entry );
+            SyncStateValue syncDelete = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.DELETE, entry );
 
-                sendResult( resultEntry, entry, EventType.DELETE, syncDelete );
-            }
+            sendResult( resultEntry, entry, EventType.DELETE, syncDelete );
         }
         catch ( LdapInvalidAttributeValueException e )
         {
@@ -311,9 +318,10 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         try
         {
             //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry ) );
+            long sequence = consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry, null,
+                getRid( modifyContext ) ), modifyContext );
             
-            if ( pushInRealTime )
+            if ( isPushed( sequence ) )
             {
 
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -350,25 +358,28 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
+            //System.out.println( "MOVE Listener : log " + moveContext.getDn() + " moved to " + moveContext.getNewSuperior() );
+            long sequence = consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry,
+                moveContext.getDn(), getRid( moveContext ) ), moveContext );
+
+            if ( !isPushed( sequence ) )
+            {
+                return;
+            }
+
             if ( !moveContext.getNewSuperior().isDescendantOf( consumerMsgLog.getSearchCriteria().getBase() ) )
             {
                 sendDeletedEntry( moveContext.getOriginalEntry() );
                 return;
             }
 
-            //System.out.println( "MOVE Listener : log " + moveContext.getDn() + " moved to " + moveContext.getNewSuperior() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
-            {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( moveContext.getDn() );
-                resultEntry.setEntry( entry );
+            SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+            resultEntry.setObjectName( moveContext.getDn() );
+            resultEntry.setEntry( entry );
 
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
+            SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE, syncModify );
-            }
+            sendResult( resultEntry, entry, EventType.MOVE, syncModify );
         }
         catch ( Exception e )
         {
@@ -395,27 +406,29 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
+            //System.out.println( "MOVE AND RENAME Listener : log " + moveAndRenameContext.getDn() + 
+            //    " moved to " + moveAndRenameContext.getNewSuperiorDn() + " renamed to " + moveAndRenameContext.getNewRdn() );
+            long sequence = consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry,
+                moveAndRenameContext.getDn(), getRid( moveAndRenameContext ) ), moveAndRenameContext );
+
+            if ( !isPushed( sequence ) )
+            {
+                return;
+            }
+
             if ( !moveAndRenameContext.getNewSuperiorDn().isDescendantOf( consumerMsgLog.getSearchCriteria().getBase() ) )
             {
                 sendDeletedEntry( entry );
                 return;
             }
 
+            SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+            resultEntry.setObjectName( entry.getDn() );
+            resultEntry.setEntry( entry );
 
-            //System.out.println( "MOVE AND RENAME Listener : log " + moveAndRenameContext.getDn() + 
-            //    " moved to " + moveAndRenameContext.getNewSuperiorDn() + " renamed to " + moveAndRenameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
-            {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
+            SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE_AND_RENAME, syncModify );
-            }
+            sendResult( resultEntry, entry, EventType.MOVE_AND_RENAME, syncModify );
         }
         catch ( Exception e )
         {
@@ -444,9 +457,10 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         {
             // should always send the original entry cause the consumer perform the modDn operation there
             //System.out.println( "RENAME Listener : log " + renameContext.getDn() + " renamed to " + renameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
+            long sequence = consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry,
+                renameContext.getDn(), getRid( renameContext ) ), renameContext );
             
-            if ( pushInRealTime )
+            if ( isPushed( sequence ) )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
                 resultEntry.setObjectName( entry.getDn() );
@@ -486,6 +500,30 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
 
 
+    /**
+     * Tells if a logged message has to be pushed to the consumer : it must be connected, and
+     * the message must not have been read from the journal during the last content update.
+     */
+    private boolean isPushed( long sequence )
+    {
+        return pushInRealTime && consumerMsgLog.isLoggedAfterFlush( sequence );
+    }
+
+
+    /**
+     * @return The ID of the replica the change has been received from, or -1 for a local change
+     */
+    private int getRid( AbstractChangeOperationContext ctx )
+    {
+        if ( ctx.isReplEvent() )
+        {
+            return ctx.getRid();
+        }
+
+        return -1;
+    }
+
+
     /**
      * Get the cookie from the entry
      */
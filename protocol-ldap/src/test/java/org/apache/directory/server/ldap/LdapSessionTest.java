@@ -0,0 +1,170 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.UnorderedThreadPoolExecutor;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the suspension of the requests while the client does not read its responses.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapSessionTest
+{
+    private DummySession ioSession;
+
+    private LdapSession ldapSession;
+
+    private AtomicInteger resumed;
+
+    private Runnable request;
+
+
+    @Before
+    public void init()
+    {
+        ioSession = new DummySession();
+        ldapSession = new LdapSession( ioSession );
+        resumed = new AtomicInteger();
+
+        request = new Runnable()
+        {
+            public void run()
+            {
+                resumed.incrementAndGet();
+            }
+        };
+    }
+
+
+    @Test
+    public void testWriteQueueFull()
+    {
+        ioSession.setScheduledWriteMessages( 10 );
+        ioSession.setScheduledWriteBytes( 1000 );
+
+        assertTrue( ldapSession.isWriteQueueFull( 0L, 10 ) );
+        assertTrue( ldapSession.isWriteQueueFull( 1000L, 0 ) );
+        assertFalse( ldapSession.isWriteQueueFull( 0L, 11 ) );
+        assertFalse( ldapSession.isWriteQueueFull( 1001L, 0 ) );
+
+        // No limit
+        assertFalse( ldapSession.isWriteQueueFull( 0L, 0 ) );
+    }
+
+
+    @Test
+    public void testResumedWhenHalfRead()
+    {
+        ioSession.setScheduledWriteMessages( 10 );
+        ldapSession.suspendWrites( request, 0L, 10 );
+
+        assertEquals( 0, resumed.get() );
+
+        // Not enough read
+        ioSession.setScheduledWriteMessages( 6 );
+        ldapSession.resumeWrites();
+        assertEquals( 0, resumed.get() );
+
+        ioSession.setScheduledWriteMessages( 4 );
+        ldapSession.resumeWrites();
+        assertEquals( 1, resumed.get() );
+
+        // The request is resumed only once
+        ldapSession.resumeWrites();
+        assertEquals( 1, resumed.get() );
+    }
+
+
+    @Test
+    public void testResumedWhenAlreadyRead()
+    {
+        // The client has read everything before the request got suspended
+        ioSession.setScheduledWriteBytes( 0 );
+        ldapSession.suspendWrites( request, 1000L, 0 );
+
+        assertEquals( 1, resumed.get() );
+    }
+
+
+    @Test
+    public void testResumedWhenClosed()
+    {
+        ioSession.setScheduledWriteBytes( 2000 );
+        ldapSession.suspendWrites( request, 1000L, 0 );
+        assertEquals( 0, resumed.get() );
+
+        // The request has to release its cursor
+        ioSession.closeNow();
+        ldapSession.resumeWrites();
+        assertEquals( 1, resumed.get() );
+    }
+
+
+    @Test
+    public void testResumedOnExecutor() throws Exception
+    {
+        ExecutorFilter executorFilter = new ExecutorFilter( new UnorderedThreadPoolExecutor( 1 ) );
+        ioSession.getFilterChain().addLast( "executor", executorFilter );
+
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final CountDownLatch latch = new CountDownLatch( 1 );
+
+        try
+        {
+            ioSession.setScheduledWriteMessages( 10 );
+            ldapSession.suspendWrites( new Runnable()
+            {
+                public void run()
+                {
+                    thread.set( Thread.currentThread() );
+                    latch.countDown();
+                }
+            }, 0L, 10 );
+
+            ioSession.setScheduledWriteMessages( 0 );
+            ldapSession.resumeWrites();
+
+            // The thread calling messageSent does not run the request
+            assertTrue( latch.await( 10, TimeUnit.SECONDS ) );
+            assertNotSame( Thread.currentThread(), thread.get() );
+        }
+        finally
+        {
+            executorFilter.destroy();
+        }
+    }
+}
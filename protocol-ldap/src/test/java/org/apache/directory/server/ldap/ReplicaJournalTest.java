@@ -0,0 +1,332 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.provider.ReplicaEventLog;
+import org.apache.directory.server.ldap.replication.provider.ReplicaJournal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests for the replication journal shared by all the consumers.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournalTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+    /** The directory containing the journal */
+    private File replDir;
+
+    /** The journal */
+    private ReplicaJournal journal;
+
+    /** The CSNs of the appended messages */
+    private List<String> csns;
+
+
+    /**
+     * Load the SchemaManager
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaJournalTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    /**
+     * Create the journal, and append 10 messages
+     */
+    @Before
+    public void createJournal() throws Exception
+    {
+        replDir = File.createTempFile( getClass().getSimpleName(), "" );
+        replDir.delete();
+        replDir.mkdirs();
+
+        journal = new ReplicaJournal( schemaManager, replDir );
+        csns = new ArrayList<String>();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            journal.append( createMessage( i ), null );
+        }
+    }
+
+
+    /**
+     * Delete the files on disk
+     */
+    @After
+    public void destroyJournal() throws Exception
+    {
+        if ( journal != null )
+        {
+            journal.close();
+        }
+
+        journal = null;
+
+        for ( File file : replDir.listFiles() )
+        {
+            file.delete();
+        }
+
+        replDir.delete();
+    }
+
+
+    private ReplicaEventMessage createMessage( int i ) throws Exception
+    {
+        String csn = csnFactory.newInstance().toString();
+        csns.add( csn );
+
+        Entry entry = new DefaultEntry( schemaManager, "ou=test" + i + ",ou=system",
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou", "test" + i,
+            "entryCsn", csn
+            );
+
+        return new ReplicaEventMessage( ChangeType.ADD, entry );
+    }
+
+
+    @Test
+    public void testAppendOnce() throws Exception
+    {
+        assertEquals( 10, journal.count() );
+        assertEquals( 10, journal.getSequence() );
+
+        // The other consumers log the same message : it's stored once
+        ReplicaEventMessage message = journal.read( csns.get( 2 ), Long.MAX_VALUE, 1 ).get( 0 );
+
+        assertEquals( 4, journal.append( message, null ) );
+        assertEquals( 10, journal.count() );
+        assertEquals( 10, journal.getSequence() );
+    }
+
+
+    @Test
+    public void testRead() throws Exception
+    {
+        List<ReplicaEventMessage> messages = journal.read( null, Long.MAX_VALUE, 100 );
+
+        assertEquals( 10, messages.size() );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertEquals( csns.get( i ), messages.get( i ).getCsn() );
+        }
+
+        // Start after the 4th message
+        messages = journal.read( csns.get( 3 ), Long.MAX_VALUE, 3 );
+
+        assertEquals( 3, messages.size() );
+        assertEquals( "test4", messages.get( 0 ).getEntry().get( "ou" ).getString() );
+        assertEquals( "test6", messages.get( 2 ).getEntry().get( "ou" ).getString() );
+
+        // The messages appended after the 8th one are skipped
+        messages = journal.read( csns.get( 3 ), 8, 100 );
+
+        assertEquals( 4, messages.size() );
+        assertEquals( "test7", messages.get( 3 ).getEntry().get( "ou" ).getString() );
+    }
+
+
+    @Test
+    public void testStoreOrigin() throws Exception
+    {
+        ReplicaEventMessage message = journal.read( csns.get( 8 ), Long.MAX_VALUE, 1 ).get( 0 );
+        Entry entry = message.getEntry().clone();
+        String csn = csnFactory.newInstance().toString();
+        entry.setDn( new Dn( schemaManager, "ou=moved,ou=system" ) );
+        entry.put( "entryCsn", csn );
+
+        Dn previousDn = message.getEntry().getDn();
+        journal.append( new ReplicaEventMessage( ChangeType.MODDN, entry, previousDn, 3 ), null );
+
+        ReplicaEventMessage moved = journal.read( csns.get( 9 ), Long.MAX_VALUE, 10 ).get( 0 );
+
+        assertEquals( ChangeType.MODDN, moved.getChangeType() );
+        assertEquals( 3, moved.getRid() );
+        assertEquals( previousDn, moved.getPreviousDn() );
+        assertEquals( "ou=moved,ou=system", moved.getEntry().getDn().getName() );
+
+        ReplicaEventMessage added = journal.read( null, Long.MAX_VALUE, 1 ).get( 0 );
+
+        assertEquals( -1, added.getRid() );
+        assertNull( added.getPreviousDn() );
+    }
+
+
+    @Test
+    public void testPurgeSentMessages() throws Exception
+    {
+        // Not enough messages
+        assertEquals( 0, journal.purge( csns.get( 5 ), 20, 0L ) );
+
+        // Not old enough
+        assertEquals( 0, journal.purge( csns.get( 5 ), 5, 60000L ) );
+
+        // Some consumer is being initialized
+        journal.retain( csns.get( 2 ) );
+        assertEquals( 2, journal.purge( csns.get( 5 ), 5, 0L ) );
+        journal.release( csns.get( 2 ) );
+
+        assertEquals( 3, journal.purge( csns.get( 5 ), 5, 0L ) );
+        assertEquals( 5, journal.count() );
+        assertEquals( csns.get( 4 ), journal.getPurgedCsn() );
+
+        assertFalse( journal.isComplete( null ) );
+        assertFalse( journal.isComplete( csns.get( 3 ) ) );
+        assertTrue( journal.isComplete( csns.get( 4 ) ) );
+        assertTrue( journal.isComplete( csns.get( 7 ) ) );
+
+        // The position survives a restart
+        journal.close();
+        journal = new ReplicaJournal( schemaManager, replDir );
+
+        assertEquals( 5, journal.count() );
+        assertEquals( csns.get( 4 ), journal.getPurgedCsn() );
+        assertEquals( csns.get( 5 ), journal.read( null, Long.MAX_VALUE, 1 ).get( 0 ).getCsn() );
+    }
+
+
+    @Test
+    public void testRetentionCap() throws Exception
+    {
+        assertTrue( journal.isComplete( null ) );
+
+        // No consumer has received anything, but the journal can't grow over its max size
+        journal.setMaxSize( 4 );
+
+        assertEquals( 6, journal.purge( null, 0, 0L ) );
+        assertEquals( 4, journal.count() );
+        assertEquals( csns.get( 5 ), journal.getPurgedCsn() );
+
+        journal.setMaxSize( 0 );
+        journal.setMaxAge( 3600 );
+
+        assertEquals( 0, journal.purge( null, 0, 0L ) );
+        assertEquals( 4, journal.count() );
+    }
+
+
+    @Test
+    public void testImportUnreadableLog() throws Exception
+    {
+        assertTrue( journal.isComplete( csns.get( 9 ) ) );
+
+        // A log of a former version which can't be read
+        File logFile = new File( replDir, ReplicaEventLog.REPLICA_EVENT_LOG_NAME_PREFIX + "1.db" );
+        byte[] garbage = new byte[8192];
+        Arrays.fill( garbage, ( byte ) 0x5A );
+
+        FileOutputStream out = new FileOutputStream( logFile );
+
+        try
+        {
+            out.write( garbage );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        assertEquals( 0, journal.importReplicaEventLogs( schemaManager, replDir ) );
+
+        // The messages it contained may be missing : the consumers must do a full refresh
+        assertFalse( journal.isComplete( null ) );
+        assertFalse( journal.isComplete( csns.get( 9 ) ) );
+
+        // The log is kept aside, and not imported again
+        assertFalse( logFile.exists() );
+        assertTrue( new File( replDir, logFile.getName() + ".failed" ).exists() );
+
+        String purgedCsn = journal.getPurgedCsn();
+        assertEquals( 0, journal.importReplicaEventLogs( schemaManager, replDir ) );
+        assertEquals( purgedCsn, journal.getPurgedCsn() );
+
+        // The position survives a restart
+        journal.close();
+        journal = new ReplicaJournal( schemaManager, replDir );
+
+        assertEquals( purgedCsn, journal.getPurgedCsn() );
+        assertFalse( journal.isComplete( csns.get( 9 ) ) );
+    }
+}
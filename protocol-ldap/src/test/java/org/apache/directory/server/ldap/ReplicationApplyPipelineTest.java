@@ -0,0 +1,187 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationApplyPipeline;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the pipeline a replication consumer applies the changes with.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationApplyPipelineTest
+{
+    /** The pipeline */
+    private ReplicationApplyPipeline pipeline;
+
+    /** The applied changes, in order */
+    private List<String> applied;
+
+
+    @Before
+    public void init()
+    {
+        pipeline = new ReplicationApplyPipeline( "test", 4, 100 );
+        applied = Collections.synchronizedList( new ArrayList<String>() );
+    }
+
+
+    @After
+    public void shutdown()
+    {
+        pipeline.shutdown();
+    }
+
+
+    private Callable<Void> change( final String name, final long delay )
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                Thread.sleep( delay );
+                applied.add( name );
+
+                return null;
+            }
+        };
+    }
+
+
+    private Callable<Void> failure()
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                throw new Exception( "cannot apply the change" );
+            }
+        };
+    }
+
+
+    @Test
+    public void testSameEntryChangesAreOrdered() throws Exception
+    {
+        byte[] uuid = new byte[]
+            { 1, 2, 3 };
+        Dn dn = new Dn( "cn=test,ou=system" );
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            pipeline.submit( uuid, dn, change( Integer.toString( i ), ( i % 3 ) ) );
+        }
+
+        pipeline.drain();
+
+        assertEquals( 50, applied.size() );
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            assertEquals( Integer.toString( i ), applied.get( i ) );
+        }
+    }
+
+
+    @Test
+    public void testChildWaitsForItsParent() throws Exception
+    {
+        pipeline.submit( new byte[]
+            { 1 }, new Dn( "ou=parent,ou=system" ), change( "parent", 200 ) );
+        pipeline.submit( new byte[]
+            { 2 }, new Dn( "cn=child,ou=parent,ou=system" ), change( "child", 0 ) );
+
+        pipeline.drain();
+
+        assertEquals( 2, applied.size() );
+        assertEquals( "parent", applied.get( 0 ) );
+        assertEquals( "child", applied.get( 1 ) );
+    }
+
+
+    @Test
+    public void testDrainWaitsForAllTheChanges() throws Exception
+    {
+        for ( int i = 0; i < 250; i++ )
+        {
+            pipeline.submit( new byte[]
+                { ( byte ) i, ( byte ) ( i >> 8 ) }, new Dn( "cn=entry" + i + ",ou=system" ), change( "entry" + i, 1 ) );
+        }
+
+        assertTrue( pipeline.drain() );
+
+        assertEquals( 250, applied.size() );
+    }
+
+
+    @Test
+    public void testFailedChangeIsReported() throws Exception
+    {
+        pipeline.submit( new byte[]
+            { 1 }, new Dn( "cn=entry1,ou=system" ), change( "entry1", 0 ) );
+        pipeline.submit( new byte[]
+            { 2 }, new Dn( "cn=entry2,ou=system" ), failure() );
+        pipeline.submit( new byte[]
+            { 3 }, new Dn( "cn=entry3,ou=system" ), change( "entry3", 0 ) );
+
+        assertFalse( pipeline.drain() );
+        assertEquals( 2, applied.size() );
+
+        // The failure is reported once
+        pipeline.submit( new byte[]
+            { 4 }, new Dn( "cn=entry4,ou=system" ), change( "entry4", 0 ) );
+
+        assertTrue( pipeline.drain() );
+        assertEquals( 3, applied.size() );
+    }
+
+
+    @Test
+    public void testFailedChangeInFullBatchIsReported() throws Exception
+    {
+        // The batch is waited for by submit() when it is full : the failure must not be lost
+        pipeline.submit( new byte[]
+            { 0 }, new Dn( "cn=failed,ou=system" ), failure() );
+
+        for ( int i = 1; i < 150; i++ )
+        {
+            pipeline.submit( new byte[]
+                { ( byte ) i }, new Dn( "cn=entry" + i + ",ou=system" ), change( "entry" + i, 0 ) );
+        }
+
+        assertFalse( pipeline.drain() );
+        assertEquals( 149, applied.size() );
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.directory.server.ldap.replication.consumer.SortedUuidSet;
+import org.apache.directory.server.ldap.replication.consumer.SortedUuidSet.UuidIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the set of UUIDs used to find the entries absent from a producer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SortedUuidSetTest
+{
+    /** The directory containing the temporary files */
+    private File tmpDir;
+
+
+    @Before
+    public void init()
+    {
+        tmpDir = new File( System.getProperty( "java.io.tmpdir" ), "sorted-uuid-set-" + System.nanoTime() );
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        File[] files = tmpDir.listFiles();
+
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                file.delete();
+            }
+        }
+
+        tmpDir.delete();
+    }
+
+
+    private static byte[] toBytes( UUID uuid )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 16 );
+        buffer.putLong( uuid.getMostSignificantBits() );
+        buffer.putLong( uuid.getLeastSignificantBits() );
+
+        return buffer.array();
+    }
+
+
+    private static List<String> read( SortedUuidSet set ) throws Exception
+    {
+        List<String> uuids = new ArrayList<String>();
+        UuidIterator iterator = set.iterator();
+
+        try
+        {
+            while ( iterator.next() )
+            {
+                uuids.add( new UUID( iterator.getMostSignificantBits(), iterator.getLeastSignificantBits() )
+                    .toString() );
+            }
+        }
+        finally
+        {
+            iterator.close();
+        }
+
+        return uuids;
+    }
+
+
+    @Test
+    public void testEmptySet() throws Exception
+    {
+        SortedUuidSet set = new SortedUuidSet( tmpDir, 10 );
+
+        assertTrue( read( set ).isEmpty() );
+
+        set.close();
+    }
+
+
+    @Test
+    public void testUuidsAreReadInTheEntryIdsOrder() throws Exception
+    {
+        SortedUuidSet set = new SortedUuidSet( tmpDir, 100 );
+        TreeSet<String> expected = new TreeSet<String>();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            UUID uuid = UUID.randomUUID();
+            expected.add( uuid.toString() );
+            set.add( toBytes( uuid ) );
+
+            // Some duplicates, which may end in different files
+            if ( i % 7 == 0 )
+            {
+                set.add( toBytes( uuid ) );
+            }
+        }
+
+        // The entry IDs are sorted as strings
+        assertEquals( new ArrayList<String>( expected ), read( set ) );
+        assertTrue( tmpDir.list().length > 0 );
+
+        set.close();
+
+        assertEquals( 0, tmpDir.list().length );
+    }
+
+
+    @Test
+    public void testCompare()
+    {
+        assertTrue( SortedUuidSet.compare( 0L, 1L, 0L, 2L ) < 0 );
+        assertTrue( SortedUuidSet.compare( 1L, 0L, 0L, 2L ) > 0 );
+        assertEquals( 0, SortedUuidSet.compare( 3L, 4L, 3L, 4L ) );
+
+        // unsigned
+        assertTrue( SortedUuidSet.compare( 1L, 0L, -1L, 0L ) < 0 );
+        assertFalse( SortedUuidSet.compare( 0L, -1L, 0L, 1L ) < 0 );
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.provider.ReplicaJournalFlusher.JournalWrite;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the ReplicaJournalFlusher : the messages are written in batches, a failed write
+ * forces the consumers to do a full refresh, and the queued messages are written when the
+ * flusher is stopped.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournalFlusherTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+    /** The directory containing the journal */
+    private File replDir;
+
+    /** The journal, counting its writes and failing them on demand */
+    private CountingJournal journal;
+
+    /** The flusher */
+    private ReplicaJournalFlusher flusher;
+
+
+    /**
+     * A journal counting the number of batches written, and failing them on demand
+     */
+    private static final class CountingJournal extends ReplicaJournal
+    {
+        private final AtomicInteger writes = new AtomicInteger();
+
+        private volatile boolean failing;
+
+
+        private CountingJournal( SchemaManager schemaManager, File replDir ) throws Exception
+        {
+            super( schemaManager, replDir );
+        }
+
+
+        @Override
+        void write( List<ReplicaEventMessage> messages ) throws LdapException
+        {
+            writes.incrementAndGet();
+
+            if ( failing )
+            {
+                throw new LdapOtherException( "Disk full" );
+            }
+
+            super.write( messages );
+        }
+    }
+
+
+    /**
+     * Load the SchemaManager
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaJournalFlusherTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    /**
+     * Create the journal and its flusher
+     */
+    @Before
+    public void createJournal() throws Exception
+    {
+        replDir = File.createTempFile( getClass().getSimpleName(), "" );
+        replDir.delete();
+        replDir.mkdirs();
+
+        journal = new CountingJournal( schemaManager, replDir );
+        flusher = new ReplicaJournalFlusher();
+        journal.setJournalFlusher( flusher );
+    }
+
+
+    /**
+     * Stop the flusher, and delete the files on disk
+     */
+    @After
+    public void destroyJournal() throws Exception
+    {
+        if ( flusher.isAlive() )
+        {
+            flusher.stopFlushing();
+        }
+
+        journal.close();
+
+        for ( File file : replDir.listFiles() )
+        {
+            file.delete();
+        }
+
+        replDir.delete();
+    }
+
+
+    private ReplicaEventMessage createMessage( int i ) throws Exception
+    {
+        String csn = csnFactory.newInstance().toString();
+
+        Entry entry = new DefaultEntry( schemaManager, "ou=test" + i + ",ou=system",
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou", "test" + i,
+            "entryCsn", csn
+            );
+
+        return new ReplicaEventMessage( ChangeType.ADD, entry );
+    }
+
+
+    private List<JournalWrite> enqueue( int count ) throws Exception
+    {
+        List<JournalWrite> journalWrites = new ArrayList<JournalWrite>();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            journalWrites.add( flusher.enqueue( journal, createMessage( i ) ) );
+        }
+
+        return journalWrites;
+    }
+
+
+    @Test
+    public void testGroupCommit() throws Exception
+    {
+        // Give enough time to queue all the messages before the first batch is written
+        flusher.setMaxLatency( 1000L );
+        flusher.start();
+
+        for ( JournalWrite journalWrite : enqueue( 20 ) )
+        {
+            journalWrite.await();
+        }
+
+        assertEquals( 20, journal.count() );
+        assertTrue( "Expected less batches than messages, got " + journal.writes.get(), journal.writes.get() < 20 );
+    }
+
+
+    @Test
+    public void testBatchSize() throws Exception
+    {
+        flusher.setMaxLatency( 1000L );
+        flusher.setMaxBatchSize( 5 );
+        flusher.start();
+
+        for ( JournalWrite journalWrite : enqueue( 20 ) )
+        {
+            journalWrite.await();
+        }
+
+        assertEquals( 20, journal.count() );
+        assertTrue( journal.writes.get() >= 4 );
+    }
+
+
+    @Test
+    public void testFailedWriteForcesFullRefresh() throws Exception
+    {
+        ReplicaEventMessage first = createMessage( 0 );
+        flusher.start();
+        flusher.enqueue( journal, first ).await();
+        assertNull( journal.getPurgedCsn() );
+
+        // The operations are already applied : the failure is not reported to them
+        journal.failing = true;
+        ReplicaEventMessage failed = createMessage( 1 );
+        flusher.enqueue( journal, failed ).await();
+
+        // but the consumers which may miss the message have to do a full refresh
+        assertNotNull( journal.getPurgedCsn() );
+        assertFalse( journal.isComplete( first.getCsn() ) );
+
+        // The next writes are not affected by the previous failure
+        journal.failing = false;
+
+        for ( JournalWrite journalWrite : enqueue( 3 ) )
+        {
+            journalWrite.await();
+        }
+
+        assertEquals( 4, journal.count() );
+    }
+
+
+    @Test
+    public void testFailedAppendWithoutFlusher() throws Exception
+    {
+        journal.setJournalFlusher( null );
+        journal.failing = true;
+
+        AddOperationContext context = new AddOperationContext( null );
+        journal.append( createMessage( 0 ), context );
+        context.awaitPendingWrites();
+
+        assertNotNull( journal.getPurgedCsn() );
+        assertEquals( 0, journal.count() );
+    }
+
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        // The messages are still waiting for their batch when the flusher is stopped
+        flusher.setMaxLatency( 60000L );
+        flusher.start();
+
+        List<JournalWrite> journalWrites = enqueue( 10 );
+
+        flusher.stopFlushing();
+
+        for ( JournalWrite journalWrite : journalWrites )
+        {
+            journalWrite.await();
+        }
+
+        assertEquals( 10, journal.count() );
+
+        // The stopped flusher does not accept new messages anymore
+        assertNull( flusher.enqueue( journal, createMessage( 10 ) ) );
+
+        // The journal writes them synchronously instead
+        journal.append( createMessage( 11 ), null );
+        assertEquals( 11, journal.count() );
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.operations.search;
+
+
+import static org.apache.directory.server.integ.ServerIntegrationUtils.getAdminConnection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.ldap.handlers.EncodedEntryCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Test the searches when the encoded entry cache is enabled.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateLdapServer(
+    transports =
+        {
+            @CreateTransport(protocol = "LDAP")
+    })
+@ApplyLdifs(
+    {
+        "dn: ou=apps,ou=system",
+        "objectClass: top",
+        "objectClass: organizationalUnit",
+        "ou: apps",
+
+        "dn: cn=service,ou=apps,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: service",
+        "sn: account",
+        "description: first"
+})
+public class EncodedEntryCacheIT extends AbstractLdapTestUnit
+{
+    private LdapConnection connection;
+
+
+    @Before
+    public void enableCache() throws Exception
+    {
+        getLdapServer().stop();
+        getLdapServer().setEncodedEntryCacheEnabled( true );
+        getLdapServer().start();
+
+        connection = getAdminConnection( getLdapServer() );
+    }
+
+
+    @After
+    public void disableCache() throws Exception
+    {
+        connection.close();
+
+        getLdapServer().stop();
+        getLdapServer().setEncodedEntryCacheEnabled( false );
+        getLdapServer().start();
+    }
+
+
+    private Entry searchOne( String base, String filter, String... attributes ) throws Exception
+    {
+        EntryCursor cursor = connection.search( base, filter, SearchScope.SUBTREE, attributes );
+
+        assertTrue( cursor.next() );
+        Entry entry = cursor.get();
+        assertFalse( cursor.next() );
+        cursor.close();
+
+        return entry;
+    }
+
+
+    @Test
+    public void testSearchFromCache() throws Exception
+    {
+        EncodedEntryCache cache = getLdapServer().getEncodedEntryCache();
+        assertNotNull( cache );
+
+        Entry first = searchOne( "ou=apps,ou=system", "(cn=service)", "cn", "description" );
+        long hits = cache.getHits();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            Entry entry = searchOne( "ou=apps,ou=system", "(cn=service)", "cn", "description" );
+            assertEquals( first, entry );
+        }
+
+        assertEquals( hits + 10, cache.getHits() );
+
+        // Another list of attributes is another entry in the cache
+        Entry all = searchOne( "ou=apps,ou=system", "(cn=service)" );
+        assertTrue( all.containsAttribute( "sn" ) );
+        assertFalse( first.containsAttribute( "sn" ) );
+
+        // The lookups use the cache too
+        assertEquals( first, connection.lookup( "cn=service,ou=apps,ou=system", "cn", "description" ) );
+        assertEquals( hits + 11, cache.getHits() );
+    }
+
+
+    @Test
+    public void testModifiedEntry() throws Exception
+    {
+        Entry entry = searchOne( "ou=apps,ou=system", "(cn=service)", "description" );
+        assertTrue( entry.contains( "description", "first" ) );
+
+        connection.modify( "cn=service,ou=apps,ou=system",
+            new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "description", "second" ) );
+
+        entry = searchOne( "ou=apps,ou=system", "(cn=service)", "description" );
+        assertTrue( entry.contains( "description", "second" ) );
+        assertFalse( entry.contains( "description", "first" ) );
+    }
+
+
+    @Test
+    public void testRenamedParent() throws Exception
+    {
+        Entry entry = searchOne( "ou=system", "(cn=service)", "cn" );
+        assertEquals( "cn=service,ou=apps,ou=system", entry.getDn().getName() );
+
+        connection.rename( "ou=apps,ou=system", "ou=applications" );
+
+        entry = searchOne( "ou=system", "(cn=service)", "cn" );
+        assertEquals( "cn=service,ou=applications,ou=system", entry.getDn().getName() );
+
+        connection.rename( "ou=applications,ou=system", "ou=apps" );
+    }
+
+
+    @Test
+    public void testSubordinatesCount() throws Exception
+    {
+        connection.add( new DefaultEntry(
+            "ou=counts,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: counts" ) );
+
+        Entry counts = connection.lookup( "ou=counts,ou=system", "nbChildren", "nbSubordinates" );
+        assertEquals( "0", counts.get( "nbChildren" ).getString() );
+
+        Entry system = connection.lookup( "ou=system", "+" );
+        long nbSubordinates = Long.parseLong( system.get( "nbSubordinates" ).getString() );
+
+        connection.add( new DefaultEntry(
+            "cn=child,ou=counts,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: child",
+            "sn: child" ) );
+
+        // The added entry changes the counts of its parent and of all its ancestors
+        counts = connection.lookup( "ou=counts,ou=system", "nbChildren", "nbSubordinates" );
+        assertEquals( "1", counts.get( "nbChildren" ).getString() );
+        assertEquals( "1", counts.get( "nbSubordinates" ).getString() );
+
+        system = connection.lookup( "ou=system", "+" );
+        assertEquals( Long.toString( nbSubordinates + 1 ), system.get( "nbSubordinates" ).getString() );
+
+        connection.delete( "cn=child,ou=counts,ou=system" );
+
+        counts = connection.lookup( "ou=counts,ou=system", "nbChildren", "nbSubordinates" );
+        assertEquals( "0", counts.get( "nbChildren" ).getString() );
+
+        system = connection.lookup( "ou=system", "+" );
+        assertEquals( Long.toString( nbSubordinates ), system.get( "nbSubordinates" ).getString() );
+
+        connection.delete( "ou=counts,ou=system" );
+    }
+
+
+    @Test
+    public void testNotUsedWithAccessControl() throws Exception
+    {
+        EncodedEntryCache cache = getLdapServer().getEncodedEntryCache();
+        getService().setAccessControlEnabled( true );
+
+        try
+        {
+            long hits = cache.getHits();
+            long misses = cache.getMisses();
+
+            for ( int i = 0; i < 3; i++ )
+            {
+                searchOne( "ou=apps,ou=system", "(cn=service)", "cn", "description" );
+            }
+
+            // The ACIs may depend on the user groups : the entries are always encoded
+            assertEquals( hits, cache.getHits() );
+            assertEquals( misses, cache.getMisses() );
+        }
+        finally
+        {
+            getService().setAccessControlEnabled( false );
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.operations.search;
+
+
+import static org.apache.directory.server.integ.ServerIntegrationUtils.getAdminConnection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Test the searches sending their entries faster than the client reads them : they
+ * get suspended until the client has read its pending responses. The server only
+ * accepts one pending message per session, and has a single thread, so that each
+ * search is suspended and resumed many times.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateLdapServer(
+    transports =
+        {
+            @CreateTransport(protocol = "LDAP", nbThreads = 1)
+    })
+@ApplyLdifs(
+    {
+        "dn: ou=people,ou=system",
+        "objectClass: top",
+        "objectClass: organizationalUnit",
+        "ou: people"
+})
+public class SearchBackpressureIT extends AbstractLdapTestUnit
+{
+    /** The number of entries under ou=people */
+    private static final int NB_ENTRIES = 200;
+
+    private LdapConnection connection;
+
+    private int maxPendingWriteMessages;
+
+
+    @Before
+    public void init() throws Exception
+    {
+        maxPendingWriteMessages = getLdapServer().getMaxPendingWriteMessages();
+        getLdapServer().setMaxPendingWriteMessages( 1 );
+
+        connection = getAdminConnection( getLdapServer() );
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            connection.add( new DefaultEntry(
+                "cn=user" + i + ",ou=people,ou=system",
+                "objectClass: top",
+                "objectClass: person",
+                "cn: user" + i,
+                "sn: user" + i ) );
+        }
+    }
+
+
+    @After
+    public void reset() throws Exception
+    {
+        connection.close();
+        getLdapServer().setMaxPendingWriteMessages( maxPendingWriteMessages );
+    }
+
+
+    private SearchRequest newSearchRequest() throws Exception
+    {
+        SearchRequest req = new SearchRequestImpl();
+        req.setBase( new Dn( "ou=people,ou=system" ) );
+        req.setFilter( "(objectClass=person)" );
+        req.setScope( SearchScope.ONELEVEL );
+
+        return req;
+    }
+
+
+    /**
+     * Sends the request and counts the returned entries
+     */
+    private int search( LdapConnection connection, SearchRequest req, ResultCodeEnum expected ) throws Exception
+    {
+        SearchCursor cursor = connection.search( req );
+        int count = 0;
+
+        while ( cursor.next() )
+        {
+            Response response = cursor.get();
+            assertTrue( response instanceof SearchResultEntry );
+            count++;
+        }
+
+        SearchResultDone done = cursor.getSearchResultDone();
+        cursor.close();
+
+        assertNotNull( done );
+        assertEquals( expected, done.getLdapResult().getResultCode() );
+
+        return count;
+    }
+
+
+    @Test
+    public void testSearchAllEntries() throws Exception
+    {
+        assertEquals( NB_ENTRIES, search( connection, newSearchRequest(), ResultCodeEnum.SUCCESS ) );
+    }
+
+
+    @Test
+    public void testSizeLimit() throws Exception
+    {
+        SearchRequest req = newSearchRequest();
+        req.setSizeLimit( 50 );
+
+        assertEquals( 50, search( connection, req, ResultCodeEnum.SIZE_LIMIT_EXCEEDED ) );
+    }
+
+
+    @Test
+    public void testPagedSearch() throws Exception
+    {
+        byte[] cookie = Strings.EMPTY_BYTES;
+        int count = 0;
+        int pages = 0;
+
+        do
+        {
+            PagedResults pagedControl = new PagedResultsImpl();
+            pagedControl.setSize( 30 );
+            pagedControl.setCookie( cookie );
+
+            SearchRequest req = newSearchRequest();
+            req.addControl( pagedControl );
+
+            SearchCursor cursor = connection.search( req );
+
+            while ( cursor.next() )
+            {
+                assertTrue( cursor.get() instanceof SearchResultEntry );
+                count++;
+            }
+
+            SearchResultDone done = cursor.getSearchResultDone();
+            cursor.close();
+
+            assertEquals( ResultCodeEnum.SUCCESS, done.getLdapResult().getResultCode() );
+            cookie = ( ( PagedResults ) done.getControl( PagedResults.OID ) ).getCookie();
+            pages++;
+        }
+        while ( !Strings.isEmpty( cookie ) );
+
+        assertEquals( NB_ENTRIES, count );
+        assertEquals( 7, pages );
+    }
+
+
+    @Test
+    public void testConcurrentSearches() throws Exception
+    {
+        // The suspended searches don't hold the only thread of the server
+        LdapConnection[] connections = new LdapConnection[3];
+        SearchCursor[] cursors = new SearchCursor[connections.length];
+
+        for ( int i = 0; i < connections.length; i++ )
+        {
+            connections[i] = getAdminConnection( getLdapServer() );
+            cursors[i] = connections[i].search( newSearchRequest() );
+        }
+
+        try
+        {
+            // Read the results in turn
+            int[] counts = new int[connections.length];
+            boolean hasMore = true;
+
+            while ( hasMore )
+            {
+                hasMore = false;
+
+                for ( int i = 0; i < connections.length; i++ )
+                {
+                    if ( cursors[i].next() )
+                    {
+                        counts[i]++;
+                        hasMore = true;
+                    }
+                }
+            }
+
+            for ( int i = 0; i < connections.length; i++ )
+            {
+                assertEquals( NB_ENTRIES, counts[i] );
+                assertEquals( ResultCodeEnum.SUCCESS,
+                    cursors[i].getSearchResultDone().getLdapResult().getResultCode() );
+            }
+        }
+        finally
+        {
+            for ( int i = 0; i < connections.length; i++ )
+            {
+                cursors[i].close();
+                connections[i].close();
+            }
+        }
+    }
+}
@@ -23,10 +23,12 @@ package org.apache.directory.server.core.partition.impl.btree;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
@@ -36,7 +38,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
-import net.sf.ehcache.store.LruPolicy;
+import net.sf.ehcache.config.CacheConfiguration;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
@@ -57,6 +59,8 @@ import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
 import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.name.Ava;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
@@ -66,10 +70,12 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.api.util.exception.MultiException;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursorImpl;
+import org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
@@ -81,19 +87,26 @@ import org.apache.directory.server.core.api.interceptor.context.OperationContext
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.metrics.MetricsRegistry;
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
 import org.apache.directory.server.core.api.partition.AbstractPartition;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.Subordinates;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryCodec;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.MasterTable;
+import org.apache.directory.server.xdbm.OffHeapEntryCache;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.SubtreeIndex;
+import org.apache.directory.server.xdbm.WeightedCache;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 import org.apache.directory.server.xdbm.search.SearchEngine;
+import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -123,11 +136,50 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** The Entry cache size for this partition */
     protected int cacheSize = DEFAULT_CACHE_SIZE;
 
+    /** The estimated size of an entry, used to compute the default cache size in bytes */
+    public static final int DEFAULT_ENTRY_WEIGHT = 4096;
+
+    /** The system property setting the default entry cache size in bytes */
+    public static final String CACHE_MAX_BYTES_PROPERTY = "apacheds.partition.cacheMaxBytes";
+
+    /** The Entry cache size for this partition, in bytes. Computed from the cacheSize when not positive */
+    protected long cacheMaxBytes = Long.getLong( CACHE_MAX_BYTES_PROPERTY, 0L );
+
+    /** The system property setting the default off-heap entry cache size in bytes */
+    public static final String OFF_HEAP_CACHE_BYTES_PROPERTY = "apacheds.partition.offHeapCacheBytes";
+
+    /** The off-heap entry cache size for this partition, in bytes. 0 to disable it */
+    protected long offHeapCacheBytes = Long.getLong( OFF_HEAP_CACHE_BYTES_PROPERTY, 0L );
+
+    /** The off-heap tier of the entry cache, null if it's disabled */
+    protected OffHeapEntryCache offHeapCache;
+
+    /** The system property setting the default number of candidate chunks a search evaluates in parallel */
+    public static final String SEARCH_PARALLELISM_PROPERTY = "apacheds.partition.searchParallelism";
+
+    /** The number of gathered candidates above which a search is evaluated in parallel */
+    public static final int PARALLEL_SEARCH_THRESHOLD = 1000;
+
+    /** The number of candidate chunks a search evaluates in parallel. 0 or 1 to evaluate them sequentially */
+    protected int searchParallelism = Integer.getInteger( SEARCH_PARALLELISM_PROPERTY, 0 );
+
+    /** Tells if this partition is registered as a user of the parallel search pool */
+    private boolean parallelPoolAcquired;
+
+    /** The system property enabling the subtree index */
+    public static final String SUBTREE_INDEX_PROPERTY = "apacheds.partition.subtreeIndex";
+
+    /** true if the partition maintains a subtree index */
+    protected boolean subtreeIndexEnabled = Boolean.getBoolean( SUBTREE_INDEX_PROPERTY );
+
+    /** The subtree index, null if it's not enabled */
+    protected SubtreeIndex subtreeIndex;
+
     /** The alias cache */
     protected Cache aliasCache;
 
     /** The ParentIdAndRdn cache */
-    protected Cache piarCache;
+    protected WeightedCache<String, ParentIdAndRdn> piarCache;
 
     /** true if we sync disks on every write operation */
     protected AtomicBoolean isSyncOnWrite = new AtomicBoolean( true );
@@ -192,11 +244,20 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** A lock to protect the backend from concurrent reads/writes */
     private ReadWriteLock rwLock;
 
+    /** The counters updated by the partition, null when the metrics are not gathered */
+    private volatile PartitionMetrics metrics;
+
     /** a cache to hold <entryUUID, Dn> pairs, this is used for speeding up the buildEntryDn() method */
-    private Cache entryDnCache;
-    
+    private WeightedCache<String, Dn> entryDnCache;
+
     /** a semaphore to serialize the writes on context entry while updating contextCSN attribute */
     private Semaphore ctxCsnSemaphore = new Semaphore( 1 );
+
+    /** true if the searches read a snapshot of the partition */
+    private boolean snapshotReads = false;
+
+    /** The manager for the snapshots opened by the searches */
+    private final SnapshotManager snapshotManager = new SnapshotManager();
     
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R S
@@ -275,6 +336,122 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Gets the maximum size of the entry cache, in bytes. When it has not been set, it's
+     * read from the configuration of the partition cache in the CacheService, named after
+     * the partition ID : its maxBytesLocalHeap if it's set, or else its maxEntriesLocalHeap,
+     * raised to the cache size, assuming a {@link #DEFAULT_ENTRY_WEIGHT} bytes entry. Without
+     * a CacheService, it's computed from the cache size. The Dn caches use an eighth of this
+     * size each.
+     *
+     * @return the maximum size of the entry cache, in bytes
+     */
+    public long getCacheMaxBytes()
+    {
+        if ( cacheMaxBytes > 0 )
+        {
+            return cacheMaxBytes;
+        }
+
+        long maxEntries = cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE;
+
+        if ( ( cacheService != null ) && ( id != null ) )
+        {
+            CacheConfiguration cacheConfiguration = cacheService.getCache( id ).getCacheConfiguration();
+
+            if ( cacheConfiguration.getMaxBytesLocalHeap() > 0 )
+            {
+                return cacheConfiguration.getMaxBytesLocalHeap();
+            }
+
+            if ( cacheConfiguration.getMaxEntriesLocalHeap() > cacheSize )
+            {
+                maxEntries = cacheConfiguration.getMaxEntriesLocalHeap();
+            }
+        }
+
+        return maxEntries * DEFAULT_ENTRY_WEIGHT;
+    }
+
+
+    /**
+     * Sets the maximum size of the entry cache, in bytes. The entries are weighted by an
+     * estimation of the memory they use, so a partition of large entries caches fewer
+     * entries than a partition of small ones.
+     *
+     * @param cacheMaxBytes the maximum size of the entry cache in bytes, or 0 to compute it
+     * from the cache size in entries
+     */
+    public void setCacheMaxBytes( long cacheMaxBytes )
+    {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+
+    /**
+     * @return the maximum size of the off-heap entry cache, in bytes. 0 if it's disabled
+     */
+    public long getOffHeapCacheBytes()
+    {
+        return offHeapCacheBytes;
+    }
+
+
+    /**
+     * Sets the maximum size of the off-heap entry cache, in bytes. The off-heap cache is a
+     * second tier, storing the serialized entries in direct memory : it's not limited by
+     * the heap size, but by the -XX:MaxDirectMemorySize JVM option. It's disabled by
+     * default.
+     *
+     * @param offHeapCacheBytes the maximum size of the off-heap cache in bytes, or 0 to
+     * disable it
+     */
+    public void setOffHeapCacheBytes( long offHeapCacheBytes )
+    {
+        this.offHeapCacheBytes = offHeapCacheBytes;
+    }
+
+
+    /**
+     * @return the number of candidate chunks a search evaluates in parallel, 0 or 1 if
+     * the candidates are evaluated sequentially
+     */
+    public int getSearchParallelism()
+    {
+        return searchParallelism;
+    }
+
+
+    /**
+     * Sets the number of candidate chunks a search evaluates in parallel, on the pool
+     * shared by all the partitions. Only the searches gathering more than {@link
+     * #PARALLEL_SEARCH_THRESHOLD} candidates are evaluated in parallel. The pool size is set by the {@link ParallelEntryCursor#MAX_THREADS_PROPERTY}
+     * system property.
+     *
+     * @param searchParallelism the number of chunks, or 0 to evaluate the candidates sequentially
+     */
+    public void setSearchParallelism( int searchParallelism )
+    {
+        this.searchParallelism = searchParallelism;
+    }
+
+
+    /**
+     * Creates the off-heap tier of the entry cache, if it's enabled. This method is called
+     * by the partitions storing their entries with an {@link EntryCodec}.
+     *
+     * @param codec The codec serializing the entries
+     */
+    protected void initOffHeapCache( EntryCodec codec )
+    {
+        if ( ( offHeapCacheBytes > 0 ) && ( codec != null ) )
+        {
+            offHeapCache = new OffHeapEntryCache( offHeapCacheBytes, codec );
+            LOG.debug( "Using an off-heap entry cache of {} bytes for {} partition", offHeapCacheBytes, id );
+        }
+    }
+
+
     /**
      * Tells if the Optimizer is enabled or not
      * @return true if the optimizer is enabled
@@ -308,6 +485,57 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * @return <code>true</code> if the searches read a snapshot of the partition
+     */
+    public boolean isSnapshotReads()
+    {
+        return snapshotReads;
+    }
+
+
+    /**
+     * Enables or disables the snapshot reads. When enabled, each search reads the entries
+     * as they were when the search started, even if they get modified or deleted while the
+     * search cursor is being read. The modified entries are preserved in memory until the
+     * searches which may read them are closed, up to {@link SnapshotManager#setMaxVersions(int)}
+     * versions : beyond, the running searches read the current entries.
+     * <br/>
+     * The indices are not part of the snapshot : an entry which no longer matches the
+     * indices when the search reads its candidates may be missing from the results. See
+     * {@link SnapshotManager}.
+     *
+     * @param snapshotReads <code>true</code> to enable the snapshot reads
+     */
+    public void setSnapshotReads( boolean snapshotReads )
+    {
+        this.snapshotReads = snapshotReads;
+    }
+
+
+    /**
+     * @return <code>true</code> if the partition maintains a subtree index
+     */
+    public boolean isSubtreeIndexEnabled()
+    {
+        return subtreeIndexEnabled;
+    }
+
+
+    /**
+     * Enables or disables the subtree index. When enabled, the SUBTREE scopes are read from
+     * the {@link SubtreeIndex}, which is kept in memory and loaded from the RDN index on its
+     * first use, instead of walking the RDN index one level at a time. This must be set
+     * before the partition is initialized.
+     *
+     * @param subtreeIndexEnabled <code>true</code> to enable the subtree index
+     */
+    public void setSubtreeIndexEnabled( boolean subtreeIndexEnabled )
+    {
+        this.subtreeIndexEnabled = subtreeIndexEnabled;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -327,6 +555,20 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Tells if the disks must be synced once the given write operation is done. The
+     * operation may defer the sync, if its caller syncs the partition by itself later on,
+     * like the replication consumer does before it stores its cookie.
+     *
+     * @param writeContext The write operation context
+     * @return <code>true</code> if the disks must be synced after the operation
+     */
+    private boolean mustSyncOnWrite( AbstractChangeOperationContext writeContext )
+    {
+        return isSyncOnWrite.get() && !writeContext.isSyncDeferred();
+    }
+
+
     /**
      * Sets up the system indices.
      */
@@ -499,7 +741,30 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         // don't reset initialized flag
         initialized = false;
 
-        entryDnCache.removeAll();
+        entryDnCache.clear();
+        piarCache.clear();
+
+        if ( subtreeIndex != null )
+        {
+            subtreeIndex.clear();
+        }
+
+        if ( offHeapCache != null )
+        {
+            offHeapCache.clear();
+        }
+
+        // Stop computing the index statistics before closing the indexes
+        if ( optimizer instanceof DefaultOptimizer )
+        {
+            ( ( DefaultOptimizer<?> ) optimizer ).getStatisticsManager().stop();
+        }
+
+        if ( parallelPoolAcquired )
+        {
+            ParallelEntryCursor.releasePool();
+            parallelPoolAcquired = false;
+        }
         
         MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
 
@@ -556,6 +821,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         // Do nothing by default
         doRepair();
+
+        // The RDN index may have changed : the subtree index will be loaded again
+        if ( subtreeIndex != null )
+        {
+            subtreeIndex.clear();
+        }
     }
 
 
@@ -588,18 +859,24 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 aliasCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize );
             }
             
-            piarCache = cacheService.getCache( "piar" );
-            
-            cacheSizeConfig = piarCache.getCacheConfiguration().getMaxElementsInMemory();
-    
-            if ( cacheSizeConfig < cacheSize )
-            {
-                piarCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize * 3 );
-            }
-            
-            entryDnCache = cacheService.getCache( "entryDn" );
-            entryDnCache.setMemoryStoreEvictionPolicy( new LruPolicy() );
-            entryDnCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize );
+        }
+
+        // The Dn caches are sized in bytes, like the entry cache
+        long maxBytes = getCacheMaxBytes();
+        piarCache = new WeightedCache<String, ParentIdAndRdn>( maxBytes / 8, PiarWeigher.AVERAGE_WEIGHT,
+            new PiarWeigher() );
+        entryDnCache = new WeightedCache<String, Dn>( maxBytes / 8, DnWeigher.AVERAGE_WEIGHT,
+            new DnWeigher() );
+
+        if ( subtreeIndexEnabled )
+        {
+            subtreeIndex = new SubtreeIndex();
+        }
+
+        if ( !parallelPoolAcquired )
+        {
+            ParallelEntryCursor.acquirePool();
+            parallelPoolAcquired = true;
         }
     }
 
@@ -846,6 +1123,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 // Update the RDN index
                 rdnIdx.add( key, id );
 
+                if ( subtreeIndex != null )
+                {
+                    subtreeIndex.add( id, parentId );
+                }
+
                 // Update the parent's nbChildren and nbDescendants values
                 if ( parentId != Partition.ROOT_ID )
                 {
@@ -858,6 +1140,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 Attribute at = entry.get( SchemaConstants.ENTRY_CSN_AT );
                 setContextCsn( at.getString() );
 
+                // The entry does not exist for the already opened snapshots
+                preserveVersion( id );
+
                 // And finally add the entry into the master table
                 master.put( id, entry );
             }
@@ -866,7 +1151,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 unlockWrite();
             }
 
-            if ( isSyncOnWrite.get() )
+            if ( mustSyncOnWrite( addContext ) )
             {
                 sync();
             }
@@ -926,6 +1211,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             // We now defer the deletion to the implementing class
             Entry deletedEntry = delete( id );
 
+            if ( mustSyncOnWrite( deleteContext ) )
+            {
+                sync();
+            }
+
             updateCache( deleteContext );
             
             return deletedEntry;
@@ -989,7 +1279,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
 
     /**
-     * Delete the entry associated with a given Id
+     * Delete the entry associated with a given Id. The disks are not synced, this is
+     * done by {@link #delete(DeleteOperationContext)}.
      * @param id The id of the entry to delete
      * @return the deleted entry if found
      * @throws Exception If the deletion failed
@@ -1018,6 +1309,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 throw new LdapNoSuchObjectException( "Cannot find an entry for UUID " + id );
             }
 
+            preserveVersion( id );
+
             Attribute objectClass = entry.get( objectClassAT );
 
             if ( objectClass.contains( SchemaConstants.ALIAS_OC ) )
@@ -1087,9 +1380,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 rdnIdx.drop( id );
 
+                if ( subtreeIndex != null )
+                {
+                    subtreeIndex.remove( id );
+                }
+
                 dumpRdnIdx();
 
                 entryDnCache.remove( id );
+                piarCache.remove( id );
                 
                 Attribute csn = entry.get( entryCsnAT );
                 // can be null while doing subentry deletion
@@ -1099,17 +1398,17 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
 
                 master.remove( id );
+
+                if ( offHeapCache != null )
+                {
+                    offHeapCache.remove( id );
+                }
             }
             finally
             {
                 unlockWrite();
             }
 
-            if ( isSyncOnWrite.get() )
-            {
-                sync();
-            }
-
             return entry;
         }
         catch ( Exception e )
@@ -1148,9 +1447,52 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
             }
             
-            PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager, searchContext );
+            // Open the snapshot before computing the candidates, so that the
+            // entries are read as they were when the candidates were selected
+            Snapshot snapshot = null;
+
+            if ( snapshotReads )
+            {
+                snapshot = snapshotManager.open();
+            }
 
-            Cursor<Entry> result = new EntryCursorAdaptor( this, searchResult );
+            PartitionSearchResult searchResult = null;
+
+            try
+            {
+                searchResult = searchEngine.computeResult( schemaManager, searchContext );
+            }
+            catch ( Exception e )
+            {
+                if ( snapshot != null )
+                {
+                    snapshot.close();
+                }
+
+                throw e;
+            }
+
+            PartitionMetrics partitionMetrics = metrics;
+
+            if ( partitionMetrics != null )
+            {
+                Set<String> candidates = searchResult.getCandidateSet();
+                partitionMetrics.search( candidates == null ? 0 : candidates.size() );
+            }
+
+            Cursor<Entry> result = null;
+
+            if ( isParallel( searchResult ) )
+            {
+                // The paged results and the sort expect the entries in the same order on each run
+                boolean ordered = searchContext.hasRequestControl( PagedResults.OID )
+                    || searchContext.hasRequestControl( SortRequest.OID );
+                result = new ParallelEntryCursor( this, searchResult, snapshot, searchParallelism, ordered );
+            }
+            else
+            {
+                result = new EntryCursorAdaptor( this, searchResult, snapshot );
+            }
 
             return new EntryFilteringCursorImpl( result, searchContext, schemaManager );
         }
@@ -1166,6 +1508,23 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Tells if the candidates of a search are worth being evaluated in parallel : a big enough
+     * set of gathered candidates.
+     */
+    private boolean isParallel( PartitionSearchResult searchResult )
+    {
+        if ( searchParallelism <= 1 )
+        {
+            return false;
+        }
+
+        Set<String> candidates = searchResult.getCandidateSet();
+
+        return ( candidates != null ) && ( candidates.size() >= PARALLEL_SEARCH_THRESHOLD );
+    }
+
+
     //---------------------------------------------------------------------------------------------
     // The Lookup operation
     //---------------------------------------------------------------------------------------------
@@ -1233,6 +1592,74 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Get back an entry knowing its UUID, as it was when a snapshot was opened.
+     *
+     * @param id The Entry UUID we want to get back
+     * @param snapshot The snapshot we are reading, or null to read the current entry
+     * @return The found Entry, or null if not found
+     * @throws Exception If the lookup failed for any reason (except a not found entry)
+     */
+    public Entry fetch( String id, Snapshot snapshot ) throws LdapException
+    {
+        if ( snapshot == null )
+        {
+            return fetch( id );
+        }
+
+        try
+        {
+            // Hold the read lock so that no modification can be applied
+            // between the version check and the master table read
+            rwLock.readLock().lock();
+
+            SnapshotManager.EntryVersion version = snapshotManager.getVersion( id, snapshot );
+
+            if ( version == null )
+            {
+                if ( !snapshotManager.hasPreservedVersions() )
+                {
+                    // Nothing has been modified since the snapshot was opened
+                    return fetch( id );
+                }
+
+                // The entry has not been modified since the snapshot was opened, but
+                // one of its ancestors may have been moved or renamed
+                Dn dn = buildEntryDn( id, snapshot );
+
+                return dn == null ? null : fetch( id, dn );
+            }
+
+            Entry preserved = version.getEntry();
+
+            if ( preserved == null )
+            {
+                // The entry did not exist when the snapshot was opened
+                return null;
+            }
+
+            Dn dn = buildEntryDn( id, snapshot );
+            Entry entry = new ClonedServerEntry( preserved );
+            entry.setDn( dn );
+            entry.add( entryDnAT, dn.getName() );
+
+            return entry;
+        }
+        catch ( LdapException le )
+        {
+            throw le;
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOperationErrorException( e.getMessage(), e );
+        }
+        finally
+        {
+            rwLock.readLock().unlock();
+        }
+    }
+
+
     /**
      * Get back an entry knowing its UUID
      *
@@ -1245,6 +1672,19 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         try
         {
             Entry entry = lookupCache( id );
+            PartitionMetrics partitionMetrics = metrics;
+
+            if ( partitionMetrics != null )
+            {
+                if ( entry != null )
+                {
+                    partitionMetrics.cacheHit();
+                }
+                else
+                {
+                    partitionMetrics.cacheMiss();
+                }
+            }
 
             if ( entry != null )
             {
@@ -1319,7 +1759,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             Entry modifiedEntry = modify( modifyContext.getDn(),
                 modifyContext.getModItems().toArray( new Modification[]
-                    {} ) );
+                    {} ), mustSyncOnWrite( modifyContext ) );
 
             modifyContext.setAlteredEntry( modifiedEntry );
 
@@ -1336,8 +1776,18 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      * {@inheritDoc}
      */
     public final synchronized Entry modify( Dn dn, Modification... mods ) throws Exception
+    {
+        return modify( dn, mods, isSyncOnWrite.get() );
+    }
+
+
+    /**
+     * Modifies an entry, and syncs the disks if requested
+     */
+    private synchronized Entry modify( Dn dn, Modification[] mods, boolean syncOnWrite ) throws Exception
     {
         String id = getEntryId( dn );
+        preserveVersion( id );
         Entry entry = master.get( id );
 
         for ( Modification mod : mods )
@@ -1372,7 +1822,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         
         master.put( id, entry );
 
-        if ( isSyncOnWrite.get() )
+        if ( syncOnWrite )
         {
             sync();
         }
@@ -1804,7 +2254,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             Dn newDn = moveContext.getNewDn();
             Entry modifiedEntry = moveContext.getModifiedEntry();
 
-            move( oldDn, newSuperior, newDn, modifiedEntry );
+            move( oldDn, newSuperior, newDn, modifiedEntry, mustSyncOnWrite( moveContext ) );
             updateCache( moveContext );
         }
         catch ( Exception e )
@@ -1819,6 +2269,16 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     public final synchronized void move( Dn oldDn, Dn newSuperiorDn, Dn newDn, Entry modifiedEntry )
         throws Exception
+    {
+        move( oldDn, newSuperiorDn, newDn, modifiedEntry, isSyncOnWrite.get() );
+    }
+
+
+    /**
+     * Moves an entry, and syncs the disks if requested
+     */
+    private synchronized void move( Dn oldDn, Dn newSuperiorDn, Dn newDn, Entry modifiedEntry,
+        boolean syncOnWrite ) throws Exception
     {
         // Check that the parent Dn exists
         String newParentId = getEntryId( newSuperiorDn );
@@ -1847,6 +2307,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         String entryId = getEntryId( oldDn );
         String oldParentId = getParentId( entryId );
 
+        preserveVersion( entryId );
+
         /*
          * All aliases including and below oldChildDn, will be affected by
          * the move operation with respect to one and subtree userIndices since
@@ -1871,6 +2333,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         updateRdnIdx( newParentId, ADD_CHILD, movedEntry.getNbDescendants() );
 
+        // The moved subtree gets new subtree keys
+        if ( subtreeIndex != null )
+        {
+            subtreeIndex.move( entryId, newParentId );
+        }
+
         /*
          * Read Alias Index Tuples
          *
@@ -1903,13 +2371,14 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         // Remove the EntryDN
         modifiedEntry.removeAttributes( entryDnAT );
 
-        entryDnCache.removeAll();
+        entryDnCache.clear();
+        piarCache.clear();
         
         setContextCsn( modifiedEntry.get( entryCsnAT ).getString() );
 
         master.put( entryId, modifiedEntry );
 
-        if ( isSyncOnWrite.get() )
+        if ( syncOnWrite )
         {
             sync();
         }
@@ -1939,7 +2408,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             boolean deleteOldRdn = moveAndRenameContext.getDeleteOldRdn();
             Entry modifiedEntry = moveAndRenameContext.getModifiedEntry();
 
-            moveAndRename( oldDn, newSuperiorDn, newRdn, modifiedEntry, deleteOldRdn );
+            moveAndRename( oldDn, newSuperiorDn, newRdn, modifiedEntry, deleteOldRdn,
+                mustSyncOnWrite( moveAndRenameContext ) );
             updateCache( moveAndRenameContext );
         }
         catch ( LdapException le )
@@ -1960,6 +2430,16 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     public final synchronized void moveAndRename( Dn oldDn, Dn newSuperiorDn, Rdn newRdn, Entry modifiedEntry,
         boolean deleteOldRdn ) throws Exception
+    {
+        moveAndRename( oldDn, newSuperiorDn, newRdn, modifiedEntry, deleteOldRdn, isSyncOnWrite.get() );
+    }
+
+
+    /**
+     * Moves and renames an entry, and syncs the disks if requested
+     */
+    private synchronized void moveAndRename( Dn oldDn, Dn newSuperiorDn, Rdn newRdn, Entry modifiedEntry,
+        boolean deleteOldRdn, boolean syncOnWrite ) throws Exception
     {
         // Check that the old entry exists
         String oldId = getEntryId( oldDn );
@@ -1997,6 +2477,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             throw ne;
         }
 
+        preserveVersion( oldId );
+
         // First, rename
         // Get the old UUID
         if ( modifiedEntry == null )
@@ -2007,9 +2489,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         rename( oldId, newRdn, deleteOldRdn, modifiedEntry );
         moveAndRename( oldDn, oldId, newSuperiorDn, newRdn, modifiedEntry );
 
-        entryDnCache.removeAll();
+        entryDnCache.clear();
+        piarCache.clear();
         
-        if ( isSyncOnWrite.get() )
+        if ( syncOnWrite )
         {
             sync();
         }
@@ -2067,6 +2550,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         updateRdnIdx( newParentId, ADD_CHILD, movedEntry.getNbDescendants() );
 
+        // The moved subtree gets new subtree keys
+        if ( subtreeIndex != null )
+        {
+            subtreeIndex.move( entryId, newParentId );
+        }
+
         dumpRdnIdx();
 
         /*
@@ -2107,11 +2596,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             if ( renameContext.getEntry() != null )
             {
                 Entry modifiedEntry = renameContext.getModifiedEntry();
-                rename( oldDn, newRdn, deleteOldRdn, modifiedEntry );
+                rename( oldDn, newRdn, deleteOldRdn, modifiedEntry, mustSyncOnWrite( renameContext ) );
             }
             else
             {
-                rename( oldDn, newRdn, deleteOldRdn, null );
+                rename( oldDn, newRdn, deleteOldRdn, null, mustSyncOnWrite( renameContext ) );
             }
 
             updateCache( renameContext );
@@ -2285,11 +2774,22 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("unchecked")
     public final synchronized void rename( Dn dn, Rdn newRdn, boolean deleteOldRdn, Entry entry ) throws Exception
+    {
+        rename( dn, newRdn, deleteOldRdn, entry, isSyncOnWrite.get() );
+    }
+
+
+    /**
+     * Renames an entry, and syncs the disks if requested
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized void rename( Dn dn, Rdn newRdn, boolean deleteOldRdn, Entry entry, boolean syncOnWrite )
+        throws Exception
     {
         String oldId = getEntryId( dn );
 
+        preserveVersion( oldId );
         rename( oldId, newRdn, deleteOldRdn, entry );
 
         /*
@@ -2312,9 +2812,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         rdnIdx.add( parentIdAndRdn, oldId );
 
-        entryDnCache.removeAll();
+        entryDnCache.clear();
+        piarCache.clear();
         
-        if ( isSyncOnWrite.get() )
+        if ( syncOnWrite )
         {
             sync();
         }
@@ -2400,38 +2901,18 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         {
             rwLock.readLock().lock();
 
-            Element el = entryDnCache.get( id );
+            dn = entryDnCache.get( id );
             
-            if ( el != null )
+            if ( dn != null )
             {
-                return ( Dn ) el.getValue();
+                return dn;
             }
             
             do
             {
-                ParentIdAndRdn cur = null;
+                ParentIdAndRdn cur = piarCache.get( parentId );
             
-                if ( piarCache != null )
-                {
-                    Element piar = piarCache.get( parentId );
-                    
-                    if ( piar != null )
-                    {
-                        cur = ( ParentIdAndRdn ) piar.getValue();
-                    }
-                    else
-                    {
-                        cur = rdnIdx.reverseLookup( parentId );
-                        
-                        if ( cur == null )
-                        {
-                            return null;
-                        }
-                        
-                        piarCache.put( new Element( parentId, cur ) );
-                    }
-                }
-                else
+                if ( cur == null )
                 {
                     cur = rdnIdx.reverseLookup( parentId );
                     
@@ -2439,6 +2920,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                     {
                         return null;
                     }
+                    
+                    piarCache.put( parentId, cur );
                 }
 
                 Rdn[] rdns = cur.getRdns();
@@ -2462,7 +2945,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             
             dn = new Dn( schemaManager, Arrays.copyOf( rdnArray, pos ) );
             
-            entryDnCache.put( new Element( id, dn ) );
+            entryDnCache.put( id, dn );
             return dn;
         }
         finally
@@ -3256,6 +3739,136 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Looks up for an entry in the off-heap tier of the entry cache
+     *
+     * @param id the ID of the entry
+     * @return the Entry, with a Dn only containing its Rdn, if it's cached, null otherwise
+     */
+    protected Entry lookupOffHeapCache( String id )
+    {
+        if ( offHeapCache == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return offHeapCache.get( id );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Failed to read the entry {} from the off-heap cache", id, ioe );
+            offHeapCache.remove( id );
+
+            return null;
+        }
+    }
+
+
+    /**
+     * Adds an entry to the off-heap tier of the entry cache
+     *
+     * @param id ID of the entry
+     * @param entry the Entry
+     */
+    protected void addToOffHeapCache( String id, Entry entry )
+    {
+        if ( offHeapCache == null )
+        {
+            return;
+        }
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            entry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        try
+        {
+            offHeapCache.put( id, entry );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Failed to write the entry {} in the off-heap cache", id, ioe );
+            offHeapCache.remove( id );
+        }
+    }
+
+
+    /**
+     * Updates the off-heap tier of the entry cache based on the type of OperationContext.
+     * Unlike the on-heap cache, it's not cleared when an entry is moved or renamed, as
+     * the serialized entries don't contain their parent Dn : only the moved or renamed
+     * entry is removed.
+     *
+     * @param opCtx the operation's context
+     */
+    protected void updateOffHeapCache( OperationContext opCtx )
+    {
+        if ( offHeapCache == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( opCtx instanceof ModifyOperationContext )
+            {
+                Entry entry = ( ( ModifyOperationContext ) opCtx ).getAlteredEntry();
+                Attribute uuid = entry.get( entryUuidAT );
+
+                if ( uuid != null )
+                {
+                    addToOffHeapCache( uuid.getString(), entry );
+
+                    return;
+                }
+            }
+            else if ( ( opCtx instanceof MoveOperationContext ) || ( opCtx instanceof RenameOperationContext ) )
+            {
+                Entry entry = ( ( AbstractChangeOperationContext ) opCtx ).getModifiedEntry();
+
+                if ( entry == null )
+                {
+                    entry = opCtx.getEntry();
+                }
+
+                Attribute uuid = entry == null ? null : entry.get( entryUuidAT );
+
+                if ( uuid != null )
+                {
+                    offHeapCache.remove( uuid.getString() );
+
+                    return;
+                }
+            }
+            else if ( opCtx instanceof DeleteOperationContext )
+            {
+                Attribute uuid = opCtx.getEntry().get( entryUuidAT );
+
+                if ( uuid != null )
+                {
+                    offHeapCache.remove( uuid.getString() );
+
+                    return;
+                }
+            }
+            else
+            {
+                return;
+            }
+        }
+        catch ( LdapException le )
+        {
+            LOG.warn( "Failed to update the off-heap entry cache", le );
+        }
+
+        // We can't tell which entry has been changed
+        offHeapCache.clear();
+    }
+
+
     /**
      * @return the optimizer
      */
@@ -3292,7 +3905,32 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         if ( operationContext.getSession() != null )
         {
-            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock();
+            DirectoryService directoryService = operationContext.getSession().getDirectoryService();
+            rwLock = getOperationLock( directoryService );
+
+            // Fetch the counters here too, as we have the DirectoryService at hand
+            MetricsRegistry metricsRegistry = directoryService.getMetricsRegistry();
+
+            if ( metricsRegistry.isEnabled() )
+            {
+                metrics = metricsRegistry.getPartitionMetrics( getId() );
+            }
+            else
+            {
+                metrics = null;
+            }
+
+            WeightedCache<String, Entry> entryCache = getEntryCache();
+
+            if ( entryCache != null )
+            {
+                entryCache.setMetrics( metrics );
+            }
+
+            if ( offHeapCache != null )
+            {
+                offHeapCache.setMetrics( metrics );
+            }
         }
         else
         {
@@ -3305,6 +3943,21 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Gives the lock protecting the partition against concurrent modifications. It's the lock
+     * the OperationManager takes for the partition suffix, which is the global lock unless the
+     * partitions are locked individually. A partition which is not modified through the
+     * OperationManager can use its own lock instead.
+     *
+     * @param directoryService The DirectoryService instance
+     * @return The lock protecting the partition
+     */
+    protected ReadWriteLock getOperationLock( DirectoryService directoryService )
+    {
+        return directoryService.getOperationManager().getRWLock( getSuffixDn() );
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -3313,6 +3966,109 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         return rwLock;
     }
 
+
+    /**
+     * @return The entry cache of this partition, or null if the partition does not cache
+     * its entries
+     */
+    protected WeightedCache<String, Entry> getEntryCache()
+    {
+        return null;
+    }
+
+
+    /**
+     * @return The counters updated by this partition, or null if the metrics are not gathered
+     */
+    public PartitionMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+
+    /**
+     * @return The manager for the snapshots opened on this partition
+     */
+    public SnapshotManager getSnapshotManager()
+    {
+        return snapshotManager;
+    }
+
+
+    /**
+     * Preserves the current version of an entry for the snapshots opened before the
+     * modification we are about to apply. This is a no-op when no snapshot is open.
+     *
+     * @param id The ID of the entry about to be added, modified or deleted
+     * @throws Exception If the entry can't be read
+     */
+    private void preserveVersion( String id ) throws Exception
+    {
+        if ( !snapshotReads || !snapshotManager.hasOpenSnapshots() )
+        {
+            return;
+        }
+
+        Entry entry = master.get( id );
+        ParentIdAndRdn parentIdAndRdn = null;
+
+        if ( entry != null )
+        {
+            // The master table may return the stored instance : copy it
+            entry = entry.clone();
+            entry.removeAttributes( entryDnAT );
+
+            // The RDN index entry is updated in place by the renames : copy it too
+            ParentIdAndRdn current = rdnIdx.reverseLookup( id );
+            parentIdAndRdn = new ParentIdAndRdn( current.getParentId(), current.getRdns() );
+        }
+
+        snapshotManager.preserve( id, entry, parentIdAndRdn );
+    }
+
+
+    /**
+     * Builds the Dn an entry had when a snapshot was opened, walking up the RDN index path
+     * the snapshot could see : the moved or renamed entries have their parent ID and RDN
+     * preserved, the others are read from the RDN index.
+     *
+     * @param id The entry ID
+     * @param snapshot The snapshot reading the entry
+     * @return The entry's Dn, or null if it did not exist when the snapshot was opened
+     * @throws Exception If the RDN index can't be read
+     */
+    private Dn buildEntryDn( String id, Snapshot snapshot ) throws Exception
+    {
+        List<Rdn> rdns = new ArrayList<Rdn>();
+        String currentId = id;
+
+        do
+        {
+            ParentIdAndRdn cur;
+            SnapshotManager.EntryVersion version = snapshotManager.getVersion( currentId, snapshot );
+
+            if ( version != null )
+            {
+                cur = version.getParentIdAndRdn();
+            }
+            else
+            {
+                cur = rdnIdx.reverseLookup( currentId );
+            }
+
+            if ( cur == null )
+            {
+                return null;
+            }
+
+            rdns.addAll( Arrays.asList( cur.getRdns() ) );
+            currentId = cur.getParentId();
+        }
+        while ( !currentId.equals( Partition.ROOT_ID ) );
+
+        return new Dn( schemaManager, rdns.toArray( new Rdn[rdns.size()] ) );
+    }
+
     
     /**
      * {@inheritDoc}
@@ -3321,6 +4077,22 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         return aliasCache;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public SubtreeIndex getSubtreeIndex() throws Exception
+    {
+        SubtreeIndex index = subtreeIndex;
+
+        if ( ( index != null ) && !index.isLoaded() )
+        {
+            index.load( rdnIdx );
+        }
+
+        return index;
+    }
     
     
     @Override
@@ -3408,6 +4180,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 return;
             }
+            preserveVersion( contextEntryId );
             origEntry = ( ( ClonedServerEntry ) origEntry ).getOriginalEntry();
             
             origEntry.removeAttributes( contextCsnAT, entryDnAT );
@@ -3461,4 +4234,44 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         return subordinates;
     }
+
+
+    /**
+     * Estimates the memory used by a cached Dn : its user provided and normalized names,
+     * and its Rdns
+     */
+    private static final class DnWeigher implements WeightedCache.Weigher<String, Dn>
+    {
+        /** The expected weight of a Dn */
+        private static final int AVERAGE_WEIGHT = 512;
+
+
+        public int weigh( String id, Dn dn )
+        {
+            return 100 + 4 * dn.getName().length() + 100 * dn.size();
+        }
+    }
+
+
+    /**
+     * Estimates the memory used by a cached ParentIdAndRdn : its parent ID, and its Rdns
+     */
+    private static final class PiarWeigher implements WeightedCache.Weigher<String, ParentIdAndRdn>
+    {
+        /** The expected weight of a ParentIdAndRdn */
+        private static final int AVERAGE_WEIGHT = 256;
+
+
+        public int weigh( String id, ParentIdAndRdn piar )
+        {
+            int weight = 150 + 2 * piar.getParentId().length();
+
+            for ( Rdn rdn : piar.getRdns() )
+            {
+                weight += 100 + 4 * rdn.getName().length();
+            }
+
+            return weight;
+        }
+    }
 }
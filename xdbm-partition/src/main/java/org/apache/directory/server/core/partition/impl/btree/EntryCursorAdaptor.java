@@ -30,6 +30,7 @@ import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
@@ -50,17 +51,41 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
+    private final AbstractBTreePartition db;
     private final Cursor<IndexEntry<String, String>> indexCursor;
     private final Evaluator<? extends ExprNode> evaluator;
 
+    /** The snapshot the entries are read from, if any */
+    private final Snapshot snapshot;
+
+    /** The partition counters, if the metrics are gathered */
+    private final PartitionMetrics metrics;
+
 
     public EntryCursorAdaptor( AbstractBTreePartition db, PartitionSearchResult searchResult )
+    {
+        this( db, searchResult, null );
+    }
+
+
+    /**
+     * Creates a new EntryCursorAdaptor reading the entries from a snapshot. The snapshot
+     * is closed when this cursor is closed.
+     *
+     * @param db The partition
+     * @param searchResult The candidates and the evaluator to apply on them
+     * @param snapshot The snapshot to read the entries from, or null to read the current entries
+     */
+    public EntryCursorAdaptor( AbstractBTreePartition db, PartitionSearchResult searchResult, Snapshot snapshot )
     {
         if ( IS_DEBUG )
         {
             LOG_CURSOR.debug( "Creating EntryCursorAdaptor {}", this );
         }
 
+        this.db = db;
+        this.snapshot = snapshot;
+        metrics = db.getMetrics();
         indexCursor = searchResult.getResultSet();
         evaluator = searchResult.getEvaluator();
     }
@@ -130,6 +155,7 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
             LOG_CURSOR.debug( "Closing EntryCursorAdaptor {}", this );
         }
 
+        closeSnapshot();
         indexCursor.close();
     }
 
@@ -144,10 +170,23 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
             LOG_CURSOR.debug( "Closing EntryCursorAdaptor {}", this );
         }
 
+        closeSnapshot();
         indexCursor.close( cause );
     }
 
 
+    /**
+     * Releases the snapshot, if any
+     */
+    private void closeSnapshot()
+    {
+        if ( snapshot != null )
+        {
+            snapshot.close();
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -166,7 +205,27 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
 
         try
         {
-            if ( evaluator.evaluate( indexEntry ) )
+            if ( ( snapshot != null ) && ( indexEntry.getEntry() == null ) )
+            {
+                // Read the entry from the snapshot, the evaluator will use it
+                Entry entry = db.fetch( indexEntry.getId(), snapshot );
+
+                if ( entry == null )
+                {
+                    return null;
+                }
+
+                indexEntry.setEntry( entry );
+            }
+
+            boolean matches = evaluator.evaluate( indexEntry );
+
+            if ( metrics != null )
+            {
+                metrics.entryExamined( matches );
+            }
+
+            if ( matches )
             {
                 Entry entry = indexEntry.getEntry();
                 indexEntry.setEntry( null );
@@ -0,0 +1,643 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.ClosureMonitor;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.search.Evaluator;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor returning the entries matching a search, like the {@link EntryCursorAdaptor},
+ * but fetching and evaluating the candidates on several threads.
+ * <br/>
+ * The candidates are read in chunks from the index cursor, on the thread consuming this
+ * cursor. Each chunk is then fetched and evaluated on a pool shared by all the partitions,
+ * while the next chunks are read. The number of chunks in progress for one search is
+ * limited by the partition search parallelism, and the number of threads of the pool by
+ * the {@link #MAX_THREADS_PROPERTY} system property, so that a search can't use all the
+ * cores, and all the searches together can't use more than the configured number of threads.
+ * <br/>
+ * When the entries must be returned in the candidates order, the chunks are returned in
+ * the order they have been read. Otherwise, they are returned as soon as they have been
+ * evaluated.
+ * <br/>
+ * This cursor only moves forward : it can only go back to the entries of the current chunk,
+ * or before the first entry. The other moves throw an UnsupportedOperationException.
+ * <br/>
+ * The pool is created by the first parallel search, and shut down when the last partition
+ * using it is destroyed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelEntryCursor extends AbstractCursor<Entry>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The system property setting the number of threads evaluating the candidates, for all the searches */
+    public static final String MAX_THREADS_PROPERTY = "apacheds.search.maxThreads";
+
+    /** The number of candidates in a chunk */
+    public static final int CHUNK_SIZE = 256;
+
+    /** The pool evaluating the candidates of all the searches */
+    private static ForkJoinPool pool;
+
+    /** The number of partitions using the pool */
+    private static int poolUsers;
+
+    private final AbstractBTreePartition db;
+    private final Cursor<IndexEntry<String, String>> indexCursor;
+    private final Evaluator<? extends ExprNode> evaluator;
+
+    /** The snapshot the entries are read from, if any */
+    private final Snapshot snapshot;
+
+    /** The partition counters, if the metrics are gathered */
+    private final PartitionMetrics metrics;
+
+    /** The maximum number of chunks evaluated at the same time */
+    private final int parallelism;
+
+    /** Tells if the entries must be returned in the candidates order */
+    private final boolean ordered;
+
+    /** The evaluated chunks */
+    private CompletionService<Chunk> completionService;
+
+    /** The chunks evaluated before the one expected, when the order is preserved */
+    private final Map<Integer, Chunk> pending = new HashMap<Integer, Chunk>();
+
+    /** The number of chunks submitted and not yet taken from the completion service */
+    private int running;
+
+    /** The sequence number of the next chunk to read */
+    private int nextRead;
+
+    /** The sequence number of the next chunk to return, when the order is preserved */
+    private int nextReturned;
+
+    /** Tells if all the candidates have been read */
+    private boolean exhausted;
+
+    /** The matching entries of the current chunk */
+    private List<Entry> entries = Collections.emptyList();
+
+    /** The position in the current chunk */
+    private int position = -1;
+
+    /** The number of entries returned before the current chunk */
+    private long returned;
+
+    /** Tells the evaluating threads to stop */
+    private volatile boolean closing;
+
+
+    /**
+     * Creates a new instance of ParallelEntryCursor.
+     *
+     * @param db The partition
+     * @param searchResult The candidates and the evaluator to apply on them
+     * @param snapshot The snapshot to read the entries from, or null to read the current entries
+     * @param parallelism The maximum number of chunks evaluated at the same time for this search
+     * @param ordered true if the entries must be returned in the candidates order
+     */
+    public ParallelEntryCursor( AbstractBTreePartition db, PartitionSearchResult searchResult, Snapshot snapshot,
+        int parallelism, boolean ordered )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating ParallelEntryCursor {}", this );
+        }
+
+        this.db = db;
+        this.snapshot = snapshot;
+        this.parallelism = Math.max( 1, parallelism );
+        this.ordered = ordered;
+        metrics = db.getMetrics();
+        indexCursor = searchResult.getResultSet();
+        evaluator = searchResult.getEvaluator();
+        completionService = new ExecutorCompletionService<Chunk>( getPool() );
+    }
+
+
+    /**
+     * @return The pool shared by all the searches, created on the first parallel search
+     */
+    private static synchronized ForkJoinPool getPool()
+    {
+        if ( pool == null )
+        {
+            int threads = Integer.getInteger( MAX_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors() );
+            pool = new ForkJoinPool( Math.max( 1, threads ) );
+        }
+
+        return pool;
+    }
+
+
+    /**
+     * Registers a partition using the pool. Called when the partition is initialized.
+     */
+    static synchronized void acquirePool()
+    {
+        poolUsers++;
+    }
+
+
+    /**
+     * Unregisters a partition using the pool. Called when the partition is destroyed : the
+     * pool is shut down when no partition uses it anymore. The chunks being evaluated are
+     * completed.
+     */
+    static synchronized void releasePool()
+    {
+        if ( poolUsers > 0 )
+        {
+            poolUsers--;
+        }
+
+        if ( ( poolUsers == 0 ) && ( pool != null ) )
+        {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+
+    /**
+     * Creates the exception thrown by the moves this cursor does not support
+     */
+    private UnsupportedOperationException unsupported( String operation )
+    {
+        return new UnsupportedOperationException( I18n.err( I18n.ERR_755_FORWARD_ONLY_CURSOR,
+            getClass().getSimpleName(), operation ) );
+    }
+
+
+    /**
+     * A chunk of candidates, and the entries matching the filter once it has been evaluated
+     */
+    private final class Chunk implements Callable<Chunk>
+    {
+        /** The sequence number of this chunk */
+        private final int sequence;
+
+        /** The candidates */
+        private final List<IndexEntry<String, String>> candidates;
+
+        /** The matching entries */
+        private final List<Entry> matches = new ArrayList<Entry>();
+
+
+        private Chunk( int sequence, List<IndexEntry<String, String>> candidates )
+        {
+            this.sequence = sequence;
+            this.candidates = candidates;
+        }
+
+
+        public Chunk call() throws Exception
+        {
+            for ( IndexEntry<String, String> candidate : candidates )
+            {
+                if ( closing )
+                {
+                    break;
+                }
+
+                if ( ( snapshot != null ) && ( candidate.getEntry() == null ) )
+                {
+                    Entry entry = db.fetch( candidate.getId(), snapshot );
+
+                    if ( entry == null )
+                    {
+                        continue;
+                    }
+
+                    candidate.setEntry( entry );
+                }
+
+                boolean matches = evaluator.evaluate( candidate );
+
+                if ( metrics != null )
+                {
+                    metrics.entryExamined( matches );
+                }
+
+                if ( matches )
+                {
+                    this.matches.add( candidate.getEntry() );
+                }
+            }
+
+            return this;
+        }
+    }
+
+
+    /**
+     * Reads the next chunks of candidates, and submits them, until the maximum number of
+     * chunks in progress is reached.
+     */
+    private void submit() throws LdapException, CursorException
+    {
+        while ( !exhausted && ( running + pending.size() < parallelism ) )
+        {
+            List<IndexEntry<String, String>> candidates = read();
+
+            if ( !candidates.isEmpty() )
+            {
+                completionService.submit( new Chunk( nextRead, candidates ) );
+                nextRead++;
+                running++;
+            }
+        }
+    }
+
+
+    /**
+     * Reads a chunk of candidates. The index entries are copied, as the cursors may reuse them.
+     */
+    private List<IndexEntry<String, String>> read() throws LdapException, CursorException
+    {
+        List<IndexEntry<String, String>> candidates = new ArrayList<IndexEntry<String, String>>( CHUNK_SIZE );
+
+        while ( candidates.size() < CHUNK_SIZE )
+        {
+            if ( !indexCursor.next() )
+            {
+                exhausted = true;
+                break;
+            }
+
+            IndexEntry<String, String> candidate = new IndexEntry<String, String>();
+            candidate.copy( indexCursor.get() );
+            candidates.add( candidate );
+        }
+
+        return candidates;
+    }
+
+
+    /**
+     * Waits for the next evaluated chunk.
+     *
+     * @return The chunk, or null if all the chunks have been returned
+     */
+    private Chunk take() throws CursorException
+    {
+        if ( ( running == 0 ) && pending.isEmpty() )
+        {
+            return null;
+        }
+
+        try
+        {
+            if ( ordered )
+            {
+                while ( !pending.containsKey( nextReturned ) )
+                {
+                    Future<Chunk> future = completionService.take();
+                    running--;
+                    Chunk chunk = future.get();
+                    pending.put( chunk.sequence, chunk );
+                }
+
+                return pending.remove( nextReturned++ );
+            }
+
+            Future<Chunk> future = completionService.take();
+            running--;
+
+            return future.get();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new CursorException( ie.getMessage(), ie );
+        }
+        catch ( ExecutionException ee )
+        {
+            throw new CursorException( ee.getCause().getMessage(), ee.getCause() );
+        }
+    }
+
+
+    /**
+     * Stops the chunks in progress, waits for them, and forgets them. The chunks check
+     * the closing flag before each candidate, so they complete quickly, and the ones not
+     * started yet do nothing. We wait for them even when we are interrupted, as they read
+     * the snapshot and the indexes which may be closed next : the interrupt is only
+     * restored once they are all done.
+     */
+    private void drain()
+    {
+        closing = true;
+        boolean interrupted = false;
+
+        while ( running > 0 )
+        {
+            try
+            {
+                completionService.take();
+                running--;
+            }
+            catch ( InterruptedException ie )
+            {
+                interrupted = true;
+            }
+        }
+
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        pending.clear();
+        closing = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void after( Entry element ) throws LdapException, CursorException
+    {
+        throw unsupported( "after()" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws LdapException, CursorException
+    {
+        throw unsupported( "afterLast()" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean available()
+    {
+        return ( position >= 0 ) && ( position < entries.size() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void before( Entry element ) throws LdapException, CursorException
+    {
+        throw unsupported( "before()" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        drain();
+        nextRead = 0;
+        nextReturned = 0;
+        exhausted = false;
+        entries = Collections.emptyList();
+        position = -1;
+        returned = 0;
+
+        indexCursor.beforeFirst();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public final void setClosureMonitor( ClosureMonitor monitor )
+    {
+        indexCursor.setClosureMonitor( monitor );
+    }
+
+
+    /**
+     * {@inheritDoc}}
+     */
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing ParallelEntryCursor {}", this );
+        }
+
+        drain();
+        closeSnapshot();
+        indexCursor.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing ParallelEntryCursor {}", this );
+        }
+
+        drain();
+        closeSnapshot();
+        indexCursor.close( cause );
+    }
+
+
+    /**
+     * Releases the snapshot, if any
+     */
+    private void closeSnapshot()
+    {
+        if ( snapshot != null )
+        {
+            snapshot.close();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry get() throws CursorException
+    {
+        if ( !available() )
+        {
+            return null;
+        }
+
+        return entries.get( position );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isClosed()
+    {
+        return indexCursor.isClosed();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws LdapException, CursorException
+    {
+        throw unsupported( "last()" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws LdapException, CursorException
+    {
+        if ( position < entries.size() )
+        {
+            position++;
+        }
+
+        while ( position >= entries.size() )
+        {
+            submit();
+            Chunk chunk = take();
+
+            if ( chunk == null )
+            {
+                return false;
+            }
+
+            returned += entries.size();
+            entries = chunk.matches;
+            position = 0;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean previous() throws LdapException, CursorException
+    {
+        if ( position > 0 )
+        {
+            position--;
+
+            return true;
+        }
+
+        if ( ( position == 0 ) && ( returned == 0 ) )
+        {
+            // Before the first entry
+            position = -1;
+
+            return false;
+        }
+
+        throw unsupported( "previous() before the current chunk" );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString( String tabs )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( tabs ).append( "ParallelEntryCursor\n" );
+
+        if ( indexCursor != null )
+        {
+            sb.append( tabs ).append( "    " ).append( "IndexCursor : \n" );
+            sb.append( indexCursor.toString( tabs + "        " ) );
+        }
+
+        if ( evaluator != null )
+        {
+            sb.append( tabs ).append( "    " ).append( "Evaluator : \n" );
+            sb.append( evaluator.toString( tabs + "        " ) );
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return toString( "" );
+    }
+}
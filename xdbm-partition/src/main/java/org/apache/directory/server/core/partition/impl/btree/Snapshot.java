@@ -0,0 +1,97 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A consistent view of the entries stored in a partition, as they were when the
+ * snapshot was opened. A snapshot does not hold any lock : the modified entries are
+ * preserved by the {@link SnapshotManager} until all the snapshots which may read
+ * them are closed. The indices are not snapshotted, see {@link SnapshotManager}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class Snapshot
+{
+    /** The manager which created this snapshot */
+    private final SnapshotManager manager;
+
+    /** The partition revision this snapshot is reading */
+    private final long revision;
+
+    /** Tells if the snapshot has been closed */
+    private final AtomicBoolean closed = new AtomicBoolean( false );
+
+
+    /**
+     * Creates a new Snapshot instance
+     *
+     * @param manager The manager which created this snapshot
+     * @param revision The revision this snapshot is reading
+     */
+    Snapshot( SnapshotManager manager, long revision )
+    {
+        this.manager = manager;
+        this.revision = revision;
+    }
+
+
+    /**
+     * @return The partition revision this snapshot is reading
+     */
+    public long getRevision()
+    {
+        return revision;
+    }
+
+
+    /**
+     * @return <code>true</code> if the snapshot has been closed
+     */
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
+
+    /**
+     * Closes the snapshot, allowing the preserved entries to be discarded. Closing
+     * a snapshot more than once has no effect.
+     */
+    public void close()
+    {
+        if ( closed.compareAndSet( false, true ) )
+        {
+            manager.release( this );
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "Snapshot[" + revision + ( closed.get() ? ", closed]" : "]" );
+    }
+}
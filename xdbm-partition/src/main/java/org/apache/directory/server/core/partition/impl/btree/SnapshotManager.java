@@ -0,0 +1,364 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Manages the snapshots opened on a partition. This is a copy-on-write scheme :
+ * the partition has a revision number, which is incremented each time a snapshot
+ * is opened after some entries have been modified. Before an entry is modified,
+ * added or deleted while some snapshots are open, the partition preserves its
+ * current version, tagged with the first revision which does not see it anymore.
+ * A snapshot reading an entry gets the oldest preserved version its revision can
+ * see, or the current entry if there is none.
+ * <br>
+ * The preserved versions are discarded as soon as the snapshots which may read
+ * them are closed, so nothing is kept when no snapshot is open. They are kept in
+ * memory, and their number is capped (see {@link #setMaxVersions(int)}) : when a
+ * modification would go over the cap, all the versions are discarded and the open
+ * snapshots expire. An expired snapshot reads the current entries, as a search
+ * without snapshot would.
+ * <br>
+ * Each version also keeps the parent ID and RDN the entry had, so that the Dn of an
+ * entry is built for a snapshot from the RDN index path it could see : the
+ * descendants of a moved or renamed entry keep their old Dn in the snapshots opened
+ * before the move.
+ * <br>
+ * Only the entries of the master table are versioned, the indices are not. A search
+ * reading a snapshot gets the entries as they were when it started, but its candidates
+ * still come from the current indices : an entry added after the snapshot was opened
+ * is skipped (it did not exist in the snapshot), but an entry deleted, or modified so
+ * that it does not match the index anymore, may be missing from the results if the
+ * candidates are read after the change. The results are thus consistent entry by
+ * entry, but the search is not fully isolated.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SnapshotManager
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( SnapshotManager.class );
+
+    /** The default maximum number of preserved versions */
+    public static final int DEFAULT_MAX_VERSIONS = 100000;
+
+    /** The current partition revision */
+    private long revision;
+
+    /** The snapshots up to this revision have expired */
+    private long expiredRevision = -1L;
+
+    /** The maximum number of preserved versions */
+    private int maxVersions = DEFAULT_MAX_VERSIONS;
+
+    /** The number of preserved versions */
+    private int nbVersions;
+
+    /** Tells if some entries have been preserved since the last snapshot was opened */
+    private boolean modified;
+
+    /** The number of open snapshots, per revision */
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>();
+
+    /** The preserved versions of the modified entries, oldest first */
+    private final Map<String, LinkedList<EntryVersion>> versions = new HashMap<String, LinkedList<EntryVersion>>();
+
+
+    /**
+     * A preserved version of an entry.
+     */
+    static class EntryVersion
+    {
+        /** The first revision which does not see this version */
+        private final long supersededRevision;
+
+        /** The entry, or null if it did not exist */
+        private final Entry entry;
+
+        /** The entry's parent ID and RDN, or null if it did not exist */
+        private final ParentIdAndRdn parentIdAndRdn;
+
+
+        EntryVersion( long supersededRevision, Entry entry, ParentIdAndRdn parentIdAndRdn )
+        {
+            this.supersededRevision = supersededRevision;
+            this.entry = entry;
+            this.parentIdAndRdn = parentIdAndRdn;
+        }
+
+
+        /**
+         * @return The preserved entry, or null if the entry did not exist in this version
+         */
+        Entry getEntry()
+        {
+            return entry;
+        }
+
+
+        /**
+         * @return The entry's parent ID and RDN in this version, or null if the entry did not exist
+         */
+        ParentIdAndRdn getParentIdAndRdn()
+        {
+            return parentIdAndRdn;
+        }
+    }
+
+
+    /**
+     * @return The maximum number of preserved versions
+     */
+    public synchronized int getMaxVersions()
+    {
+        return maxVersions;
+    }
+
+
+    /**
+     * Sets the maximum number of entry versions kept for the open snapshots. Each one holds
+     * a copy of an entry on the heap. Once the limit is reached, the open snapshots expire.
+     *
+     * @param maxVersions The maximum number of preserved versions
+     */
+    public synchronized void setMaxVersions( int maxVersions )
+    {
+        this.maxVersions = maxVersions;
+    }
+
+
+    /**
+     * Opens a new snapshot on the current revision of the partition.
+     *
+     * @return The opened snapshot
+     */
+    public synchronized Snapshot open()
+    {
+        if ( modified )
+        {
+            revision++;
+            modified = false;
+        }
+
+        Integer count = openSnapshots.get( revision );
+        openSnapshots.put( revision, count == null ? 1 : count + 1 );
+
+        return new Snapshot( this, revision );
+    }
+
+
+    /**
+     * Releases a snapshot, and discards the versions no other snapshot can read.
+     *
+     * @param snapshot The closed snapshot
+     */
+    synchronized void release( Snapshot snapshot )
+    {
+        Integer count = openSnapshots.get( snapshot.getRevision() );
+
+        if ( count == null )
+        {
+            return;
+        }
+
+        if ( count == 1 )
+        {
+            openSnapshots.remove( snapshot.getRevision() );
+            purge();
+        }
+        else
+        {
+            openSnapshots.put( snapshot.getRevision(), count - 1 );
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if at least one snapshot is open
+     */
+    public synchronized boolean hasOpenSnapshots()
+    {
+        return !openSnapshots.isEmpty();
+    }
+
+
+    /**
+     * @return The number of entries having some preserved versions
+     */
+    public synchronized int getPreservedCount()
+    {
+        return versions.size();
+    }
+
+
+    /**
+     * @return <code>true</code> if some entries have been preserved for the open snapshots
+     */
+    public synchronized boolean hasPreservedVersions()
+    {
+        return !versions.isEmpty();
+    }
+
+
+    /**
+     * Tells if a snapshot has expired : it then reads the current entries.
+     *
+     * @param snapshot The snapshot
+     * @return <code>true</code> if the snapshot has expired
+     */
+    public synchronized boolean isExpired( Snapshot snapshot )
+    {
+        return snapshot.getRevision() <= expiredRevision;
+    }
+
+
+    /**
+     * Preserves the current version of an entry before it gets modified. The version
+     * is only stored once between two snapshots : the already open snapshots all see
+     * the version as it was before the first modification.
+     *
+     * @param id The entry ID
+     * @param entry A copy of the current entry, or null if it does not exist yet
+     * @param parentIdAndRdn A copy of the current entry's parent ID and RDN, or null if it does not exist yet
+     */
+    public synchronized void preserve( String id, Entry entry, ParentIdAndRdn parentIdAndRdn )
+    {
+        if ( openSnapshots.isEmpty() )
+        {
+            return;
+        }
+
+        LinkedList<EntryVersion> entryVersions = versions.get( id );
+
+        if ( entryVersions == null )
+        {
+            entryVersions = new LinkedList<EntryVersion>();
+            versions.put( id, entryVersions );
+        }
+        else if ( entryVersions.getLast().supersededRevision > revision )
+        {
+            // Already preserved since the last snapshot was opened
+            return;
+        }
+
+        if ( nbVersions >= maxVersions )
+        {
+            expire();
+
+            return;
+        }
+
+        entryVersions.add( new EntryVersion( revision + 1, entry, parentIdAndRdn ) );
+        nbVersions++;
+        modified = true;
+    }
+
+
+    /**
+     * Discards all the preserved versions : the open snapshots expire, and the next ones
+     * get a new revision
+     */
+    private void expire()
+    {
+        LOG.warn( "More than {} entry versions are preserved for the open snapshots, {} snapshots expire "
+            + "and will read the current entries", maxVersions, openSnapshots.size() );
+
+        expiredRevision = revision;
+        revision++;
+        modified = false;
+        openSnapshots.clear();
+        versions.clear();
+        nbVersions = 0;
+    }
+
+
+    /**
+     * Gets the version of an entry a snapshot can see.
+     *
+     * @param id The entry ID
+     * @param snapshot The snapshot reading the entry
+     * @return The preserved version, or null if the snapshot sees the current entry
+     */
+    synchronized EntryVersion getVersion( String id, Snapshot snapshot )
+    {
+        LinkedList<EntryVersion> entryVersions = versions.get( id );
+
+        if ( ( entryVersions == null ) || ( snapshot.getRevision() <= expiredRevision ) )
+        {
+            return null;
+        }
+
+        for ( EntryVersion version : entryVersions )
+        {
+            if ( version.supersededRevision > snapshot.getRevision() )
+            {
+                return version;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Discards the versions which can't be read by any open snapshot
+     */
+    private void purge()
+    {
+        if ( openSnapshots.isEmpty() )
+        {
+            versions.clear();
+            nbVersions = 0;
+
+            return;
+        }
+
+        long oldest = openSnapshots.firstKey();
+        Iterator<LinkedList<EntryVersion>> iterator = versions.values().iterator();
+
+        while ( iterator.hasNext() )
+        {
+            LinkedList<EntryVersion> entryVersions = iterator.next();
+
+            while ( !entryVersions.isEmpty() && ( entryVersions.getFirst().supersededRevision <= oldest ) )
+            {
+                entryVersions.removeFirst();
+                nbVersions--;
+            }
+
+            if ( entryVersions.isEmpty() )
+            {
+                iterator.remove();
+            }
+        }
+    }
+}
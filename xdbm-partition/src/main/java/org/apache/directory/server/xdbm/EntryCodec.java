@@ -0,0 +1,521 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.entry.LazyEntry;
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * Encodes and decodes the entries stored in a MasterTable, in a compact format :
+ * <ul>
+ *   <li>The attribute types are identified by a small integer, the OIDs being stored
+ *   once in a dictionary table of the partition</li>
+ *   <li>The values are stored with their normalized form, so they are not normalized
+ *   again when read</li>
+ *   <li>Each attribute is prefixed by its length, so that it's decoded only when accessed :
+ *   the decoded entries are {@link LazyEntry} instances</li>
+ * </ul>
+ * The structure of an encoded entry is the following :
+ * <ul>
+ *   <li><b>[a byte]</b> : the format, {@link #COMPACT_FORMAT}</li>
+ *   <li><b>[Rdn length]</b> : 0 if the Dn is empty</li>
+ *   <li><b>[Rdn]</b> : the entry's Rdn</li>
+ *   <li><b>[number of attributes]</b></li>
+ *   <li>For each attribute :
+ *     <ul>
+ *       <li><b>[attribute type ID]</b> : the ID of the attribute type in the dictionary</li>
+ *       <li><b>[length]</b> : the length of the attribute</li>
+ *       <li><b>[Attribute]</b> : the attribute, with its values</li>
+ *     </ul>
+ *   </li>
+ * </ul>
+ * The numbers are encoded on 1 to 5 bytes, 7 bits per byte. The entries written by an
+ * ObjectOutputStream, in the previous format, start with 0xAC : the serializers can read
+ * both formats. Once the compact format is enabled (see {@link #isEnabled()}), the existing
+ * partitions are converted as their entries are updated.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryCodec
+{
+    /** The system property used to enable the compact format. The entries are written in the previous format by default */
+    public static final String COMPACT_FORMAT_PROPERTY = "apacheds.partition.compactEntryFormat";
+
+    /** The first byte of an entry stored in the compact format */
+    public static final byte COMPACT_FORMAT = 0x01;
+
+    /** The dictionary key storing the number of attribute types */
+    private static final String ATTRIBUTE_TYPES_KEY = "__attributeTypes__";
+
+    /** The prefix of the dictionary keys storing the OID of each attribute type */
+    private static final String ATTRIBUTE_TYPE_KEY_PREFIX = "__attributeType__.";
+
+    /** The SchemaManager */
+    private final SchemaManager schemaManager;
+
+    /** The table storing the dictionary, null if it's not persisted */
+    private final Table<String, String> dictionaryTable;
+
+    /** The attribute type IDs, by OID */
+    private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /** The OIDs, by ID */
+    private volatile String[] oids = new String[0];
+
+
+    /**
+     * Creates a new instance of EntryCodec, reading the dictionary from the given table.
+     *
+     * @param schemaManager The SchemaManager
+     * @param dictionaryTable The table storing the attribute types dictionary, or null to
+     * keep the dictionary in memory
+     * @throws Exception If the dictionary can't be read
+     */
+    public EntryCodec( SchemaManager schemaManager, Table<String, String> dictionaryTable ) throws Exception
+    {
+        this.schemaManager = schemaManager;
+        this.dictionaryTable = dictionaryTable;
+
+        if ( dictionaryTable != null )
+        {
+            String count = dictionaryTable.get( ATTRIBUTE_TYPES_KEY );
+
+            if ( count != null )
+            {
+                String[] storedOids = new String[Integer.parseInt( count )];
+
+                for ( int id = 0; id < storedOids.length; id++ )
+                {
+                    storedOids[id] = dictionaryTable.get( ATTRIBUTE_TYPE_KEY_PREFIX + id );
+                    ids.put( storedOids[id], id );
+                }
+
+                oids = storedOids;
+            }
+        }
+    }
+
+
+    /**
+     * Tells if the compact format is enabled. It's enabled by setting the
+     * {@link #COMPACT_FORMAT_PROPERTY} system property to true. A partition written in the
+     * compact format can't be read by a server older than 2.0.0-M24, so it's disabled by
+     * default : the entries are written in the previous format, and both formats are read.
+     *
+     * @return true if the entries are written in the compact format
+     */
+    public static boolean isEnabled()
+    {
+        return Boolean.getBoolean( COMPACT_FORMAT_PROPERTY );
+    }
+
+
+    /**
+     * Tells if a serialized entry is in the compact format.
+     *
+     * @param bytes The buffer containing the serialized entry
+     * @param offset The position of the entry in the buffer
+     * @return true if the entry has been written by this codec
+     */
+    public static boolean isCompact( byte[] bytes, int offset )
+    {
+        return ( bytes.length > offset ) && ( bytes[offset] == COMPACT_FORMAT );
+    }
+
+
+    /**
+     * Adds the attribute types of an entry to the dictionary, if they are not already
+     * present. This method must be called before the entry is stored, as the
+     * dictionary can't be updated while the entry is being serialized.
+     *
+     * @param entry The entry which will be stored
+     * @throws Exception If the dictionary can't be updated
+     */
+    public void register( Entry entry ) throws Exception
+    {
+        for ( Attribute attribute : entry )
+        {
+            if ( !ids.containsKey( attribute.getAttributeType().getOid() ) )
+            {
+                register( attribute.getAttributeType().getOid() );
+            }
+        }
+    }
+
+
+    /**
+     * Adds an attribute type to the dictionary.
+     */
+    private synchronized void register( String oid ) throws Exception
+    {
+        if ( ids.containsKey( oid ) )
+        {
+            return;
+        }
+
+        int id = oids.length;
+
+        if ( dictionaryTable != null )
+        {
+            dictionaryTable.put( ATTRIBUTE_TYPE_KEY_PREFIX + id, oid );
+            dictionaryTable.put( ATTRIBUTE_TYPES_KEY, Integer.toString( id + 1 ) );
+        }
+
+        String[] newOids = Arrays.copyOf( oids, id + 1 );
+        newOids[id] = oid;
+        oids = newOids;
+        ids.put( oid, id );
+    }
+
+
+    /**
+     * Encodes an entry.
+     *
+     * @param entry The entry to encode
+     * @return The encoded entry, or null if one of its attribute types is not in the
+     * dictionary : the entry must then be written in the previous format. The returned
+     * array must not be modified, as it may be shared with the entry
+     * @throws IOException If the entry can't be encoded
+     */
+    public byte[] encode( Entry entry ) throws IOException
+    {
+        byte[] original = getOriginalBytes( entry );
+
+        if ( original != null )
+        {
+            return original;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataObjectOutput bufferOut = new DataObjectOutput( buffer );
+
+        baos.write( COMPACT_FORMAT );
+
+        // The Rdn
+        Dn dn = entry.getDn();
+
+        if ( ( dn == null ) || dn.isEmpty() )
+        {
+            writeInt( baos, 0 );
+        }
+        else
+        {
+            dn.getRdn().writeExternal( bufferOut );
+            bufferOut.flush();
+            writeInt( baos, buffer.size() );
+            buffer.writeTo( baos );
+        }
+
+        // The attributes
+        writeInt( baos, entry.size() );
+
+        for ( Attribute attribute : entry )
+        {
+            Integer id = ids.get( attribute.getAttributeType().getOid() );
+
+            if ( id == null )
+            {
+                return null;
+            }
+
+            buffer.reset();
+            attribute.writeExternal( bufferOut );
+            bufferOut.flush();
+
+            writeInt( baos, id );
+            writeInt( baos, buffer.size() );
+            buffer.writeTo( baos );
+        }
+
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Decodes an entry. The attributes are decoded when accessed.
+     *
+     * @param bytes The buffer containing the entry
+     * @param offset The position of the entry in the buffer
+     * @param length The length of the entry
+     * @return The decoded entry
+     * @throws IOException If the entry can't be decoded
+     */
+    public Entry decode( byte[] bytes, int offset, int length ) throws IOException
+    {
+        // The buffer may be reused by the caller : keep a copy for the lazy decoding
+        byte[] entryBytes = Arrays.copyOfRange( bytes, offset, offset + length );
+        AttributeDecoder decoder = new AttributeDecoder( this, entryBytes );
+        LazyEntry entry = new LazyEntry( schemaManager, decoder );
+        int[] position = new int[]
+            { 1 };
+
+        // The Rdn
+        int rdnLength = readInt( entryBytes, position );
+
+        if ( rdnLength == 0 )
+        {
+            entry.setDn( Dn.EMPTY_DN );
+        }
+        else
+        {
+            try
+            {
+                Rdn rdn = new Rdn( schemaManager );
+                rdn.readExternal( new DataObjectInput( new ByteArrayInputStream( entryBytes, position[0], rdnLength ) ) );
+                entry.setDn( new Dn( schemaManager, rdn ) );
+                decoder.rdn = rdn;
+            }
+            catch ( ClassNotFoundException cnfe )
+            {
+                throw new IOException( I18n.err( I18n.ERR_134, cnfe.getLocalizedMessage() ), cnfe );
+            }
+            catch ( LdapException le )
+            {
+                throw new IOException( I18n.err( I18n.ERR_134, le.getLocalizedMessage() ), le );
+            }
+
+            position[0] += rdnLength;
+        }
+
+        // The attributes, which are only located
+        int nbAttributes = readInt( entryBytes, position );
+        String[] currentOids = oids;
+
+        for ( int i = 0; i < nbAttributes; i++ )
+        {
+            int id = readInt( entryBytes, position );
+            int attributeLength = readInt( entryBytes, position );
+
+            if ( id >= currentOids.length )
+            {
+                throw new IOException( I18n.err( I18n.ERR_754_UNKNOWN_ATTRIBUTE_TYPE_ID, id ) );
+            }
+
+            try
+            {
+                AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( currentOids[id] );
+                entry.addPending( attributeType, position[0], attributeLength );
+            }
+            catch ( LdapException le )
+            {
+                // The attribute type has been removed from the schema
+                throw new IOException( I18n.err( I18n.ERR_134, le.getLocalizedMessage() ), le );
+            }
+
+            position[0] += attributeLength;
+        }
+
+        decoder.nbAttributes = nbAttributes;
+
+        return entry;
+    }
+
+
+    /**
+     * Gets the serialized form of an entry decoded by this codec, if the entry has not
+     * been modified since : none of its attributes have been decoded or removed, and its
+     * Rdn is the same.
+     */
+    private byte[] getOriginalBytes( Entry entry )
+    {
+        if ( !( entry instanceof LazyEntry ) )
+        {
+            return null;
+        }
+
+        LazyEntry lazyEntry = ( LazyEntry ) entry;
+
+        if ( !( lazyEntry.getDecoder() instanceof AttributeDecoder ) )
+        {
+            return null;
+        }
+
+        AttributeDecoder decoder = ( AttributeDecoder ) lazyEntry.getDecoder();
+
+        if ( ( decoder.codec != this ) || ( lazyEntry.getPendingCount() != decoder.nbAttributes )
+            || !lazyEntry.getDecodedAttributes().isEmpty() )
+        {
+            return null;
+        }
+
+        Dn dn = entry.getDn();
+
+        if ( ( dn == null ) || dn.isEmpty() )
+        {
+            return decoder.rdn == null ? decoder.bytes : null;
+        }
+
+        return dn.getRdn().equals( decoder.rdn ) ? decoder.bytes : null;
+    }
+
+
+    /**
+     * @return The number of attribute types in the dictionary
+     */
+    public int getDictionarySize()
+    {
+        return oids.length;
+    }
+
+
+    /**
+     * Writes a positive int on 1 to 5 bytes
+     */
+    private static void writeInt( OutputStream out, int value ) throws IOException
+    {
+        int remaining = value;
+
+        while ( ( remaining & ~0x7F ) != 0 )
+        {
+            out.write( ( remaining & 0x7F ) | 0x80 );
+            remaining >>>= 7;
+        }
+
+        out.write( remaining );
+    }
+
+
+    /**
+     * Reads a positive int written by {@link #writeInt(OutputStream, int)}, and moves the position
+     */
+    private static int readInt( byte[] bytes, int[] position ) throws IOException
+    {
+        int value = 0;
+
+        for ( int shift = 0; shift < 32; shift += 7 )
+        {
+            if ( position[0] >= bytes.length )
+            {
+                throw new IOException( I18n.err( I18n.ERR_134, "truncated entry" ) );
+            }
+
+            byte b = bytes[position[0]++];
+            value |= ( b & 0x7F ) << shift;
+
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+
+        throw new IOException( I18n.err( I18n.ERR_134, "invalid length" ) );
+    }
+
+
+    /**
+     * Decodes the attributes of an entry, from a copy of the serialized entry.
+     */
+    private static final class AttributeDecoder implements LazyEntry.AttributeDecoder
+    {
+        private final EntryCodec codec;
+        private final byte[] bytes;
+
+        /** The decoded Rdn, null if the Dn is empty */
+        private Rdn rdn;
+
+        /** The number of attributes in the serialized entry */
+        private int nbAttributes;
+
+
+        private AttributeDecoder( EntryCodec codec, byte[] bytes )
+        {
+            this.codec = codec;
+            this.bytes = bytes;
+        }
+
+
+        public Attribute decode( AttributeType attributeType, int position, int length ) throws IOException
+        {
+            Attribute attribute = new DefaultAttribute( attributeType );
+
+            try
+            {
+                attribute.readExternal( new DataObjectInput( new ByteArrayInputStream( bytes, position, length ) ) );
+            }
+            catch ( ClassNotFoundException cnfe )
+            {
+                throw new IOException( cnfe.getLocalizedMessage(), cnfe );
+            }
+
+            return attribute;
+        }
+    }
+
+
+    /**
+     * An ObjectOutput writing the primitive types without the ObjectOutputStream headers.
+     * The values and the Rdn only write primitive types.
+     */
+    private static final class DataObjectOutput extends DataOutputStream implements ObjectOutput
+    {
+        private DataObjectOutput( OutputStream out )
+        {
+            super( out );
+        }
+
+
+        public void writeObject( Object obj ) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    /**
+     * An ObjectInput reading what has been written by a DataObjectOutput.
+     */
+    private static final class DataObjectInput extends DataInputStream implements ObjectInput
+    {
+        private DataObjectInput( InputStream in )
+        {
+            super( in );
+        }
+
+
+        public Object readObject() throws ClassNotFoundException, IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.entry.LazyEntry;
+
+
+/**
+ * Estimates the memory used by the entries stored in an entry cache. A String value is
+ * assumed to be stored twice, as user provided and normalized, using 2 bytes per char.
+ * The attributes of a {@link LazyEntry} which have not been decoded yet are counted
+ * twice their serialized size.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryWeigher implements WeightedCache.Weigher<String, Entry>
+{
+    /** The estimated size of an empty entry, its key included */
+    private static final int ENTRY_OVERHEAD = 200;
+
+    /** The estimated size of an empty attribute */
+    private static final int ATTRIBUTE_OVERHEAD = 100;
+
+    /** The estimated size of an empty value */
+    private static final int VALUE_OVERHEAD = 60;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int weigh( String id, Entry entry )
+    {
+        long weight = ENTRY_OVERHEAD;
+        Dn dn = entry.getDn();
+
+        if ( dn != null )
+        {
+            weight += 4L * dn.getName().length();
+        }
+
+        if ( entry instanceof LazyEntry )
+        {
+            LazyEntry lazyEntry = ( LazyEntry ) entry;
+
+            weight += 2L * lazyEntry.getPendingLength();
+
+            for ( Attribute attribute : lazyEntry.getDecodedAttributes() )
+            {
+                weight += weigh( attribute );
+            }
+        }
+        else
+        {
+            for ( Attribute attribute : entry )
+            {
+                weight += weigh( attribute );
+            }
+        }
+
+        return ( int ) Math.min( weight, Integer.MAX_VALUE );
+    }
+
+
+    private long weigh( Attribute attribute )
+    {
+        long weight = ATTRIBUTE_OVERHEAD;
+
+        for ( Value<?> value : attribute )
+        {
+            weight += VALUE_OVERHEAD + ( value.isHumanReadable() ? 4L : 2L ) * value.length();
+        }
+
+        return weight;
+    }
+}
@@ -0,0 +1,741 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The second tier of a partition entry cache, storing the entries serialized by an
+ * {@link EntryCodec} in direct memory, outside of the Java heap : its size is not limited
+ * by the heap size, and it does not increase the garbage collection pauses.
+ * <br/>
+ * The memory is allocated in segments of at most 64MB, when needed, and is used as a ring :
+ * the entries are written one after the other, and when the last segment is full, the
+ * oldest segment is emptied and reused. The position of each entry is stored in an open
+ * addressing hash table, in direct memory too, keyed by the 128 bits of the entry UUID :
+ * each slot uses 24 bytes, and the table is at most 75% full. The heap used by the cache
+ * does not depend on the number of cached entries.
+ * <br/>
+ * Only the entries whose ID is a UUID in its canonical form (lower case hexadecimal digits)
+ * are cached, as the other IDs can't be converted to a 128 bits key without collisions.
+ * <br/>
+ * The entries read from this cache are decoded lazily, and are expected to be promoted to
+ * the first tier, the on heap cache, which keeps the entries used most often.
+ * <br/>
+ * The direct memory used is limited by the -XX:MaxDirectMemorySize JVM option : when a
+ * segment can't be allocated, the cache stops growing.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class OffHeapEntryCache
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( OffHeapEntryCache.class );
+
+    /** The maximum size of a segment */
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** The size of an entry header : its UUID and its length */
+    private static final int HEADER_SIZE = 20;
+
+    /** The size of a slot of the position table : the entry UUID and its position */
+    private static final int SLOT_SIZE = 24;
+
+    /** The initial number of slots of the position table */
+    private static final int INITIAL_SLOTS = 1024;
+
+    /** The maximum number of slots of the position table */
+    private static final int MAX_SLOTS = 1 << 26;
+
+    /** The codec used to serialize the entries */
+    private final EntryCodec codec;
+
+    /** The size of the segments */
+    private final int segmentSize;
+
+    /** The segments, allocated when needed */
+    private final ByteBuffer[] segments;
+
+    /** The end of the data written in each segment */
+    private final int[] limits;
+
+    /**
+     * The position of each entry, keyed by its UUID. A position contains the segment number
+     * plus one in the upper 32 bits, so an empty slot has a 0 position.
+     */
+    private ByteBuffer table;
+
+    /** The number of slots of the position table, a power of 2 */
+    private int nbSlots;
+
+    /** The number of cached entries */
+    private int nbEntries;
+
+    /** The number of allocated segments */
+    private int nbSegments;
+
+    /** The maximum number of segments, lower than segments.length if an allocation failed */
+    private int maxSegments;
+
+    /** The segment being written */
+    private int currentSegment;
+
+    /** The size of the cached entries */
+    private long weight;
+
+    /** The counters */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long evictions;
+
+    /** The lock protecting the segments and the positions */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The partition counters to update, if any */
+    private volatile PartitionMetrics metrics;
+
+
+    /**
+     * Creates a new instance of OffHeapEntryCache. No memory is allocated until an entry
+     * is added.
+     *
+     * @param capacity The maximum size of the cache, in bytes
+     * @param codec The codec used to serialize the entries
+     */
+    public OffHeapEntryCache( long capacity, EntryCodec codec )
+    {
+        this.codec = codec;
+
+        segmentSize = ( int ) Math.max( HEADER_SIZE, Math.min( capacity, MAX_SEGMENT_SIZE ) );
+        int nbMaxSegments = ( int ) Math.max( 1L, capacity / segmentSize );
+        segments = new ByteBuffer[nbMaxSegments];
+        limits = new int[nbMaxSegments];
+        maxSegments = nbMaxSegments;
+    }
+
+
+    /**
+     * Gets an entry. Its Dn only contains its Rdn.
+     *
+     * @param uuid The entry UUID
+     * @return The entry, or null if it's not cached
+     * @throws IOException If the entry can't be decoded
+     */
+    public Entry get( String uuid ) throws IOException
+    {
+        byte[] bytes = null;
+
+        if ( isCanonicalUuid( uuid ) )
+        {
+            long msb = getBits( uuid, 0, 18 );
+            long lsb = getBits( uuid, 19, 36 );
+
+            lock.readLock().lock();
+
+            try
+            {
+                long position = getPosition( msb, lsb );
+
+                if ( position != 0L )
+                {
+                    ByteBuffer buffer = segments[( int ) ( position >>> 32 ) - 1].duplicate();
+                    buffer.position( ( int ) position + 16 );
+                    bytes = new byte[buffer.getInt()];
+                    buffer.get( bytes );
+                }
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+        if ( bytes == null )
+        {
+            misses.incrementAndGet();
+
+            return null;
+        }
+
+        hits.incrementAndGet();
+        PartitionMetrics partitionMetrics = metrics;
+
+        if ( partitionMetrics != null )
+        {
+            partitionMetrics.offHeapCacheHit();
+        }
+
+        return codec.decode( bytes, 0, bytes.length );
+    }
+
+
+    /**
+     * Adds an entry, or replaces it. The entries having an attribute type not known by the
+     * codec are not cached.
+     *
+     * @param uuid The entry UUID
+     * @param entry The entry
+     * @throws IOException If the entry can't be serialized
+     */
+    public void put( String uuid, Entry entry ) throws IOException
+    {
+        if ( !isCanonicalUuid( uuid ) )
+        {
+            return;
+        }
+
+        byte[] bytes = codec.encode( entry );
+
+        if ( ( bytes == null ) || ( bytes.length + HEADER_SIZE > segmentSize ) )
+        {
+            remove( uuid );
+
+            return;
+        }
+
+        long msb = getBits( uuid, 0, 18 );
+        long lsb = getBits( uuid, 19, 36 );
+
+        lock.writeLock().lock();
+
+        try
+        {
+            clear( msb, lsb );
+
+            if ( !ensureCapacity() )
+            {
+                return;
+            }
+
+            ByteBuffer segment = allocate( bytes.length + HEADER_SIZE );
+
+            if ( segment == null )
+            {
+                return;
+            }
+
+            int offset = limits[currentSegment];
+            segment.putLong( offset, msb );
+            segment.putLong( offset + 8, lsb );
+            segment.putInt( offset + 16, bytes.length );
+
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position( offset + HEADER_SIZE );
+            buffer.put( bytes );
+
+            limits[currentSegment] = offset + HEADER_SIZE + bytes.length;
+
+            putSlot( findSlot( msb, lsb ), msb, lsb, ( ( long ) ( currentSegment + 1 ) << 32 ) | offset );
+            nbEntries++;
+            weight += bytes.length + HEADER_SIZE;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        updateWeight();
+    }
+
+
+    /**
+     * Removes an entry
+     *
+     * @param uuid The entry UUID
+     */
+    public void remove( String uuid )
+    {
+        if ( !isCanonicalUuid( uuid ) )
+        {
+            return;
+        }
+
+        long msb = getBits( uuid, 0, 18 );
+        long lsb = getBits( uuid, 19, 36 );
+
+        lock.writeLock().lock();
+
+        try
+        {
+            clear( msb, lsb );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        updateWeight();
+    }
+
+
+    /**
+     * Removes all the entries, and releases the memory
+     */
+    public void clear()
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Arrays.fill( segments, null );
+            Arrays.fill( limits, 0 );
+            table = null;
+            nbSlots = 0;
+            nbEntries = 0;
+            nbSegments = 0;
+            maxSegments = segments.length;
+            currentSegment = 0;
+            weight = 0L;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        updateWeight();
+    }
+
+
+    /**
+     * Sets the partition counters updated by this cache
+     *
+     * @param metrics The partition counters, or null
+     */
+    public void setMetrics( PartitionMetrics metrics )
+    {
+        if ( this.metrics != metrics )
+        {
+            this.metrics = metrics;
+            updateWeight();
+        }
+    }
+
+
+    /**
+     * @return The maximum size of the cache, in bytes
+     */
+    public long getCapacity()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return ( long ) segmentSize * maxSegments;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The size of the cached entries, in bytes
+     */
+    public long getWeight()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return weight;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of cached entries
+     */
+    public int getSize()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return nbEntries;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of entries found in the cache
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+
+    /**
+     * @return The number of entries not found in the cache
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * @return The number of entries removed to make room for other entries
+     */
+    public long getEvictionCount()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return evictions;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Forgets the position of an entry. Its bytes stay in the segment until it's reused.
+     * Must be called with the write lock held.
+     */
+    private void clear( long msb, long lsb )
+    {
+        if ( table == null )
+        {
+            return;
+        }
+
+        int slot = findSlot( msb, lsb );
+        long position = table.getLong( slot * SLOT_SIZE + 16 );
+
+        if ( position != 0L )
+        {
+            ByteBuffer segment = segments[( int ) ( position >>> 32 ) - 1];
+            weight -= segment.getInt( ( int ) position + 16 ) + HEADER_SIZE;
+            removeSlot( slot );
+        }
+    }
+
+
+    /**
+     * @return The position of an entry, or 0 if it's not cached. Must be called with a lock held.
+     */
+    private long getPosition( long msb, long lsb )
+    {
+        if ( table == null )
+        {
+            return 0L;
+        }
+
+        return table.getLong( findSlot( msb, lsb ) * SLOT_SIZE + 16 );
+    }
+
+
+    /**
+     * Finds the slot of an entry in the position table, or the empty slot where it has to
+     * be added. The table is never full, so the search always ends.
+     */
+    private int findSlot( long msb, long lsb )
+    {
+        int mask = nbSlots - 1;
+        int slot = hash( msb, lsb ) & mask;
+
+        while ( true )
+        {
+            int offset = slot * SLOT_SIZE;
+
+            if ( ( table.getLong( offset + 16 ) == 0L )
+                || ( ( table.getLong( offset ) == msb ) && ( table.getLong( offset + 8 ) == lsb ) ) )
+            {
+                return slot;
+            }
+
+            slot = ( slot + 1 ) & mask;
+        }
+    }
+
+
+    private void putSlot( int slot, long msb, long lsb, long position )
+    {
+        int offset = slot * SLOT_SIZE;
+        table.putLong( offset, msb );
+        table.putLong( offset + 8, lsb );
+        table.putLong( offset + 16, position );
+    }
+
+
+    /**
+     * Empties a slot of the position table. The following entries which could not be
+     * stored in their own slot are moved back, so that the searches don't stop on the
+     * emptied slot.
+     */
+    private void removeSlot( int slot )
+    {
+        int mask = nbSlots - 1;
+        int hole = slot;
+        int next = ( hole + 1 ) & mask;
+
+        while ( table.getLong( next * SLOT_SIZE + 16 ) != 0L )
+        {
+            int offset = next * SLOT_SIZE;
+            long msb = table.getLong( offset );
+            long lsb = table.getLong( offset + 8 );
+            int home = hash( msb, lsb ) & mask;
+
+            // The entry can be moved if the hole is between its own slot and its current slot
+            if ( ( ( next - home ) & mask ) >= ( ( next - hole ) & mask ) )
+            {
+                putSlot( hole, msb, lsb, table.getLong( offset + 16 ) );
+                hole = next;
+            }
+
+            next = ( next + 1 ) & mask;
+        }
+
+        table.putLong( hole * SLOT_SIZE + 16, 0L );
+        nbEntries--;
+    }
+
+
+    /**
+     * Makes sure the position table can get one more entry, doubling its size when it
+     * would be more than 75% full. Must be called with the write lock held.
+     *
+     * @return false if the table can't grow
+     */
+    private boolean ensureCapacity()
+    {
+        if ( ( table != null ) && ( ( nbEntries + 1 ) * 4L <= nbSlots * 3L ) )
+        {
+            return true;
+        }
+
+        int newSlots = ( table == null ) ? INITIAL_SLOTS : nbSlots * 2;
+
+        if ( newSlots > MAX_SLOTS )
+        {
+            return false;
+        }
+
+        ByteBuffer newTable = null;
+
+        try
+        {
+            newTable = ByteBuffer.allocateDirect( newSlots * SLOT_SIZE );
+        }
+        catch ( OutOfMemoryError oome )
+        {
+            LOG.warn( "Cannot allocate more direct memory for the off-heap entry cache positions, {} entries are cached",
+                nbEntries );
+
+            return false;
+        }
+
+        ByteBuffer oldTable = table;
+        int oldSlots = nbSlots;
+        table = newTable;
+        nbSlots = newSlots;
+
+        for ( int i = 0; i < oldSlots; i++ )
+        {
+            int offset = i * SLOT_SIZE;
+            long position = oldTable.getLong( offset + 16 );
+
+            if ( position != 0L )
+            {
+                long msb = oldTable.getLong( offset );
+                long lsb = oldTable.getLong( offset + 8 );
+                putSlot( findSlot( msb, lsb ), msb, lsb, position );
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Gets the segment where an entry of the given size can be written, moving to the
+     * next segment if the current one is full. Must be called with the write lock held.
+     *
+     * @return The segment, or null if no memory can be allocated
+     */
+    private ByteBuffer allocate( int size )
+    {
+        if ( ( nbSegments > 0 ) && ( limits[currentSegment] + size <= segmentSize ) )
+        {
+            return segments[currentSegment];
+        }
+
+        int next = nbSegments == 0 ? 0 : currentSegment + 1;
+
+        if ( ( next == nbSegments ) && ( next < maxSegments ) )
+        {
+            try
+            {
+                segments[next] = ByteBuffer.allocateDirect( segmentSize );
+                limits[next] = 0;
+                nbSegments++;
+                currentSegment = next;
+
+                return segments[next];
+            }
+            catch ( OutOfMemoryError oome )
+            {
+                LOG.warn( "Cannot allocate more direct memory for the off-heap entry cache, its size is limited to {} bytes",
+                    ( long ) nbSegments * segmentSize );
+                maxSegments = nbSegments;
+            }
+        }
+
+        if ( nbSegments == 0 )
+        {
+            return null;
+        }
+
+        // Reuse the oldest segment
+        next = next % nbSegments;
+        evict( next );
+        currentSegment = next;
+
+        return segments[next];
+    }
+
+
+    /**
+     * Removes all the entries stored in a segment, before reusing it
+     */
+    private void evict( int number )
+    {
+        ByteBuffer segment = segments[number];
+        int offset = 0;
+
+        while ( offset < limits[number] )
+        {
+            long msb = segment.getLong( offset );
+            long lsb = segment.getLong( offset + 8 );
+            int length = segment.getInt( offset + 16 );
+            int slot = findSlot( msb, lsb );
+
+            // The entry may have been replaced or removed since it was written here
+            if ( table.getLong( slot * SLOT_SIZE + 16 ) == ( ( ( long ) ( number + 1 ) << 32 ) | offset ) )
+            {
+                removeSlot( slot );
+                weight -= length + HEADER_SIZE;
+                evictions++;
+            }
+
+            offset += length + HEADER_SIZE;
+        }
+
+        limits[number] = 0;
+    }
+
+
+    private void updateWeight()
+    {
+        PartitionMetrics partitionMetrics = metrics;
+
+        if ( partitionMetrics != null )
+        {
+            partitionMetrics.setOffHeapCacheWeight( getWeight(), getCapacity() );
+        }
+    }
+
+
+    private static int hash( long msb, long lsb )
+    {
+        long hash = ( msb ^ lsb ) * 0x9E3779B97F4A7C15L;
+
+        return ( int ) ( hash >>> 32 );
+    }
+
+
+    /**
+     * Tells if an ID is a UUID in its canonical form : lower case hexadecimal digits, in
+     * groups separated by dashes
+     */
+    private static boolean isCanonicalUuid( String id )
+    {
+        if ( ( id == null ) || ( id.length() != 36 ) )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < 36; i++ )
+        {
+            char c = id.charAt( i );
+
+            if ( ( i == 8 ) || ( i == 13 ) || ( i == 18 ) || ( i == 23 ) )
+            {
+                if ( c != '-' )
+                {
+                    return false;
+                }
+            }
+            else if ( ( ( c < '0' ) || ( c > '9' ) ) && ( ( c < 'a' ) || ( c > 'f' ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Reads the 64 bits written in hexadecimal between two positions of a canonical UUID,
+     * skipping the dashes
+     */
+    private static long getBits( String uuid, int start, int end )
+    {
+        long bits = 0L;
+
+        for ( int i = start; i < end; i++ )
+        {
+            char c = uuid.charAt( i );
+
+            if ( c != '-' )
+            {
+                bits = ( bits << 4 ) | Character.digit( c, 16 );
+            }
+        }
+
+        return bits;
+    }
+}
@@ -443,4 +443,13 @@ public interface Store
      * @return
      */
     Cache getAliasCache();
+
+
+    /**
+     * Gets the subtree index, loading it if it's not yet done.
+     *
+     * @return The subtree index, or null if the partition does not maintain it
+     * @throws Exception If the index can't be loaded
+     */
+    SubtreeIndex getSubtreeIndex() throws Exception;
 }
@@ -0,0 +1,324 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.server.core.api.partition.Partition;
+
+
+/**
+ * An index giving each entry of a partition a key ordering the entries by subtree : the
+ * key of an entry is the key of its parent followed by an ordinal which is unique in the
+ * partition. The descendants of an entry are then the entries whose key starts with the
+ * entry key, and they form one contiguous range in the sorted keys. A SUBTREE scope can
+ * be read with a single cursor, and checking if an entry is in the scope of another one
+ * does not require to walk the RDN index up to the base.
+ * <br/>
+ * Each ordinal is stored as 4 chars of 15 bits. As the chars are never above 0x7FFF, the
+ * range of a subtree ends before its key followed by 0x8000. The key of an entry does not
+ * depend on its RDN, so a rename does not change it, but moving an entry changes the keys
+ * of all its descendants.
+ * <br/>
+ * The index is kept in memory : it is loaded from the RDN index the first time it is used,
+ * and maintained by the partition afterward.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubtreeIndex
+{
+    /** The number of chars used to store an ordinal */
+    private static final int ORDINAL_LENGTH = 4;
+
+    /** The char following all the chars of an ordinal */
+    private static final char RANGE_END = ( char ) 0x8000;
+
+    /** The entry IDs, per subtree key */
+    private final ConcurrentSkipListMap<String, String> ids = new ConcurrentSkipListMap<String, String>();
+
+    /** The subtree keys, per entry ID */
+    private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+    /** The next ordinal to assign */
+    private long nextOrdinal;
+
+    /** Tells if the index has been loaded */
+    private volatile boolean loaded;
+
+
+    /**
+     * @return <code>true</code> if the index has been loaded from the RDN index
+     */
+    public boolean isLoaded()
+    {
+        return loaded;
+    }
+
+
+    /**
+     * Loads the index from the RDN index. Does nothing if the index is already loaded.
+     *
+     * @param rdnIndex The partition RDN index
+     * @throws Exception If the RDN index can't be read
+     */
+    public synchronized void load( Index<ParentIdAndRdn, String> rdnIndex ) throws Exception
+    {
+        if ( loaded )
+        {
+            return;
+        }
+
+        Cursor<IndexEntry<ParentIdAndRdn, String>> cursor = rdnIndex.forwardCursor();
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                IndexEntry<ParentIdAndRdn, String> entry = cursor.get();
+
+                load( rdnIndex, entry.getId(), entry.getKey() );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        loaded = true;
+    }
+
+
+    /**
+     * Computes the key of an entry, after the key of its parent if it's not yet known
+     */
+    private String load( Index<ParentIdAndRdn, String> rdnIndex, String id, ParentIdAndRdn parentIdAndRdn )
+        throws Exception
+    {
+        String key = keys.get( id );
+
+        if ( key != null )
+        {
+            return key;
+        }
+
+        String parentId = parentIdAndRdn.getParentId();
+        String parentKey = "";
+
+        if ( !Partition.ROOT_ID.equals( parentId ) )
+        {
+            parentKey = keys.get( parentId );
+
+            if ( parentKey == null )
+            {
+                ParentIdAndRdn parent = rdnIndex.reverseLookup( parentId );
+
+                if ( parent == null )
+                {
+                    // An orphan entry : keep it at the top level
+                    parentKey = "";
+                }
+                else
+                {
+                    parentKey = load( rdnIndex, parentId, parent );
+                }
+            }
+        }
+
+        key = parentKey + nextOrdinal();
+        put( key, id );
+
+        return key;
+    }
+
+
+    /**
+     * Adds an entry below its parent. Does nothing if the index is not loaded, or if the
+     * entry is already present.
+     *
+     * @param id The entry ID
+     * @param parentId The parent ID, or {@link Partition#ROOT_ID} for the context entry
+     */
+    public synchronized void add( String id, String parentId )
+    {
+        if ( !loaded || keys.containsKey( id ) )
+        {
+            return;
+        }
+
+        put( parentKey( parentId ) + nextOrdinal(), id );
+    }
+
+
+    /**
+     * Removes an entry from the index
+     *
+     * @param id The entry ID
+     */
+    public synchronized void remove( String id )
+    {
+        String key = keys.remove( id );
+
+        if ( key != null )
+        {
+            ids.remove( key );
+        }
+    }
+
+
+    /**
+     * Moves an entry and all its descendants below a new parent
+     *
+     * @param id The moved entry ID
+     * @param newParentId The new parent ID
+     */
+    public synchronized void move( String id, String newParentId )
+    {
+        String oldKey = keys.get( id );
+
+        if ( oldKey == null )
+        {
+            add( id, newParentId );
+
+            return;
+        }
+
+        String newKey = parentKey( newParentId ) + nextOrdinal();
+        List<Map.Entry<String, String>> moved = new ArrayList<Map.Entry<String, String>>( range( oldKey ).entrySet() );
+
+        for ( Map.Entry<String, String> entry : moved )
+        {
+            ids.remove( entry.getKey() );
+        }
+
+        for ( Map.Entry<String, String> entry : moved )
+        {
+            put( newKey + entry.getKey().substring( oldKey.length() ), entry.getValue() );
+        }
+    }
+
+
+    /**
+     * Tells if an entry is the base entry or one of its descendants
+     *
+     * @param id The candidate entry ID
+     * @param baseId The base entry ID
+     * @return <code>true</code> if the candidate is in the subtree of the base entry
+     */
+    public boolean isInSubtree( String id, String baseId )
+    {
+        String baseKey = keys.get( baseId );
+        String key = keys.get( id );
+
+        return ( baseKey != null ) && ( key != null ) && key.startsWith( baseKey );
+    }
+
+
+    /**
+     * Gets the entries in the subtree of a base entry, sorted by subtree key, starting with
+     * the base entry itself. The returned map is a view of the index.
+     *
+     * @param baseId The base entry ID
+     * @return The entry IDs in the subtree, per subtree key. Empty if the base is unknown
+     */
+    public NavigableMap<String, String> getSubtree( String baseId )
+    {
+        String baseKey = keys.get( baseId );
+
+        if ( baseKey == null )
+        {
+            return new ConcurrentSkipListMap<String, String>();
+        }
+
+        return range( baseKey );
+    }
+
+
+    /**
+     * @return The number of entries in the index
+     */
+    public int size()
+    {
+        return keys.size();
+    }
+
+
+    /**
+     * Removes all the entries, so that the index is loaded again on its next use
+     */
+    public synchronized void clear()
+    {
+        ids.clear();
+        keys.clear();
+        loaded = false;
+    }
+
+
+    private NavigableMap<String, String> range( String baseKey )
+    {
+        return ids.subMap( baseKey, true, baseKey + RANGE_END, false );
+    }
+
+
+    private String parentKey( String parentId )
+    {
+        if ( Partition.ROOT_ID.equals( parentId ) )
+        {
+            return "";
+        }
+
+        String parentKey = keys.get( parentId );
+
+        return parentKey == null ? "" : parentKey;
+    }
+
+
+    private void put( String key, String id )
+    {
+        ids.put( key, id );
+        keys.put( id, key );
+    }
+
+
+    /**
+     * Encodes a new ordinal on 4 chars of 15 bits, so that the encoded ordinals are sorted
+     * like the numbers and never contain the range end char.
+     */
+    private String nextOrdinal()
+    {
+        long ordinal = nextOrdinal++;
+        char[] chars = new char[ORDINAL_LENGTH];
+
+        for ( int i = ORDINAL_LENGTH - 1; i >= 0; i-- )
+        {
+            chars[i] = ( char ) ( ordinal & 0x7FFF );
+            ordinal >>>= 15;
+        }
+
+        return new String( chars );
+    }
+}
@@ -0,0 +1,1003 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
+
+
+/**
+ * A cache bounded by the weight of its elements, in bytes, instead of their number. The
+ * weight of each element is estimated by a {@link Weigher} when it's added.
+ * <br/>
+ * The elements are first stored in a small LRU window, using 1% of the maximum weight.
+ * The elements leaving the window are only admitted in the main part of the cache if they
+ * have been requested more often than the element they would replace, as estimated by a
+ * count-min sketch of the recent accesses (the TinyLFU policy). A scan of the whole
+ * partition thus only replaces the elements of the window, and not the working set. The
+ * main part of the cache is a segmented LRU : the elements are first stored in a probation
+ * segment, and promoted to a protected segment, using 80% of the main part, when they are
+ * requested again.
+ * <br/>
+ * The frequency of a key is recorded by {@link #get(Object)}, which is expected to be
+ * called before an element is added.
+ * <br/>
+ * This class is thread safe. The reads don't take any lock : {@link #get(Object)} reads
+ * a ConcurrentHashMap, and records the access in a read buffer, one per group of threads.
+ * The buffers are drained under the cache lock, when one of them is full or before an
+ * element is added or removed, to update the frequencies and the LRU order. When a
+ * buffer is full and the lock is busy, the access is not recorded : the policy only
+ * needs a sample of the accesses.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class WeightedCache<K, V>
+{
+    /**
+     * Estimates the memory used by a cached element
+     */
+    public interface Weigher<K, V>
+    {
+        /**
+         * @param key The element's key
+         * @param value The element's value
+         * @return The estimated number of bytes used by the element
+         */
+        int weigh( K key, V value );
+    }
+
+    /** The percentage of the maximum weight used by the window */
+    private static final int WINDOW_PERCENT = 1;
+
+    /** The percentage of the main part used by the protected segment */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /** The segments */
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /** The segment of a node which has been removed from the cache */
+    private static final int REMOVED = -1;
+
+    /** The number of accesses a read buffer can hold, a power of two */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    /** The number of read buffers, a power of two close to the number of processors */
+    private static final int NB_READ_BUFFERS = Math.min( 64,
+        Integer.highestOneBit( Runtime.getRuntime().availableProcessors() * 2 - 1 ) );
+
+    /** The lock protecting the segments, the sketch and the weights */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** The accesses not yet recorded in the sketch and in the LRU order */
+    private final ReadBuffer[] readBuffers;
+
+    /** The weigher */
+    private final Weigher<K, V> weigher;
+
+    /** The cached elements. It's only modified under the lock, but read without it */
+    private final ConcurrentMap<K, Node<K, V>> nodes = new ConcurrentHashMap<K, Node<K, V>>();
+
+    /** The segments, from the least to the most recently used element */
+    private final NodeList<K, V>[] segments;
+
+    /** The access frequencies */
+    private final FrequencySketch sketch;
+
+    /** The maximum weight */
+    private long maxWeight;
+
+    /** The maximum weight of the window */
+    private long windowMaxWeight;
+
+    /** The maximum weight of the protected segment */
+    private long protectedMaxWeight;
+
+    /** The weight of all the elements */
+    private long weight;
+
+    /** The counters. The hits and misses are counted by the read buffers */
+    private long evictions;
+    private long rejections;
+
+    /** The partition counters to update, if any */
+    private volatile PartitionMetrics metrics;
+
+
+    /**
+     * A cached element. Only its value is read without the lock
+     */
+    private static final class Node<K, V>
+    {
+        private final K key;
+        private volatile V value;
+        private int weight;
+        private int segment;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+
+
+        private Node( K key, V value, int weight )
+        {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+
+    /**
+     * A doubly linked list of nodes, from the least to the most recently used
+     */
+    private static final class NodeList<K, V>
+    {
+        private Node<K, V> first;
+        private Node<K, V> last;
+        private long weight;
+
+
+        private void addLast( Node<K, V> node )
+        {
+            node.previous = last;
+            node.next = null;
+
+            if ( last == null )
+            {
+                first = node;
+            }
+            else
+            {
+                last.next = node;
+            }
+
+            last = node;
+            weight += node.weight;
+        }
+
+
+        private void remove( Node<K, V> node )
+        {
+            if ( node.previous == null )
+            {
+                first = node.next;
+            }
+            else
+            {
+                node.previous.next = node.next;
+            }
+
+            if ( node.next == null )
+            {
+                last = node.previous;
+            }
+            else
+            {
+                node.next.previous = node.previous;
+            }
+
+            node.previous = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+
+        private void clear()
+        {
+            first = null;
+            last = null;
+            weight = 0L;
+        }
+    }
+
+
+    /**
+     * A ring buffer of the accesses done by {@link WeightedCache#get(Object)} : a Node for
+     * a hit, a key for a miss. The accesses are added without lock, and drained under the
+     * cache lock.
+     */
+    private static final class ReadBuffer
+    {
+        private static final int MASK = READ_BUFFER_SIZE - 1;
+
+        private final AtomicReferenceArray<Object> accesses = new AtomicReferenceArray<Object>( READ_BUFFER_SIZE );
+
+        /** The number of accesses added */
+        private final AtomicLong writeCount = new AtomicLong();
+
+        /** The number of accesses drained, only modified under the cache lock */
+        private volatile long readCount;
+
+        /** The hits and misses of the threads using this buffer */
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+
+        /**
+         * Adds an access, unless the buffer is full or another thread is adding one
+         *
+         * @return true if the buffer is full
+         */
+        private boolean offer( Object access )
+        {
+            long writes = writeCount.get();
+
+            if ( writes - readCount >= READ_BUFFER_SIZE )
+            {
+                return true;
+            }
+
+            if ( writeCount.compareAndSet( writes, writes + 1 ) )
+            {
+                accesses.lazySet( ( int ) writes & MASK, access );
+
+                return writes + 1 - readCount >= READ_BUFFER_SIZE;
+            }
+
+            return false;
+        }
+    }
+
+
+    /**
+     * A count-min sketch of the access frequencies, using 4 rows of counters saturating at
+     * 15. All the counters are halved when the number of recorded accesses reaches ten
+     * times the width of the sketch, so that the old accesses are progressively forgotten.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS =
+            { 0x97cb3127, 0x5d6a2f3b, 0x2c7a9b1d, 0x8f1bbcdc };
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+
+        private FrequencySketch( int width )
+        {
+            counters = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+
+        private int index( Object key, int row )
+        {
+            // Mix all the bits, so that the rows are independent
+            int hash = ( key.hashCode() + SEEDS[row] ) * 0x9e3779b9;
+            hash ^= hash >>> 15;
+            hash *= 0x85ebca6b;
+            hash ^= hash >>> 13;
+
+            return hash & mask;
+        }
+
+
+        private int frequency( Object key )
+        {
+            int frequency = MAX_COUNT;
+
+            for ( int row = 0; row < SEEDS.length; row++ )
+            {
+                frequency = Math.min( frequency, counters[row][index( key, row )] );
+            }
+
+            return frequency;
+        }
+
+
+        private void increment( Object key )
+        {
+            boolean added = false;
+
+            for ( int row = 0; row < SEEDS.length; row++ )
+            {
+                int index = index( key, row );
+
+                if ( counters[row][index] < MAX_COUNT )
+                {
+                    counters[row][index]++;
+                    added = true;
+                }
+            }
+
+            if ( added && ( ++additions >= sampleSize ) )
+            {
+                for ( byte[] row : counters )
+                {
+                    for ( int i = 0; i < row.length; i++ )
+                    {
+                        row[i] >>= 1;
+                    }
+                }
+
+                additions /= 2;
+            }
+        }
+    }
+
+
+    /**
+     * Creates a new instance of WeightedCache.
+     *
+     * @param maxWeight The maximum weight of the cached elements
+     * @param averageWeight The expected average weight of an element, used to size the
+     * frequency sketch
+     * @param weigher The weigher estimating the weight of the elements
+     */
+    @SuppressWarnings("unchecked")
+    public WeightedCache( long maxWeight, int averageWeight, Weigher<K, V> weigher )
+    {
+        this.weigher = weigher;
+
+        segments = new NodeList[3];
+        readBuffers = new ReadBuffer[NB_READ_BUFFERS];
+
+        for ( int i = 0; i < readBuffers.length; i++ )
+        {
+            readBuffers[i] = new ReadBuffer();
+        }
+
+        for ( int i = 0; i < segments.length; i++ )
+        {
+            segments[i] = new NodeList<K, V>();
+        }
+
+        // Four counters per expected element, to limit the collisions
+        long expectedSize = 4 * ( maxWeight / Math.max( 1, averageWeight ) );
+        int width = 256;
+
+        while ( ( width < expectedSize ) && ( width < ( 1 << 20 ) ) )
+        {
+            width <<= 1;
+        }
+
+        sketch = new FrequencySketch( width );
+
+        setMaxWeight( maxWeight );
+    }
+
+
+    /**
+     * Gets an element, and records the access to its key
+     *
+     * @param key The element's key
+     * @return The element, or null if it's not in the cache or if the key is null
+     */
+    public V get( K key )
+    {
+        if ( key == null )
+        {
+            return null;
+        }
+
+        ReadBuffer buffer = readBuffers[( int ) Thread.currentThread().getId() & ( readBuffers.length - 1 )];
+        Node<K, V> node = nodes.get( key );
+
+        if ( node == null )
+        {
+            buffer.misses.incrementAndGet();
+            record( buffer, key );
+
+            return null;
+        }
+
+        buffer.hits.incrementAndGet();
+        V value = node.value;
+        record( buffer, node );
+
+        return value;
+    }
+
+
+    /**
+     * Adds an access to a read buffer, and drains the buffers if it's full, unless
+     * another thread holds the lock
+     */
+    private void record( ReadBuffer buffer, Object access )
+    {
+        if ( buffer.offer( access ) && lock.tryLock() )
+        {
+            try
+            {
+                drainReadBuffers();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Records the accesses stored in the read buffers. Must be called with the lock held.
+     */
+    private void drainReadBuffers()
+    {
+        for ( ReadBuffer buffer : readBuffers )
+        {
+            long reads = buffer.readCount;
+            long writes = buffer.writeCount.get();
+
+            while ( reads < writes )
+            {
+                int index = ( int ) reads & ReadBuffer.MASK;
+                Object access = buffer.accesses.get( index );
+
+                if ( access == null )
+                {
+                    // The access has not been stored yet
+                    break;
+                }
+
+                buffer.accesses.lazySet( index, null );
+                reads++;
+                recordAccess( access );
+            }
+
+            buffer.readCount = reads;
+        }
+    }
+
+
+    /**
+     * Records an access in the sketch and, for a cached node, in the LRU order
+     */
+    @SuppressWarnings("unchecked")
+    private void recordAccess( Object access )
+    {
+        if ( !( access instanceof Node ) )
+        {
+            sketch.increment( access );
+
+            return;
+        }
+
+        Node<K, V> node = ( Node<K, V> ) access;
+        sketch.increment( node.key );
+
+        switch ( node.segment )
+        {
+            case REMOVED:
+                break;
+
+            case PROBATION:
+                // Promote the element
+                segments[PROBATION].remove( node );
+                node.segment = PROTECTED;
+                segments[PROTECTED].addLast( node );
+
+                while ( segments[PROTECTED].weight > protectedMaxWeight )
+                {
+                    Node<K, V> demoted = segments[PROTECTED].first;
+                    segments[PROTECTED].remove( demoted );
+                    demoted.segment = PROBATION;
+                    segments[PROBATION].addLast( demoted );
+                }
+
+                break;
+
+            default:
+                segments[node.segment].remove( node );
+                segments[node.segment].addLast( node );
+                break;
+        }
+    }
+
+
+    /**
+     * Adds an element, or replaces it if it's already cached. An element heavier than the
+     * maximum weight, or with a null key, is not cached.
+     *
+     * @param key The element's key
+     * @param value The element's value
+     */
+    public void put( K key, V value )
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        int nodeWeight = weigher.weigh( key, value );
+
+        lock.lock();
+
+        try
+        {
+            drainReadBuffers();
+
+            Node<K, V> node = nodes.get( key );
+
+            if ( nodeWeight > maxWeight )
+            {
+                if ( node != null )
+                {
+                    unlink( node );
+                }
+
+                rejected();
+                updateWeight();
+
+                return;
+            }
+
+            if ( node == null )
+            {
+                node = new Node<K, V>( key, value, nodeWeight );
+                node.segment = WINDOW;
+                nodes.put( key, node );
+                segments[WINDOW].addLast( node );
+                weight += nodeWeight;
+            }
+            else
+            {
+                update( node, value, nodeWeight );
+            }
+
+            evict();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Replaces an element, if it's cached
+     *
+     * @param key The element's key
+     * @param value The element's new value
+     * @return <code>true</code> if the element was cached
+     */
+    public boolean replace( K key, V value )
+    {
+        if ( ( key == null ) || !nodes.containsKey( key ) )
+        {
+            return false;
+        }
+
+        int nodeWeight = weigher.weigh( key, value );
+
+        lock.lock();
+
+        try
+        {
+            drainReadBuffers();
+
+            Node<K, V> node = nodes.get( key );
+
+            if ( node == null )
+            {
+                return false;
+            }
+
+            if ( nodeWeight > maxWeight )
+            {
+                unlink( node );
+                rejected();
+            }
+            else
+            {
+                update( node, value, nodeWeight );
+                evict();
+            }
+
+            updateWeight();
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes an element
+     *
+     * @param key The element's key
+     * @return The removed element, or null if it was not cached
+     */
+    public V remove( K key )
+    {
+        if ( ( key == null ) || !nodes.containsKey( key ) )
+        {
+            return null;
+        }
+
+        lock.lock();
+
+        try
+        {
+            drainReadBuffers();
+
+            Node<K, V> node = nodes.get( key );
+
+            if ( node == null )
+            {
+                return null;
+            }
+
+            unlink( node );
+            updateWeight();
+
+            return node.value;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes all the elements. The access frequencies are kept.
+     */
+    public void clear()
+    {
+        lock.lock();
+
+        try
+        {
+            drainReadBuffers();
+
+            // The nodes may still be in the read buffers
+            for ( Node<K, V> node : nodes.values() )
+            {
+                node.segment = REMOVED;
+            }
+
+            nodes.clear();
+
+            for ( NodeList<K, V> segment : segments )
+            {
+                segment.clear();
+            }
+
+            weight = 0L;
+            updateWeight();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Changes the maximum weight, evicting the elements in excess
+     *
+     * @param maxWeight The new maximum weight
+     */
+    public void setMaxWeight( long maxWeight )
+    {
+        lock.lock();
+
+        try
+        {
+            this.maxWeight = maxWeight;
+            windowMaxWeight = Math.max( 1L, maxWeight * WINDOW_PERCENT / 100 );
+            protectedMaxWeight = ( maxWeight - windowMaxWeight ) * PROTECTED_PERCENT / 100;
+
+            evict();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets the partition counters updated when an element is evicted or rejected
+     *
+     * @param metrics The partition counters, or null
+     */
+    public void setMetrics( PartitionMetrics metrics )
+    {
+        if ( this.metrics != metrics )
+        {
+            this.metrics = metrics;
+
+            lock.lock();
+
+            try
+            {
+                updateWeight();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * @return The maximum weight of the cached elements
+     */
+    public long getMaxWeight()
+    {
+        lock.lock();
+
+        try
+        {
+            return maxWeight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The estimated weight of the cached elements
+     */
+    public long getWeight()
+    {
+        lock.lock();
+
+        try
+        {
+            return weight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of cached elements
+     */
+    public int size()
+    {
+        return nodes.size();
+    }
+
+
+    /**
+     * @return The number of elements found by {@link #get(Object)}
+     */
+    public long getHitCount()
+    {
+        long hits = 0L;
+
+        for ( ReadBuffer buffer : readBuffers )
+        {
+            hits += buffer.hits.get();
+        }
+
+        return hits;
+    }
+
+
+    /**
+     * @return The number of elements not found by {@link #get(Object)}
+     */
+    public long getMissCount()
+    {
+        long misses = 0L;
+
+        for ( ReadBuffer buffer : readBuffers )
+        {
+            misses += buffer.misses.get();
+        }
+
+        return misses;
+    }
+
+
+    /**
+     * @return The number of elements removed to make room for other elements
+     */
+    public long getEvictionCount()
+    {
+        lock.lock();
+
+        try
+        {
+            return evictions;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of elements which have not been admitted in the cache
+     */
+    public long getRejectionCount()
+    {
+        lock.lock();
+
+        try
+        {
+            return rejections;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Changes the value of a cached element, and moves it to the end of its segment
+     */
+    private void update( Node<K, V> node, V value, int nodeWeight )
+    {
+        NodeList<K, V> segment = segments[node.segment];
+        segment.remove( node );
+        weight += nodeWeight - node.weight;
+        node.value = value;
+        node.weight = nodeWeight;
+        segment.addLast( node );
+    }
+
+
+    /**
+     * Removes a node from the cache
+     */
+    private void unlink( Node<K, V> node )
+    {
+        segments[node.segment].remove( node );
+        node.segment = REMOVED;
+        nodes.remove( node.key );
+        weight -= node.weight;
+    }
+
+
+    /**
+     * Moves the elements in excess from the window to the probation segment, if their
+     * frequency is higher than the elements they replace, and then evicts the least
+     * recently used elements until the cache weight is below its maximum.
+     */
+    private void evict()
+    {
+        NodeList<K, V> window = segments[WINDOW];
+
+        while ( ( window.weight > windowMaxWeight ) && ( window.first != null ) )
+        {
+            Node<K, V> candidate = window.first;
+            window.remove( candidate );
+            admit( candidate );
+        }
+
+        while ( weight > maxWeight )
+        {
+            Node<K, V> victim = segments[PROBATION].first;
+
+            if ( victim == null )
+            {
+                victim = segments[PROTECTED].first;
+            }
+
+            if ( victim == null )
+            {
+                victim = window.first;
+            }
+
+            unlink( victim );
+            evicted();
+        }
+
+        updateWeight();
+    }
+
+
+    /**
+     * Admits a node leaving the window in the probation segment, evicting the less
+     * frequently used elements if needed. The node is discarded if one of them is used
+     * at least as often.
+     */
+    private void admit( Node<K, V> candidate )
+    {
+        int candidateFrequency = sketch.frequency( candidate.key );
+
+        while ( weight > maxWeight )
+        {
+            Node<K, V> victim = segments[PROBATION].first;
+
+            if ( victim == null )
+            {
+                victim = segments[PROTECTED].first;
+            }
+
+            if ( victim == null )
+            {
+                break;
+            }
+
+            if ( candidateFrequency > sketch.frequency( victim.key ) )
+            {
+                unlink( victim );
+                evicted();
+            }
+            else
+            {
+                // The candidate has already been removed from the window
+                candidate.segment = REMOVED;
+                nodes.remove( candidate.key );
+                weight -= candidate.weight;
+                rejected();
+
+                return;
+            }
+        }
+
+        candidate.segment = PROBATION;
+        segments[PROBATION].addLast( candidate );
+    }
+
+
+    private void evicted()
+    {
+        evictions++;
+
+        PartitionMetrics partitionMetrics = metrics;
+
+        if ( partitionMetrics != null )
+        {
+            partitionMetrics.cacheEviction();
+        }
+    }
+
+
+    private void rejected()
+    {
+        rejections++;
+
+        PartitionMetrics partitionMetrics = metrics;
+
+        if ( partitionMetrics != null )
+        {
+            partitionMetrics.cacheRejection();
+        }
+    }
+
+
+    private void updateWeight()
+    {
+        PartitionMetrics partitionMetrics = metrics;
+
+        if ( partitionMetrics != null )
+        {
+            partitionMetrics.setCacheWeight( weight, maxWeight );
+        }
+    }
+}
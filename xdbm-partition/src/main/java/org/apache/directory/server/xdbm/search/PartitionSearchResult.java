@@ -22,6 +22,7 @@ package org.apache.directory.server.xdbm.search;
 
 import java.util.Set;
 
+import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.SetCursor;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
@@ -41,8 +42,8 @@ import org.apache.directory.server.xdbm.IndexEntry;
  */
 public class PartitionSearchResult
 {
-    /** The set of candidate UUIDs selected by the search */
-    private SetCursor<IndexEntry<String, String>> resultSet;
+    /** The candidate UUIDs selected by the search */
+    private Cursor<IndexEntry<String, String>> resultSet;
 
     /** The set of candidate UUIDs */
     private Set<String> candidateSet;
@@ -56,6 +57,9 @@ public class PartitionSearchResult
     /** The SchemaManager */
     private SchemaManager schemaManager;
 
+    /** The description of the way the candidates are selected */
+    private String plan;
+
 
     /**
      * Create a PartitionSearchResult instance
@@ -69,7 +73,7 @@ public class PartitionSearchResult
     /**
      * @return the resultSet
      */
-    public SetCursor<IndexEntry<String, String>> getResultSet()
+    public Cursor<IndexEntry<String, String>> getResultSet()
     {
         return resultSet;
     }
@@ -84,6 +88,17 @@ public class PartitionSearchResult
     }
 
 
+    /**
+     * Sets the Cursor returning the gathered candidates.
+     *
+     * @param cursor The Cursor over the candidates
+     */
+    public void setResultCursor( Cursor<IndexEntry<String, String>> cursor )
+    {
+        resultSet = cursor;
+    }
+
+
     /**
      * @return the candidateSet
      */
@@ -183,6 +198,25 @@ public class PartitionSearchResult
     }
 
 
+    /**
+     * @return The description of the way the candidates are selected : gathered from
+     * the indexes, or from the master table
+     */
+    public String getPlan()
+    {
+        return plan;
+    }
+
+
+    /**
+     * @param plan The description of the way the candidates are selected
+     */
+    public void setPlan( String plan )
+    {
+        this.plan = plan;
+    }
+
+
     /**
      * @see Object#toString()
      */
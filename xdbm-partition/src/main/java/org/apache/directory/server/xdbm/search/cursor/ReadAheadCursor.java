@@ -0,0 +1,292 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.cursor;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor over the candidates of a search which reads a limited number of entries : the
+ * size limit, or the page size of a paged search. The first matching entries have been read
+ * ahead from lazy index Cursors while the partition was locked. If the client reads past
+ * them, all the candidates are gathered, and the ones which have not been read ahead are
+ * returned next.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReadAheadCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** Error message for unsupported operations */
+    private static final String UNSUPPORTED_MSG = I18n.err( I18n.ERR_719 );
+
+    /** The candidate UUIDs, starting with the ones read ahead */
+    private final List<String> uuids;
+
+    /** The UUIDs read ahead, null once all the candidates are known */
+    private Set<String> readAhead;
+
+    /** Gathers all the candidates, null once all the candidates are known */
+    private Callable<? extends Collection<String>> gatherer;
+
+    /** The current position : -1 before the first candidate, the number of candidates after the last one */
+    private int position = -1;
+
+
+    /**
+     * Creates a Cursor over candidates read ahead
+     *
+     * @param readAhead The UUIDs of the matching entries read ahead, in the order they are returned
+     * @param gatherer Gathers all the candidates when the Cursor moves past the ones read ahead,
+     * or null if there is no other candidate
+     */
+    public ReadAheadCursor( Set<String> readAhead, Callable<? extends Collection<String>> gatherer )
+    {
+        uuids = new ArrayList<String>( readAhead );
+
+        if ( gatherer != null )
+        {
+            this.readAhead = readAhead;
+            this.gatherer = gatherer;
+        }
+
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating ReadAheadCursor {}", this );
+        }
+    }
+
+
+    /**
+     * @return true if all the candidates are known : they have all been read ahead, or gathered
+     */
+    public boolean isComplete()
+    {
+        return gatherer == null;
+    }
+
+
+    /**
+     * Appends the candidates which have not been read ahead
+     */
+    private void gather() throws CursorException
+    {
+        try
+        {
+            for ( String uuid : gatherer.call() )
+            {
+                if ( !readAhead.contains( uuid ) )
+                {
+                    uuids.add( uuid );
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new CursorException( e.getMessage(), e );
+        }
+
+        readAhead = null;
+        gatherer = null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed( "beforeFirst()" );
+        position = -1;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed( "afterLast()" );
+
+        if ( gatherer != null )
+        {
+            gather();
+        }
+
+        position = uuids.size();
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed( "previous()" );
+
+        if ( position > 0 )
+        {
+            position--;
+
+            return setAvailable( true );
+        }
+
+        position = -1;
+
+        return setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed( "next()" );
+
+        if ( ( position + 1 >= uuids.size() ) && ( gatherer != null ) )
+        {
+            gather();
+        }
+
+        if ( position + 1 < uuids.size() )
+        {
+            position++;
+
+            return setAvailable( true );
+        }
+
+        position = uuids.size();
+
+        return setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed( "get()" );
+
+        if ( !available() )
+        {
+            throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+        }
+
+        IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
+        indexEntry.setId( uuids.get( position ) );
+
+        return indexEntry;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString( String tabs )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( tabs ).append( "ReadAheadCursor (" );
+
+        if ( available() )
+        {
+            sb.append( "available)" );
+        }
+        else
+        {
+            sb.append( "absent)" );
+        }
+
+        sb.append( "#candidates<" ).append( uuids.size() );
+
+        if ( gatherer != null )
+        {
+            sb.append( ", more to gather" );
+        }
+
+        sb.append( ">\n" );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return toString( "" );
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm.search.cursor;
+
+
+import java.util.Map;
+import java.util.NavigableMap;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.SubtreeIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor over the entries in the subtree of a base entry, the base entry included,
+ * reading the contiguous range of the {@link SubtreeIndex} which contains them.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubtreeCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** Error message for unsupported operations */
+    private static final String UNSUPPORTED_MSG = I18n.err( I18n.ERR_719 );
+
+    /** The base entry ID */
+    private final String baseId;
+
+    /** The entries in the subtree, per subtree key */
+    private final NavigableMap<String, String> subtree;
+
+    /** The current element, null if we are before the first or after the last one */
+    private Map.Entry<String, String> current;
+
+    /** Tells if we are after the last element */
+    private boolean afterLast;
+
+
+    /**
+     * Creates a Cursor over the entries in the subtree of a base entry
+     *
+     * @param subtreeIndex The partition subtree index
+     * @param baseId The base entry ID
+     */
+    public SubtreeCursor( SubtreeIndex subtreeIndex, String baseId )
+    {
+        this.baseId = baseId;
+        subtree = subtreeIndex.getSubtree( baseId );
+
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating SubtreeCursor {}", this );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed( "beforeFirst()" );
+        current = null;
+        afterLast = false;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed( "afterLast()" );
+        current = null;
+        afterLast = true;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed( "previous()" );
+
+        if ( ( current == null ) && !afterLast )
+        {
+            return false;
+        }
+
+        current = afterLast ? subtree.lastEntry() : subtree.lowerEntry( current.getKey() );
+        afterLast = false;
+
+        return setAvailable( current != null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed( "next()" );
+
+        if ( afterLast )
+        {
+            return false;
+        }
+
+        current = ( current == null ) ? subtree.firstEntry() : subtree.higherEntry( current.getKey() );
+        afterLast = current == null;
+
+        return setAvailable( current != null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed( "get()" );
+
+        if ( !available() )
+        {
+            throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+        }
+
+        IndexEntry<String, String> entry = new IndexEntry<String, String>();
+        entry.setKey( baseId );
+        entry.setId( current.getValue() );
+
+        return entry;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString( String tabs )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( tabs ).append( "SubtreeCursor (" );
+
+        if ( available() )
+        {
+            sb.append( "available)" );
+        }
+        else
+        {
+            sb.append( "absent)" );
+        }
+
+        sb.append( "#base<" ).append( baseId ).append( ">\n" );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return toString( "" );
+    }
+}
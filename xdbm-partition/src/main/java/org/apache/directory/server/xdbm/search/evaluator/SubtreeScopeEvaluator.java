@@ -32,6 +32,7 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.SubtreeIndex;
 import org.apache.directory.server.xdbm.search.Evaluator;
 
 
@@ -67,6 +68,9 @@ public class SubtreeScopeEvaluator implements Evaluator<ScopeNode>
     /** The entry database/store */
     private final Store db;
 
+    /** The subtree index, null if the partition does not maintain it */
+    private final SubtreeIndex subtreeIndex;
+
 
     /**
      * Creates a subtree scope node evaluator for search expressions.
@@ -87,6 +91,7 @@ public class SubtreeScopeEvaluator implements Evaluator<ScopeNode>
 
         baseId = node.getBaseId();
         baseIsContextEntry = getContextEntryId() == baseId;
+        subtreeIndex = db.getSubtreeIndex();
         dereferencing = node.getDerefAliases().isDerefInSearching() || node.getDerefAliases().isDerefAlways();
     }
 
@@ -125,6 +130,12 @@ public class SubtreeScopeEvaluator implements Evaluator<ScopeNode>
      */
     private boolean isDescendant( String candidateId ) throws LdapException
     {
+        // The subtree index tells it with two lookups
+        if ( subtreeIndex != null )
+        {
+            return subtreeIndex.isInSubtree( candidateId, baseId );
+        }
+
         String tmp = candidateId;
 
         while ( true )
@@ -20,6 +20,7 @@
 package org.apache.directory.server.xdbm.search.impl;
 
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -47,16 +48,33 @@ import org.apache.directory.api.ldap.model.schema.normalizers.NoOpNormalizer;
 import org.apache.directory.api.util.exception.NotImplementedException;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EmptyIndexCursor;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.SingletonIndexCursor;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.SubtreeIndex;
+import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.apache.directory.server.xdbm.search.cursor.AllEntriesCursor;
+import org.apache.directory.server.xdbm.search.cursor.AndCursor;
 import org.apache.directory.server.xdbm.search.cursor.ApproximateCursor;
 import org.apache.directory.server.xdbm.search.cursor.ChildrenCursor;
 import org.apache.directory.server.xdbm.search.cursor.DescendantCursor;
+import org.apache.directory.server.xdbm.search.cursor.EqualityCursor;
+import org.apache.directory.server.xdbm.search.cursor.GreaterEqCursor;
+import org.apache.directory.server.xdbm.search.cursor.LessEqCursor;
+import org.apache.directory.server.xdbm.search.cursor.OrCursor;
+import org.apache.directory.server.xdbm.search.cursor.PresenceCursor;
+import org.apache.directory.server.xdbm.search.cursor.SubstringCursor;
+import org.apache.directory.server.xdbm.search.cursor.SubtreeCursor;
 import org.apache.directory.server.xdbm.search.evaluator.ApproximateEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.EqualityEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.GreaterEqEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.LessEqEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.PresenceEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.SubstringEvaluator;
 
 
 /**
@@ -151,6 +169,200 @@ public class CursorBuilder
     }
 
 
+    /**
+     * Builds a Cursor reading the candidates of a filter lazily from the indexes, instead of
+     * gathering them in the candidate set. The candidates of a conjunction are read from its
+     * cheapest child and intersected on the fly with the other children, the candidates of a
+     * disjunction are the union of the candidates of its children.
+     * <br/>
+     * The Cursor may return an entry more than once, and it reads the indexes while it moves :
+     * it must be read with the partition locked. The aliases are not dereferenced.
+     *
+     * @param node The annotated filter
+     * @return A Cursor over the candidates
+     * @throws Exception If we can't read the indexes
+     */
+    @SuppressWarnings(
+        { "unchecked", "rawtypes" })
+    public Cursor<IndexEntry<String, String>> buildLazy( ExprNode node ) throws Exception
+    {
+        Object count = node.get( "count" );
+
+        if ( count != null )
+        {
+            if ( ( Long ) count == 0L )
+            {
+                return new EmptyIndexCursor<String>();
+            }
+
+            if ( ( Long ) count == Long.MAX_VALUE )
+            {
+                // Full scan
+                return new AllEntriesCursor( db );
+            }
+        }
+
+        switch ( node.getAssertionType() )
+        {
+            case APPROXIMATE:
+                return new ApproximateCursor( db, ( ApproximateEvaluator ) evaluatorBuilder.build( node ) );
+
+            case EQUALITY:
+                return new EqualityCursor( db, ( EqualityEvaluator ) evaluatorBuilder.build( node ) );
+
+            case GREATEREQ:
+                return new GreaterEqCursor( db, ( GreaterEqEvaluator ) evaluatorBuilder.build( node ) );
+
+            case LESSEQ:
+                return new LessEqCursor( db, ( LessEqEvaluator ) evaluatorBuilder.build( node ) );
+
+            case PRESENCE:
+                return new PresenceCursor( db, ( PresenceEvaluator ) evaluatorBuilder.build( node ) );
+
+            case SUBSTRING:
+                return new SubstringCursor( db, ( SubstringEvaluator ) evaluatorBuilder.build( node ) );
+
+            case SCOPE:
+                return buildLazyScope( ( ScopeNode ) node );
+
+            case AND:
+                return buildLazyAnd( ( AndNode ) node );
+
+            case OR:
+                return buildLazyOr( ( OrNode ) node );
+
+            default:
+                // A NOT filter is a full scan
+                return new AllEntriesCursor( db );
+        }
+    }
+
+
+    /**
+     * Builds a Cursor over the entries in a scope, without dereferencing the aliases.
+     */
+    private Cursor<IndexEntry<String, String>> buildLazyScope( ScopeNode node ) throws Exception
+    {
+        if ( node.getScope() == SearchScope.ONELEVEL )
+        {
+            Cursor<IndexEntry<ParentIdAndRdn, String>> rdnCursor = db.getRdnIndex().forwardCursor();
+
+            IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<ParentIdAndRdn, String>();
+            startingPos.setKey( new ParentIdAndRdn( node.getBaseId(), ( Rdn[] ) null ) );
+            rdnCursor.before( startingPos );
+
+            return new ChildrenCursor( db, node.getBaseId(), rdnCursor );
+        }
+
+        return buildDescendantCursor( node.getBaseId() );
+    }
+
+
+    /**
+     * Builds a Cursor over the candidates of the child with the smallest count, returning
+     * only the ones matching the other children.
+     */
+    private Cursor<IndexEntry<String, String>> buildLazyAnd( AndNode node ) throws Exception
+    {
+        List<ExprNode> children = node.getChildren();
+        int minIndex = 0;
+        long minValue = Long.MAX_VALUE;
+
+        for ( int i = 0; i < children.size(); i++ )
+        {
+            Object count = children.get( i ).get( "count" );
+
+            if ( ( count != null ) && ( ( Long ) count < minValue ) )
+            {
+                minValue = ( Long ) count;
+                minIndex = i;
+            }
+        }
+
+        Cursor<IndexEntry<String, String>> cursor = buildLazy( children.get( minIndex ) );
+
+        if ( children.size() == 1 )
+        {
+            return cursor;
+        }
+
+        List<Evaluator<? extends ExprNode>> evaluators = new ArrayList<Evaluator<? extends ExprNode>>();
+
+        for ( int i = 0; i < children.size(); i++ )
+        {
+            if ( i != minIndex )
+            {
+                evaluators.add( evaluatorBuilder.build( children.get( i ) ) );
+            }
+        }
+
+        return new AndCursor<String>( cursor, evaluators );
+    }
+
+
+    /**
+     * Builds a Cursor over the union of the candidates of the children, an entry matching
+     * several children being returned by the first one only.
+     */
+    private Cursor<IndexEntry<String, String>> buildLazyOr( OrNode node ) throws Exception
+    {
+        List<Cursor<IndexEntry<String, String>>> cursors = new ArrayList<Cursor<IndexEntry<String, String>>>();
+        List<Evaluator<? extends ExprNode>> evaluators = new ArrayList<Evaluator<? extends ExprNode>>();
+
+        for ( ExprNode child : node.getChildren() )
+        {
+            Object count = child.get( "count" );
+
+            if ( ( count != null ) && ( ( Long ) count == 0L ) )
+            {
+                // This child does not select any candidate
+                continue;
+            }
+
+            cursors.add( buildLazy( child ) );
+            evaluators.add( evaluatorBuilder.build( child ) );
+        }
+
+        switch ( cursors.size() )
+        {
+            case 0:
+                return new EmptyIndexCursor<String>();
+
+            case 1:
+                return cursors.get( 0 );
+
+            default:
+                return new OrCursor<String>( cursors, evaluators );
+        }
+    }
+
+
+    /**
+     * Builds a Cursor over the base entry and its descendants : a range of the subtree index
+     * if the partition maintains it, or a walk of the RDN index otherwise.
+     */
+    private Cursor<IndexEntry<String, String>> buildDescendantCursor( String baseId ) throws Exception
+    {
+        SubtreeIndex subtreeIndex = db.getSubtreeIndex();
+
+        if ( subtreeIndex != null )
+        {
+            return new SubtreeCursor( subtreeIndex, baseId );
+        }
+
+        ParentIdAndRdn parentIdAndRdn = db.getRdnIndex().reverseLookup( baseId );
+        IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<ParentIdAndRdn, String>();
+
+        startingPos.setKey( parentIdAndRdn );
+        startingPos.setId( baseId );
+
+        Cursor<IndexEntry<ParentIdAndRdn, String>> rdnCursor = new SingletonIndexCursor<ParentIdAndRdn>(
+            startingPos );
+
+        return new DescendantCursor( db, baseId, parentIdAndRdn.getParentId(), rdnCursor );
+    }
+
+
     /**
      * Computes the set of candidates for an Approximate filter. We will feed the set only if
      * we have an index for the AT.
@@ -491,20 +703,10 @@ public class CursorBuilder
 
         int nbResults = 0;
 
-        // We use the RdnIndex to get all the entries from a starting point
-        // and below up to the number of descendant
+        // We use the subtree index, or the RdnIndex, to get all the entries from
+        // a starting point and below up to the number of descendant
         String baseId = node.getBaseId();
-        ParentIdAndRdn parentIdAndRdn = db.getRdnIndex().reverseLookup( baseId );
-        IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<ParentIdAndRdn, String>();
-
-        startingPos.setKey( parentIdAndRdn );
-        startingPos.setId( baseId );
-
-        Cursor<IndexEntry<ParentIdAndRdn, String>> rdnCursor = new SingletonIndexCursor<ParentIdAndRdn>(
-            startingPos );
-        String parentId = parentIdAndRdn.getParentId();
-
-        Cursor<IndexEntry<String, String>> scopeCursor = new DescendantCursor( db, baseId, parentId, rdnCursor );
+        Cursor<IndexEntry<String, String>> scopeCursor = buildDescendantCursor( baseId );
         Set<String> candidateSet = searchResult.getCandidateSet();
 
         // Fetch all the UUIDs if we have an index
@@ -51,7 +51,12 @@ import org.apache.directory.server.xdbm.search.Optimizer;
 
 
 /**
- * Optimizer that annotates the filter using scan counts.
+ * Optimizer that annotates the filter using scan counts. The counts are estimated using
+ * the {@link IndexStatistics} of the large indexes, and read from the smaller indexes.
+ * <br>
+ * A leaf node is annotated with its index count even when it selects a large part of
+ * the partition : a full scan gathers the IDs of all the entries, deserializing them,
+ * before they are fetched again one by one, so it always costs more than reading an index.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -59,10 +64,16 @@ public class DefaultOptimizer<E> implements Optimizer
 {
     static final String CANDIDATES_ANNOTATION_KEY = "candidates";
 
+    /** The maximum number of candidates we gather when reading an index */
+    private static final int MAX_GATHERED_CANDIDATES = 100;
+
     /** the database this optimizer operates on */
     private final Store db;
     private String contextEntryId;
 
+    /** The statistics of the indexes */
+    private final IndexStatisticsManager statisticsManager;
+
 
     /**
      * Creates an optimizer on a database.
@@ -72,6 +83,16 @@ public class DefaultOptimizer<E> implements Optimizer
     public DefaultOptimizer( Store db ) throws Exception
     {
         this.db = db;
+        statisticsManager = new IndexStatisticsManager( db );
+    }
+
+
+    /**
+     * @return The manager of the index statistics used by this optimizer
+     */
+    public IndexStatisticsManager getStatisticsManager()
+    {
+        return statisticsManager;
     }
 
 
@@ -304,6 +325,20 @@ public class DefaultOptimizer<E> implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<V, String> idx = ( Index<V, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics statistics = statisticsManager.getStatistics( idx );
+
+            if ( statistics != null )
+            {
+                long estimate = statistics.estimateEquality( node.getValue().getValue() );
+
+                if ( estimate >= MAX_GATHERED_CANDIDATES )
+                {
+                    // Too many candidates to gather them, no need to read the index
+                    node.set( CANDIDATES_ANNOTATION_KEY, null );
+
+                    return estimate;
+                }
+            }
 
             Cursor<String> result = idx.forwardValueCursor( node.getValue().getValue() );
             Set<String> values = new HashSet<String>();
@@ -315,7 +350,7 @@ public class DefaultOptimizer<E> implements Optimizer
                 nbFound++;
 
                 // Arbitrary stop gathering the candidates if we have more than 100
-                if ( nbFound == 100 )
+                if ( nbFound == MAX_GATHERED_CANDIDATES )
                 {
                     break;
                 }
@@ -323,7 +358,7 @@ public class DefaultOptimizer<E> implements Optimizer
 
             result.close();
 
-            if ( nbFound < 100 )
+            if ( nbFound < MAX_GATHERED_CANDIDATES )
             {
                 // Store the found candidates in the node
                 node.set( CANDIDATES_ANNOTATION_KEY, values );
@@ -359,6 +394,19 @@ public class DefaultOptimizer<E> implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<V, String> idx = ( Index<V, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics statistics = statisticsManager.getStatistics( idx );
+
+            if ( statistics != null )
+            {
+                long estimate = isGreaterThan ? statistics.estimateGreaterOrEqual( node.getValue().getValue() )
+                    : statistics.estimateLessOrEqual( node.getValue().getValue() );
+
+                if ( estimate >= 0 )
+                {
+                    // Never estimate an empty result : the index may have changed
+                    return Math.max( 1L, estimate );
+                }
+            }
 
             if ( isGreaterThan )
             {
@@ -400,6 +448,19 @@ public class DefaultOptimizer<E> implements Optimizer
             }
             else
             {
+                IndexStatistics statistics = statisticsManager.getStatistics( idx );
+
+                if ( statistics != null )
+                {
+                    long estimate = statistics.estimatePrefix( initial );
+
+                    if ( estimate >= 0 )
+                    {
+                        // Never estimate an empty result : the index may have changed
+                        return Math.max( 1L, estimate );
+                    }
+                }
+
                 return idx.greaterThanCount( initial );
             }
         }
@@ -459,7 +520,7 @@ public class DefaultOptimizer<E> implements Optimizer
         {
             // the system indices (objectClass, entryUUID and entryCSN) are maintained for
             // each entry, so we could just return the database count
-            return db.count();
+            return statisticsManager.getEntryCount();
         }
 
         return Long.MAX_VALUE;
@@ -488,7 +549,7 @@ public class DefaultOptimizer<E> implements Optimizer
             case SUBTREE:
                 if ( id == getContextEntryId() )
                 {
-                    return db.count();
+                    return statisticsManager.getEntryCount();
                 }
                 else
                 {
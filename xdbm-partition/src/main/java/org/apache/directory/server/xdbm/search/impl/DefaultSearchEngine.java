@@ -21,7 +21,11 @@ package org.apache.directory.server.xdbm.search.impl;
 
 
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import net.sf.ehcache.Element;
 
@@ -33,7 +37,10 @@ import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
 import org.apache.directory.api.ldap.model.filter.ScopeNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
@@ -46,6 +53,7 @@ import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 import org.apache.directory.server.xdbm.search.SearchEngine;
+import org.apache.directory.server.xdbm.search.cursor.ReadAheadCursor;
 import org.apache.directory.server.xdbm.search.evaluator.BaseLevelScopeEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,6 +70,12 @@ public class DefaultSearchEngine implements SearchEngine
     /** The logger */
     private static final Logger LOG = LoggerFactory.getLogger( DefaultSearchEngine.class );
 
+    /** The name of the logger describing the way the candidates of each search are selected */
+    public static final String SEARCH_PLAN_LOG = "org.apache.directory.SEARCH_PLAN_LOG";
+
+    /** The logger describing the search plans */
+    private static final Logger PLAN_LOG = LoggerFactory.getLogger( SEARCH_PLAN_LOG );
+
     /** the Optimizer used by this DefaultSearchEngine */
     private final Optimizer optimizer;
 
@@ -97,6 +111,20 @@ public class DefaultSearchEngine implements SearchEngine
     }
 
 
+    /**
+     * Stores the search plan in the result, and logs it with the annotated filter.
+     */
+    private void explain( PartitionSearchResult searchResult, String plan, ExprNode root )
+    {
+        searchResult.setPlan( plan );
+
+        if ( PLAN_LOG.isDebugEnabled() )
+        {
+            PLAN_LOG.debug( "{} for filter : {}", plan, root );
+        }
+    }
+
+
     /**
      * Gets the optimizer for this DefaultSearchEngine.
      *
@@ -235,49 +263,201 @@ public class DefaultSearchEngine implements SearchEngine
         }
 
         // Annotate the node with the optimizer and return search enumeration.
-        optimizer.annotate( root );
+        long estimate = optimizer.annotate( root );
         Evaluator<? extends ExprNode> evaluator = evaluatorBuilder.build( root );
 
-        Set<String> uuidSet = new HashSet<String>();
         searchResult.setAliasDerefMode( aliasDerefMode );
-        searchResult.setCandidateSet( uuidSet );
+        searchResult.setEvaluator( evaluator );
 
-        long nbResults = cursorBuilder.build( root, searchResult );
+        // When the client reads only a few entries, we read the first matching ones lazily
+        // from the indexes, instead of gathering all the candidates
+        long readLimit = getReadLimit( searchContext );
 
-        LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
+        if ( ( readLimit > 0L ) && ( estimate > readLimit ) )
+        {
+            readAhead( root, searchResult, cursorBuilder.buildLazy( root ), readLimit );
+
+            return searchResult;
+        }
+
+        Set<String> uuidSet = new HashSet<String>();
+        long nbResults = gather( root, searchResult, uuidSet );
+
+        for ( String uuid : uuidSet )
+        {
+            IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
+            indexEntry.setId( uuid );
+            resultSet.add( indexEntry );
+        }
 
         if ( nbResults < Long.MAX_VALUE )
         {
-            for ( String uuid : uuidSet )
+            explain( searchResult, "GATHERED " + uuidSet.size() + " candidates from the indexes", root );
+        }
+        else
+        {
+            explain( searchResult, "GATHERED " + uuidSet.size() + " entries in a FULL SCAN of the master table",
+                root );
+        }
+
+        searchResult.setResultSet( resultSet );
+
+        return searchResult;
+    }
+
+
+    /**
+     * Gives the number of entries the client reads first : the size limit, or the page size
+     * of a paged search. 0 if there is no limit, or if the entries are sorted, as they are
+     * all read before the first one is returned.
+     */
+    private long getReadLimit( SearchOperationContext searchContext )
+    {
+        if ( searchContext.hasRequestControl( SortRequest.OID ) )
+        {
+            return 0L;
+        }
+
+        // The aliases can't be dereferenced on the fly, as their target may be returned more than once
+        if ( searchContext.getAliasDerefMode().isDerefInSearching() )
+        {
+            return 0L;
+        }
+
+        long readLimit = Math.max( searchContext.getSizeLimit(), 0L );
+        Control pagedControl = searchContext.getRequestControl( PagedResults.OID );
+
+        if ( pagedControl instanceof PagedResults )
+        {
+            long pageSize = ( ( PagedResults ) pagedControl ).getSize();
+
+            if ( ( pageSize > 0L ) && ( ( readLimit == 0L ) || ( pageSize < readLimit ) ) )
             {
-                IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
-                indexEntry.setId( uuid );
-                resultSet.add( indexEntry );
+                readLimit = pageSize;
             }
         }
-        else
+
+        return readLimit;
+    }
+
+
+    /**
+     * Gathers the UUIDs of all the candidates of a filter, from the indexes, or from the
+     * master table if the filter can't use them. The partition must be locked.
+     *
+     * @return The number of candidates found in the indexes, Long.MAX_VALUE for a full scan
+     */
+    private long gather( ExprNode root, PartitionSearchResult searchResult, Set<String> uuidSet ) throws Exception
+    {
+        searchResult.setCandidateSet( uuidSet );
+
+        long nbResults = cursorBuilder.build( root, searchResult );
+
+        LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
+
+        if ( nbResults == Long.MAX_VALUE )
         {
             // Full scan : use the MasterTable
             Cursor<IndexEntry<String, String>> cursor = new IndexCursorAdaptor( db.getMasterTable().cursor(), true );
 
-            while ( cursor.next() )
+            try
+            {
+                while ( cursor.next() )
+                {
+                    // Here, the indexEntry contains a <UUID, Entry> tuple
+                    uuidSet.add( cursor.get().getKey() );
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+
+        return nbResults;
+    }
+
+
+    /**
+     * Reads the first matching entries from a lazy Cursor over the candidates, one more than
+     * the limit so that the client knows it's exceeded. The partition is locked while we read
+     * the indexes, but not while the client reads the entries : if it reads past the first
+     * ones, a paged search reading the next page or a search whose entries are hidden by an
+     * interceptor, all the candidates are gathered with the partition read lock held.
+     */
+    private void readAhead( final ExprNode root, final PartitionSearchResult searchResult,
+        Cursor<IndexEntry<String, String>> candidates, long readLimit ) throws Exception
+    {
+        Evaluator<? extends ExprNode> evaluator = searchResult.getEvaluator();
+        Set<String> uuidSet = new LinkedHashSet<String>();
+        boolean exhausted = false;
+
+        try
+        {
+            while ( uuidSet.size() <= readLimit )
             {
-                IndexEntry<String, String> indexEntry = cursor.get();
+                if ( !candidates.next() )
+                {
+                    exhausted = true;
+                    break;
+                }
 
-                // Here, the indexEntry contains a <UUID, Entry> tuple. Convert it to <UUID, UUID>
-                IndexEntry<String, String> forwardIndexEntry = new IndexEntry<String, String>();
-                forwardIndexEntry.setKey( indexEntry.getKey() );
-                forwardIndexEntry.setId( indexEntry.getKey() );
-                forwardIndexEntry.setEntry( null );
+                // The lazy Cursors may return the same candidate more than once
+                IndexEntry<String, String> candidate = candidates.get();
 
-                resultSet.add( forwardIndexEntry );
+                if ( !uuidSet.contains( candidate.getId() ) && evaluator.evaluate( candidate ) )
+                {
+                    uuidSet.add( candidate.getId() );
+                }
             }
         }
+        finally
+        {
+            candidates.close();
+        }
 
-        searchResult.setEvaluator( evaluator );
-        searchResult.setResultSet( resultSet );
+        searchResult.setCandidateSet( uuidSet );
 
-        return searchResult;
+        if ( exhausted )
+        {
+            searchResult.setResultCursor( new ReadAheadCursor( uuidSet, null ) );
+            explain( searchResult, "READ " + uuidSet.size() + " entries lazily from the indexes", root );
+
+            return;
+        }
+
+        Callable<Set<String>> gatherer = new Callable<Set<String>>()
+        {
+            public Set<String> call() throws Exception
+            {
+                ReadWriteLock rwLock = db.getReadWriteLock();
+                Lock lock = rwLock == null ? null : rwLock.readLock();
+
+                if ( lock != null )
+                {
+                    lock.lock();
+                }
+
+                try
+                {
+                    Set<String> uuids = new HashSet<String>();
+                    gather( root, searchResult, uuids );
+
+                    return uuids;
+                }
+                finally
+                {
+                    if ( lock != null )
+                    {
+                        lock.unlock();
+                    }
+                }
+            }
+        };
+
+        searchResult.setResultCursor( new ReadAheadCursor( uuidSet, gatherer ) );
+        explain( searchResult, "READ AHEAD " + uuidSet.size()
+            + " entries lazily from the indexes, the other candidates are gathered when they are read", root );
     }
 
 
@@ -0,0 +1,456 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.LdapComparator;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexEntry;
+
+
+/**
+ * The statistics gathered on an attribute index, used by the {@link DefaultOptimizer} to
+ * estimate the number of candidates selected by a filter without reading the index :
+ * <ul>
+ * <li>The number of tuples and of distinct keys</li>
+ * <li>The most common keys, with their number of tuples</li>
+ * <li>An equi-depth histogram : the keys found every N tuples, in the index order</li>
+ * </ul>
+ * The statistics are computed by reading the whole index, and are immutable.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class IndexStatistics
+{
+    /** The number of most common keys we keep */
+    static final int MOST_COMMON_KEYS = 16;
+
+    /** The number of buckets in the histogram */
+    static final int HISTOGRAM_BUCKETS = 64;
+
+    /** The number of tuples read before the partition lock is released */
+    private static final int TUPLES_PER_LOCK = 1000;
+
+    /** The number of tuples in the index */
+    private final long tupleCount;
+
+    /** The number of distinct keys in the index */
+    private final long distinctKeys;
+
+    /** The most common keys, with their number of tuples */
+    private final Map<Object, Long> mostCommonKeys;
+
+    /** The number of tuples of the least common key in the mostCommonKeys map */
+    private final long minCommonCount;
+
+    /** The total number of tuples of the most common keys */
+    private final long mostCommonTotal;
+
+    /** The keys found every bucketDepth tuples, the last one being the last index key */
+    private final Object[] bounds;
+
+    /** The number of tuples between two bounds */
+    private final long bucketDepth;
+
+    /** The comparator used to order the index keys, null if we can't compare them */
+    private final Comparator<Object> comparator;
+
+
+    private IndexStatistics( long tupleCount, long distinctKeys, Map<Object, Long> mostCommonKeys, Object[] bounds,
+        long bucketDepth, Comparator<Object> comparator )
+    {
+        this.tupleCount = tupleCount;
+        this.distinctKeys = distinctKeys;
+        this.mostCommonKeys = mostCommonKeys;
+        this.bounds = bounds;
+        this.bucketDepth = bucketDepth;
+        this.comparator = comparator;
+
+        long min = Long.MAX_VALUE;
+        long total = 0L;
+
+        for ( Long count : mostCommonKeys.values() )
+        {
+            min = Math.min( min, count );
+            total += count;
+        }
+
+        minCommonCount = min;
+        mostCommonTotal = total;
+    }
+
+
+    /**
+     * A key and its number of tuples, used to select the most common keys
+     */
+    private static final class KeyCount
+    {
+        private final Object key;
+        private final long count;
+
+
+        private KeyCount( Object key, long count )
+        {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+
+    /**
+     * Reads an index to compute its statistics. The partition lock is released every few
+     * tuples, so that the updates are not blocked while a large index is read.
+     *
+     * @param index The index to read
+     * @param lock The partition read lock, or null
+     * @return The index statistics
+     * @throws Exception If the index can't be read
+     */
+    @SuppressWarnings("unchecked")
+    public static IndexStatistics collect( Index<?, String> index, Lock lock ) throws Exception
+    {
+        Comparator<Object> comparator = getComparator( index.getAttribute() );
+        long expectedCount = index.count();
+        long bucketDepth = Math.max( 1L, expectedCount / HISTOGRAM_BUCKETS );
+        List<Object> bounds = new ArrayList<Object>();
+
+        PriorityQueue<KeyCount> mostCommon = new PriorityQueue<KeyCount>( MOST_COMMON_KEYS + 1,
+            new Comparator<KeyCount>()
+            {
+                public int compare( KeyCount kc1, KeyCount kc2 )
+                {
+                    return kc1.count < kc2.count ? -1 : ( kc1.count == kc2.count ? 0 : 1 );
+                }
+            } );
+
+        long tupleCount = 0L;
+        long distinctKeys = 0L;
+        Object currentKey = null;
+        long currentCount = 0L;
+        Object lastKey = null;
+
+        Cursor<IndexEntry<Object, String>> cursor = ( ( Index<Object, String> ) index ).forwardCursor();
+
+        try
+        {
+            boolean hasNext = true;
+
+            while ( hasNext )
+            {
+                if ( lock != null )
+                {
+                    lock.lock();
+                }
+
+                try
+                {
+                    for ( int i = 0; i < TUPLES_PER_LOCK; i++ )
+                    {
+                        hasNext = cursor.next();
+
+                        if ( !hasNext )
+                        {
+                            break;
+                        }
+
+                        Object key = cursor.get().getKey();
+
+                        if ( tupleCount % bucketDepth == 0 )
+                        {
+                            bounds.add( key );
+                        }
+
+                        tupleCount++;
+                        lastKey = key;
+
+                        if ( ( currentKey != null ) && currentKey.equals( key ) )
+                        {
+                            currentCount++;
+                        }
+                        else
+                        {
+                            addCommonKey( mostCommon, currentKey, currentCount );
+                            currentKey = key;
+                            currentCount = 1L;
+                            distinctKeys++;
+                        }
+                    }
+                }
+                finally
+                {
+                    if ( lock != null )
+                    {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        addCommonKey( mostCommon, currentKey, currentCount );
+
+        if ( lastKey != null )
+        {
+            bounds.add( lastKey );
+        }
+
+        Map<Object, Long> mostCommonKeys = new HashMap<Object, Long>();
+
+        for ( KeyCount keyCount : mostCommon )
+        {
+            mostCommonKeys.put( keyCount.key, keyCount.count );
+        }
+
+        return new IndexStatistics( tupleCount, distinctKeys, Collections.unmodifiableMap( mostCommonKeys ),
+            bounds.toArray(), bucketDepth, comparator );
+    }
+
+
+    /**
+     * Adds a key to the most common keys if it has more tuples than the least common one
+     */
+    private static void addCommonKey( PriorityQueue<KeyCount> mostCommon, Object key, long count )
+    {
+        // Only the String keys can be looked up in a map
+        if ( !( key instanceof String ) )
+        {
+            return;
+        }
+
+        if ( mostCommon.size() < MOST_COMMON_KEYS )
+        {
+            mostCommon.add( new KeyCount( key, count ) );
+        }
+        else if ( mostCommon.peek().count < count )
+        {
+            mostCommon.poll();
+            mostCommon.add( new KeyCount( key, count ) );
+        }
+    }
+
+
+    /**
+     * Gets the comparator used by the index, the one of the equality matching rule or of
+     * the ordering matching rule
+     */
+    @SuppressWarnings("unchecked")
+    private static Comparator<Object> getComparator( AttributeType attributeType )
+    {
+        if ( attributeType == null )
+        {
+            return null;
+        }
+
+        MatchingRule mr = attributeType.getEquality();
+
+        if ( mr == null )
+        {
+            mr = attributeType.getOrdering();
+        }
+
+        if ( mr == null )
+        {
+            return null;
+        }
+
+        return ( LdapComparator<Object> ) mr.getLdapComparator();
+    }
+
+
+    /**
+     * @return The number of tuples in the index when the statistics were computed
+     */
+    public long getTupleCount()
+    {
+        return tupleCount;
+    }
+
+
+    /**
+     * @return The number of distinct keys in the index when the statistics were computed
+     */
+    public long getDistinctKeys()
+    {
+        return distinctKeys;
+    }
+
+
+    /**
+     * Estimates the number of tuples having the given key
+     *
+     * @param key The key
+     * @return The estimated number of tuples
+     */
+    public long estimateEquality( Object key )
+    {
+        Long count = mostCommonKeys.get( key );
+
+        if ( count != null )
+        {
+            return count;
+        }
+
+        long otherKeys = distinctKeys - mostCommonKeys.size();
+
+        if ( otherKeys <= 0 )
+        {
+            // All the keys are in the map : this one is not in the index
+            return 0L;
+        }
+
+        // The remaining tuples are supposed to be evenly distributed, but a key
+        // can't be more common than the least common of the most common keys
+        long average = ( tupleCount - mostCommonTotal + otherKeys - 1 ) / otherKeys;
+
+        return Math.min( average, minCommonCount );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key greater or equal to the given key
+     *
+     * @param key The key
+     * @return The estimated number of tuples, or -1 if it can't be estimated
+     */
+    public long estimateGreaterOrEqual( Object key )
+    {
+        long position = position( key );
+
+        return position < 0 ? -1L : tupleCount - position;
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key lower or equal to the given key
+     *
+     * @param key The key
+     * @return The estimated number of tuples, or -1 if it can't be estimated
+     */
+    public long estimateLessOrEqual( Object key )
+    {
+        long position = position( key );
+
+        if ( position < 0 )
+        {
+            return -1L;
+        }
+
+        // Add the tuples having this key
+        return Math.min( tupleCount, position + estimateEquality( key ) );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key starting with the given prefix
+     *
+     * @param prefix The prefix
+     * @return The estimated number of tuples, or -1 if it can't be estimated
+     */
+    public long estimatePrefix( String prefix )
+    {
+        long start = position( prefix );
+        long end = position( prefix + Character.MAX_VALUE );
+
+        if ( ( start < 0 ) || ( end < 0 ) )
+        {
+            return -1L;
+        }
+
+        // The prefix may fall in a single bucket
+        return Math.max( Math.min( tupleCount, 1L ), end - start );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key lower than the given key, using the
+     * histogram. Returns -1 if the keys can't be compared.
+     */
+    private long position( Object key )
+    {
+        if ( ( comparator == null ) || ( bounds.length == 0 ) )
+        {
+            return -1L;
+        }
+
+        try
+        {
+            if ( comparator.compare( key, bounds[0] ) <= 0 )
+            {
+                return 0L;
+            }
+
+            if ( comparator.compare( key, bounds[bounds.length - 1] ) > 0 )
+            {
+                return tupleCount;
+            }
+
+            // Find the last bound lower than the key
+            int low = 0;
+            int high = bounds.length - 1;
+
+            while ( high - low > 1 )
+            {
+                int middle = ( low + high ) >>> 1;
+
+                if ( comparator.compare( bounds[middle], key ) < 0 )
+                {
+                    low = middle;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+
+            // The key is somewhere in this bucket : assume it's in the middle
+            return Math.min( tupleCount, low * bucketDepth + bucketDepth / 2 );
+        }
+        catch ( RuntimeException re )
+        {
+            // The key can't be compared to the index keys
+            return -1L;
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "IndexStatistics[tuples=" + tupleCount + ", distinct keys=" + distinctKeys + ", most common keys="
+            + mostCommonKeys + ", buckets=" + bounds.length + "]";
+    }
+}
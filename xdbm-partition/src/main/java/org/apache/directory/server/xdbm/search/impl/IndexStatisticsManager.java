@@ -0,0 +1,338 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Keeps the statistics of the indexes of a partition. The statistics are computed
+ * in the background the first time an index is used by the optimizer, and computed
+ * again when the number of tuples in the index has changed by more than 10%. Until
+ * they are available, the optimizer reads the index to estimate the number of candidates.
+ * <br>
+ * Small indexes have no statistics : reading them is cheap enough.
+ * <br>
+ * Each partition has its own manager, with its own background thread, which is created
+ * when it's first needed. The partition must call {@link #stop()} when it's destroyed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatisticsManager
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( IndexStatisticsManager.class );
+
+    /** The system property used to configure the minimum number of tuples of an index with statistics */
+    public static final String MIN_TUPLES_PROPERTY = "apacheds.search.statisticsMinTuples";
+
+    /** The default minimum number of tuples of an index with statistics */
+    public static final long DEFAULT_MIN_TUPLES = 1000L;
+
+    /** The minimum change in the number of tuples before the statistics are computed again */
+    private static final long MIN_CHANGE = 100L;
+
+    /** The minimum delay between two reads of the number of entries, in milliseconds */
+    private static final long ENTRY_COUNT_DELAY = 5000L;
+
+    /** The time we wait for the statistics being computed when the manager is stopped, in seconds */
+    private static final long STOP_TIMEOUT = 10L;
+
+    /** The partition */
+    private final Store db;
+
+    /** The thread computing the statistics, created when needed */
+    private ExecutorService executor;
+
+    /** Tells if the manager has been stopped */
+    private boolean stopped;
+
+    /** The number of entries in the partition, or -1 if it has not been read yet */
+    private volatile long entryCount = -1L;
+
+    /** The time the number of entries has been read */
+    private volatile long entryCountTime;
+
+    /** The statistics, per attribute type OID */
+    private final Map<String, IndexStatistics> statistics = new ConcurrentHashMap<String, IndexStatistics>();
+
+    /** The attribute type OIDs of the indexes being read */
+    private final Set<String> pending = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    /** The minimum number of tuples of an index with statistics */
+    private volatile long minTuples = Long.getLong( MIN_TUPLES_PROPERTY, DEFAULT_MIN_TUPLES );
+
+
+    /**
+     * Creates a new instance of IndexStatisticsManager.
+     *
+     * @param db The partition
+     */
+    public IndexStatisticsManager( Store db )
+    {
+        this.db = db;
+    }
+
+
+    /**
+     * Gets the statistics of an index. If they are missing or stale, they are
+     * computed in the background.
+     *
+     * @param index The index
+     * @return The index statistics, or null if they are not available
+     * @throws Exception If the index can't be read
+     */
+    public IndexStatistics getStatistics( Index<?, String> index ) throws Exception
+    {
+        if ( index.getAttribute() == null )
+        {
+            return null;
+        }
+
+        String oid = index.getAttribute().getOid();
+        long count = index.count();
+
+        if ( count < minTuples )
+        {
+            return null;
+        }
+
+        IndexStatistics current = statistics.get( oid );
+
+        if ( ( current == null ) || isStale( current, count ) )
+        {
+            schedule( oid, index );
+        }
+
+        return current;
+    }
+
+
+    /**
+     * Tells if the index has changed too much since the statistics were computed
+     */
+    private boolean isStale( IndexStatistics current, long count )
+    {
+        long tupleCount = current.getTupleCount();
+
+        return Math.abs( count - tupleCount ) > Math.max( MIN_CHANGE, tupleCount / 10 );
+    }
+
+
+    /**
+     * Computes the statistics of an index in the background, unless it's already done
+     */
+    private void schedule( final String oid, final Index<?, String> index )
+    {
+        if ( !pending.add( oid ) )
+        {
+            return;
+        }
+
+        ExecutorService statisticsExecutor = getExecutor();
+
+        if ( statisticsExecutor == null )
+        {
+            pending.remove( oid );
+
+            return;
+        }
+
+        statisticsExecutor.execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    statistics.put( oid, compute( index ) );
+                }
+                catch ( Exception e )
+                {
+                    // Keep the previous statistics, we will try again later
+                    LOG.warn( "Cannot compute the statistics of the {} index : {}", oid, e.getMessage() );
+                }
+                finally
+                {
+                    pending.remove( oid );
+                }
+            }
+        } );
+    }
+
+
+    /**
+     * Gets the executor computing the statistics, creating it if needed
+     *
+     * @return The executor, or null if the manager has been stopped
+     */
+    private synchronized ExecutorService getExecutor()
+    {
+        if ( stopped )
+        {
+            return null;
+        }
+
+        if ( executor == null )
+        {
+            executor = Executors.newSingleThreadExecutor( new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "IndexStatistics" );
+                    thread.setDaemon( true );
+                    thread.setPriority( Thread.MIN_PRIORITY );
+
+                    return thread;
+                }
+            } );
+        }
+
+        return executor;
+    }
+
+
+    /**
+     * Gets the number of entries in the partition. The value is read again when it's
+     * older than a few seconds : it's only used to estimate the cost of a full scan.
+     *
+     * @return The number of entries
+     * @throws Exception If the master table can't be read
+     */
+    public long getEntryCount() throws Exception
+    {
+        long now = System.currentTimeMillis();
+
+        if ( ( entryCount < 0L ) || ( now - entryCountTime > ENTRY_COUNT_DELAY ) )
+        {
+            entryCount = db.count();
+            entryCountTime = now;
+        }
+
+        return entryCount;
+    }
+
+
+    /**
+     * Stops computing the statistics, and drops them. The statistics being computed are
+     * interrupted, and we wait for them to be done, so that the partition can close its
+     * indexes.
+     */
+    public void stop()
+    {
+        ExecutorService statisticsExecutor;
+
+        synchronized ( this )
+        {
+            stopped = true;
+            statisticsExecutor = executor;
+            executor = null;
+        }
+
+        if ( statisticsExecutor != null )
+        {
+            statisticsExecutor.shutdownNow();
+
+            try
+            {
+                if ( !statisticsExecutor.awaitTermination( STOP_TIMEOUT, TimeUnit.SECONDS ) )
+                {
+                    LOG.warn( "The index statistics are still being computed after {} seconds", STOP_TIMEOUT );
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        statistics.clear();
+        pending.clear();
+        entryCount = -1L;
+    }
+
+
+    /**
+     * Reads an index to compute its statistics
+     *
+     * @param index The index
+     * @return The index statistics
+     * @throws Exception If the index can't be read
+     */
+    public IndexStatistics compute( Index<?, String> index ) throws Exception
+    {
+        ReadWriteLock rwLock = db.getReadWriteLock();
+        Lock lock = rwLock == null ? null : rwLock.readLock();
+
+        long t0 = System.currentTimeMillis();
+        IndexStatistics indexStatistics = IndexStatistics.collect( index, lock );
+
+        LOG.debug( "Statistics of the {} index computed in {} ms : {}", index.getAttributeId(),
+            System.currentTimeMillis() - t0, indexStatistics );
+
+        return indexStatistics;
+    }
+
+
+    /**
+     * Computes the statistics of an index now, and stores them.
+     *
+     * @param index The index
+     * @throws Exception If the index can't be read
+     */
+    public void refresh( Index<?, String> index ) throws Exception
+    {
+        statistics.put( index.getAttribute().getOid(), compute( index ) );
+    }
+
+
+    /**
+     * @return The minimum number of tuples of an index with statistics
+     */
+    public long getMinTuples()
+    {
+        return minTuples;
+    }
+
+
+    /**
+     * Sets the minimum number of tuples of an index with statistics
+     *
+     * @param minTuples The minimum number of tuples
+     */
+    public void setMinTuples( long minTuples )
+    {
+        this.minTuples = minTuples;
+    }
+}
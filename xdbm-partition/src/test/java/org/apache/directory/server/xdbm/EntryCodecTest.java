@@ -0,0 +1,273 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Comparator;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.entry.LazyEntry;
+import org.apache.directory.server.xdbm.impl.avl.AvlTable;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the compact entry format of the {@link EntryCodec}, and the lazy decoding of the
+ * attributes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryCodecTest
+{
+    private static SchemaManager schemaManager;
+
+    private Entry entry;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = EntryCodecTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createEntry() throws Exception
+    {
+        entry = new DefaultEntry( schemaManager, "cn=Test Entry",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: Test Entry",
+            "sn: Entry",
+            "description: A  Mixed   Case description",
+            "userPassword: secret" );
+    }
+
+
+    private byte[] encode( EntryCodec codec ) throws Exception
+    {
+        codec.register( entry );
+        byte[] bytes = codec.encode( entry );
+
+        assertTrue( EntryCodec.isCompact( bytes, 0 ) );
+
+        return bytes;
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        EntryCodec codec = new EntryCodec( schemaManager, null );
+        byte[] bytes = encode( codec );
+
+        Entry result = codec.decode( bytes, 0, bytes.length );
+
+        assertEquals( entry, result );
+        assertEquals( new Dn( schemaManager, "cn=Test Entry" ), result.getDn() );
+
+        // The normalized values are read back
+        assertTrue( result.contains( "description", "a mixed case description" ) );
+    }
+
+
+    @Test
+    public void testUnregisteredAttributeType() throws Exception
+    {
+        EntryCodec codec = new EntryCodec( schemaManager, null );
+
+        // The entry must be written in the previous format
+        assertNull( codec.encode( entry ) );
+    }
+
+
+    @Test
+    public void testLazyDecoding() throws Exception
+    {
+        EntryCodec codec = new EntryCodec( schemaManager, null );
+        byte[] bytes = encode( codec );
+
+        LazyEntry result = ( LazyEntry ) codec.decode( bytes, 0, bytes.length );
+
+        assertEquals( 5, result.size() );
+        assertEquals( 5, result.getPendingCount() );
+        assertTrue( result.containsAttribute( schemaManager.getAttributeType( "sn" ) ) );
+        assertEquals( 5, result.getPendingCount() );
+
+        // Only the cn attribute is decoded
+        assertEquals( "Test Entry", result.get( "cn" ).getString() );
+        assertEquals( 4, result.getPendingCount() );
+
+        // The removed attributes are never decoded
+        result.removeAttributes( "userPassword", "description" );
+        assertEquals( 2, result.getPendingCount() );
+        assertEquals( 3, result.size() );
+        assertFalse( result.containsAttribute( "description" ) );
+
+        // The clone shares the pending attributes, without decoding them
+        LazyEntry clone = ( LazyEntry ) result.clone();
+        assertEquals( 2, clone.getPendingCount() );
+        assertTrue( clone.hasObjectClass( "person" ) );
+        assertEquals( 1, clone.getPendingCount() );
+        assertEquals( 2, result.getPendingCount() );
+
+        // The iteration decodes everything
+        int nbAttributes = 0;
+
+        for ( Attribute attribute : result )
+        {
+            assertNotNull( attribute.getAttributeType() );
+            nbAttributes++;
+        }
+
+        assertEquals( 3, nbAttributes );
+        assertEquals( 0, result.getPendingCount() );
+    }
+
+
+    @Test
+    public void testPersistedDictionary() throws Exception
+    {
+        AvlTable<String, String> table = new AvlTable<String, String>( "attributeTypes",
+            new StringComparator(), new StringComparator(), false );
+        EntryCodec codec = new EntryCodec( schemaManager, table );
+        byte[] bytes = encode( codec );
+
+        assertEquals( 5, codec.getDictionarySize() );
+
+        // Another codec reads the same dictionary
+        EntryCodec other = new EntryCodec( schemaManager, table );
+
+        assertEquals( 5, other.getDictionarySize() );
+        assertEquals( entry, other.decode( bytes, 0, bytes.length ) );
+
+        // The entries are stored using the same IDs
+        other.register( entry );
+        assertEquals( 5, other.getDictionarySize() );
+
+        byte[] otherBytes = other.encode( entry );
+        assertEquals( entry, codec.decode( otherBytes, 0, otherBytes.length ) );
+    }
+
+
+    @Test
+    public void testModifiedEntry() throws Exception
+    {
+        EntryCodec codec = new EntryCodec( schemaManager, null );
+        byte[] bytes = encode( codec );
+
+        Entry result = codec.decode( bytes, 0, bytes.length );
+        result.add( "description", "another description" );
+        result.removeAttributes( SchemaConstants.USER_PASSWORD_AT );
+
+        entry.add( "description", "another description" );
+        entry.removeAttributes( SchemaConstants.USER_PASSWORD_AT );
+
+        bytes = encode( codec );
+        assertEquals( entry, codec.decode( bytes, 0, bytes.length ) );
+        assertEquals( entry, result );
+    }
+
+
+    @Test
+    public void testEncodeUnmodifiedEntry() throws Exception
+    {
+        EntryCodec codec = new EntryCodec( schemaManager, null );
+        byte[] bytes = encode( codec );
+
+        // An entry which has not been modified is not encoded again
+        Entry result = codec.decode( bytes, 0, bytes.length );
+        result.setDn( new Dn( schemaManager, "cn=Test Entry,ou=system" ) );
+        byte[] encoded = codec.encode( result );
+        assertArrayEquals( bytes, encoded );
+        assertSame( encoded, codec.encode( result ) );
+        assertEquals( 0, ( ( LazyEntry ) result ).getDecodedAttributes().size() );
+
+        // Another codec has its own dictionary
+        EntryCodec otherCodec = new EntryCodec( schemaManager, null );
+        otherCodec.register( entry );
+        assertNotSame( encoded, otherCodec.encode( result ) );
+
+        // A removed attribute
+        result = codec.decode( bytes, 0, bytes.length );
+        result.removeAttributes( SchemaConstants.USER_PASSWORD_AT );
+        encoded = codec.encode( result );
+        assertFalse( result.containsAttribute( SchemaConstants.USER_PASSWORD_AT ) );
+        assertEquals( result, codec.decode( encoded, 0, encoded.length ) );
+
+        // A renamed entry
+        result = codec.decode( bytes, 0, bytes.length );
+        result.setDn( new Dn( schemaManager, "cn=Other Entry" ) );
+        encoded = codec.encode( result );
+        assertEquals( new Dn( schemaManager, "cn=Other Entry" ), codec.decode( encoded, 0, encoded.length ).getDn() );
+    }
+
+
+    private static final class StringComparator implements Comparator<String>
+    {
+        public int compare( String s1, String s2 )
+        {
+            return s1.compareTo( s2 );
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link OffHeapEntryCache} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class OffHeapEntryCacheTest
+{
+    private static final String UUID1 = "8c5fb3a4-4b9e-4f5c-a8d2-1f3e6b7c9d01";
+
+    private static SchemaManager schemaManager;
+
+    private EntryCodec codec;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = OffHeapEntryCacheTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createCodec() throws Exception
+    {
+        codec = new EntryCodec( schemaManager, null );
+    }
+
+
+    private Entry createEntry( int number ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "cn=entry " + number + ",ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: entry " + number,
+            "sn: entry" );
+        codec.register( entry );
+
+        return entry;
+    }
+
+
+    private String uuid( int number )
+    {
+        return new UUID( 0x0123456789abcdefL, number ).toString();
+    }
+
+
+    @Test
+    public void testPutGet() throws Exception
+    {
+        OffHeapEntryCache cache = new OffHeapEntryCache( 1024 * 1024, codec );
+        Entry entry = createEntry( 1 );
+
+        assertNull( cache.get( UUID1 ) );
+
+        cache.put( UUID1, entry );
+        Entry cached = cache.get( UUID1 );
+
+        assertNotNull( cached );
+        assertEquals( new Dn( schemaManager, "cn=entry 1" ), cached.getDn() );
+        assertEquals( entry.getAttributes().size(), cached.size() );
+        assertTrue( cached.contains( "cn", "entry 1" ) );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( 1, cache.getMissCount() );
+        assertTrue( cache.getWeight() > 0 );
+
+        // Replace the entry
+        entry.add( "description", "modified" );
+        codec.register( entry );
+        cache.put( UUID1, entry );
+        assertTrue( cache.get( UUID1 ).contains( "description", "modified" ) );
+
+        cache.remove( UUID1 );
+        assertNull( cache.get( UUID1 ) );
+        assertEquals( 0, cache.getWeight() );
+    }
+
+
+    @Test
+    public void testUnregisteredAttributeType() throws Exception
+    {
+        OffHeapEntryCache cache = new OffHeapEntryCache( 1024 * 1024, codec );
+        Entry entry = createEntry( 1 );
+        cache.put( UUID1, entry );
+
+        // An entry which can't be encoded replaces nothing
+        entry.add( "description", "not in the dictionary" );
+        cache.put( UUID1, entry );
+
+        assertNull( cache.get( UUID1 ) );
+    }
+
+
+    @Test
+    public void testSegmentReuse() throws Exception
+    {
+        // One segment of ten kB, used as a ring
+        OffHeapEntryCache cache = new OffHeapEntryCache( 10 * 1024, codec );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            cache.put( uuid( i ), createEntry( i ) );
+            assertTrue( cache.getWeight() <= cache.getCapacity() );
+        }
+
+        assertTrue( cache.getEvictionCount() > 0 );
+
+        // The last entries are still there, the first ones have been evicted
+        assertNotNull( cache.get( uuid( 999 ) ) );
+        assertTrue( cache.get( uuid( 999 ) ).contains( "cn", "entry 999" ) );
+        assertNull( cache.get( uuid( 0 ) ) );
+
+        // All the cached entries can be read
+        int cached = 0;
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            Entry entry = cache.get( uuid( i ) );
+
+            if ( entry != null )
+            {
+                assertTrue( entry.contains( "cn", "entry " + i ) );
+                cached++;
+            }
+        }
+
+        assertEquals( 1000 - cache.getEvictionCount(), cached );
+        assertEquals( cached, cache.getSize() );
+
+        // The cached entries are the last ones added
+        for ( int i = 1000 - cached; i < 1000; i++ )
+        {
+            assertNotNull( cache.get( uuid( i ) ) );
+        }
+
+        cache.clear();
+        assertNull( cache.get( uuid( 999 ) ) );
+        assertEquals( 0, cache.getWeight() );
+        assertEquals( 0, cache.getSize() );
+    }
+
+
+    @Test
+    public void testRemove() throws Exception
+    {
+        // Enough entries to grow the position table several times
+        OffHeapEntryCache cache = new OffHeapEntryCache( 4 * 1024 * 1024, codec );
+
+        for ( int i = 0; i < 5000; i++ )
+        {
+            cache.put( uuid( i ), createEntry( i ) );
+        }
+
+        assertEquals( 5000, cache.getSize() );
+
+        for ( int i = 0; i < 5000; i += 2 )
+        {
+            cache.remove( uuid( i ) );
+        }
+
+        assertEquals( 2500, cache.getSize() );
+
+        // Removing an entry must not hide the entries stored after it
+        for ( int i = 0; i < 5000; i++ )
+        {
+            Entry entry = cache.get( uuid( i ) );
+
+            if ( i % 2 == 0 )
+            {
+                assertNull( entry );
+            }
+            else
+            {
+                assertNotNull( entry );
+                assertTrue( entry.contains( "cn", "entry " + i ) );
+            }
+        }
+
+        // A removed entry can be added again
+        cache.put( uuid( 0 ), createEntry( 0 ) );
+        assertTrue( cache.get( uuid( 0 ) ).contains( "cn", "entry 0" ) );
+        assertEquals( 2501, cache.getSize() );
+    }
+
+
+    @Test
+    public void testNonCanonicalIds() throws Exception
+    {
+        OffHeapEntryCache cache = new OffHeapEntryCache( 1024 * 1024, codec );
+        Entry entry = createEntry( 1 );
+
+        // Only the lower case UUIDs are cached
+        cache.put( "uuid1", entry );
+        cache.put( UUID1.toUpperCase(), entry );
+
+        assertNull( cache.get( "uuid1" ) );
+        assertNull( cache.get( UUID1.toUpperCase() ) );
+        assertNull( cache.get( UUID1 ) );
+        assertEquals( 0, cache.getSize() );
+        assertEquals( 0, cache.getWeight() );
+
+        cache.put( UUID1, entry );
+        assertNull( cache.get( UUID1.toUpperCase() ) );
+        assertNotNull( cache.get( UUID1 ) );
+    }
+}
@@ -29,7 +29,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.ehcache.store.AbstractStore;
 
@@ -54,6 +56,8 @@ import org.apache.directory.api.util.exception.Exceptions;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.CacheService;
 import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.partition.impl.btree.Snapshot;
 import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
 import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
 import org.apache.directory.server.xdbm.impl.avl.AvlPartitionTest;
@@ -371,6 +375,55 @@ public class PartitionTest
     }
 
 
+    @Test
+    public void testSyncDeferredByTheOperation() throws Exception
+    {
+        final AtomicInteger syncs = new AtomicInteger();
+
+        AvlPartition syncedPartition = new AvlPartition( schemaManager, dnFactory )
+        {
+            public void sync() throws Exception
+            {
+                syncs.incrementAndGet();
+            }
+        };
+
+        syncedPartition.setId( "synced" );
+        syncedPartition.setSyncOnWrite( true );
+        syncedPartition.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        syncedPartition.setCacheService( cacheService );
+        syncedPartition.initialize();
+
+        try
+        {
+            StoreUtils.loadExampleData( syncedPartition, schemaManager );
+
+            Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+            Attribute attrib = new DefaultAttribute( SchemaConstants.OU_AT, OU_AT );
+            attrib.add( "Marketing" );
+            Modification add = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, attrib );
+
+            // An operation which defers its sync
+            ModifyOperationContext deferredContext = new ModifyOperationContext( null, dn,
+                Arrays.asList( add ) );
+            deferredContext.setSyncDeferred( true );
+
+            syncs.set( 0 );
+            syncedPartition.modify( deferredContext );
+            assertEquals( 0, syncs.get() );
+
+            // The other operations are still synced, even while the first one is not synced yet
+            Modification remove = new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attrib );
+            syncedPartition.modify( new ModifyOperationContext( null, dn, Arrays.asList( remove ) ) );
+            assertEquals( 1, syncs.get() );
+        }
+        finally
+        {
+            syncedPartition.destroy();
+        }
+    }
+
+
     @Test
     public void testEntryParentIdPresence() throws Exception
     {
@@ -402,6 +455,136 @@ public class PartitionTest
     }
 
 
+    @Test
+    public void testSnapshotReads() throws Exception
+    {
+        partition.setSnapshotReads( true );
+
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String entryId = partition.getEntryId( dn );
+
+        Snapshot snapshot = partition.getSnapshotManager().open();
+
+        // Modify the entry : the snapshot still sees the old version
+        Attribute attrib = new DefaultAttribute( SchemaConstants.OU_AT, OU_AT );
+        attrib.add( "sales" );
+        partition.modify( dn, new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attrib ) );
+
+        assertNull( partition.fetch( entryId ).get( "ou" ) );
+        Entry snapshotEntry = partition.fetch( entryId, snapshot );
+        assertTrue( snapshotEntry.get( "ou" ).contains( "sales" ) );
+        assertEquals( dn, snapshotEntry.getDn() );
+
+        // A snapshot opened after the modification sees the new version
+        Snapshot newSnapshot = partition.getSnapshotManager().open();
+        assertNull( partition.fetch( entryId, newSnapshot ).get( "ou" ) );
+
+        // Delete the entry : it's still visible from both snapshots
+        partition.delete( entryId );
+
+        assertNull( partition.fetch( entryId ) );
+        assertTrue( partition.fetch( entryId, snapshot ).get( "ou" ).contains( "sales" ) );
+        assertNull( partition.fetch( entryId, newSnapshot ).get( "ou" ) );
+
+        // Add an entry : it's not visible from the snapshot
+        Dn addedDn = new Dn( schemaManager, "cn=user,ou=Sales,o=Good Times Co." );
+
+        Entry added = new DefaultEntry( schemaManager, addedDn,
+            "objectClass: top",
+            "objectClass: person",
+            "cn: user",
+            "sn: user sn" );
+
+        StoreUtils.injectEntryInStore( partition, added, 12 );
+        String addedId = partition.getEntryId( addedDn );
+        assertNotNull( partition.fetch( addedId ) );
+        assertNull( partition.fetch( addedId, snapshot ) );
+
+        // Closing the snapshots discards the preserved versions
+        snapshot.close();
+        assertTrue( partition.getSnapshotManager().getPreservedCount() > 0 );
+        newSnapshot.close();
+        assertEquals( 0, partition.getSnapshotManager().getPreservedCount() );
+        assertFalse( partition.getSnapshotManager().hasOpenSnapshots() );
+    }
+
+
+    @Test
+    public void testSnapshotReadsAfterParentMove() throws Exception
+    {
+        partition.setSnapshotReads( true );
+
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String entryId = partition.getEntryId( dn );
+
+        Snapshot snapshot = partition.getSnapshotManager().open();
+
+        // Move the parent : the snapshot still sees the child under its old Dn
+        Dn salesDn = new Dn( schemaManager, "ou=Sales,o=Good Times Co." );
+        Dn newSuperior = new Dn( schemaManager, "ou=Engineering,o=Good Times Co." );
+        Dn movedDn = new Dn( schemaManager, "ou=Sales,ou=Engineering,o=Good Times Co." );
+        partition.move( salesDn, newSuperior, movedDn, null );
+
+        Dn newDn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,ou=Engineering,o=Good Times Co." );
+        assertEquals( newDn, partition.fetch( entryId ).getDn() );
+        assertEquals( dn, partition.fetch( entryId, snapshot ).getDn() );
+
+        // Then modify the child : its preserved version has the old Dn too
+        Attribute attrib = new DefaultAttribute( SchemaConstants.OU_AT, OU_AT );
+        attrib.add( "sales" );
+        partition.modify( newDn, new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attrib ) );
+
+        Entry snapshotEntry = partition.fetch( entryId, snapshot );
+        assertEquals( dn, snapshotEntry.getDn() );
+        assertEquals( dn.getName(), snapshotEntry.get( SchemaConstants.ENTRY_DN_AT ).getString() );
+        assertTrue( snapshotEntry.get( "ou" ).contains( "sales" ) );
+
+        // A snapshot opened after the move sees the new Dn
+        Snapshot newSnapshot = partition.getSnapshotManager().open();
+        assertEquals( newDn, partition.fetch( entryId, newSnapshot ).getDn() );
+
+        snapshot.close();
+        newSnapshot.close();
+        assertEquals( 0, partition.getSnapshotManager().getPreservedCount() );
+    }
+
+
+    @Test
+    public void testSnapshotExpiresWhenTooManyVersions() throws Exception
+    {
+        partition.setSnapshotReads( true );
+        partition.getSnapshotManager().setMaxVersions( 1 );
+
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String entryId = partition.getEntryId( dn );
+        Dn otherDn = new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+        String otherId = partition.getEntryId( otherDn );
+
+        Snapshot snapshot = partition.getSnapshotManager().open();
+
+        Attribute attrib = new DefaultAttribute( SchemaConstants.OU_AT, OU_AT );
+        attrib.add( "sales" );
+        partition.modify( dn, new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attrib ) );
+        assertTrue( partition.fetch( entryId, snapshot ).get( "ou" ).contains( "sales" ) );
+
+        // A second version goes over the cap : the snapshot expires, and reads the current entries
+        partition.modify( otherDn, new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attrib ) );
+
+        assertTrue( partition.getSnapshotManager().isExpired( snapshot ) );
+        assertEquals( 0, partition.getSnapshotManager().getPreservedCount() );
+        assertNull( partition.fetch( entryId, snapshot ).get( "ou" ) );
+        assertNull( partition.fetch( otherId, snapshot ).get( "ou" ) );
+        assertFalse( partition.getSnapshotManager().hasOpenSnapshots() );
+
+        // The next snapshots are not expired
+        Snapshot newSnapshot = partition.getSnapshotManager().open();
+        assertFalse( partition.getSnapshotManager().isExpired( newSnapshot ) );
+
+        snapshot.close();
+        newSnapshot.close();
+    }
+
+
     private Entry verifyParentId( Dn dn ) throws Exception
     {
         String entryId = partition.getEntryId( dn );
@@ -0,0 +1,254 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.server.core.api.metrics.PartitionMetrics;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link WeightedCache} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class WeightedCacheTest
+{
+    /** A weigher using the value as the weight */
+    private static final WeightedCache.Weigher<String, Integer> WEIGHER = new WeightedCache.Weigher<String, Integer>()
+    {
+        public int weigh( String key, Integer value )
+        {
+            return value;
+        }
+    };
+
+
+    /**
+     * Reads an element, and adds it if it's not cached, as the partitions do
+     */
+    private static Integer fetch( WeightedCache<String, Integer> cache, String key, int weight )
+    {
+        Integer value = cache.get( key );
+
+        if ( value == null )
+        {
+            value = weight;
+            cache.put( key, value );
+        }
+
+        return value;
+    }
+
+
+    @Test
+    public void testMaxWeight()
+    {
+        WeightedCache<String, Integer> cache = new WeightedCache<String, Integer>( 10000, 100, WEIGHER );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            fetch( cache, "key" + i, 100 + ( i % 7 ) * 50 );
+            assertTrue( cache.getWeight() <= 10000 );
+        }
+
+        assertEquals( 1000, cache.getMissCount() );
+        assertTrue( cache.getEvictionCount() + cache.getRejectionCount() > 0 );
+        assertEquals( 1000, cache.size() + cache.getEvictionCount() + cache.getRejectionCount() );
+    }
+
+
+    @Test
+    public void testHeavyElementNotCached()
+    {
+        WeightedCache<String, Integer> cache = new WeightedCache<String, Integer>( 10000, 100, WEIGHER );
+
+        cache.put( "small", 100 );
+        cache.put( "huge", 20000 );
+
+        assertNull( cache.get( "huge" ) );
+        assertEquals( 100, cache.get( "small" ).intValue() );
+        assertEquals( 1, cache.getRejectionCount() );
+        assertEquals( 100, cache.getWeight() );
+
+        // An element getting too heavy is removed
+        cache.put( "small", 20000 );
+        assertNull( cache.get( "small" ) );
+        assertEquals( 0, cache.getWeight() );
+    }
+
+
+    @Test
+    public void testScanResistance()
+    {
+        WeightedCache<String, Integer> cache = new WeightedCache<String, Integer>( 100000, 1000, WEIGHER );
+
+        // A working set using half the cache, read a few times
+        for ( int round = 0; round < 4; round++ )
+        {
+            for ( int i = 0; i < 50; i++ )
+            {
+                fetch( cache, "hot" + i, 1000 );
+            }
+        }
+
+        // A scan of ten times the cache size
+        for ( int i = 0; i < 1000; i++ )
+        {
+            fetch( cache, "scan" + i, 1000 );
+        }
+
+        long hits = cache.getHitCount();
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            fetch( cache, "hot" + i, 1000 );
+        }
+
+        // The working set is still there
+        assertEquals( hits + 50, cache.getHitCount() );
+        assertTrue( cache.getWeight() <= 100000 );
+    }
+
+
+    @Test
+    public void testReplaceAndRemove()
+    {
+        WeightedCache<String, Integer> cache = new WeightedCache<String, Integer>( 1000, 100, WEIGHER );
+
+        assertFalse( cache.replace( "key", 200 ) );
+        assertNull( cache.get( "key" ) );
+
+        cache.put( "key", 100 );
+        assertTrue( cache.replace( "key", 200 ) );
+        assertEquals( 200, cache.get( "key" ).intValue() );
+        assertEquals( 200, cache.getWeight() );
+
+        assertEquals( 200, cache.remove( "key" ).intValue() );
+        assertNull( cache.remove( "key" ) );
+        assertEquals( 0, cache.size() );
+        assertEquals( 0, cache.getWeight() );
+
+        cache.put( "key1", 100 );
+        cache.put( "key2", 100 );
+        cache.clear();
+        assertEquals( 0, cache.size() );
+        assertEquals( 0, cache.getWeight() );
+    }
+
+
+    @Test
+    public void testMetrics()
+    {
+        WeightedCache<String, Integer> cache = new WeightedCache<String, Integer>( 1000, 100, WEIGHER );
+        PartitionMetrics metrics = new PartitionMetrics();
+        cache.setMetrics( metrics );
+
+        assertEquals( 1000, metrics.getCacheMaxWeight() );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            fetch( cache, "key" + i, 100 );
+        }
+
+        cache.put( "huge", 2000 );
+
+        assertEquals( cache.getWeight(), metrics.getCacheWeight() );
+        assertEquals( cache.getEvictionCount(), metrics.getCacheEvictions() );
+        assertEquals( cache.getRejectionCount(), metrics.getCacheRejections() );
+        assertTrue( metrics.getCacheEvictions() + metrics.getCacheRejections() >= 91 );
+    }
+
+
+    @Test
+    public void testConcurrentAccesses() throws Exception
+    {
+        final WeightedCache<String, Integer> cache = new WeightedCache<String, Integer>( 20000, 100, WEIGHER );
+        final AtomicInteger gets = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for ( int t = 0; t < 8; t++ )
+        {
+            final int seed = t;
+
+            threads.add( new Thread()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < 20000; i++ )
+                    {
+                        // A hot set of 50 keys, and a scan over 5000 keys
+                        String key = ( i % 2 == 0 ) ? "hot" + ( ( i / 2 ) % 50 )
+                            : "cold" + ( ( i * 7 + seed ) % 5000 );
+                        gets.incrementAndGet();
+
+                        if ( fetch( cache, key, 100 ) != 100 )
+                        {
+                            errors.incrementAndGet();
+                        }
+
+                        if ( i % 1000 == 0 )
+                        {
+                            cache.remove( "hot" + seed );
+                        }
+                    }
+                }
+            } );
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( 0, errors.get() );
+        assertEquals( gets.get(), cache.getHitCount() + cache.getMissCount() );
+        assertTrue( cache.getWeight() <= 20000 );
+        assertEquals( cache.size() * 100, cache.getWeight() );
+
+        // The hot set survived the scan
+        int hotHits = 0;
+
+        for ( int i = 8; i < 50; i++ )
+        {
+            if ( cache.get( "hot" + i ) != null )
+            {
+                hotHits++;
+            }
+        }
+
+        assertTrue( "only " + hotHits + " hot keys cached", hotHits > 30 );
+    }
+}
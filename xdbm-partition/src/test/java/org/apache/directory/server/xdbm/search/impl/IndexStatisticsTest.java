@@ -0,0 +1,230 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the estimations done using the IndexStatistics.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatisticsTest
+{
+    private static SchemaManager schemaManager;
+
+    /** An index with 100 keys k0000 to k0099 having 40 tuples each, and a "common" key with 1000 tuples */
+    private AvlIndex<String> idx;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = IndexStatisticsTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        idx = new AvlIndex<String>( SchemaConstants.OU_AT_OID );
+        idx.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( SchemaConstants.OU_AT_OID ) );
+
+        int id = 0;
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            String key = String.format( "k%04d", i );
+
+            for ( int j = 0; j < 40; j++ )
+            {
+                idx.add( key, Integer.toString( id++ ) );
+            }
+        }
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            idx.add( "common", Integer.toString( id++ ) );
+        }
+    }
+
+
+    @After
+    public void teardown() throws Exception
+    {
+        idx.close();
+    }
+
+
+    private void assertEstimate( long expected, long estimate )
+    {
+        // The histogram precision is one bucket
+        long tolerance = 5000L / IndexStatistics.HISTOGRAM_BUCKETS;
+
+        assertTrue( "expected " + expected + " but was " + estimate, Math.abs( expected - estimate ) <= tolerance );
+    }
+
+
+    @Test
+    public void testCounts() throws Exception
+    {
+        IndexStatistics statistics = IndexStatistics.collect( idx, null );
+
+        assertEquals( 5000L, statistics.getTupleCount() );
+        assertEquals( 101L, statistics.getDistinctKeys() );
+    }
+
+
+    @Test
+    public void testEquality() throws Exception
+    {
+        IndexStatistics statistics = IndexStatistics.collect( idx, null );
+
+        // The most common key is known exactly
+        assertEquals( 1000L, statistics.estimateEquality( "common" ) );
+
+        // The other keys are supposed to be evenly distributed
+        assertEquals( 40L, statistics.estimateEquality( "k0050" ) );
+        assertEquals( 40L, statistics.estimateEquality( "unknown" ) );
+    }
+
+
+    @Test
+    public void testRanges() throws Exception
+    {
+        IndexStatistics statistics = IndexStatistics.collect( idx, null );
+
+        assertEstimate( 2000L, statistics.estimateGreaterOrEqual( "k0050" ) );
+        assertEstimate( 3040L, statistics.estimateLessOrEqual( "k0050" ) );
+        assertEquals( 5000L, statistics.estimateGreaterOrEqual( "a" ) );
+        assertEquals( 0L, statistics.estimateGreaterOrEqual( "z" ) );
+    }
+
+
+    @Test
+    public void testPrefix() throws Exception
+    {
+        IndexStatistics statistics = IndexStatistics.collect( idx, null );
+
+        assertEstimate( 4000L, statistics.estimatePrefix( "k00" ) );
+        assertEstimate( 400L, statistics.estimatePrefix( "k005" ) );
+        assertEstimate( 1000L, statistics.estimatePrefix( "com" ) );
+    }
+
+
+    /**
+     * Creates a Store only able to count its entries, and having no lock
+     */
+    private static Store createStore( final AtomicInteger counts )
+    {
+        return ( Store ) Proxy.newProxyInstance( Store.class.getClassLoader(), new Class<?>[]
+            { Store.class }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    if ( method.getName().equals( "count" ) )
+                    {
+                        counts.incrementAndGet();
+
+                        return 42L;
+                    }
+
+                    return null;
+                }
+            } );
+    }
+
+
+    @Test
+    public void testManagerStop() throws Exception
+    {
+        AtomicInteger counts = new AtomicInteger();
+        IndexStatisticsManager manager = new IndexStatisticsManager( createStore( counts ) );
+
+        // The number of entries is only read once in a while
+        assertEquals( 42L, manager.getEntryCount() );
+        assertEquals( 42L, manager.getEntryCount() );
+        assertEquals( 1, counts.get() );
+
+        // The statistics are computed in the background
+        assertNull( manager.getStatistics( idx ) );
+        IndexStatistics statistics = null;
+
+        for ( int i = 0; ( i < 100 ) && ( statistics == null ); i++ )
+        {
+            Thread.sleep( 20 );
+            statistics = manager.getStatistics( idx );
+        }
+
+        assertNotNull( statistics );
+
+        // Once stopped, the statistics are dropped and not computed anymore
+        manager.stop();
+        assertNull( manager.getStatistics( idx ) );
+        Thread.sleep( 100 );
+        assertNull( manager.getStatistics( idx ) );
+    }
+}
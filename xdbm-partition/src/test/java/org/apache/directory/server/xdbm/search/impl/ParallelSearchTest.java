@@ -0,0 +1,353 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.MockCoreSession;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
+import org.apache.directory.server.core.partition.impl.btree.ParallelEntryCursor;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Test the ParallelEntryCursor : the entries must be the same as the ones returned by the
+ * EntryCursorAdaptor, in the same order when the order is preserved.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelSearchTest extends AbstractCursorTest
+{
+    File wkdir;
+    static SchemaManager schemaManager = null;
+    private static CacheService cacheService;
+    private DefaultSearchEngine searchEngine;
+
+    /** The number of users added to the example data */
+    private static final int USERS = 3000;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ParallelSearchTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        loaded = schemaManager.loadWithDeps( loader.getSchema( "collective" ) );
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+    }
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        directoryService = new MockDirectoryService();
+
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        // initialize the store
+        store = new AvlPartition( schemaManager, directoryService.getDnFactory() );
+        ( ( Partition ) store ).setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+
+        store.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID ) );
+        store.addIndex( new AvlIndex<String>( SchemaConstants.CN_AT_OID ) );
+        ( ( Partition ) store ).setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        ( ( Partition ) store ).setCacheService( cacheService );
+        ( ( Partition ) store ).initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        // Enough entries to fill several chunks
+        for ( int i = 0; i < USERS; i++ )
+        {
+            Entry entry = new DefaultEntry( schemaManager, "cn=user " + i + ",ou=Sales,o=Good Times Co.",
+                "objectClass: top",
+                "objectClass: person",
+                "ou: Sales",
+                "cn: user " + i,
+                "sn: user " + ( i % 7 ) );
+            StoreUtils.injectEntryInStore( store, entry, 1000 + i );
+        }
+
+        evaluatorBuilder = new EvaluatorBuilder( store, schemaManager );
+        cursorBuilder = new CursorBuilder( store, evaluatorBuilder );
+        searchEngine = new DefaultSearchEngine( store, cursorBuilder, evaluatorBuilder, new DefaultOptimizer( store ) );
+        directoryService.setSchemaManager( schemaManager );
+        session = new MockCoreSession( new LdapPrincipal(), directoryService );
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            ( ( Partition ) store ).destroy();
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    private PartitionSearchResult computeResult( String filter, SearchScope scope ) throws Exception
+    {
+        ExprNode exprNode = FilterParser.parse( schemaManager, filter );
+        SearchOperationContext searchContext = new SearchOperationContext( session );
+        searchContext.setDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        searchContext.setScope( scope );
+        searchContext.setFilter( exprNode );
+        searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+
+        return searchEngine.computeResult( schemaManager, searchContext );
+    }
+
+
+    /**
+     * Reads all the entries of a cursor, and closes it
+     */
+    private List<String> read( Cursor<Entry> cursor ) throws Exception
+    {
+        List<String> uuids = new ArrayList<String>();
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                Entry entry = cursor.get();
+
+                if ( entry != null )
+                {
+                    uuids.add( entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return uuids;
+    }
+
+
+    private void assertSameResults( String filter, SearchScope scope ) throws Exception
+    {
+        AbstractBTreePartition partition = ( AbstractBTreePartition ) store;
+        List<String> expected = read( new EntryCursorAdaptor( partition, computeResult( filter, scope ) ) );
+
+        List<String> ordered = read( new ParallelEntryCursor( partition, computeResult( filter, scope ),
+            null, 4, true ) );
+        assertEquals( filter, expected, ordered );
+
+        List<String> unordered = read( new ParallelEntryCursor( partition, computeResult( filter, scope ),
+            null, 4, false ) );
+        assertEquals( filter, expected.size(), unordered.size() );
+        assertEquals( filter, new HashSet<String>( expected ), new HashSet<String>( unordered ) );
+    }
+
+
+    @Test
+    public void testSameResults() throws Exception
+    {
+        // Gathered candidates
+        assertSameResults( "(objectClass=person)", SearchScope.SUBTREE );
+        assertSameResults( "(cn=user 1*)", SearchScope.SUBTREE );
+        assertSameResults( "(ou=Engineering)", SearchScope.SUBTREE );
+        assertSameResults( "(ou=Sales)", SearchScope.ONELEVEL );
+
+        // Full scan
+        assertSameResults( "(sn=user 3)", SearchScope.SUBTREE );
+    }
+
+
+    @Test
+    public void testRewind() throws Exception
+    {
+        AbstractBTreePartition partition = ( AbstractBTreePartition ) store;
+        ParallelEntryCursor cursor = new ParallelEntryCursor( partition, computeResult( "(sn=user 3)",
+            SearchScope.SUBTREE ), null, 2, true );
+
+        try
+        {
+            assertTrue( cursor.next() );
+            String first = cursor.get().get( SchemaConstants.ENTRY_UUID_AT ).getString();
+
+            // Back before the first entry, as the sort control check does
+            assertFalse( cursor.previous() );
+            assertTrue( cursor.next() );
+            assertEquals( first, cursor.get().get( SchemaConstants.ENTRY_UUID_AT ).getString() );
+
+            int count = 1;
+
+            while ( cursor.next() )
+            {
+                count++;
+            }
+
+            assertEquals( USERS / 7 + 1, count );
+
+            // And from the beginning again
+            assertTrue( cursor.first() );
+            assertEquals( first, cursor.get().get( SchemaConstants.ENTRY_UUID_AT ).getString() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    @Test
+    public void testUnsupportedMoves() throws Exception
+    {
+        AbstractBTreePartition partition = ( AbstractBTreePartition ) store;
+        ParallelEntryCursor cursor = new ParallelEntryCursor( partition, computeResult( "(objectClass=person)",
+            SearchScope.SUBTREE ), null, 2, true );
+
+        try
+        {
+            try
+            {
+                cursor.afterLast();
+                fail();
+            }
+            catch ( UnsupportedOperationException uoe )
+            {
+                assertTrue( uoe.getMessage(), uoe.getMessage().contains( "afterLast()" ) );
+            }
+
+            // Move to the second chunk, we can't go back to the first one
+            for ( int i = 0; i <= ParallelEntryCursor.CHUNK_SIZE; i++ )
+            {
+                assertTrue( cursor.next() );
+            }
+
+            while ( cursor.previous() )
+            {
+                // Back to the beginning of the second chunk
+            }
+
+            fail();
+        }
+        catch ( UnsupportedOperationException uoe )
+        {
+            assertTrue( uoe.getMessage(), uoe.getMessage().contains( "previous()" ) );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    @Test
+    public void testCloseWhenInterrupted() throws Exception
+    {
+        AbstractBTreePartition partition = ( AbstractBTreePartition ) store;
+        ParallelEntryCursor cursor = new ParallelEntryCursor( partition, computeResult( "(objectClass=person)",
+            SearchScope.SUBTREE ), null, 4, false );
+
+        assertTrue( cursor.next() );
+
+        // The chunks in progress are waited for, and the interrupt is kept
+        Thread.currentThread().interrupt();
+        cursor.close();
+
+        assertTrue( Thread.interrupted() );
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
+import org.apache.directory.api.ldap.model.message.controls.SortRequestControlImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.MockCoreSession;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.apache.directory.server.xdbm.search.cursor.ReadAheadCursor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Test the searches reading a limited number of entries : the first matching entries are
+ * read lazily from the indexes, and the other candidates are gathered only if the client
+ * reads past them.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReadAheadSearchTest extends AbstractCursorTest
+{
+    private static final String BASE = "o=Good Times Co.";
+
+    /** The number of persons added below ou=Engineering */
+    private static final int NB_PERSONS = 20;
+
+    File wkdir;
+    static SchemaManager schemaManager = null;
+    private static CacheService cacheService;
+    private DefaultSearchEngine searchEngine;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReadAheadSearchTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        loaded = schemaManager.loadWithDeps( loader.getSchema( "collective" ) );
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+    }
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        directoryService = new MockDirectoryService();
+
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        // initialize the store
+        store = new AvlPartition( schemaManager, directoryService.getDnFactory() );
+        ( ( Partition ) store ).setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+
+        store.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID ) );
+        store.addIndex( new AvlIndex<String>( SchemaConstants.CN_AT_OID ) );
+        ( ( Partition ) store ).setSuffixDn( new Dn( schemaManager, BASE ) );
+        ( ( Partition ) store ).setCacheService( cacheService );
+        ( ( Partition ) store ).initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        for ( int i = 0; i < NB_PERSONS; i++ )
+        {
+            addPerson( "user " + i, 100 + i );
+        }
+
+        evaluatorBuilder = new EvaluatorBuilder( store, schemaManager );
+        cursorBuilder = new CursorBuilder( store, evaluatorBuilder );
+        searchEngine = new DefaultSearchEngine( store, cursorBuilder, evaluatorBuilder, new DefaultOptimizer( store ) );
+        directoryService.setSchemaManager( schemaManager );
+        session = new MockCoreSession( new LdapPrincipal(), directoryService );
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            ( ( Partition ) store ).destroy();
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    private void addPerson( String cn, long index ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "cn=" + cn + ",ou=Engineering," + BASE,
+            "objectClass: top",
+            "objectClass: person",
+            "cn", cn,
+            "sn: engineer" );
+        StoreUtils.injectEntryInStore( store, entry, index );
+    }
+
+
+    private SearchOperationContext createContext( String filter, AliasDerefMode aliasDerefMode ) throws Exception
+    {
+        SearchOperationContext searchContext = new SearchOperationContext( session );
+        searchContext.setDn( new Dn( schemaManager, BASE ) );
+        searchContext.setScope( SearchScope.SUBTREE );
+        searchContext.setFilter( FilterParser.parse( schemaManager, filter ) );
+        searchContext.setAliasDerefMode( aliasDerefMode );
+
+        return searchContext;
+    }
+
+
+    private SearchOperationContext createContext( String filter, long sizeLimit ) throws Exception
+    {
+        SearchOperationContext searchContext = createContext( filter, AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchContext.setSizeLimit( sizeLimit );
+
+        return searchContext;
+    }
+
+
+    /**
+     * Reads the UUIDs of the found entries, checking that no entry is returned twice. At most
+     * 'max' entries are read, all of them if it's negative : the Cursor is then closed.
+     */
+    private List<String> read( PartitionSearchResult searchResult, int max ) throws Exception
+    {
+        EntryCursorAdaptor cursor = new EntryCursorAdaptor( ( AbstractBTreePartition ) store, searchResult );
+        List<String> uuids = new ArrayList<String>();
+
+        try
+        {
+            while ( ( ( max < 0 ) || ( uuids.size() < max ) ) && cursor.next() )
+            {
+                Entry entry = cursor.get();
+
+                if ( entry != null )
+                {
+                    String uuid = entry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+                    assertFalse( uuid, uuids.contains( uuid ) );
+                    uuids.add( uuid );
+                }
+            }
+        }
+        finally
+        {
+            if ( max < 0 )
+            {
+                cursor.close();
+            }
+        }
+
+        return uuids;
+    }
+
+
+    /**
+     * @return The UUIDs of all the entries matching a filter, gathered as usual
+     */
+    private HashSet<String> searchAll( String filter ) throws Exception
+    {
+        return new HashSet<String>( read( searchEngine.computeResult( schemaManager, createContext( filter, 0L ) ),
+            -1 ) );
+    }
+
+
+    private void assertReadAhead( String filter, long limit, PartitionSearchResult searchResult ) throws Exception
+    {
+        HashSet<String> expected = searchAll( filter );
+        assertTrue( filter, expected.size() > limit + 1 );
+
+        assertTrue( searchResult.getPlan(), searchResult.getPlan().startsWith( "READ AHEAD" ) );
+        assertEquals( limit + 1, searchResult.getCandidateSet().size() );
+
+        // The entries read ahead are returned first
+        ReadAheadCursor cursor = ( ReadAheadCursor ) searchResult.getResultSet();
+        List<String> first = read( searchResult, ( int ) limit + 1 );
+        assertEquals( limit + 1, first.size() );
+        assertTrue( expected.containsAll( first ) );
+        assertFalse( cursor.isComplete() );
+
+        // Then all the other candidates
+        searchResult.getResultSet().beforeFirst();
+        List<String> all = read( searchResult, -1 );
+        assertTrue( cursor.isComplete() );
+        assertEquals( first, all.subList( 0, first.size() ) );
+        assertEquals( expected, new HashSet<String>( all ) );
+    }
+
+
+    @Test
+    public void testSizeLimit() throws Exception
+    {
+        String filter = "(cn=*)";
+        PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager, createContext( filter, 5L ) );
+
+        assertReadAhead( filter, 5L, searchResult );
+    }
+
+
+    @Test
+    public void testPagedSearch() throws Exception
+    {
+        String filter = "(|(ou=Engineering)(ou=Sales))";
+        SearchOperationContext searchContext = createContext( filter, AliasDerefMode.NEVER_DEREF_ALIASES );
+        PagedResultsImpl pagedResults = new PagedResultsImpl();
+        pagedResults.setSize( 3 );
+        searchContext.addRequestControl( pagedResults );
+
+        assertReadAhead( filter, 3L, searchEngine.computeResult( schemaManager, searchContext ) );
+    }
+
+
+    @Test
+    public void testConjunction() throws Exception
+    {
+        // The sn attribute is not indexed : the candidates of cn are read, and checked against sn
+        String filter = "(&(cn=user*)(sn=engineer))";
+        PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager, createContext( filter, 2L ) );
+
+        assertReadAhead( filter, 2L, searchResult );
+    }
+
+
+    @Test
+    public void testFullScan() throws Exception
+    {
+        // No index on sn, and only one entry matches : the lazy full scan reads all the entries
+        String filter = "(sn=WAlkeR)";
+        PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager, createContext( filter, 5L ) );
+
+        assertTrue( searchResult.getPlan(), searchResult.getPlan().startsWith( "READ 1 entries" ) );
+        assertTrue( ( ( ReadAheadCursor ) searchResult.getResultSet() ).isComplete() );
+        assertEquals( searchAll( filter ), new HashSet<String>( read( searchResult, -1 ) ) );
+    }
+
+
+    @Test
+    public void testGatheredSearches() throws Exception
+    {
+        // The limit is above the estimated number of candidates
+        PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager,
+            createContext( "(ou=Sales)", 100L ) );
+        assertTrue( searchResult.getPlan(), searchResult.getPlan().startsWith( "GATHERED" ) );
+
+        // The entries are sorted, they are all read before the first one is returned
+        SearchOperationContext searchContext = createContext( "(cn=*)", 2L );
+        searchContext.addRequestControl( new SortRequestControlImpl() );
+        searchResult = searchEngine.computeResult( schemaManager, searchContext );
+        assertTrue( searchResult.getPlan(), searchResult.getPlan().startsWith( "GATHERED" ) );
+
+        // The aliases are dereferenced while searching
+        searchContext = createContext( "(cn=*)", AliasDerefMode.DEREF_ALWAYS );
+        searchContext.setSizeLimit( 2L );
+        searchResult = searchEngine.computeResult( schemaManager, searchContext );
+        assertTrue( searchResult.getPlan(), searchResult.getPlan().startsWith( "GATHERED" ) );
+    }
+
+
+    @Test
+    public void testEntryAddedBeforeGathering() throws Exception
+    {
+        String filter = "(cn=user*)";
+        HashSet<String> expected = searchAll( filter );
+        PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager, createContext( filter, 2L ) );
+        List<String> first = read( searchResult, 3 );
+
+        // The candidates gathered afterward contain the new entry, and not the ones already read
+        addPerson( "user new", 200 );
+        expected.addAll( searchAll( "(cn=user new)" ) );
+
+        searchResult.getResultSet().beforeFirst();
+        List<String> all = read( searchResult, -1 );
+
+        assertEquals( first, all.subList( 0, first.size() ) );
+        assertEquals( expected, new HashSet<String>( all ) );
+    }
+}
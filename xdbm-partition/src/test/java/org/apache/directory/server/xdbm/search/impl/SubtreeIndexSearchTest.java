@@ -0,0 +1,307 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.MockCoreSession;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Test the SUBTREE scope searches using the subtree index : the entries must be the
+ * ones whose Dn is below the search base, before and after the subtree is moved.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubtreeIndexSearchTest extends AbstractCursorTest
+{
+    File wkdir;
+    static SchemaManager schemaManager = null;
+    private static CacheService cacheService;
+    private DefaultSearchEngine searchEngine;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = SubtreeIndexSearchTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        loaded = schemaManager.loadWithDeps( loader.getSchema( "collective" ) );
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+    }
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        directoryService = new MockDirectoryService();
+
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        // initialize the store
+        store = new AvlPartition( schemaManager, directoryService.getDnFactory() );
+        ( ( Partition ) store ).setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+        ( ( AbstractBTreePartition ) store ).setSubtreeIndexEnabled( true );
+
+        store.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID ) );
+        store.addIndex( new AvlIndex<String>( SchemaConstants.CN_AT_OID ) );
+        ( ( Partition ) store ).setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        ( ( Partition ) store ).setCacheService( cacheService );
+        ( ( Partition ) store ).initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        evaluatorBuilder = new EvaluatorBuilder( store, schemaManager );
+        cursorBuilder = new CursorBuilder( store, evaluatorBuilder );
+        searchEngine = new DefaultSearchEngine( store, cursorBuilder, evaluatorBuilder, new DefaultOptimizer( store ) );
+        directoryService.setSchemaManager( schemaManager );
+        session = new MockCoreSession( new LdapPrincipal(), directoryService );
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            ( ( Partition ) store ).destroy();
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    /**
+     * Runs the search, and returns the UUIDs of the found entries, checking that no entry
+     * is returned twice
+     */
+    private Set<String> search( String base, String filter ) throws Exception
+    {
+        return search( base, FilterParser.parse( schemaManager, filter ) );
+    }
+
+
+    private Set<String> search( String base, ExprNode exprNode ) throws Exception
+    {
+        String filter = exprNode.toString();
+        SearchOperationContext searchContext = new SearchOperationContext( session );
+        searchContext.setDn( new Dn( schemaManager, base ) );
+        searchContext.setScope( SearchScope.SUBTREE );
+        searchContext.setFilter( exprNode );
+        searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+
+        PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager, searchContext );
+        EntryCursorAdaptor cursor = new EntryCursorAdaptor( ( AbstractBTreePartition ) store, searchResult );
+        Set<String> uuids = new HashSet<String>();
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                Entry entry = cursor.get();
+
+                if ( entry != null )
+                {
+                    assertTrue( filter, uuids.add( entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() ) );
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return uuids;
+    }
+
+
+    /**
+     * Gets the UUIDs of the base entry and of the entries below it, from their Dn
+     */
+    private Set<String> getSubtree( String base ) throws Exception
+    {
+        Dn baseDn = new Dn( schemaManager, base );
+        Set<String> uuids = new HashSet<String>();
+        Cursor<Tuple<String, Entry>> cursor = store.getMasterTable().cursor();
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                String id = cursor.get().getKey();
+                Dn dn = store.getEntryDn( id );
+
+                if ( dn.equals( baseDn ) || dn.isDescendantOf( baseDn ) )
+                {
+                    uuids.add( id );
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return uuids;
+    }
+
+
+    private void assertSubtree( String base ) throws Exception
+    {
+        Set<String> expected = getSubtree( base );
+
+        // The scope alone : the normalization interceptor turns (objectClass=*) into an ObjectClassNode
+        assertEquals( base, expected, search( base, ObjectClassNode.OBJECT_CLASS_NODE ) );
+
+        // The scope evaluated on the candidates of another index
+        Set<String> found = search( base, "(cn=*)" );
+        assertTrue( base, expected.containsAll( found ) );
+    }
+
+
+    @Test
+    public void testSubtreeSearch() throws Exception
+    {
+        assertSubtree( "ou=Sales,o=Good Times Co." );
+        assertSubtree( "ou=Board of Directors,o=Good Times Co." );
+        assertSubtree( "ou=Apache,ou=Board of Directors,o=Good Times Co." );
+        assertSubtree( "ou=Engineering,o=Good Times Co." );
+        assertSubtree( "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+
+        // All the entries are in the index
+        assertEquals( store.count(), store.getSubtreeIndex().size() );
+    }
+
+
+    @Test
+    public void testSubtreeSearchAfterUpdates() throws Exception
+    {
+        // Load the index before the updates
+        assertSubtree( "ou=Board of Directors,o=Good Times Co." );
+
+        // Move a subtree below another one
+        Dn dn = new Dn( schemaManager, "ou=Apache,ou=Board of Directors,o=Good Times Co." );
+        Dn newSuperior = new Dn( schemaManager, "ou=Engineering,o=Good Times Co." );
+        Dn newDn = new Dn( schemaManager, "ou=Apache,ou=Engineering,o=Good Times Co." );
+        store.move( dn, newSuperior, newDn, null );
+
+        assertSubtree( "ou=Board of Directors,o=Good Times Co." );
+        assertSubtree( "ou=Engineering,o=Good Times Co." );
+        assertSubtree( "ou=Apache,ou=Engineering,o=Good Times Co." );
+
+        // Add an entry below the moved subtree
+        Entry entry = new DefaultEntry( schemaManager, "cn=user,ou=Apache,ou=Engineering,o=Good Times Co.",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: user",
+            "sn: user sn" );
+        StoreUtils.injectEntryInStore( store, entry, 100 );
+
+        assertSubtree( "ou=Engineering,o=Good Times Co." );
+        assertSubtree( "ou=Apache,ou=Engineering,o=Good Times Co." );
+
+        // And delete it
+        store.delete( entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
+
+        assertSubtree( "ou=Engineering,o=Good Times Co." );
+        assertSubtree( "ou=Apache,ou=Engineering,o=Good Times Co." );
+    }
+}